@@ -0,0 +1,296 @@
+package jf.plantclimate.client;
+
+import jf.plantclimate.data.Reading;
+import jf.plantclimate.protocol.BinaryProtocol;
+
+import java.io.*;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.util.*;
+
+/**
+ * Lokalna pamięć podręczna historii odczytów czujników, przechowywana na dysku między
+ * uruchomieniami aplikacji. {@link MonitorClient} pobiera od serwera tylko odczyty nowsze
+ * od ostatniego zapisanego odczytu czujnika, a wykres może być wyświetlony od razu z pamięci.
+ *
+ * <p>Czujniki są rozróżniane razem z adresem serwera, od którego pobrano historię, aby czujniki
+ * o tym samym identyfikatorze na różnych serwerach nie dzieliły pliku.</p>
+ *
+ * <p>Każdy czujnik ma osobny plik: nagłówek (znacznik formatu i flagi), a po nim odczyty zapisane
+ * jak w protokole binarnym ({@link BinaryProtocol#writeReading}), dopisywane na końcu pliku.
+ * Plik przechowuje co najwyżej {@link #MAX_READINGS} ostatnich odczytów - po przekroczeniu
+ * dwukrotności tej liczby jest zapisywany od nowa. Gdy pliki zajmują więcej niż podany limit,
+ * usuwane są pliki najdawniej używanych czujników.</p>
+ */
+final class HistoryCache {
+    /**
+     * Znacznik formatu; zmieniony, gdy czas w protokole binarnym przestał zależeć od strefy czasowej,
+     * aby pliki zapisane wcześniej zostały pobrane od nowa.
+     */
+    private static final int MAGIC = 0x50434844;
+
+    /**
+     * Flaga nagłówka: pamięć zawiera całą historię czujnika dostępną na serwerze w chwili pobrania.
+     */
+    private static final int COMPLETE = 1;
+
+    /**
+     * Maksymalna liczba odczytów czujnika w pamięci - tyle, ile serwer przechowuje w pamięci.
+     */
+    static final int MAX_READINGS = 1000;
+
+    /**
+     * Liczba czujników, których odczyty są trzymane w pamięci operacyjnej.
+     */
+    private static final int MAX_LOADED = 64;
+
+    private final File dir;
+    private final long maxBytes;
+
+    /**
+     * Wczytane odczyty według nazwy pliku czujnika.
+     */
+    private final Map<String, Entry> loaded = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_LOADED;
+        }
+    };
+
+    private static final class Entry {
+        private final List<Reading> readings = new ArrayList<>();
+        private boolean complete;
+    }
+
+    /**
+     * @param dir katalog plików pamięci podręcznej
+     * @param maxBytes maksymalny łączny rozmiar plików
+     */
+    HistoryCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Zwraca ostatnie odczyty czujnika z pamięci.
+     *
+     * @param server adres serwera czujnika
+     * @param sensorId identyfikator czujnika
+     * @param limit maksymalna liczba odczytów
+     * @return odczyty od najstarszego; pusta lista, jeśli czujnika nie ma w pamięci
+     */
+    synchronized List<Reading> get(String server, String sensorId, int limit) {
+        List<Reading> readings = entry(server, sensorId).readings;
+        return new ArrayList<>(readings.subList(Math.max(0, readings.size() - limit), readings.size()));
+    }
+
+    /**
+     * Zwraca czas ostatniego odczytu czujnika, od którego należy pobrać nowsze odczyty, jeśli pamięć
+     * zawiera co najmniej {@code limit} odczytów albo całą historię czujnika.
+     *
+     * @return czas ostatniego odczytu lub null, jeśli trzeba pobrać historię od nowa
+     */
+    synchronized LocalDateTime tail(String server, String sensorId, int limit) {
+        Entry entry = entry(server, sensorId);
+        if (entry.readings.isEmpty() || (entry.readings.size() < limit && !entry.complete)) {
+            return null;
+        }
+        return entry.readings.get(entry.readings.size() - 1).time();
+    }
+
+    /**
+     * Dopisuje odczyty pobrane od czasu ostatniego odczytu, pomijając odczyty starsze i już zapisane.
+     *
+     * @param server adres serwera czujnika
+     * @param sensorId identyfikator czujnika
+     * @param readings odczyty od najstarszego
+     * @return liczba dopisanych odczytów
+     */
+    synchronized int append(String server, String sensorId, List<Reading> readings) {
+        Entry entry = entry(server, sensorId);
+        List<Reading> added = new ArrayList<>();
+        for (Reading reading : readings) {
+            if (reading.time() != null && isNew(entry.readings, reading)) {
+                entry.readings.add(reading);
+                added.add(reading);
+            }
+        }
+        if (added.isEmpty()) return 0;
+
+        File file = fileOf(server, sensorId);
+        if (entry.readings.size() > 2 * MAX_READINGS || !file.exists()) {
+            trim(entry);
+            write(file, sensorId, entry);
+        } else {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)))) {
+                for (Reading reading : added) {
+                    BinaryProtocol.writeReading(out, reading);
+                }
+            } catch (IOException e) {
+                System.err.println("Błąd zapisu historii czujnika " + sensorId + " do pamięci podręcznej: " + e.getMessage());
+            }
+        }
+        evict(file);
+        return added.size();
+    }
+
+    /**
+     * Zastępuje odczyty czujnika historią pobraną od serwera. Zapamiętane odczyty starsze
+     * od pobranych są zachowywane.
+     *
+     * @param server adres serwera czujnika
+     * @param sensorId identyfikator czujnika
+     * @param readings ostatnie odczyty od najstarszego
+     * @param complete true, jeśli serwer nie ma starszych odczytów czujnika
+     */
+    synchronized void replace(String server, String sensorId, List<Reading> readings, boolean complete) {
+        Entry entry = entry(server, sensorId);
+        List<Reading> fetched = readings.stream().filter(r -> r.time() != null).toList();
+        if (!fetched.isEmpty()) {
+            LocalDateTime first = fetched.get(0).time();
+            entry.readings.removeIf(r -> !r.time().isBefore(first));
+        }
+        entry.readings.addAll(fetched);
+        entry.complete = complete;
+        trim(entry);
+        File file = fileOf(server, sensorId);
+        write(file, sensorId, entry);
+        evict(file);
+    }
+
+    /**
+     * Usuwa odczyty czujnika z pamięci, np. po jego usunięciu z serwera.
+     *
+     * @param server adres serwera czujnika
+     * @param sensorId identyfikator czujnika
+     */
+    synchronized void remove(String server, String sensorId) {
+        File file = fileOf(server, sensorId);
+        loaded.remove(file.getName());
+        if (file.exists() && !file.delete()) {
+            System.err.println("Nie można usunąć pliku pamięci podręcznej " + file);
+        }
+    }
+
+    /**
+     * Sprawdza, czy odczyt jest nowszy od ostatniego zapisanego lub pochodzi z tej samej sekundy,
+     * ale nie został jeszcze zapisany.
+     */
+    private static boolean isNew(List<Reading> readings, Reading reading) {
+        if (readings.isEmpty()) return true;
+        LocalDateTime last = readings.get(readings.size() - 1).time();
+        if (reading.time().isAfter(last)) return true;
+        if (reading.time().isBefore(last)) return false;
+        for (int i = readings.size() - 1; i >= 0 && readings.get(i).time().equals(last); i--) {
+            if (readings.get(i).equals(reading)) return false;
+        }
+        return true;
+    }
+
+    private static void trim(Entry entry) {
+        int excess = entry.readings.size() - MAX_READINGS;
+        if (excess > 0) {
+            entry.readings.subList(0, excess).clear();
+            entry.complete = false;
+        }
+    }
+
+    private Entry entry(String server, String sensorId) {
+        File file = fileOf(server, sensorId);
+        Entry entry = loaded.get(file.getName());
+        if (entry == null) {
+            entry = load(file, sensorId);
+            loaded.put(file.getName(), entry);
+        }
+        // czas modyfikacji pliku wyznacza kolejność usuwania plików
+        file.setLastModified(System.currentTimeMillis());
+        return entry;
+    }
+
+    /**
+     * Wczytuje plik czujnika. Niepełny ostatni odczyt (np. po przerwanym zapisie) jest pomijany.
+     */
+    private Entry load(File file, String sensorId) {
+        Entry entry = new Entry();
+        if (!file.exists()) return entry;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Nieznany format pliku");
+            }
+            entry.complete = (in.readByte() & COMPLETE) != 0;
+            while (true) {
+                entry.readings.add(BinaryProtocol.readReading(in, sensorId));
+            }
+        } catch (EOFException e) {
+            // koniec pliku
+        } catch (IOException e) {
+            System.err.println("Błąd wczytywania pamięci podręcznej czujnika " + sensorId + ": " + e.getMessage());
+            entry.readings.clear();
+            entry.complete = false;
+        }
+        trim(entry);
+        return entry;
+    }
+
+    /**
+     * Zapisuje plik czujnika od nowa: do pliku tymczasowego, który zastępuje poprzedni.
+     */
+    private void write(File file, String sensorId, Entry entry) {
+        if (!dir.exists() && !dir.mkdirs()) {
+            System.err.println("Nie można utworzyć katalogu pamięci podręcznej " + dir);
+            return;
+        }
+        File tmp = new File(dir, file.getName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeByte(entry.complete ? COMPLETE : 0);
+                for (Reading reading : entry.readings) {
+                    BinaryProtocol.writeReading(out, reading);
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Błąd zapisu historii czujnika " + sensorId + " do pamięci podręcznej: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Usuwa pliki najdawniej używanych czujników, dopóki łączny rozmiar plików przekracza limit.
+     *
+     * @param keep plik, który nie jest usuwany
+     */
+    private void evict(File keep) {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".bin"));
+        if (files == null) return;
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= maxBytes) return;
+
+        String keepName = keep.getName();
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            if (total <= maxBytes) break;
+            if (file.getName().equals(keepName)) continue;
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+                loaded.remove(file.getName());
+            }
+        }
+    }
+
+    /**
+     * Zwraca plik czujnika: identyfikator@adres serwera. Znak @ jest kodowany w obu częściach,
+     * więc nazwy różnych czujników lub serwerów się nie pokrywają.
+     */
+    private File fileOf(String server, String sensorId) {
+        return new File(dir, URLEncoder.encode(sensorId, StandardCharsets.UTF_8) + "@"
+                + URLEncoder.encode(server, StandardCharsets.UTF_8) + ".bin");
+    }
+}
@@ -3,295 +3,651 @@ package jf.plantclimate.client;
 import jf.plantclimate.data.Config;
 import jf.plantclimate.data.sensor.PairedSensor;
 import jf.plantclimate.data.Reading;
-import jf.plantclimate.util.ReadingParser;
 
 import java.io.*;
-import java.net.Socket;
+import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
  * Odpowiada za komunikację z serwerem, zarządzanie sparowanymi czujnikami
  * oraz obslugę nowych odczytów.
+ *
+ * <p>Klient może być połączony jednocześnie z kilkoma serwerami ({@link Config#SERVERS}), np. serwerami
+ * różnych lokalizacji. Czujniki wszystkich serwerów tworzą jedną listę, a polecenia dotyczące
+ * czujnika trafiają do serwera, od którego klient otrzymał jego odczyty lub wpis rejestru.
+ * Połączenia są nawiązywane równolegle, a każde ma własny wątek nasłuchiwania, więc zapytania
+ * do różnych serwerów są obsługiwane jednocześnie.</p>
+ *
+ * <p>Po utracie połączenia klient łączy się ponownie z rosnącym wykładniczo odstępem między próbami
+ * (do {@link Config#CLIENT_RECONNECT_MAX_MS}). Po ponownym połączeniu pobiera od serwera tylko odczyty
+ * nowsze od ostatniego otrzymanego odczytu każdego czujnika (HISTORY_SINCE) i przekazuje je do
+ * callbacków przed aktualizacjami odebranymi w tym czasie, więc przerwa nie powoduje luki w danych.</p>
+ *
+ * <p>Pobrana historia czujników jest przechowywana na dysku ({@link HistoryCache}); kolejne żądania
+ * historii pobierają od serwera tylko odczyty nowsze od zapamiętanych.</p>
+ *
+ * <p>Wątki nasłuchiwania tylko odczytują komunikaty serwerów i dodają zdarzenia do kolejek
+ * callbacków ({@link Subscription}); callbacki są wywoływane przez osobne wątki, więc wolny
+ * callback nie wstrzymuje odbioru danych.</p>
  * 
  * <p>Dostępne operacje:</p>
  * <ul>
  *   <li>Połączenie z serwerem: connect(), close()</li>
  *   <li>Zarządzanie czujnikami: pairSensor(), unpairSensor(), checkSensorExists(), isSensorPaired()</li>
- *   <li>Operacje na danych: registerUpdateCallback(), refreshSensor(), requestHistory()</li>
+ *   <li>Operacje na danych: registerUpdateCallback(), refreshSensor(), requestHistory(), requestStats()</li>
  *   <li>Aktualizacja informacji: updateSensorInfo()</li>
+ *   <li>Wyszukiwanie w rejestrze serwera: requestSensorsByRoom(), requestSensorsByPlant()</li>
+ *   <li>Alarmy serwera: addAlertRule(), removeAlertRule(), subscribeAlerts()</li>
  *   <li>Eksport danych: exportData()</li>
+ *   <li>Zapytania zwracające CompletableFuture: getReadingAsync(), pairSensorAsync(), unpairSensorAsync(),
+ *       updateSensorInfoAsync(), requestHistoryAsync(), requestStatsAsync(), exportDataAsync(),
+ *       requestSensorsByRoomAsync(), requestSensorsByPlantAsync()</li>
  * </ul>
  */
 public class MonitorClient {
-    private static final String PAIRED_SENSORS_FILE = "paired_sensors.dat";
+    /**
+     * Plik sparowanych czujników zapisywany przez poprzednie wersje (serializacja Javy), wczytywany
+     * jednorazowo, jeśli nie ma jeszcze plików {@link PairedSensorStore}.
+     */
+    private static final String LEGACY_PAIRED_SENSORS_FILE = "paired_sensors.dat";
+    private static final String PAIRED_SENSORS_FILE = "paired_sensors.db";
+    private static final String PAIRED_SENSORS_JOURNAL = "paired_sensors.journal";
+
+    /**
+     * Odstęp (ms) przed pierwszą próbą ponownego połączenia.
+     */
+    private static final long RECONNECT_MIN_MS = 1000;
+
+    /**
+     * Czas oczekiwania (ms) na odczyty uzupełniające przerwę; starsze serwery nie znają HISTORY_SINCE.
+     */
+    private static final long GAP_FILL_TIMEOUT_MS = 10_000;
     
-    private final Map<String, List<Consumer<Reading>>> callbacks = new ConcurrentHashMap<>();
+    private final Map<String, List<Subscription<Reading>>> callbacks = new ConcurrentHashMap<>();
     private final List<PairedSensor> pairedSensors = new CopyOnWriteArrayList<>();
+    private final PairedSensorStore pairedSensorStore = new PairedSensorStore(new File(PAIRED_SENSORS_FILE),
+            new File(PAIRED_SENSORS_JOURNAL), () -> pairedSensors);
     
-    private String username;
+    private volatile String username;
+
+    /**
+     * Połączenia z serwerami w kolejności z konfiguracji.
+     */
+    private final List<ServerConnection> servers = new ArrayList<>();
+
+    /**
+     * Serwer, od którego klient otrzymał odczyty lub wpis rejestru czujnika.
+     */
+    private final Map<String, ServerConnection> owners = new ConcurrentHashMap<>();
 
-    private Socket socket;
-    private PrintWriter out;
-    private BufferedReader in;
-    private boolean connected = false;
+    private final List<Subscription<String>> sensorRemovedCallbacks = new CopyOnWriteArrayList<>();
+    private final List<Subscription<String>> newSensorCallbacks = new CopyOnWriteArrayList<>();
+    private final List<Subscription<SensorInfo>> sensorInfoUpdateCallbacks = new CopyOnWriteArrayList<>();
 
-    private final List<Consumer<String>> sensorRemovedCallbacks = new ArrayList<>();
-    private final List<Consumer<String>> newSensorCallbacks = new ArrayList<>();
-    private final List<Consumer<SensorInfo>> sensorInfoUpdateCallbacks = new ArrayList<>();
+    private final List<Subscription<Alert>> alertCallbacks = new CopyOnWriteArrayList<>();
+    private final List<Subscription<String>> reconnectCallbacks = new CopyOnWriteArrayList<>();
+
+    /**
+     * Wątki wywołujące funkcje zwrotne, aby wątki nasłuchiwania serwerów tylko odczytywały
+     * i przekazywały zdarzenia.
+     */
+    private final ExecutorService callbackExecutor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "monitor-client-callback");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Kolejka odpowiedzi na zapytania (historia, statystyki, eksport, rejestr) obsługiwanych
+     * w kolejności ich otrzymania, poza wątkami nasłuchiwania.
+     */
+    private final Subscription<Runnable> responses = new Subscription<>(Runnable::run, callbackExecutor);
+
+    private final HistoryCache historyCache = new HistoryCache(new File(Config.CLIENT_HISTORY_CACHE_DIR),
+            Config.CLIENT_HISTORY_CACHE_BYTES);
+
+    /**
+     * Ostatni odczyt każdego czujnika przekazany do callbacków.
+     */
+    private final Map<String, LastSeen> lastSeen = new ConcurrentHashMap<>();
+
+    /**
+     * Aktualizacje czujników, dla których trwa uzupełnianie przerwy - przekazywane po odczytach z przerwy.
+     */
+    private final Map<String, List<Reading>> pendingGaps = new HashMap<>();
+
+    /**
+     * Zapytania GET oczekujące na odczyt czujnika.
+     */
+    private final Map<String, List<ReadingRequest>> readingRequests = new ConcurrentHashMap<>();
+
+    /**
+     * Zapytanie GET oczekujące na odczyt czujnika.
+     *
+     * @param future future kończony odczytem
+     * @param awaiting serwery, do których wysłano zapytanie i które jeszcze go nie odrzuciły
+     */
+    private record ReadingRequest(CompletableFuture<Reading> future, Set<ServerConnection> awaiting) {
+    }
+
+    private final Set<ServerConnection> reconnecting = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed = false;
+
+    /**
+     * Czas ostatniego odczytu czujnika przekazanego do callbacków oraz odczyty z tej samej sekundy,
+     * pozwalające pominąć powtórzenia przy uzupełnianiu przerwy.
+     */
+    private static final class LastSeen {
+        private LocalDateTime time;
+        private final Set<Reading> atTime = new HashSet<>();
+    }
 
     /**
      * Klasa reprezentująca informacje o czujniku
      */
     public record SensorInfo(String sensorId, String name, String plantName, String room) {
     }
+
+    /**
+     * Zmiana stanu alarmu zgłoszona przez serwer.
+     *
+     * @param ruleId identyfikator reguły alarmu
+     * @param sensorId identyfikator czujnika
+     * @param metric nazwa wielkości, np. "soil"
+     * @param value wartość, która spowodowała zmianę stanu
+     * @param firing true przy zgłoszeniu alarmu, false przy jego odwołaniu
+     * @param time czas odczytu
+     */
+    public record Alert(int ruleId, String sensorId, String metric, double value, boolean firing, String time) {
+    }
+
+    /**
+     * Bieżące statystyki jednej wielkości mierzonej przez czujnik, wyznaczane przez serwer.
+     * Wartości null oznaczają statystyki, których nie można jeszcze wyznaczyć.
+     *
+     * @param metric nazwa wielkości, np. "humidity"
+     * @param count liczba odczytów uwzględnionych w statystykach
+     * @param last ostatnia wartość
+     * @param ewma średnia wykładnicza
+     * @param mean średnia
+     * @param stddev odchylenie standardowe
+     * @param minToday minimum od północy
+     * @param maxToday maksimum od północy
+     * @param ratePerMinute zmiana wartości na minutę między dwoma ostatnimi odczytami
+     * @param zScore odległość ostatniej wartości od średniej w odchyleniach standardowych
+     * @param anomaly true, jeśli serwer oznaczył ostatnią wartość jako anomalię
+     */
+    public record MetricStats(String metric, long count, Double last, Double ewma, Double mean, Double stddev,
+                              Double minToday, Double maxToday, Double ratePerMinute, Double zScore, boolean anomaly) {
+    }
     
     public MonitorClient() throws IOException {
+        this(Config.SERVERS.isBlank()
+                ? List.of(Config.HOST + ":" + Config.CLIENT_PORT)
+                : Arrays.asList(Config.SERVERS.split(",")));
+    }
+
+    /**
+     * Tworzy klienta połączonego z podanymi serwerami.
+     *
+     * @param addresses adresy serwerów w formacie host:port
+     * @throws IOException jeśli nie udało się połączyć z żadnym serwerem
+     */
+    public MonitorClient(List<String> addresses) throws IOException {
+        for (String address : addresses) {
+            if (!address.isBlank()) {
+                servers.add(new ServerConnection(this, address.trim()));
+            }
+        }
+        if (servers.isEmpty()) {
+            throw new IllegalArgumentException("Nie podano adresu serwera");
+        }
         loadPairedSensors();
         connect();
     }
 
+    /**
+     * Łączy się ze wszystkimi serwerami, z którymi klient nie jest połączony. Połączenia są
+     * nawiązywane równolegle, więc czas łączenia nie rośnie z liczbą serwerów; niedostępne serwery
+     * są pomijane.
+     *
+     * @throws IOException jeśli nie udało się połączyć z żadnym serwerem
+     */
     public void connect() throws IOException {
+        List<ServerConnection> pending = servers.stream()
+                .filter(s -> !s.isConnected() && !reconnecting.contains(s)).toList();
+        if (pending.isEmpty()) return;
+
+        ExecutorService pool = Executors.newFixedThreadPool(pending.size());
+        IOException failure = null;
         try {
-            socket = new Socket(Config.HOST, Config.CLIENT_PORT);
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            
-            String resp = in.readLine();
-            if (!"HELLO".equals(resp)) {
-                throw new IOException("Nieprawidłowa odpowiedź serwera: " + resp);
+            List<Future<Void>> results = new ArrayList<>();
+            for (ServerConnection server : pending) {
+                results.add(pool.submit(() -> {
+                    server.connect();
+                    return null;
+                }));
             }
-            
-            out.println(UUID.randomUUID());
-
-            connected = true;
-            
-            startListener();
-        } catch (IOException e) {
-            close();
-            throw e;
+            for (int i = 0; i < pending.size(); i++) {
+                try {
+                    results.get(i).get();
+                } catch (ExecutionException e) {
+                    failure = e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+                    System.err.println("Nie można połączyć z serwerem " + pending.get(i).getAddress() + ": "
+                            + failure.getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Przerwano łączenie z serwerami");
+        } finally {
+            pool.shutdown();
+        }
+        if (!isConnected()) {
+            throw failure != null ? failure : new IOException("Brak połączenia z serwerem");
         }
+        for (ServerConnection server : pending) {
+            if (!server.isConnected()) {
+                scheduleReconnect(server);
+            }
+        }
+    }
+
+    /**
+     * Wywoływana przez wątek nasłuchiwania po zakończeniu połączenia z serwerem.
+     */
+    void connectionLost(ServerConnection server) {
+        if (closed) return;
+        System.err.println("Utracono połączenie z serwerem " + server.getAddress() + " - ponowne łączenie");
+        scheduleReconnect(server);
     }
 
     /**
-     * Uruchamia wątek nasłuchiwania odpowiedzi serwera.
+     * Uruchamia wątek, który łączy się ponownie z serwerem, podwajając odstęp między próbami
+     * (z losowym rozrzutem, aby klienci nie łączyli się jednocześnie po restarcie serwera).
      */
-    private void startListener() {
-        Thread listenerThread = new Thread(() -> {
+    private void scheduleReconnect(ServerConnection server) {
+        if (!reconnecting.add(server)) return;
+        Thread t = new Thread(() -> {
             try {
-                String line;
-                while (connected && (line = in.readLine()) != null) {
-                    processServerResponse(line);
-                }
-            } catch (IOException e) {
-                if (connected) {
-                    System.err.println("Błąd nasłuchiwania: " + e.getMessage());
+                long delay = RECONNECT_MIN_MS;
+                while (!closed && !server.isConnected()) {
+                    try {
+                        Thread.sleep(delay + ThreadLocalRandom.current().nextLong(delay / 4 + 1));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (closed) return;
+                    List<String> gaps = beginGapFill(server);
+                    try {
+                        server.connect();
+                    } catch (IOException e) {
+                        cancelGapFill(gaps);
+                        delay = Math.min(delay * 2, Config.CLIENT_RECONNECT_MAX_MS);
+                        continue;
+                    }
+                    int filled = fillGaps(server, gaps);
+                    System.out.println("Połączono ponownie z serwerem " + server.getAddress()
+                            + " (uzupełnione odczyty: " + filled + ")");
+                    reconnectCallbacks.forEach(callback -> callback.offer(server.getAddress()));
                 }
             } finally {
-                close();
+                reconnecting.remove(server);
             }
-        });
-        listenerThread.setDaemon(true);
-        listenerThread.start();
+        }, "monitor-client-reconnect-" + server.getAddress());
+        t.setDaemon(true);
+        t.start();
     }
 
     /**
-     * Przetwarza odpowiedź serwera.
+     * Wstrzymuje przekazywanie aktualizacji czujników serwera, dla których klient ma już odczyty,
+     * do czasu otrzymania odczytów z przerwy. Wywoływana przed połączeniem, aby aktualizacje
+     * odebrane tuż po nim nie wyprzedziły odczytów z przerwy.
      *
-     * @param line odpowiedź serwera
+     * @return czujniki, dla których przerwa zostanie uzupełniona
      */
-    private void processServerResponse(String line) {
-        try {
-            if (line.startsWith("UPDATE ")) {
-                processUpdate(line.substring(7));
-            } else if (line.startsWith("HISTORY_START ")) {
-                processHistoryStart(line.substring(14));
-            } else if (line.startsWith("DATA ")) {
-                processHistoryData(line.substring(5));
-            } else if (line.equals("HISTORY_END")) {
-                processHistoryEnd();
-            } else if (line.startsWith("EXPORT_START ")) {
-                processExportStart(line.substring(13));
-            } else if (line.equals("EXPORT_END")) {
-                processExportEnd();
-            } else if (line.startsWith("SENSOR_INFO ")) {
-                processSensorInfoUpdate(line.substring(12));
-            } else if (line.startsWith("SENSOR_REMOVED ")) {
-                processSensorRemoved(line.substring(15));
-            } else if (line.startsWith("NEW_SENSOR ")) {
-                processNewSensor(line.substring(11));
-            } else if (exportData != null && !line.startsWith("ERROR")) {
-                processExportData(line);
+    private List<String> beginGapFill(ServerConnection server) {
+        List<String> ids = new ArrayList<>();
+        synchronized (pendingGaps) {
+            for (String id : lastSeen.keySet()) {
+                if (owners.get(id) == server) {
+                    pendingGaps.put(id, new ArrayList<>());
+                    ids.add(id);
+                }
             }
-        } catch (Exception e) {
-            System.err.println("Błąd przetwarzania odpowiedzi serwera: " + e.getMessage());
         }
+        return ids;
     }
 
-    private String currentHistorySensor = null;
-    private List<Reading> currentHistoryData = null;
-    private Consumer<List<Reading>> historyCallback = null;
+    private void cancelGapFill(List<String> ids) {
+        synchronized (pendingGaps) {
+            ids.forEach(pendingGaps::remove);
+        }
+    }
 
-    private void processHistoryStart(String line) {
-        String[] parts = line.split(" ", 2);
-        currentHistorySensor = parts[0];
-        currentHistoryData = new ArrayList<>();
+    /**
+     * Pobiera od serwera odczyty czujników z przerwy i czeka na nie co najwyżej {@link #GAP_FILL_TIMEOUT_MS}.
+     * Czujniki bez odpowiedzi przekazują wstrzymane aktualizacje bez uzupełnienia przerwy.
+     *
+     * @return liczba przekazanych odczytów z przerwy
+     */
+    private int fillGaps(ServerConnection server, List<String> ids) {
+        CountDownLatch done = new CountDownLatch(ids.size());
+        AtomicInteger filled = new AtomicInteger();
+        for (String id : ids) {
+            LocalDateTime since;
+            synchronized (lastSeen) {
+                since = lastSeen.get(id).time;
+            }
+            server.requestHistorySince(id, since, readings -> {
+                filled.addAndGet(completeGapFill(id, readings));
+                done.countDown();
+            }, error -> done.countDown());
+        }
+        try {
+            if (!done.await(GAP_FILL_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                System.err.println("Serwer " + server.getAddress() + " nie przesłał odczytów z przerwy");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (String id : ids) {
+            completeGapFill(id, List.of());
+        }
+        return filled.get();
     }
 
-    private void processHistoryData(String line) {
-        if (currentHistorySensor != null && currentHistoryData != null) {
-            try {
-                String[] parts = line.split(",");
-                Reading reading = ReadingParser.parseFromParts(parts);
-                
-                if (reading != null) {
-                    currentHistoryData.add(reading);
+    /**
+     * Przekazuje do callbacków odczyty z przerwy, a po nich aktualizacje wstrzymane w czasie jej
+     * uzupełniania, z pominięciem odczytów już przekazanych.
+     *
+     * @return liczba przekazanych odczytów z przerwy
+     */
+    private int completeGapFill(String sensorId, List<Reading> readings) {
+        synchronized (pendingGaps) {
+            List<Reading> held = pendingGaps.remove(sensorId);
+            if (held == null) return 0;
+            int filled = 0;
+            for (Reading reading : readings) {
+                if (markSeen(reading, true)) {
+                    deliver(reading);
+                    filled++;
                 }
-            } catch (Exception e) {
-                System.err.println("Błąd parsowania linii historii: " + e.getMessage());
             }
+            for (Reading reading : held) {
+                if (markSeen(reading, true)) {
+                    deliver(reading);
+                }
+            }
+            return filled;
         }
     }
 
-    private void processHistoryEnd() {
-        if (currentHistorySensor == null || currentHistoryData == null) return;
-        
-        if (historyCallback != null) {
-            historyCallback.accept(currentHistoryData);
-            historyCallback = null;
+    /**
+     * Zapamiętuje odczyt jako ostatnio przekazany odczyt czujnika.
+     *
+     * @param skipSeen true, jeśli odczyt starszy od ostatniego lub już przekazany ma zostać pominięty
+     * @return true, jeśli odczyt należy przekazać do callbacków
+     */
+    private boolean markSeen(Reading reading, boolean skipSeen) {
+        if (reading.time() == null) return !skipSeen;
+        synchronized (lastSeen) {
+            LastSeen seen = lastSeen.computeIfAbsent(reading.deviceId(), k -> new LastSeen());
+            if (seen.time == null || reading.time().isAfter(seen.time)) {
+                seen.time = reading.time();
+                seen.atTime.clear();
+                seen.atTime.add(reading);
+                return true;
+            }
+            if (reading.time().equals(seen.time)) {
+                return seen.atTime.add(reading) || !skipSeen;
+            }
+            return !skipSeen;
         }
-        
-        currentHistorySensor = null;
-        currentHistoryData = null;
     }
 
-    private StringBuilder exportData = null;
-    private Consumer<String> exportCallback = null;
+    /**
+     * @return true, jeśli klient jest połączony z co najmniej jednym serwerem
+     */
+    public boolean isConnected() {
+        for (ServerConnection server : servers) {
+            if (server.isConnected()) return true;
+        }
+        return false;
+    }
 
-    private void processExportStart(String sensor) {
-        exportData = new StringBuilder();
-        exportData.append("# Dane dla czujnika: ").append(sensor).append("\n");
+    /**
+     * Zwraca adresy serwerów, z którymi łączy się klient.
+     *
+     * @return adresy w formacie host:port
+     */
+    public List<String> getServers() {
+        return servers.stream().map(ServerConnection::getAddress).toList();
     }
-    
-    private void processExportData(String line) {
-        if (exportData != null) {
-            exportData.append(line).append("\n");
+
+    /**
+     * Zwraca adres serwera, do którego należy czujnik.
+     *
+     * @param sensorId identyfikator czujnika
+     * @return adres w formacie host:port lub null, jeśli klient nie otrzymał jeszcze danych czujnika
+     */
+    public String getSensorServer(String sensorId) {
+        ServerConnection owner = ownerOf(sensorId);
+        return owner != null ? owner.getAddress() : null;
+    }
+
+    /**
+     * Zwraca serwer, do którego należy czujnik. Przy jednym serwerze jest nim zawsze ten serwer.
+     *
+     * @return serwer lub null, jeśli nie jest znany
+     */
+    private ServerConnection ownerOf(String sensorId) {
+        ServerConnection owner = owners.get(sensorId);
+        if (owner == null && servers.size() == 1) {
+            owner = servers.get(0);
         }
+        return owner;
     }
 
-    private void processExportEnd() {
-        if (exportData == null) return;
-        
-        String data = exportData.toString();
-        if (exportCallback != null) {
-            exportCallback.accept(data);
-            exportCallback = null;
+    /**
+     * Zwraca serwer, do którego trafiają polecenia dotyczące czujnika: jego właściciela, a jeśli
+     * nie jest znany - pierwszy połączony serwer.
+     */
+    private ServerConnection route(String sensorId) {
+        ServerConnection owner = ownerOf(sensorId);
+        if (owner != null) return owner;
+        for (ServerConnection server : servers) {
+            if (server.isConnected()) return server;
+        }
+        return servers.get(0);
+    }
+
+    /**
+     * Wysyła polecenie do wszystkich połączonych serwerów.
+     */
+    private void sendToAll(String command) {
+        for (ServerConnection server : servers) {
+            server.send(command);
         }
-        
-        exportData = null;
     }
 
     /**
-     * Przetwarza aktualizację z serwera.
+     * Przekazuje nowy odczyt do callbacków czujnika oraz callbacków wszystkich czujników.
      *
-     * @param data aktualizacja w formacie CSV
+     * @param server serwer, od którego przyszedł odczyt
+     * @param reading nowy odczyt
      */
-    private void processUpdate(String data) {
-        if (data.isEmpty()) return;
-        String[] parts = data.split(",");
-        if (parts.length < 10) return;
-        
-        try {
-            String deviceId = parts[0];
-            Reading reading = ReadingParser.parseFromParts(parts);
-            
-            if (reading != null) {
-                notifyCallbacks(deviceId, reading);
-                notifyCallbacks("*", reading);
+    void deliverUpdate(ServerConnection server, Reading reading) {
+        owners.put(reading.deviceId(), server);
+        List<ReadingRequest> requests = readingRequests.get(reading.deviceId());
+        if (requests != null) {
+            // kontynuacje future nie mogą wstrzymywać wątku nasłuchiwania
+            requests.forEach(request -> responses.offer(() -> request.future().complete(reading)));
+        }
+        synchronized (pendingGaps) {
+            List<Reading> held = pendingGaps.get(reading.deviceId());
+            if (held != null) {
+                held.add(reading);
+                return;
             }
-        } catch (Exception e) {
-            System.err.println("Błąd parsowania aktualizacji: " + e.getMessage());
         }
+        markSeen(reading, false);
+        deliver(reading);
+    }
+
+    private void deliver(Reading reading) {
+        notifyCallbacks(reading.deviceId(), reading);
+        notifyCallbacks("*", reading);
+    }
+
+    /**
+     * Zapamiętuje serwer, od którego klient otrzymał dane czujnika.
+     */
+    void sensorSeen(ServerConnection server, String sensorId) {
+        owners.put(sensorId, server);
     }
 
     /**
-     * Powiadamia o nowych odczytach zarejestrowane callbacks.
+     * Przekazuje nowy odczyt do kolejek subskrypcji czujnika.
      *
      * @param deviceId identyfikator czujnika
      * @param reading nowy odczyt
      */
     private void notifyCallbacks(String deviceId, Reading reading) {
-        List<Consumer<Reading>> deviceCallbacks = callbacks.get(deviceId);
+        List<Subscription<Reading>> deviceCallbacks = callbacks.get(deviceId);
         if (deviceCallbacks != null) {
-            for (Consumer<Reading> callback : deviceCallbacks) {
-                try {
-                    callback.accept(reading);
-                } catch (Exception e) {
-                    System.err.println("Błąd w callbacku: " + e.getMessage());
-                }
+            for (Subscription<Reading> callback : deviceCallbacks) {
+                callback.offer(reading);
             }
         }
     }
 
     /**
      * Przetwarza informację o aktualizacji danych czujnika.
-     * Format: sensorId,nazwa,roślina,pomieszczenie
      */
-    private void processSensorInfoUpdate(String data) {
-        String[] parts = data.split(",", -1);
+    synchronized void sensorInfoUpdated(ServerConnection server, SensorInfo info) {
+        String sensorId = info.sensorId();
+        owners.put(sensorId, server);
+
+        boolean updated = false;
+        for (int i = 0; i < pairedSensors.size(); i++) {
+            if (sensorId.equals(pairedSensors.get(i).getSensorId())) {
+                // Aktualizacja istniejącego czujnika
+                PairedSensor updatedSensor = new PairedSensor(sensorId, info.name());
+                updatedSensor.setPlantName(info.plantName());
+                updatedSensor.setRoom(info.room());
+                pairedSensors.set(i, updatedSensor);
+                updated = true;
+                break;
+            }
+        }
         
-        if (parts.length >= 2) {
-            String sensorId = parts[0].trim();
-            String name = parts[1].trim();
-            String plantName = parts.length > 2 ? parts[2].trim() : "";
-            String room = parts.length > 3 ? parts[3].trim() : "";
-            
-            SensorInfo info = new SensorInfo(sensorId, name, plantName, room);
-            
-            boolean updated = false;
-            for (int i = 0; i < pairedSensors.size(); i++) {
-                if (sensorId.equals(pairedSensors.get(i).getSensorId())) {
-                    // Aktualizacja istniejącego czujnika
-                    PairedSensor updatedSensor = new PairedSensor(sensorId, name);
-                    updatedSensor.setPlantName(plantName);
-                    updatedSensor.setRoom(room);
-                    pairedSensors.set(i, updatedSensor);
-                    updated = true;
-                    break;
+        if (!updated) {
+            // Dodanie nowego czujnika
+            PairedSensor newSensor = new PairedSensor(sensorId, info.name());
+            newSensor.setPlantName(info.plantName());
+            newSensor.setRoom(info.room());
+            pairedSensors.add(newSensor);
+        }
+        
+        savePairedSensors();
+        sensorInfoUpdateCallbacks.forEach(callback -> callback.offer(info));
+    }
+
+    /**
+     * Uzgadnia sparowane czujniki z pełną migawką rejestru serwera, wysyłaną przez serwer po połączeniu.
+     * Migawka zastępuje czujniki tego serwera; czujniki pozostałych serwerów nie zmieniają się.
+     * Jeśli rejestr serwera jest jeszcze pusty (wersja 0), klient przekazuje do niego czujniki
+     * tego serwera zapisane lokalnie.
+     *
+     * @param server serwer, od którego przyszła migawka
+     * @param version wersja rejestru serwera
+     * @param sensors czujniki z rejestru serwera
+     */
+    synchronized void registrySnapshot(ServerConnection server, long version, List<SensorInfo> sensors) {
+        if (version == 0) {
+            for (PairedSensor sensor : pairedSensors) {
+                if (ownerOf(sensor.getSensorId()) == server) {
+                    server.send("UPDATE_INFO " + sensor.getSensorId() + "," + sensor.getDisplayName() + ","
+                            + sensor.getPlantName() + "," + sensor.getRoom());
                 }
             }
-            
-            if (!updated) {
-                // Dodanie nowego czujnika
-                PairedSensor newSensor = new PairedSensor(sensorId, name);
-                newSensor.setPlantName(plantName);
-                newSensor.setRoom(room);
-                pairedSensors.add(newSensor);
+            return;
+        }
+
+        Set<String> ids = new HashSet<>();
+        for (SensorInfo info : sensors) {
+            ids.add(info.sensorId());
+            owners.put(info.sensorId(), server);
+        }
+        List<PairedSensor> updated = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        for (PairedSensor sensor : pairedSensors) {
+            if (ids.contains(sensor.getSensorId())) continue;
+            if (ownerOf(sensor.getSensorId()) == server) {
+                removed.add(sensor.getSensorId());
+            } else {
+                updated.add(sensor);
             }
-            
-            savePairedSensors();
-            sensorInfoUpdateCallbacks.forEach(callback -> callback.accept(info));
-        } else {
-            System.err.println("ERROR: Nieprawidłowy format danych SENSOR_INFO: " + data);
         }
+        for (SensorInfo info : sensors) {
+            PairedSensor sensor = new PairedSensor(info.sensorId(), info.name());
+            sensor.setPlantName(info.plantName());
+            sensor.setRoom(info.room());
+            updated.add(sensor);
+        }
+        pairedSensors.clear();
+        pairedSensors.addAll(updated);
+        savePairedSensors();
+        removed.forEach(id -> sensorRemovedCallbacks.forEach(callback -> callback.offer(id)));
+        sensors.forEach(info -> sensorInfoUpdateCallbacks.forEach(callback -> callback.offer(info)));
     }
-    
+
     /**
      * Przetwarza informację o usunięciu czujnika.
      */
-    private void processSensorRemoved(String sensorId) {
+    synchronized void sensorRemoved(ServerConnection server, String sensorId) {
         pairedSensors.removeIf(s -> sensorId.equals(s.getSensorId()));
+        historyCache.remove(server.getAddress(), sensorId);
         savePairedSensors();
-        sensorRemovedCallbacks.forEach(callback -> callback.accept(sensorId));
+        sensorRemovedCallbacks.forEach(callback -> callback.offer(sensorId));
     }
-    
+
+    /**
+     * Przekazuje zmianę stanu alarmu do subskrybentów.
+     */
+    void alert(Alert alert) {
+        alertCallbacks.forEach(callback -> callback.offer(alert));
+    }
+
+    /**
+     * @return true, jeśli klient subskrybuje alarmy serwerów
+     */
+    boolean hasAlertSubscribers() {
+        return !alertCallbacks.isEmpty();
+    }
+
     /**
      * Przetwarza informację o nowym czujniku.
      */
-    private void processNewSensor(String data) {
-        String sensorId = data.trim();
+    synchronized void newSensor(ServerConnection server, String sensorId) {
+        owners.put(sensorId, server);
         
         boolean exists = false;
         for (PairedSensor sensor : pairedSensors) {
@@ -306,66 +662,111 @@ public class MonitorClient {
             savePairedSensors();
         }
         
-        newSensorCallbacks.forEach(callback -> callback.accept(sensorId));
+        newSensorCallbacks.forEach(callback -> callback.offer(sensorId));
     }
 
+
     /**
      * Wysyła żądanie o najnowszy odczyt dla danego czujnika.
      *
      * @param sensorId identyfikator czujnika
      */
     public void refreshSensor(String sensorId) {
-        if (connected) {
-            out.println("GET " + sensorId);
+        sendGet(sensorId);
+    }
+
+    /**
+     * Wysyła GET do serwera czujnika albo, jeśli nie jest znany, do wszystkich serwerów -
+     * odpowie ten, do którego czujnik należy.
+     *
+     * @return serwery, do których wysłano zapytanie
+     */
+    private List<ServerConnection> sendGet(String sensorId) {
+        List<ServerConnection> sent = new ArrayList<>();
+        for (ServerConnection server : getTargets(sensorId)) {
+            if (server.send("GET " + sensorId)) {
+                sent.add(server);
+            }
+        }
+        return sent;
+    }
+
+    private List<ServerConnection> getTargets(String sensorId) {
+        ServerConnection owner = ownerOf(sensorId);
+        return owner != null ? List.of(owner) : servers;
+    }
+
+    /**
+     * Obsługuje odrzucenie zapytania GET przez serwer. Serwer odpowiada na polecenia w kolejności
+     * ich otrzymania, więc błąd dotyczy najstarszego zapytania o czujnik wysłanego do tego serwera;
+     * zapytanie kończy się błędem, gdy odrzuciły je wszystkie serwery, do których zostało wysłane.
+     *
+     * @param server serwer, który odrzucił zapytanie
+     * @param sensorId identyfikator czujnika
+     * @param error opis błędu
+     */
+    void readingFailed(ServerConnection server, String sensorId, String error) {
+        List<ReadingRequest> requests = readingRequests.get(sensorId);
+        if (requests == null) return;
+        for (ReadingRequest request : requests) {
+            if (request.awaiting().remove(server)) {
+                if (request.awaiting().isEmpty()) {
+                    responses.offer(() -> request.future().completeExceptionally(new IOException(error)));
+                }
+                return;
+            }
         }
     }
 
     /**
-     * Sprawdza, czy czujnik o podanym ID jest dostępny do komunikacji.
+     * Sprawdza, czy czujnik o podanym ID jest dostępny do komunikacji. Blokuje wywołujący wątek
+     * do otrzymania odczytu czujnika - wątek interfejsu powinien używać {@link #getReadingAsync(String)}.
      *
      * @param sensorId identyfikator czujnika
      * @return true jeśli czujnik jest dostępny
      */
     public boolean checkSensorExists(String sensorId) {
-        if (!connected || sensorId == null) return false;
-        
-        final boolean[] sensorResponded = {false};
-        
-        Consumer<Reading> tempCallback = reading -> {
-            if (reading.deviceId().equals(sensorId)) {
-                sensorResponded[0] = true;
-            }
-        };
-        
-        List<Consumer<Reading>> tempCallbacks = callbacks.computeIfAbsent(sensorId, k -> new CopyOnWriteArrayList<>());
-        tempCallbacks.add(tempCallback);
-        
+        if (!isConnected() || sensorId == null) return false;
+
         try {
-            out.println("GET " + sensorId);
-            
-            long startTime = System.currentTimeMillis();
-            while (System.currentTimeMillis() - startTime < 5000 && !sensorResponded[0]) {
-                try {
-                    Thread.sleep(500);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    break;
-                }
-            }
-            
-            return sensorResponded[0];
-            
-        } finally {
-            List<Consumer<Reading>> callbackList = callbacks.get(sensorId);
-            if (callbackList != null) {
-                callbackList.remove(tempCallback);
-                if (callbackList.isEmpty()) {
-                    callbacks.remove(sensorId);
-                }
-            }
+            getReadingAsync(sensorId).get();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
         }
     }
 
+    /**
+     * Pobiera najnowszy odczyt czujnika. Zwrócony future jest kończony przez wykonawcę funkcji
+     * zwrotnych po otrzymaniu odczytu czujnika, wyjątkiem {@link IOException}, gdy czujnika nie zna żaden
+     * z odpytanych serwerów, albo wyjątkiem {@link java.util.concurrent.TimeoutException}
+     * po {@link Config#CLIENT_REQUEST_TIMEOUT_MS}. Anulowanie future kończy oczekiwanie na odczyt.
+     *
+     * @param sensorId identyfikator czujnika
+     * @return odczyt czujnika
+     */
+    public CompletableFuture<Reading> getReadingAsync(String sensorId) {
+        if (!isConnected()) return notConnected();
+        CompletableFuture<Reading> future = new CompletableFuture<>();
+        ReadingRequest request = new ReadingRequest(future, ConcurrentHashMap.newKeySet());
+        readingRequests.computeIfAbsent(sensorId, k -> new CopyOnWriteArrayList<>()).add(request);
+        future.whenComplete((reading, e) -> readingRequests.computeIfPresent(sensorId, (k, list) -> {
+            list.remove(request);
+            return list.isEmpty() ? null : list;
+        }));
+        // serwery są dodawane przed wysłaniem, aby błąd szybkiego serwera nie zakończył zapytania
+        // przed wysłaniem go do pozostałych
+        request.awaiting().addAll(getTargets(sensorId));
+        request.awaiting().retainAll(sendGet(sensorId));
+        if (request.awaiting().isEmpty()) {
+            future.completeExceptionally(new IOException("Brak połączenia z serwerem"));
+        }
+        return withTimeout(future);
+    }
+
     /**
      * Sparowuje z czujnikiem.
      *
@@ -374,7 +775,7 @@ public class MonitorClient {
      * @return true jeśli operacja się powiodła, false jeśli czujnik już istnieje
      */
     public boolean pairSensor(String sensorId, String displayName) {
-        if (!connected || sensorId == null || displayName == null) return false;
+        if (!isConnected() || sensorId == null || displayName == null) return false;
         
         boolean exists = pairedSensors.stream()
             .anyMatch(s -> s != null && s.getSensorId() != null && 
@@ -385,13 +786,311 @@ public class MonitorClient {
             return false;
         }
         
-        out.println("PAIR " + sensorId + "," + displayName);
+        route(sensorId).send("PAIR " + sensorId + "," + displayName);
         
         pairedSensors.add(new PairedSensor(sensorId, displayName));
         savePairedSensors();
         return true;
     }
 
+    /**
+     * Paruje czujnik i kończy zwrócony future po potwierdzeniu serwera (PAIRED). Sparowany czujnik
+     * jest dodawany do listy po potwierdzeniu. Czujnik nieznany serwerowi kończy future wyjątkiem
+     * {@link IOException} z opisem błędu serwera.
+     *
+     * @param sensorId identyfikator czujnika
+     * @param displayName nazwa wyświetlana
+     * @return true po sparowaniu, false jeśli czujnik jest już sparowany
+     */
+    public CompletableFuture<Boolean> pairSensorAsync(String sensorId, String displayName) {
+        if (sensorId == null || displayName == null || isSensorPaired(sensorId)) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return acknowledged(sensorId, "PAIR " + sensorId + "," + displayName, "PAIRED " + sensorId.trim(), () -> {
+            if (!isSensorPaired(sensorId)) {
+                pairedSensors.add(new PairedSensor(sensorId, displayName));
+                savePairedSensors();
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Rozparowuje czujnik i kończy zwrócony future po potwierdzeniu serwera (UNPAIRED).
+     *
+     * @param sensorId identyfikator czujnika
+     * @return future kończony po usunięciu czujnika z listy sparowanych
+     */
+    public CompletableFuture<Void> unpairSensorAsync(String sensorId) {
+        return acknowledged(sensorId, "UNPAIR " + sensorId, "UNPAIRED " + sensorId.trim(), () -> {
+            pairedSensors.removeIf(sensor -> sensor.getSensorId().equals(sensorId));
+            historyCache.remove(route(sensorId).getAddress(), sensorId);
+            savePairedSensors();
+            return null;
+        });
+    }
+
+    /**
+     * Aktualizuje informacje o czujniku i kończy zwrócony future po potwierdzeniu serwera (INFO_UPDATED).
+     *
+     * @param sensorId identyfikator czujnika
+     * @param displayName nazwa wyświetlana
+     * @param plantName nazwa rośliny
+     * @param room nazwa pomieszczenia
+     * @return future kończony po zapisaniu informacji przez serwer
+     */
+    public CompletableFuture<Void> updateSensorInfoAsync(String sensorId, String displayName, String plantName, String room) {
+        return acknowledged(sensorId, "UPDATE_INFO " + sensorId + "," + displayName + "," + plantName + "," + room,
+                "INFO_UPDATED " + sensorId.trim(), () -> null);
+    }
+
+    /**
+     * Wysyła polecenie, na które serwer odpowiada potwierdzeniem, do serwera czujnika. Potwierdzenie
+     * i błąd serwera są obsługiwane przez wykonawcę funkcji zwrotnych w kolejności odpowiedzi, więc
+     * zapis sparowanych czujników i kontynuacje zwróconego future nie wstrzymują wątku nasłuchiwania.
+     *
+     * @param command treść polecenia
+     * @param ack oczekiwane potwierdzenie
+     * @param onAck funkcja wywoływana po potwierdzeniu, zwracająca wynik future
+     */
+    private <T> CompletableFuture<T> acknowledged(String sensorId, String command, String ack, Supplier<T> onAck) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Runnable cancel = route(sensorId).sendAcknowledged(command, ack,
+                () -> responses.offer(() -> future.complete(onAck.get())),
+                error -> responses.offer(() -> future.completeExceptionally(new IOException(error))));
+        return withTimeout(future, cancel);
+    }
+
+    /**
+     * Pobiera ostatnie odczyty czujnika, jak {@link #requestHistory(String, int, Consumer)}.
+     *
+     * @param sensorId identyfikator czujnika
+     * @param limit maksymalna liczba odczytów
+     * @return odczyty od najstarszego
+     */
+    public CompletableFuture<List<Reading>> requestHistoryAsync(String sensorId, int limit) {
+        return request(route(sensorId).isConnected(),
+                (callback, onError) -> requestHistory(sensorId, limit, callback, onError));
+    }
+
+    /**
+     * Pobiera bieżące statystyki czujnika, jak {@link #requestStats(String, Consumer)}.
+     *
+     * @param sensorId identyfikator czujnika
+     * @return statystyki każdej mierzonej wielkości
+     */
+    public CompletableFuture<List<MetricStats>> requestStatsAsync(String sensorId) {
+        return request(route(sensorId).isConnected(),
+                (callback, onError) -> requestStats(sensorId, callback, onError));
+    }
+
+    /**
+     * Pobiera dane czujnika do eksportu, jak {@link #exportData(String, Consumer)}.
+     *
+     * @param sensorId identyfikator czujnika
+     * @return dane w formacie CSV
+     */
+    public CompletableFuture<String> exportDataAsync(String sensorId) {
+        return request(route(sensorId).isConnected(),
+                (callback, onError) -> exportData(sensorId, callback, onError));
+    }
+
+    /**
+     * Pobiera z rejestrów serwerów czujniki znajdujące się w danym pomieszczeniu.
+     *
+     * @param room nazwa pomieszczenia (wielkość liter nie ma znaczenia)
+     * @return znalezione czujniki
+     */
+    public CompletableFuture<List<SensorInfo>> requestSensorsByRoomAsync(String room) {
+        return request(isConnected(), (callback, onError) -> requestRegistry("ROOM " + room, callback, onError));
+    }
+
+    /**
+     * Pobiera z rejestrów serwerów czujniki monitorujące daną roślinę.
+     *
+     * @param plantName nazwa rośliny (wielkość liter nie ma znaczenia)
+     * @return znalezione czujniki
+     */
+    public CompletableFuture<List<SensorInfo>> requestSensorsByPlantAsync(String plantName) {
+        return request(isConnected(),
+                (callback, onError) -> requestRegistry("PLANT " + plantName, callback, onError));
+    }
+
+    /**
+     * Wysyła zapytanie z funkcjami zwrotnymi kończącymi zwrócony future odpowiedzią albo wyjątkiem
+     * {@link IOException} z opisem błędu serwera.
+     *
+     * @param connected czy serwer zapytania jest połączony
+     * @param request wysłanie zapytania z podanymi funkcjami zwrotnymi odpowiedzi i błędu,
+     *                zwracające uchwyt usuwający zapytanie z kolejki oczekujących
+     */
+    private static <T> CompletableFuture<T> request(boolean connected,
+                                                    BiFunction<Consumer<T>, Consumer<String>, Runnable> request) {
+        if (!connected) return notConnected();
+        CompletableFuture<T> future = new CompletableFuture<>();
+        return withTimeout(future, request.apply(future::complete, failWith(future)));
+    }
+
+    /**
+     * Ogranicza czas oczekiwania na odpowiedź i usuwa zapytanie z kolejki oczekujących, gdy future
+     * zakończy się bez odpowiedzi serwera (przekroczenie czasu lub anulowanie), aby kolejne
+     * zapytania nie otrzymywały odpowiedzi przeznaczonych dla poprzednich.
+     *
+     * @param cancel uchwyt zwrócony przy wysłaniu zapytania lub null, jeśli nie zostało wysłane
+     */
+    private static <T> CompletableFuture<T> withTimeout(CompletableFuture<T> future, Runnable cancel) {
+        if (cancel == null) return notConnected();
+        future.whenComplete((result, e) -> {
+            if (e != null) cancel.run();
+        });
+        return withTimeout(future);
+    }
+
+    private static Consumer<String> failWith(CompletableFuture<?> future) {
+        return error -> future.completeExceptionally(new IOException(error));
+    }
+
+    /**
+     * Zwraca funkcję zapisującą błąd, którym serwer odrzucił zapytanie wysłane z funkcją zwrotną.
+     *
+     * @param request opis zapytania
+     */
+    private static Consumer<String> logRejected(String request) {
+        return error -> System.err.println("Serwer odrzucił zapytanie o " + request + ": " + error);
+    }
+
+    private static <T> CompletableFuture<T> withTimeout(CompletableFuture<T> future) {
+        return future.orTimeout(Config.CLIENT_REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static <T> CompletableFuture<T> notConnected() {
+        return CompletableFuture.failedFuture(new IOException("Brak połączenia z serwerem"));
+    }
+
+    /**
+     * Pobiera z rejestru serwera czujniki znajdujące się w danym pomieszczeniu.
+     *
+     * @param room nazwa pomieszczenia (wielkość liter nie ma znaczenia)
+     * @param callback funkcja wywoływana z listą znalezionych czujników
+     */
+    public void requestSensorsByRoom(String room, Consumer<List<SensorInfo>> callback) {
+        requestRegistry("ROOM " + room, callback, logRejected("czujniki w pomieszczeniu " + room));
+    }
+
+    /**
+     * Pobiera z rejestru serwera czujniki monitorujące daną roślinę.
+     *
+     * @param plantName nazwa rośliny (wielkość liter nie ma znaczenia)
+     * @param callback funkcja wywoływana z listą znalezionych czujników
+     */
+    public void requestSensorsByPlant(String plantName, Consumer<List<SensorInfo>> callback) {
+        requestRegistry("PLANT " + plantName, callback, logRejected("czujniki rośliny " + plantName));
+    }
+
+    /**
+     * Wysyła zapytanie o rejestr do wszystkich połączonych serwerów i przekazuje połączone wyniki
+     * po otrzymaniu odpowiedzi każdego z nich. Jeśli któryś serwer odrzucił zapytanie, po
+     * odpowiedziach wszystkich przekazywany jest jego błąd.
+     */
+    private Runnable requestRegistry(String filter, Consumer<List<SensorInfo>> callback, Consumer<String> onError) {
+        List<ServerConnection> targets = servers.stream().filter(ServerConnection::isConnected).toList();
+        if (targets.isEmpty()) return null;
+        List<SensorInfo> merged = new ArrayList<>();
+        AtomicInteger remaining = new AtomicInteger(targets.size());
+        AtomicReference<String> rejected = new AtomicReference<>();
+        Runnable answered = () -> {
+            if (remaining.decrementAndGet() > 0) return;
+            String error = rejected.get();
+            responses.offer(error == null ? () -> callback.accept(merged) : () -> onError.accept(error));
+        };
+        List<Runnable> cancels = new ArrayList<>();
+        for (ServerConnection server : targets) {
+            Runnable cancel = server.requestRegistry(filter, sensors -> {
+                synchronized (merged) {
+                    merged.addAll(sensors);
+                }
+                answered.run();
+            }, error -> {
+                rejected.compareAndSet(null, error);
+                answered.run();
+            });
+            if (cancel != null) {
+                cancels.add(cancel);
+            } else {
+                rejected.compareAndSet(null, "Brak połączenia z serwerem " + server.getAddress());
+                answered.run();
+            }
+        }
+        return () -> cancels.forEach(Runnable::run);
+    }
+
+    /**
+     * Pobiera z serwera bieżące statystyki czujnika (średnie, odchylenie, minimum i maksimum od północy,
+     * tempo zmian i oznaczenie anomalii) bez pobierania historii odczytów.
+     *
+     * @param sensorId identyfikator czujnika
+     * @param callback funkcja wywoływana ze statystykami każdej mierzonej wielkości
+     */
+    public void requestStats(String sensorId, Consumer<List<MetricStats>> callback) {
+        requestStats(sensorId, callback, logRejected("statystyki czujnika " + sensorId));
+    }
+
+    private Runnable requestStats(String sensorId, Consumer<List<MetricStats>> callback, Consumer<String> onError) {
+        return route(sensorId).requestStats(sensorId, stats -> responses.offer(() -> callback.accept(stats)),
+                error -> responses.offer(() -> onError.accept(error)));
+    }
+
+    /**
+     * Dodaje na serwerach regułę alarmu, np. "soil,SENSOR:czujnik1,&lt;300,20,60"
+     * (wilgotność gleby poniżej 300 przez co najmniej 60 s, odwołanie od 320)
+     * lub "temperature,ROOM:Salon,18..26,0.5" (temperatura poza przedziałem).
+     *
+     * @param spec definicja: wielkość,selektor,warunek[,histereza[,minimalnyCzasSek]],
+     *             gdzie selektor to SENSOR:id, ROOM:nazwa lub *
+     */
+    public void addAlertRule(String spec) {
+        sendToAll("ALERT_ADD " + spec);
+    }
+
+    /**
+     * Usuwa regułę alarmu z serwerów.
+     *
+     * @param ruleId identyfikator reguły
+     */
+    public void removeAlertRule(int ruleId) {
+        sendToAll("ALERT_REMOVE " + ruleId);
+    }
+
+    /**
+     * Subskrybuje alarmy serwerów. Po subskrypcji serwer wysyła aktywne alarmy, a następnie
+     * każde zgłoszenie i odwołanie alarmu. Subskrypcja jest odnawiana po ponownym połączeniu.
+     *
+     * @param callback funkcja wywoływana przy zmianie stanu alarmu
+     */
+    public void subscribeAlerts(Consumer<Alert> callback) {
+        boolean first = alertCallbacks.isEmpty();
+        alertCallbacks.add(new Subscription<>(callback, callbackExecutor));
+        if (first) {
+            sendToAll("ALERT_SUBSCRIBE");
+        }
+    }
+
+    /**
+     * Zwraca wersję rejestru metadanych serwera, z którą zsynchronizowane są sparowane czujniki.
+     * Przy kilku serwerach jest to suma wersji ich rejestrów.
+     *
+     * @return numer wersji lub -1, jeśli migawka rejestru któregoś serwera nie została jeszcze odebrana
+     */
+    public long getRegistryVersion() {
+        long version = 0;
+        for (ServerConnection server : servers) {
+            long v = server.getRegistryVersion();
+            if (v < 0) return -1;
+            version += v;
+        }
+        return version;
+    }
+
     /**
      * Sprawdza, czy czujnik o podanym ID jest już sparowany.
      * 
@@ -415,9 +1114,7 @@ public class MonitorClient {
      * @param room nazwa pomieszczenia
      */
     public void updateSensorInfo(String sensorId, String displayName, String plantName, String room) {
-        if (!connected) return;
-        
-        out.println("UPDATE_INFO " + sensorId + "," + displayName + "," + plantName + "," + room);
+        if (!route(sensorId).send("UPDATE_INFO " + sensorId + "," + displayName + "," + plantName + "," + room)) return;
 
         for (PairedSensor sensor : pairedSensors) {
             if (sensor.getSensorId().equals(sensorId)) {
@@ -431,17 +1128,79 @@ public class MonitorClient {
     }
 
     /**
-     * Wysyła żądanie o dane historyczne dla danego czujnika.
+     * Wysyła żądanie o dane historyczne dla danego czujnika do serwera czujnika.
+     * Kolejne żądania można wysyłać przed otrzymaniem odpowiedzi na poprzednie; żądania
+     * do różnych serwerów są obsługiwane równolegle.
+     *
+     * <p>Jeśli pamięć podręczna zawiera wystarczająco dużo odczytów czujnika, serwer przesyła
+     * tylko odczyty nowsze od ostatniego zapamiętanego, a callback otrzymuje ostatnie odczyty z pamięci.</p>
      *
      * @param sensorId identyfikator czujnika
      * @param limit maksymalna liczba odczytów do pobrania
      * @param callback callback do otrzymania danych
      */
     public void requestHistory(String sensorId, int limit, Consumer<List<Reading>> callback) {
-        if (!connected) return;
-        
-        this.historyCallback = callback;
-        out.println("HISTORY " + sensorId + "," + limit);
+        requestHistory(sensorId, limit, callback, logRejected("historię czujnika " + sensorId));
+    }
+
+    private Runnable requestHistory(String sensorId, int limit, Consumer<List<Reading>> callback, Consumer<String> onError) {
+        ServerConnection server = route(sensorId);
+        String address = server.getAddress();
+        LocalDateTime tail = historyCache.tail(address, sensorId, limit);
+        Consumer<String> rejected = error -> responses.offer(() -> onError.accept(error));
+        if (tail == null) {
+            return server.requestHistory(sensorId, limit, readings -> responses.offer(() -> {
+                historyCache.replace(address, sensorId, readings, readings.size() < limit);
+                callback.accept(readings);
+            }), rejected);
+        } else {
+            return server.requestHistorySince(sensorId, tail, readings -> responses.offer(() -> {
+                if (!readings.isEmpty() && readings.get(0).time() != null && readings.get(0).time().isAfter(tail)) {
+                    // serwer nie ma już ostatniego zapamiętanego odczytu (odpowiedź obejmuje go, jeśli jest
+                    // w historii serwera), więc odczyty między nim a najstarszym otrzymanym zostały pominięte.
+                    // Odpowiedź zawiera całą historię serwera od tego czasu - zastępuje pamięć podręczną.
+                    historyCache.remove(address, sensorId);
+                    historyCache.replace(address, sensorId, readings, false);
+                } else {
+                    historyCache.append(address, sensorId, readings);
+                }
+                callback.accept(historyCache.get(address, sensorId, limit));
+            }), rejected);
+        }
+    }
+
+    /**
+     * Przekazuje ostatnie odczyty czujnika z lokalnej pamięci podręcznej, a następnie wysyła żądanie
+     * o historię jak {@link #requestHistory(String, int, Consumer)}, np. aby od razu wyświetlić wykres.
+     * Pamięć podręczna jest wczytywana z dysku, więc obie operacje są wykonywane przez wykonawcę
+     * funkcji zwrotnych, a nie przez wątek wywołujący (np. wątek interfejsu).
+     *
+     * @param sensorId identyfikator czujnika
+     * @param limit maksymalna liczba odczytów
+     * @param cached funkcja wywoływana z odczytami z pamięci podręcznej; pomijana, jeśli ich nie ma
+     * @param callback callback do otrzymania danych
+     */
+    public void requestHistoryWithCache(String sensorId, int limit, Consumer<List<Reading>> cached, Consumer<List<Reading>> callback) {
+        callbackExecutor.execute(() -> {
+            List<Reading> readings = getCachedHistory(sensorId, limit);
+            if (!readings.isEmpty()) {
+                cached.accept(readings);
+            }
+            requestHistory(sensorId, limit, callback);
+        });
+    }
+
+    /**
+     * Zwraca ostatnie odczyty czujnika z lokalnej pamięci podręcznej bez komunikacji z serwerem.
+     * Może wczytywać plik pamięci podręcznej - wątek interfejsu powinien używać
+     * {@link #requestHistoryWithCache}.
+     *
+     * @param sensorId identyfikator czujnika
+     * @param limit maksymalna liczba odczytów
+     * @return odczyty od najstarszego; pusta lista, jeśli historia czujnika nie była pobierana
+     */
+    public List<Reading> getCachedHistory(String sensorId, int limit) {
+        return historyCache.get(route(sensorId).getAddress(), sensorId, limit);
     }
 
     /**
@@ -451,10 +1210,12 @@ public class MonitorClient {
      * @param callback callback do otrzymania danych
      */
     public void exportData(String sensorId, Consumer<String> callback) {
-        if (!connected) return;
-        
-        this.exportCallback = callback;
-        out.println("EXPORT " + sensorId);
+        exportData(sensorId, callback, logRejected("eksport danych czujnika " + sensorId));
+    }
+
+    private Runnable exportData(String sensorId, Consumer<String> callback, Consumer<String> onError) {
+        return route(sensorId).exportData(sensorId, data -> responses.offer(() -> callback.accept(data)),
+                error -> responses.offer(() -> onError.accept(error)));
     }
 
     /**
@@ -463,10 +1224,10 @@ public class MonitorClient {
      * @param sensorId identyfikator czujnika
      */
     public void unpairSensor(String sensorId) {
-        if (!connected || sensorId == null) return;
-        out.println("UNPAIR " + sensorId);
+        if (sensorId == null || !route(sensorId).send("UNPAIR " + sensorId)) return;
         
         pairedSensors.removeIf(sensor -> sensor.getSensorId().equals(sensorId));
+        historyCache.remove(route(sensorId).getAddress(), sensorId);
         savePairedSensors();
     }
 
@@ -477,7 +1238,33 @@ public class MonitorClient {
      * @param callback callback
      */
     public void registerUpdateCallback(String sensorId, Consumer<Reading> callback) {
-        callbacks.computeIfAbsent(sensorId, k -> new CopyOnWriteArrayList<>()).add(callback);
+        registerUpdateCallback(sensorId, callback, callbackExecutor);
+    }
+
+    /**
+     * Rejestruje callback dla aktualizacji czujnika wywoływany przez podanego wykonawcę, np.
+     * {@code SwingUtilities::invokeLater}. Callback otrzymuje odczyty każdego czujnika w kolejności
+     * ich nadejścia i nigdy nie jest wywoływany równolegle. Gdy nie nadąża i oczekuje na niego
+     * {@link Config#CLIENT_CALLBACK_QUEUE_CAPACITY} odczytów, nowy odczyt czujnika zastępuje jego
+     * oczekujący odczyt.
+     *
+     * @param sensorId identyfikator czujnika lub "*" dla wszystkich czujników
+     * @param callback callback
+     * @param executor wykonawca wywołujący callback
+     */
+    public void registerUpdateCallback(String sensorId, Consumer<Reading> callback, Executor executor) {
+        callbacks.computeIfAbsent(sensorId, k -> new CopyOnWriteArrayList<>())
+                .add(new Subscription<>(callback, executor, Config.CLIENT_CALLBACK_QUEUE_CAPACITY, Reading::deviceId));
+    }
+
+    /**
+     * Rejestruje callback wywoływany po ponownym połączeniu z serwerem i uzupełnieniu przerwy
+     * w odczytach jego czujników, np. do odświeżenia wykresu.
+     *
+     * @param callback funkcja wywoływana z adresem serwera (host:port)
+     */
+    public void registerReconnectCallback(Consumer<String> callback) {
+        reconnectCallbacks.add(new Subscription<>(callback, callbackExecutor));
     }
 
     /**
@@ -486,7 +1273,7 @@ public class MonitorClient {
      * @param callback funkcja wywoływana przy aktualizacji danych czujnika
      */
     public void registerSensorInfoUpdateCallback(Consumer<SensorInfo> callback) {
-        sensorInfoUpdateCallbacks.add(callback);
+        sensorInfoUpdateCallbacks.add(new Subscription<>(callback, callbackExecutor));
     }
     
     /**
@@ -495,7 +1282,7 @@ public class MonitorClient {
      * @param callback funkcja wywoływana przy usunięciu czujnika
      */
     public void registerSensorRemovedCallback(Consumer<String> callback) {
-        sensorRemovedCallbacks.add(callback);
+        sensorRemovedCallbacks.add(new Subscription<>(callback, callbackExecutor));
     }
     
     /**
@@ -504,7 +1291,7 @@ public class MonitorClient {
      * @param callback funkcja wywoływana przy dodaniu nowego czujnika
      */
     public void registerNewSensorCallback(Consumer<String> callback) {
-        newSensorCallbacks.add(callback);
+        newSensorCallbacks.add(new Subscription<>(callback, callbackExecutor));
     }
 
     /**
@@ -531,7 +1318,7 @@ public class MonitorClient {
     }
 
     /**
-     * Rekord opakowujący listę sparowanych czujników do serializacji.
+     * Rekord opakowujący listę sparowanych czujników w pliku {@link #LEGACY_PAIRED_SENSORS_FILE}.
      */
     private record PairedSensorList(List<PairedSensor> sensors) implements Serializable {
         @Serial
@@ -539,42 +1326,84 @@ public class MonitorClient {
     }
 
     /**
-     * Wczytuje sparowane czujniki z pliku, deserializując je.
+     * Wczytuje sparowane czujniki z pliku. Lista zapisana przez poprzednie wersje jest przenoszona
+     * do nowego formatu, a stary plik usuwany.
      */
     private void loadPairedSensors() {
-        File file = new File(PAIRED_SENSORS_FILE);
-        if (!file.exists()) return;
-        
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
+        List<PairedSensor> stored = pairedSensorStore.load();
+        if (stored != null) {
+            pairedSensors.addAll(stored);
+            return;
+        }
+
+        File legacy = new File(LEGACY_PAIRED_SENSORS_FILE);
+        if (!legacy.exists()) return;
+        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(legacy))) {
             PairedSensorList wrapper = (PairedSensorList) ois.readObject();
             pairedSensors.clear();
             pairedSensors.addAll(wrapper.sensors());
         } catch (Exception e) {
             System.err.println("Błąd wczytywania sparowanych czujników: " + e.getMessage());
+            return;
+        }
+        pairedSensorStore.flush();
+        boolean migrated = new File(PAIRED_SENSORS_FILE).exists() || new File(PAIRED_SENSORS_JOURNAL).exists();
+        if (migrated && !legacy.delete()) {
+            System.err.println("Nie można usunąć pliku " + legacy);
         }
     }
 
     /**
-     * Zapisuje sparowane czujniki do plku, serializując je.
+     * Zgłasza zmianę sparowanych czujników. Zmiany są łączone i zapisywane w tle ({@link PairedSensorStore}),
+     * więc wywołanie nie wykonuje operacji dyskowych.
      */
     private void savePairedSensors() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(PAIRED_SENSORS_FILE))) {
-            PairedSensorList wrapper = new PairedSensorList(new ArrayList<>(pairedSensors));
-            oos.writeObject(wrapper);
-        } catch (IOException e) {
-            System.err.println("Błąd zapisywania sparowanych czujników: " + e.getMessage());
-        }
+        pairedSensorStore.changed();
     }
 
+    /**
+     * Zamyka połączenia ze wszystkimi serwerami.
+     */
     public void close() {
-        if (!connected) return;
-        connected = false;
-        try {
-            if (out != null) out.println("QUIT");
-            if (socket != null) socket.close();
-        } catch (IOException e) {
-            System.err.println("Błąd zamykania połączenia: " + e.getMessage());
+        closed = true;
+        for (ServerConnection server : servers) {
+            server.close();
+        }
+        pairedSensorStore.close();
+    }
+
+    /**
+     * Zwraca liczby aktualizacji zastąpionych nowszymi i pominiętych w kolejkach callbacków, które nie nadążały.
+     *
+     * @return opis statystyk kolejek callbacków aktualizacji
+     */
+    public String getCallbackStats() {
+        long conflated = 0;
+        long dropped = 0;
+        for (List<Subscription<Reading>> subscriptions : callbacks.values()) {
+            for (Subscription<Reading> subscription : subscriptions) {
+                conflated += subscription.getConflated();
+                dropped += subscription.getDropped();
+            }
         }
+        return "Callbacki aktualizacji: zastąpione " + conflated + ", pominięte " + dropped;
+    }
+
+    /**
+     * Zwraca statystyki kompresji bieżących połączeń.
+     *
+     * @return opis statystyk kompresji lub informacja o jej braku, przy kilku serwerach w osobnych wierszach
+     */
+    public String getCompressionStats() {
+        if (servers.size() == 1) {
+            return servers.get(0).getCompressionStats();
+        }
+        StringBuilder sb = new StringBuilder();
+        for (ServerConnection server : servers) {
+            if (sb.length() > 0) sb.append('\n');
+            sb.append(server.getAddress()).append(": ").append(server.getCompressionStats());
+        }
+        return sb.toString();
     }
 
     /**
@@ -586,9 +1415,7 @@ public class MonitorClient {
         if (username != null && !username.trim().isEmpty()) {
             this.username = username;
             
-            if (connected && out != null) {
-                out.println("USERNAME " + username);
-            }
+            sendToAll("USERNAME " + username);
         } 
     }
     
@@ -0,0 +1,230 @@
+package jf.plantclimate.client;
+
+import jf.plantclimate.data.sensor.PairedSensor;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Zapis sparowanych czujników {@link MonitorClient} na dysku: migawka oraz dziennik zmian.
+ *
+ * <p>Zmiany listy są zgłaszane metodą {@link #changed()}, a zapisywane w tle po
+ * {@link #FLUSH_DELAY_MS} - seria zmian (np. tysiące komunikatów SENSOR_INFO po połączeniu)
+ * kończy się jednym zapisem. Zapis porównuje listę z ostatnio zapisanym stanem i dopisuje do
+ * dziennika tylko dodane, zmienione i usunięte czujniki. Gdy dziennik ma więcej wpisów niż
+ * czujników, stan jest zapisywany jako nowa migawka (do pliku tymczasowego, który zastępuje
+ * poprzednią), a dziennik jest opróżniany.</p>
+ *
+ * <p>Pliki zawierają znacznik formatu i wpisy: bajt rodzaju (P - czujnik, R - usunięcie),
+ * identyfikator oraz dla czujnika nazwę, roślinę i pomieszczenie (UTF). Niepełny ostatni wpis
+ * dziennika, np. po przerwanym zapisie, jest pomijany przy wczytywaniu.</p>
+ */
+final class PairedSensorStore {
+    private static final int MAGIC = 0x50435053;
+    private static final byte PUT = 'P';
+    private static final byte REMOVE = 'R';
+
+    /**
+     * Czas (ms) od pierwszej zgłoszonej zmiany do zapisu, w którym kolejne zmiany są łączone.
+     */
+    static final long FLUSH_DELAY_MS = 200;
+
+    /**
+     * Minimalna liczba wpisów dziennika, po której jest on zastępowany migawką.
+     */
+    private static final int COMPACT_MIN_RECORDS = 256;
+
+    private record Entry(String sensorId, String name, String plantName, String room) {
+        static Entry of(PairedSensor sensor) {
+            return new Entry(sensor.getSensorId(), Objects.requireNonNullElse(sensor.getDisplayName(), sensor.getSensorId()),
+                    sensor.getPlantName(), sensor.getRoom());
+        }
+
+        PairedSensor toSensor() {
+            PairedSensor sensor = new PairedSensor(sensorId, name);
+            sensor.setPlantName(plantName);
+            sensor.setRoom(room);
+            return sensor;
+        }
+    }
+
+    private final File snapshotFile;
+    private final File journalFile;
+    private final Supplier<List<PairedSensor>> source;
+
+    /**
+     * Stan zapisany w migawce i dzienniku.
+     */
+    private final Map<String, Entry> persisted = new LinkedHashMap<>();
+    private int journalRecords;
+    private boolean scheduled;
+
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "paired-sensors-writer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * @param snapshotFile plik migawki
+     * @param journalFile plik dziennika zmian
+     * @param source lista sparowanych czujników do zapisania
+     */
+    PairedSensorStore(File snapshotFile, File journalFile, Supplier<List<PairedSensor>> source) {
+        this.snapshotFile = snapshotFile;
+        this.journalFile = journalFile;
+        this.source = source;
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "paired-sensors-flush"));
+    }
+
+    /**
+     * Wczytuje migawkę i odtwarza z dziennika późniejsze zmiany, po czym zapisuje stan jako nową
+     * migawkę, aby kolejne wpisy nie trafiały za ewentualny niepełny wpis dziennika.
+     *
+     * @return sparowane czujniki lub null, jeśli nie zostały jeszcze zapisane w tym formacie
+     */
+    synchronized List<PairedSensor> load() {
+        if (!snapshotFile.exists() && !journalFile.exists()) return null;
+        persisted.clear();
+        readRecords(snapshotFile);
+        journalRecords = readRecords(journalFile);
+        if (journalFile.length() > 0) {
+            try {
+                writeSnapshot(persisted);
+            } catch (IOException e) {
+                System.err.println("Błąd zapisywania sparowanych czujników: " + e.getMessage());
+            }
+        }
+        return persisted.values().stream().map(Entry::toSensor).toList();
+    }
+
+    /**
+     * Zgłasza zmianę listy sparowanych czujników. Zapis nastąpi w tle.
+     */
+    synchronized void changed() {
+        if (scheduled) return;
+        if (writer.isShutdown()) {
+            flush();
+            return;
+        }
+        scheduled = true;
+        writer.schedule(this::flush, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Zapisuje zmiany listy od ostatniego zapisu.
+     */
+    synchronized void flush() {
+        scheduled = false;
+        Map<String, Entry> current = new LinkedHashMap<>();
+        for (PairedSensor sensor : source.get()) {
+            current.put(sensor.getSensorId(), Entry.of(sensor));
+        }
+
+        List<Entry> put = new ArrayList<>();
+        for (Entry entry : current.values()) {
+            if (!entry.equals(persisted.get(entry.sensorId()))) put.add(entry);
+        }
+        List<String> removed = new ArrayList<>();
+        for (String sensorId : persisted.keySet()) {
+            if (!current.containsKey(sensorId)) removed.add(sensorId);
+        }
+        if (put.isEmpty() && removed.isEmpty()) return;
+
+        try {
+            if (journalRecords + put.size() + removed.size() > Math.max(COMPACT_MIN_RECORDS, current.size())) {
+                writeSnapshot(current);
+            } else {
+                appendJournal(put, removed);
+            }
+            persisted.clear();
+            persisted.putAll(current);
+        } catch (IOException e) {
+            System.err.println("Błąd zapisywania sparowanych czujników: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Zapisuje oczekujące zmiany i kończy wątek zapisu.
+     */
+    synchronized void close() {
+        writer.shutdown();
+        flush();
+    }
+
+    private void appendJournal(List<Entry> put, List<String> removed) throws IOException {
+        boolean created = !journalFile.exists() || journalFile.length() == 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile, true)))) {
+            if (created) out.writeInt(MAGIC);
+            for (Entry entry : put) {
+                writePut(out, entry);
+            }
+            for (String sensorId : removed) {
+                out.writeByte(REMOVE);
+                out.writeUTF(sensorId);
+            }
+        }
+        journalRecords += put.size() + removed.size();
+    }
+
+    private void writeSnapshot(Map<String, Entry> state) throws IOException {
+        File tmp = new File(snapshotFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            for (Entry entry : state.values()) {
+                writePut(out, entry);
+            }
+        }
+        Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // dziennik jest opróżniany dopiero po zastąpieniu migawki - wpisy odtworzone ponownie na nowej migawce nic nie zmieniają
+        new FileOutputStream(journalFile).close();
+        journalRecords = 0;
+    }
+
+    private static void writePut(DataOutput out, Entry entry) throws IOException {
+        out.writeByte(PUT);
+        out.writeUTF(entry.sensorId());
+        out.writeUTF(entry.name());
+        out.writeUTF(entry.plantName());
+        out.writeUTF(entry.room());
+    }
+
+    /**
+     * Odtwarza wpisy pliku w {@link #persisted}.
+     *
+     * @return liczba odczytanych wpisów
+     */
+    private int readRecords(File file) {
+        if (!file.exists() || file.length() == 0) return 0;
+        int records = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Nieznany format pliku " + file);
+            }
+            while (true) {
+                byte type = in.readByte();
+                String sensorId = in.readUTF();
+                if (type == PUT) {
+                    Entry entry = new Entry(sensorId, in.readUTF(), in.readUTF(), in.readUTF());
+                    persisted.put(sensorId, entry);
+                } else if (type == REMOVE) {
+                    persisted.remove(sensorId);
+                } else {
+                    throw new IOException("Nieznany wpis w pliku " + file);
+                }
+                records++;
+            }
+        } catch (EOFException e) {
+            // koniec pliku lub niepełny ostatni wpis
+        } catch (IOException e) {
+            System.err.println("Błąd wczytywania sparowanych czujników: " + e.getMessage());
+        }
+        return records;
+    }
+}
@@ -0,0 +1,830 @@
+package jf.plantclimate.client;
+
+import jf.plantclimate.data.Config;
+import jf.plantclimate.data.Reading;
+import jf.plantclimate.protocol.BinaryProtocol;
+import jf.plantclimate.protocol.DeltaCodec;
+import jf.plantclimate.protocol.MeteredInflaterInputStream;
+import jf.plantclimate.protocol.ProtocolOptions;
+import jf.plantclimate.util.DateFormatter;
+import jf.plantclimate.util.MutableReading;
+import jf.plantclimate.util.ReadingParser;
+
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Połączenie {@link MonitorClient} z jednym serwerem: powitanie i negocjacja protokołu, wątek
+ * nasłuchiwania oraz stan odbieranych odpowiedzi (uchwyty czujników, migawki rejestru, historia,
+ * statystyki i eksport). Aktualizacje, zmiany rejestru i alarmy są przekazywane do klienta.
+ *
+ * <p>Serwer odpowiada na polecenia jednego połączenia w kolejności ich wysłania, więc kilka
+ * zapytań o historię, statystyki lub eksport może oczekiwać na odpowiedź jednocześnie;
+ * odpowiedzi są przypisywane do zapytań według czujnika. Błąd zapytania (ERROR polecenie
+ * czujnik: opis) kończy najstarsze oczekujące zapytanie tego rodzaju o ten czujnik, aby
+ * kolejne odpowiedzi nie trafiły do niewłaściwych zapytań. Zapytanie, na które serwer nie
+ * odpowiedział, można usunąć z kolejki uchwytem zwróconym przy jego wysłaniu.</p>
+ *
+ * <p>Po zerwaniu połączenia przez serwer lub sieć wątek nasłuchiwania zgłasza to klientowi,
+ * który nawiązuje połączenie ponownie tym samym obiektem ({@link #connect()}).</p>
+ */
+final class ServerConnection {
+    private final MonitorClient client;
+    private final String host;
+    private final int port;
+
+    private Socket socket;
+    private PrintWriter out;
+    private BufferedReader in;
+    private DataInputStream binaryIn;
+    private ProtocolOptions protocol = ProtocolOptions.TEXT;
+    private MeteredInflaterInputStream compression;
+    private final Map<Integer, String> sensorHandles = new HashMap<>();
+    private final Map<String, Reading> lastUpdates = new HashMap<>();
+    /**
+     * Odczyt parsowany z wierszy UPDATE i DATA, używany tylko przez wątek nasłuchiwania.
+     */
+    private final MutableReading parsed = new MutableReading();
+    private volatile boolean connected = false;
+
+    /**
+     * Wersja rejestru metadanych serwera odzwierciedlona w sparowanych czujnikach; -1 przed otrzymaniem migawki.
+     */
+    private volatile long registryVersion = -1;
+    private volatile CountDownLatch registryReceived = new CountDownLatch(1);
+    private boolean skipRegistryChange = false;
+    private List<MonitorClient.SensorInfo> registryData = null;
+    private boolean registryFull = false;
+    private final Deque<Pending<List<MonitorClient.SensorInfo>>> registryCallbacks = new ArrayDeque<>();
+
+    private final Map<String, Deque<Pending<List<Reading>>>> historyCallbacks = new HashMap<>();
+    private final Map<String, Deque<Pending<List<MonitorClient.MetricStats>>>> statsCallbacks = new HashMap<>();
+    private final Map<String, Deque<Pending<String>>> exportCallbacks = new HashMap<>();
+
+    /**
+     * Zapytania oczekujące na potwierdzenie polecenia (PAIRED, UNPAIRED, INFO_UPDATED), według treści potwierdzenia.
+     */
+    private final Map<String, Deque<Pending<String>>> ackCallbacks = new HashMap<>();
+
+    /**
+     * Zapytanie oczekujące na odpowiedź serwera.
+     *
+     * @param callback funkcja wywoływana z odpowiedzią
+     * @param onError funkcja wywoływana z opisem błędu, którym serwer odrzucił zapytanie
+     */
+    record Pending<T>(Consumer<T> callback, Consumer<String> onError) {
+    }
+
+    /**
+     * @param client klient, do którego trafiają zdarzenia serwera
+     * @param address adres serwera w formacie host:port
+     */
+    ServerConnection(MonitorClient client, String address) {
+        this.client = client;
+        int colon = address.lastIndexOf(':');
+        this.host = address.substring(0, colon).trim();
+        this.port = Integer.parseInt(address.substring(colon + 1).trim());
+    }
+
+    /**
+     * @return adres serwera w formacie host:port
+     */
+    String getAddress() {
+        return host + ":" + port;
+    }
+
+    boolean isConnected() {
+        return connected;
+    }
+
+    void connect() throws IOException {
+        try {
+            socket = new Socket(host, port);
+            out = new PrintWriter(socket.getOutputStream(), true);
+            InputStream rawIn = new BufferedInputStream(socket.getInputStream());
+
+            String resp = readHandshakeLine(rawIn);
+            if (!"HELLO".equals(resp)) {
+                throw new IOException("Nieprawidłowa odpowiedź serwera: " + resp);
+            }
+
+            String pendingLine = negotiateProtocol(rawIn);
+            clearPendingRequests();
+            sensorHandles.clear();
+            lastUpdates.clear();
+            registryVersion = -1;
+            registryReceived = new CountDownLatch(1);
+            skipRegistryChange = false;
+            registryData = null;
+            compression = null;
+            if (protocol.compressed()) {
+                compression = new MeteredInflaterInputStream(rawIn);
+                rawIn = compression;
+            }
+            if (protocol.binary()) {
+                binaryIn = new DataInputStream(new BufferedInputStream(rawIn));
+            } else {
+                in = new BufferedReader(new InputStreamReader(rawIn));
+            }
+
+            if (Config.CLIENT_CONFLATION_HZ > 0) {
+                out.println("DELIVERY CONFLATE " + Config.CLIENT_CONFLATION_HZ);
+            }
+
+            if (client.hasAlertSubscribers()) {
+                out.println("ALERT_SUBSCRIBE");
+            }
+
+            String username = client.getUsername();
+            if (username != null) {
+                out.println("USERNAME " + username);
+            }
+
+            connected = true;
+
+            startListener(pendingLine);
+            awaitRegistry();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Porzuca zapytania wysłane poprzednim połączeniem - serwer nie odpowie na nie po ponownym
+     * połączeniu, a ich funkcje zwrotne przejęłyby odpowiedzi na nowe zapytania.
+     */
+    private synchronized void clearPendingRequests() {
+        historyCallbacks.clear();
+        statsCallbacks.clear();
+        exportCallbacks.clear();
+        ackCallbacks.clear();
+        registryCallbacks.clear();
+        currentHistorySensor = null;
+        currentHistoryData = null;
+        currentStatsSensor = null;
+        currentStats = null;
+        currentExportSensor = null;
+        exportData = null;
+    }
+
+    /**
+     * Czeka na migawkę rejestru, którą serwer wysyła po połączeniu, aby po powrocie z {@link #connect()}
+     * klient znał czujniki serwera i kierował do niego dotyczące ich polecenia.
+     * Starsze serwery nie wysyłają migawki - wtedy oczekiwanie kończy się po czasie oczekiwania na powitanie.
+     */
+    private void awaitRegistry() throws InterruptedIOException {
+        try {
+            registryReceived.await(Config.HANDSHAKE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Przerwano oczekiwanie na rejestr serwera");
+        }
+    }
+
+    /**
+     * Wysyła identyfikator klienta wraz z żądanymi opcjami protokołu i odczytuje potwierdzenie serwera.
+     * Starsze serwery nie wysyłają potwierdzenia - wtedy po upływie czasu oczekiwania
+     * lub po otrzymaniu innego komunikatu używany jest protokół tekstowy.
+     *
+     * @param rawIn strumień wejściowy gniazda
+     * @return komunikat odebrany zamiast potwierdzenia lub null
+     * @throws IOException w przypadku błędu komunikacji
+     */
+    private String negotiateProtocol(InputStream rawIn) throws IOException {
+        ProtocolOptions requested = ProtocolOptions.parse(Config.CLIENT_PROTOCOL);
+        protocol = ProtocolOptions.TEXT;
+
+        if (requested.equals(ProtocolOptions.TEXT)) {
+            out.println(UUID.randomUUID());
+            return null;
+        }
+
+        out.println(UUID.randomUUID() + " " + requested.toHandshake());
+        socket.setSoTimeout(Config.HANDSHAKE_TIMEOUT_MS);
+        try {
+            String ack = readHandshakeLine(rawIn);
+            if (ack != null && ack.startsWith("PROTOCOL ")) {
+                protocol = ProtocolOptions.parse(ack.substring(9));
+                return null;
+            }
+            return ack;
+        } catch (SocketTimeoutException e) {
+            return null;
+        } finally {
+            socket.setSoTimeout(0);
+        }
+    }
+
+    /**
+     * Odczytuje pojedynczy wiersz bajt po bajcie, aby nie pobrać z bufora danych binarnych,
+     * które mogą następować bezpośrednio po nim.
+     *
+     * @param rawIn strumień wejściowy gniazda
+     * @return wiersz bez znaku końca linii lub null na końcu strumienia
+     * @throws IOException w przypadku błędu odczytu
+     */
+    private static String readHandshakeLine(InputStream rawIn) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = rawIn.read()) != -1 && b != '\n') {
+            if (b != '\r') line.write(b);
+        }
+        if (b == -1 && line.size() == 0) return null;
+        return line.toString();
+    }
+
+    /**
+     * Uruchamia wątek nasłuchiwania odpowiedzi serwera.
+     *
+     * @param pendingLine komunikat odebrany podczas powitania do przetworzenia w pierwszej kolejności lub null
+     */
+    private void startListener(String pendingLine) {
+        Thread listenerThread = new Thread(() -> {
+            try {
+                if (pendingLine != null) {
+                    processServerResponse(pendingLine);
+                }
+                if (protocol.binary()) {
+                    while (connected) {
+                        processServerFrame();
+                    }
+                } else {
+                    String line;
+                    while (connected && (line = in.readLine()) != null) {
+                        processServerResponse(line);
+                    }
+                }
+            } catch (EOFException e) {
+                // serwer zamknął połączenie
+            } catch (IOException e) {
+                if (connected) {
+                    System.err.println("Błąd nasłuchiwania (" + getAddress() + "): " + e.getMessage());
+                }
+            } finally {
+                close();
+                if (compression != null) {
+                    System.out.println(getCompressionStats());
+                    compression.release();
+                }
+                client.connectionLost(this);
+            }
+        }, "monitor-client-" + getAddress());
+        listenerThread.setDaemon(true);
+        listenerThread.start();
+    }
+
+    /**
+     * Odczytuje i przetwarza pojedynczą ramkę protokołu binarnego.
+     *
+     * @throws IOException w przypadku błędu odczytu
+     */
+    private void processServerFrame() throws IOException {
+        int length = binaryIn.readInt();
+        byte type = binaryIn.readByte();
+
+        switch (type) {
+            case BinaryProtocol.FRAME_TEXT -> {
+                byte[] text = new byte[length - 1];
+                binaryIn.readFully(text);
+                processServerResponse(new String(text, StandardCharsets.UTF_8));
+            }
+            case BinaryProtocol.FRAME_SENSOR -> {
+                int handle = (int) BinaryProtocol.readVarLong(binaryIn);
+                sensorHandles.put(handle, binaryIn.readUTF());
+            }
+            case BinaryProtocol.FRAME_UPDATE -> {
+                String sensorId = sensorHandles.get((int) BinaryProtocol.readVarLong(binaryIn));
+                deliverUpdate(BinaryProtocol.readReading(binaryIn, sensorId));
+            }
+            case BinaryProtocol.FRAME_DELTA -> {
+                String sensorId = sensorHandles.get((int) BinaryProtocol.readVarLong(binaryIn));
+                Reading base = lastUpdates.get(sensorId);
+                if (base != null) {
+                    deliverUpdate(BinaryProtocol.readDelta(binaryIn, base));
+                } else {
+                    // brak pełnej aktualizacji - różnica jest pomijana do następnej pełnej aktualizacji
+                    BinaryProtocol.readDelta(binaryIn, emptyReading(sensorId));
+                }
+            }
+            case BinaryProtocol.FRAME_DATA -> {
+                String sensorId = sensorHandles.get((int) BinaryProtocol.readVarLong(binaryIn));
+                addHistoryReading(BinaryProtocol.readReading(binaryIn, sensorId));
+            }
+            default -> binaryIn.skipNBytes(length - 1);
+        }
+    }
+
+    /**
+     * Przetwarza odpowiedź serwera.
+     *
+     * @param line odpowiedź serwera
+     */
+    private void processServerResponse(String line) {
+        try {
+            if (line.startsWith("UPDATE ")) {
+                processUpdate(line, 7);
+            } else if (line.startsWith("DELTA ")) {
+                processDelta(line.substring(6));
+            } else if (line.startsWith("HANDLE ")) {
+                processHandle(line.substring(7));
+            } else if (line.startsWith("HISTORY_START ")) {
+                processHistoryStart(line.substring(14));
+            } else if (line.startsWith("DATA ")) {
+                processHistoryData(line, 5);
+            } else if (line.equals("HISTORY_END")) {
+                processHistoryEnd();
+            } else if (line.startsWith("EXPORT_START ")) {
+                processExportStart(line.substring(13));
+            } else if (line.equals("EXPORT_END")) {
+                processExportEnd();
+            } else if (line.startsWith("REGISTRY_START ")) {
+                processRegistryStart(line.substring(15));
+            } else if (line.startsWith("REGISTRY_END ")) {
+                processRegistryEnd(line.substring(13));
+            } else if (line.startsWith("REGISTRY_CHANGE ")) {
+                processRegistryChange(line.substring(16));
+            } else if (line.startsWith("SENSOR_INFO ")) {
+                if (registryData != null) {
+                    registryData.add(parseSensorInfo(line.substring(12)));
+                } else if (!consumeSkippedRegistryChange()) {
+                    processSensorInfoUpdate(line.substring(12));
+                }
+            } else if (line.startsWith("SENSOR_REMOVED ")) {
+                if (!consumeSkippedRegistryChange()) {
+                    client.sensorRemoved(this, line.substring(15));
+                }
+            } else if (line.startsWith("NEW_SENSOR ")) {
+                client.newSensor(this, line.substring(11).trim());
+            } else if (line.startsWith("STATS_START ")) {
+                processStatsStart(line.substring(12));
+            } else if (line.startsWith("STAT ")) {
+                processStat(line.substring(5));
+            } else if (line.equals("STATS_END")) {
+                processStatsEnd();
+            } else if (line.startsWith("ALERT ")) {
+                processAlert(line.substring(6));
+            } else if (line.startsWith("PAIRED ") || line.startsWith("UNPAIRED ") || line.startsWith("INFO_UPDATED ")) {
+                Pending<String> request = poll(ackCallbacks, line.trim());
+                if (request != null) {
+                    request.callback().accept(line.trim());
+                }
+            } else if (line.startsWith("ERROR ")) {
+                processError(line.substring(6));
+            } else if (exportData != null) {
+                processExportData(line);
+            }
+        } catch (Exception e) {
+            System.err.println("Błąd przetwarzania odpowiedzi serwera: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Przetwarza błąd w formacie: polecenie sensorId: opis. Błąd kończy najstarsze oczekujące
+     * zapytanie tego polecenia o ten czujnik; błędy bez wskazania polecenia są tylko zapisywane.
+     *
+     * @param data treść błędu
+     */
+    private void processError(String data) {
+        int space = data.indexOf(' ');
+        int colon = data.indexOf(": ");
+        if (space > 0 && colon > space) {
+            String command = data.substring(0, space);
+            String subject = data.substring(space + 1, colon);
+            Pending<?> request = switch (command) {
+                case "HISTORY", "HISTORY_SINCE" -> poll(historyCallbacks, subject);
+                case "STATS" -> poll(statsCallbacks, subject);
+                case "EXPORT" -> poll(exportCallbacks, subject);
+                case "PAIR" -> poll(ackCallbacks, "PAIRED " + subject);
+                case "UNPAIR" -> poll(ackCallbacks, "UNPAIRED " + subject);
+                case "UPDATE_INFO" -> poll(ackCallbacks, "INFO_UPDATED " + subject);
+                case "REGISTRY" -> pollRegistry();
+                default -> null;
+            };
+            if (request != null) {
+                request.onError().accept(data.substring(colon + 2));
+                return;
+            }
+            if (command.equals("GET")) {
+                client.readingFailed(this, subject, data.substring(colon + 2));
+                return;
+            }
+        }
+        System.err.println("Błąd serwera (" + getAddress() + "): " + data);
+    }
+
+    private String currentHistorySensor = null;
+    private List<Reading> currentHistoryData = null;
+
+    private void processHistoryStart(String line) {
+        String[] parts = line.split(" ", 2);
+        currentHistorySensor = parts[0];
+        currentHistoryData = new ArrayList<>();
+    }
+
+    /**
+     * Przetwarza wiersz historii.
+     *
+     * @param line wiersz odpowiedzi serwera
+     * @param start początek odczytu w wierszu
+     */
+    private void processHistoryData(String line, int start) {
+        if (currentHistorySensor != null && currentHistoryData != null) {
+            try {
+                if (ReadingParser.parse(line, start, line.length(), parsed)) {
+                    addHistoryReading(parsed.toReading());
+                }
+            } catch (Exception e) {
+                System.err.println("Błąd parsowania linii historii: " + e.getMessage());
+            }
+        }
+    }
+
+    private void addHistoryReading(Reading reading) {
+        if (reading != null && currentHistorySensor != null && currentHistoryData != null) {
+            currentHistoryData.add(reading);
+        }
+    }
+
+    private void processHistoryEnd() {
+        if (currentHistorySensor == null || currentHistoryData == null) return;
+
+        client.sensorSeen(this, currentHistorySensor);
+        Pending<List<Reading>> request = poll(historyCallbacks, currentHistorySensor);
+        if (request != null) {
+            request.callback().accept(currentHistoryData);
+        }
+
+        currentHistorySensor = null;
+        currentHistoryData = null;
+    }
+
+    private String currentStatsSensor = null;
+    private List<MonitorClient.MetricStats> currentStats = null;
+
+    private void processStatsStart(String line) {
+        currentStatsSensor = line.split(" ", 2)[0];
+        currentStats = new ArrayList<>();
+    }
+
+    private void processStat(String data) {
+        if (currentStats == null) return;
+        String[] parts = data.split(",");
+        if (parts.length < 11) return;
+        currentStats.add(new MonitorClient.MetricStats(parts[0], Long.parseLong(parts[1]), parseStat(parts[2]),
+                parseStat(parts[3]), parseStat(parts[4]), parseStat(parts[5]), parseStat(parts[6]),
+                parseStat(parts[7]), parseStat(parts[8]), parseStat(parts[9]), "1".equals(parts[10].trim())));
+    }
+
+    private static Double parseStat(String value) {
+        return value.equals("null") ? null : Double.parseDouble(value);
+    }
+
+    private void processStatsEnd() {
+        if (currentStats == null) return;
+        Pending<List<MonitorClient.MetricStats>> request = poll(statsCallbacks, currentStatsSensor);
+        if (request != null) {
+            request.callback().accept(currentStats);
+        }
+        currentStatsSensor = null;
+        currentStats = null;
+    }
+
+    private String currentExportSensor = null;
+    private StringBuilder exportData = null;
+
+    private void processExportStart(String sensor) {
+        currentExportSensor = sensor.trim();
+        exportData = new StringBuilder();
+        exportData.append("# Dane dla czujnika: ").append(sensor).append("\n");
+    }
+
+    private void processExportData(String line) {
+        if (exportData != null) {
+            exportData.append(line).append("\n");
+        }
+    }
+
+    private void processExportEnd() {
+        if (exportData == null) return;
+
+        String data = exportData.toString();
+        Pending<String> request = poll(exportCallbacks, currentExportSensor);
+        if (request != null) {
+            request.callback().accept(data);
+        }
+
+        currentExportSensor = null;
+        exportData = null;
+    }
+
+    /**
+     * Przetwarza aktualizację z serwera.
+     *
+     * @param line wiersz odpowiedzi serwera
+     * @param start początek aktualizacji w formacie CSV w wierszu
+     */
+    private void processUpdate(String line, int start) {
+        try {
+            if (ReadingParser.parse(line, start, line.length(), parsed)) {
+                deliverUpdate(parsed.toReading());
+            }
+        } catch (Exception e) {
+            System.err.println("Błąd parsowania aktualizacji: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Przetwarza powiązanie uchwytu z czujnikiem w tekstowym kodowaniu różnicowym.
+     *
+     * @param data uchwyt i identyfikator czujnika rozdzielone spacją
+     */
+    private void processHandle(String data) {
+        String[] parts = data.trim().split(" ", 2);
+        if (parts.length == 2) {
+            sensorHandles.put(Integer.parseInt(parts[0]), parts[1]);
+        }
+    }
+
+    /**
+     * Przetwarza tekstową aktualizację różnicową. Różnice dla czujników bez pełnej
+     * aktualizacji są pomijane do czasu otrzymania następnej pełnej aktualizacji.
+     *
+     * @param data treść aktualizacji różnicowej
+     */
+    private void processDelta(String data) {
+        String[] parts = data.split(",", 2);
+        if (parts.length < 2) return;
+
+        String sensorId = sensorHandles.get(Integer.parseInt(parts[0].trim()));
+        Reading base = sensorId != null ? lastUpdates.get(sensorId) : null;
+        if (base != null) {
+            deliverUpdate(DeltaCodec.parseText(parts[1], base));
+        }
+    }
+
+    private static Reading emptyReading(String sensorId) {
+        return new Reading(sensorId, null, null, null, null, null, null, null, null, null, null);
+    }
+
+    /**
+     * Zapamiętuje odczyt jako podstawę aktualizacji różnicowych i przekazuje go do klienta.
+     *
+     * @param reading nowy odczyt
+     */
+    private void deliverUpdate(Reading reading) {
+        if (reading == null || reading.deviceId() == null) return;
+        lastUpdates.put(reading.deviceId(), reading);
+        client.deliverUpdate(this, reading);
+    }
+
+    /**
+     * Przetwarza informację o aktualizacji danych czujnika.
+     * Format: sensorId,nazwa,roślina,pomieszczenie
+     */
+    private void processSensorInfoUpdate(String data) {
+        String[] parts = data.split(",", -1);
+
+        if (parts.length >= 2) {
+            String sensorId = parts[0].trim();
+            String name = parts[1].trim();
+            String plantName = parts.length > 2 ? parts[2].trim() : "";
+            String room = parts.length > 3 ? parts[3].trim() : "";
+            client.sensorInfoUpdated(this, new MonitorClient.SensorInfo(sensorId, name, plantName, room));
+        } else {
+            System.err.println("ERROR: Nieprawidłowy format danych SENSOR_INFO: " + data);
+        }
+    }
+
+    /**
+     * Rozpoczyna odbiór migawki rejestru metadanych: REGISTRY_START wersja liczba [filtr].
+     * Migawka bez filtra jest wysyłana przez serwer po połączeniu i opisuje wszystkie czujniki serwera.
+     */
+    private void processRegistryStart(String data) {
+        String[] parts = data.split(" ", 3);
+        registryData = new ArrayList<>();
+        registryFull = parts.length < 3;
+    }
+
+    /**
+     * Kończy odbiór migawki rejestru: REGISTRY_END wersja.
+     * Pełna migawka jest przekazywana do klienta, który uzgadnia z nią sparowane czujniki,
+     * a migawka z filtrem - do funkcji, która o nią prosiła.
+     */
+    private void processRegistryEnd(String data) {
+        List<MonitorClient.SensorInfo> sensors = registryData;
+        if (sensors == null) return;
+        registryData = null;
+        long version = Long.parseLong(data.trim());
+
+        if (!registryFull) {
+            Pending<List<MonitorClient.SensorInfo>> request = pollRegistry();
+            if (request != null) request.callback().accept(sensors);
+            return;
+        }
+
+        client.registrySnapshot(this, version, sensors);
+        registryVersion = version;
+        registryReceived.countDown();
+    }
+
+    /**
+     * Przetwarza zapowiedź zmiany rejestru: REGISTRY_CHANGE wersja.
+     * Zmiana nie nowsza niż otrzymana migawka jest już w niej uwzględniona i zostanie pominięta.
+     */
+    private void processRegistryChange(String data) {
+        long version = Long.parseLong(data.trim());
+        skipRegistryChange = registryVersion >= 0 && version <= registryVersion;
+        if (!skipRegistryChange) {
+            registryVersion = version;
+        }
+    }
+
+    private boolean consumeSkippedRegistryChange() {
+        boolean skip = skipRegistryChange;
+        skipRegistryChange = false;
+        return skip;
+    }
+
+    private static MonitorClient.SensorInfo parseSensorInfo(String data) {
+        String[] parts = data.split(",", 4);
+        return new MonitorClient.SensorInfo(parts[0].trim(), parts.length > 1 ? parts[1].trim() : parts[0].trim(),
+                parts.length > 2 ? parts[2].trim() : "", parts.length > 3 ? parts[3].trim() : "");
+    }
+
+    /**
+     * Przetwarza zmianę stanu alarmu w formacie: idReguły,sensorId,wielkość,wartość,FIRING|CLEARED,czas
+     */
+    private void processAlert(String data) {
+        String[] parts = data.split(",", 6);
+        if (parts.length < 6) return;
+        client.alert(new MonitorClient.Alert(Integer.parseInt(parts[0].trim()), parts[1].trim(), parts[2].trim(),
+                Double.parseDouble(parts[3].trim()), "FIRING".equals(parts[4].trim()), parts[5].trim()));
+    }
+
+    /**
+     * Wysyła polecenie do serwera.
+     *
+     * @param command treść polecenia
+     * @return false, jeśli połączenie nie jest nawiązane
+     */
+    boolean send(String command) {
+        if (!connected) return false;
+        out.println(command);
+        return true;
+    }
+
+    /**
+     * Wysyła polecenie, na które serwer odpowiada potwierdzeniem, np. PAIR czujnik,nazwa - PAIRED czujnik.
+     *
+     * @param command treść polecenia
+     * @param ack oczekiwane potwierdzenie
+     * @param callback funkcja wywoływana po otrzymaniu potwierdzenia
+     * @param onError funkcja wywoływana z opisem błędu, którym serwer odrzucił polecenie
+     * @return uchwyt usuwający zapytanie z kolejki oczekujących lub null, jeśli połączenie nie jest nawiązane
+     */
+    Runnable sendAcknowledged(String command, String ack, Runnable callback, Consumer<String> onError) {
+        if (!connected) return null;
+        Runnable cancel = enqueue(ackCallbacks, ack, new Pending<>(line -> callback.run(), onError));
+        return send(command) ? cancel : null;
+    }
+
+    /**
+     * Wysyła żądanie o dane historyczne czujnika.
+     *
+     * @return uchwyt usuwający zapytanie z kolejki oczekujących lub null, jeśli połączenie nie jest nawiązane
+     */
+    Runnable requestHistory(String sensorId, int limit, Consumer<List<Reading>> callback, Consumer<String> onError) {
+        if (!connected) return null;
+        Runnable cancel = enqueue(historyCallbacks, sensorId, new Pending<>(callback, onError));
+        send("HISTORY " + sensorId + "," + limit);
+        return cancel;
+    }
+
+    /**
+     * Wysyła żądanie o odczyty czujnika od podanego czasu (włącznie), którymi klient uzupełnia
+     * przerwę po ponownym połączeniu.
+     *
+     * @return uchwyt usuwający zapytanie z kolejki oczekujących lub null, jeśli połączenie nie jest nawiązane
+     */
+    Runnable requestHistorySince(String sensorId, LocalDateTime since, Consumer<List<Reading>> callback,
+                                 Consumer<String> onError) {
+        if (!connected) return null;
+        Runnable cancel = enqueue(historyCallbacks, sensorId, new Pending<>(callback, onError));
+        send("HISTORY_SINCE " + sensorId + "," + DateFormatter.format(since));
+        return cancel;
+    }
+
+    /**
+     * Wysyła żądanie o bieżące statystyki czujnika.
+     *
+     * @return uchwyt usuwający zapytanie z kolejki oczekujących lub null, jeśli połączenie nie jest nawiązane
+     */
+    Runnable requestStats(String sensorId, Consumer<List<MonitorClient.MetricStats>> callback, Consumer<String> onError) {
+        if (!connected) return null;
+        Runnable cancel = enqueue(statsCallbacks, sensorId, new Pending<>(callback, onError));
+        send("STATS " + sensorId);
+        return cancel;
+    }
+
+    /**
+     * Wysyła żądanie o eksport danych czujnika.
+     *
+     * @return uchwyt usuwający zapytanie z kolejki oczekujących lub null, jeśli połączenie nie jest nawiązane
+     */
+    Runnable exportData(String sensorId, Consumer<String> callback, Consumer<String> onError) {
+        if (!connected) return null;
+        Runnable cancel = enqueue(exportCallbacks, sensorId, new Pending<>(callback, onError));
+        send("EXPORT " + sensorId);
+        return cancel;
+    }
+
+    /**
+     * Wysyła zapytanie o czujniki z rejestru serwera spełniające filtr.
+     *
+     * @return uchwyt usuwający zapytanie z kolejki oczekujących lub null, jeśli połączenie nie jest nawiązane
+     */
+    Runnable requestRegistry(String filter, Consumer<List<MonitorClient.SensorInfo>> callback, Consumer<String> onError) {
+        if (!connected) return null;
+        Pending<List<MonitorClient.SensorInfo>> request = new Pending<>(callback, onError);
+        synchronized (this) {
+            registryCallbacks.add(request);
+        }
+        send("REGISTRY " + filter);
+        return () -> {
+            synchronized (this) {
+                registryCallbacks.removeIf(pending -> pending == request);
+            }
+        };
+    }
+
+    private synchronized Pending<List<MonitorClient.SensorInfo>> pollRegistry() {
+        return registryCallbacks.poll();
+    }
+
+    /**
+     * Dodaje zapytanie do kolejki oczekujących na odpowiedź.
+     *
+     * @return uchwyt usuwający zapytanie z kolejki, jeśli serwer jeszcze na nie nie odpowiedział.
+     *         Odpowiedź, która mimo to nadejdzie później, trafi do następnego zapytania tego rodzaju
+     *         o ten czujnik, a jego własna zostanie pominięta - zapytanie bez odpowiedzi
+     *         pozostawione w kolejce przejmowałoby odpowiedzi wszystkich kolejnych.
+     */
+    private synchronized <T> Runnable enqueue(Map<String, Deque<T>> callbacks, String sensorId, T request) {
+        Deque<T> queue = callbacks.computeIfAbsent(sensorId, k -> new ArrayDeque<>());
+        queue.add(request);
+        return () -> {
+            synchronized (this) {
+                if (callbacks.get(sensorId) == queue && queue.removeIf(pending -> pending == request) && queue.isEmpty()) {
+                    callbacks.remove(sensorId);
+                }
+            }
+        };
+    }
+
+    private synchronized <T> T poll(Map<String, Deque<T>> callbacks, String sensorId) {
+        Deque<T> queue = callbacks.get(sensorId);
+        if (queue == null) return null;
+        T callback = queue.poll();
+        if (queue.isEmpty()) callbacks.remove(sensorId);
+        return callback;
+    }
+
+    /**
+     * @return wersja rejestru metadanych serwera lub -1, jeśli migawka nie została jeszcze odebrana
+     */
+    long getRegistryVersion() {
+        return registryVersion;
+    }
+
+    void close() {
+        boolean wasConnected = connected;
+        connected = false;
+        try {
+            if (wasConnected && out != null) out.println("QUIT");
+            // gniazdo jest zamykane także po nieudanym uzgadnianiu połączenia, zanim ustawiono connected
+            if (socket != null) socket.close();
+        } catch (IOException e) {
+            System.err.println("Błąd zamykania połączenia: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Zwraca statystyki kompresji bieżącego połączenia.
+     *
+     * @return opis statystyk kompresji lub informacja o jej braku
+     */
+    String getCompressionStats() {
+        MeteredInflaterInputStream z = compression;
+        if (z == null) return "Połączenie bez kompresji";
+        return String.format(Locale.ROOT, "Kompresja: odebrano %d bajtów, po dekompresji %d (%.2fx), czas procesora %.1f ms",
+                z.getCompressedBytes(), z.getUncompressedBytes(), z.getRatio(), z.getCpuNanos() / 1e6);
+    }
+}
@@ -0,0 +1,126 @@
+package jf.plantclimate.client;
+
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Funkcja zwrotna {@link MonitorClient} wywoływana poza wątkiem nasłuchiwania serwera. Wątek
+ * nasłuchiwania tylko dodaje zdarzenie do kolejki subskrypcji, a funkcja jest wywoływana przez
+ * wykonawcę subskrypcji - dla kolejnych zdarzeń w kolejności ich dodania i nigdy równolegle,
+ * więc wolny subskrybent nie wstrzymuje odczytu z gniazda ani innych subskrybentów.
+ *
+ * <p>Kolejka może mieć ograniczoną pojemność. Gdy jest pełna, nowe zdarzenie zastępuje ostatnie
+ * oczekujące zdarzenie o tym samym kluczu (np. odczyt tego samego czujnika) - subskrybent otrzyma
+ * najnowszą wartość, a kolejność zdarzeń o tym kluczu jest zachowana. Jeśli takiego zdarzenia nie
+ * ma, pomijane jest najstarsze oczekujące zdarzenie.</p>
+ *
+ * @param <T> typ zdarzenia
+ */
+final class Subscription<T> {
+    /**
+     * Maksymalna liczba zdarzeń obsługiwanych jednym zadaniem wykonawcy, aby subskrybent z długą
+     * kolejką nie zajmował współdzielonego wątku (np. wątku interfejsu) bez przerwy.
+     */
+    private static final int BATCH = 256;
+
+    private final Consumer<T> callback;
+    private final Executor executor;
+    private final int capacity;
+    private final Function<T, ?> key;
+
+    private final LinkedList<T> queue = new LinkedList<>();
+    private boolean scheduled;
+    private long conflated;
+    private long dropped;
+
+    /**
+     * @param callback funkcja zwrotna subskrybenta
+     * @param executor wykonawca wywołujący funkcję zwrotną
+     * @param capacity pojemność kolejki
+     * @param key klucz scalania zdarzeń przy pełnej kolejce lub null, jeśli zdarzeń nie można scalać
+     */
+    Subscription(Consumer<T> callback, Executor executor, int capacity, Function<T, ?> key) {
+        this.callback = callback;
+        this.executor = executor;
+        this.capacity = capacity;
+        this.key = key;
+    }
+
+    /**
+     * Subskrypcja z nieograniczoną kolejką, dla zdarzeń, których nie można pominąć.
+     */
+    Subscription(Consumer<T> callback, Executor executor) {
+        this(callback, executor, Integer.MAX_VALUE, null);
+    }
+
+    /**
+     * Dodaje zdarzenie do kolejki i zleca jej obsługę wykonawcy, jeśli nie jest już obsługiwana.
+     *
+     * @param item zdarzenie
+     */
+    void offer(T item) {
+        synchronized (this) {
+            if (queue.size() < capacity) {
+                queue.add(item);
+            } else if (!replaceLast(item)) {
+                queue.poll();
+                queue.add(item);
+                dropped++;
+            }
+            if (scheduled) return;
+            scheduled = true;
+        }
+        executor.execute(this::drain);
+    }
+
+    private boolean replaceLast(T item) {
+        if (key == null) return false;
+        Object k = key.apply(item);
+        ListIterator<T> it = queue.listIterator(queue.size());
+        while (it.hasPrevious()) {
+            if (Objects.equals(key.apply(it.previous()), k)) {
+                it.set(item);
+                conflated++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void drain() {
+        for (int i = 0; i < BATCH; i++) {
+            T item;
+            synchronized (this) {
+                item = queue.poll();
+                if (item == null) {
+                    scheduled = false;
+                    return;
+                }
+            }
+            try {
+                callback.accept(item);
+            } catch (Exception e) {
+                System.err.println("Błąd w callbacku: " + e.getMessage());
+            }
+        }
+        executor.execute(this::drain);
+    }
+
+    /**
+     * @return liczba zdarzeń zastąpionych nowszym zdarzeniem o tym samym kluczu
+     */
+    synchronized long getConflated() {
+        return conflated;
+    }
+
+    /**
+     * @return liczba zdarzeń pominiętych przy pełnej kolejce
+     */
+    synchronized long getDropped() {
+        return dropped;
+    }
+}
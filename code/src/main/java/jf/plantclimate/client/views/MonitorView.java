@@ -17,6 +17,7 @@ import java.time.format.DateTimeFormatter;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 /**
  * Główny widok aplikacji Plant Climate.
@@ -54,6 +55,7 @@ public class MonitorView extends JFrame {
         client.registerSensorInfoUpdateCallback(this::handleSensorInfoUpdate);
         client.registerSensorRemovedCallback(this::handleSensorRemoved);
         client.registerNewSensorCallback(this::handleNewSensor);
+        client.registerReconnectCallback(server -> SwingUtilities.invokeLater(this::updateChartDisplay));
         
         initComponents();
         loadPairedSensors();
@@ -177,23 +179,33 @@ public class MonitorView extends JFrame {
                 return;
             }
             
-            if (!client.checkSensorExists(sensorId)) {
+            client.getReadingAsync(sensorId).whenComplete((reading, e) -> SwingUtilities.invokeLater(() -> {
+                if (e != null) {
+                    JOptionPane.showMessageDialog(this,
+                        "Nie można nawiązać komunikacji z czujnikiem o ID " + sensorId + ".\nSprawdź czy czujnik jest włączony i dostępny.",
+                        "Błąd komunikacji", JOptionPane.ERROR_MESSAGE);
+                } else {
+                    pairCheckedSensor(sensorId);
+                }
+            }));
+        }
+    }
+
+    /**
+     * Pyta o nazwę wyświetlaną czujnika, który odpowiedział na zapytanie, i paruje go.
+     */
+    private void pairCheckedSensor(String sensorId) {
+        String displayName = JOptionPane.showInputDialog(this, "Wprowadź nazwę wyświetlaną dla czujnika " + sensorId + ":");
+        if (displayName != null && !displayName.trim().isEmpty()) {
+            if (client.isDisplayNameUsed(displayName)) {
                 JOptionPane.showMessageDialog(this,
-                    "Nie można nawiązać komunikacji z czujnikiem o ID " + sensorId + ".\nSprawdź czy czujnik jest włączony i dostępny.",
-                    "Błąd komunikacji", JOptionPane.ERROR_MESSAGE);
+                    "Czujnik o nazwie \"" + displayName + "\" już istnieje.\nProszę wybrać inną nazwę.",
+                    "Duplikat nazwy", JOptionPane.ERROR_MESSAGE);
                 return;
             }
-            
-            String displayName = JOptionPane.showInputDialog(this, "Wprowadź nazwę wyświetlaną dla czujnika " + sensorId + ":");
-            if (displayName != null && !displayName.trim().isEmpty()) {
-                if (client.isDisplayNameUsed(displayName)) {
-                    JOptionPane.showMessageDialog(this,
-                        "Czujnik o nazwie \"" + displayName + "\" już istnieje.\nProszę wybrać inną nazwę.",
-                        "Duplikat nazwy", JOptionPane.ERROR_MESSAGE);
-                    return;
-                }
-                
-                if (client.pairSensor(sensorId, displayName)) {
+
+            client.pairSensorAsync(sensorId, displayName).whenComplete((paired, e) -> SwingUtilities.invokeLater(() -> {
+                if (e == null && paired) {
                     pairedSensorsModel.addElement(new PairedSensor(sensorId, displayName));
                     JOptionPane.showMessageDialog(this,
                         "Czujnik został sparowany pomyślnie.",
@@ -203,7 +215,7 @@ public class MonitorView extends JFrame {
                         "Nie udało się sparować czujnika.",
                         "Błąd parowania", JOptionPane.ERROR_MESSAGE);
                 }
-            }
+            }));
         }
     }
 
@@ -337,14 +349,17 @@ public class MonitorView extends JFrame {
             return;
         }
 
-        client.requestHistory(selected.getSensorId(), 100, readings ->
+        // pamięć podręczna historii jest wczytywana z dysku poza wątkiem interfejsu
+        String sensorId = selected.getSensorId();
+        Consumer<List<Reading>> show = readings ->
             SwingUtilities.invokeLater(() -> {
-                if (readings != null && !readings.isEmpty()) {
+                PairedSensor current = devices.getSelectedValue();
+                if (readings != null && !readings.isEmpty() && current != null && sensorId.equals(current.getSensorId())) {
                     String chartType = chartPanel.getSelectedChartType();
                     chartPanel.updateChart(readings, chartType);
                 }
-            })
-        );
+            });
+        client.requestHistoryWithCache(sensorId, 100, show, show);
     }
     
     /**
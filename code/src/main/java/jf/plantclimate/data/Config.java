@@ -8,14 +8,217 @@ public final class Config {
     /**
      * Port dla komunikacji z czujnikami.
      */
-    public static final int SENSOR_PORT = 9000;
+    public static final int SENSOR_PORT = Integer.getInteger("plantclimate.sensorPort", 9000);
 
     /**
      * Port dla komunikacji z klientami.
      */
-    public static final int CLIENT_PORT = 9100;
+    public static final int CLIENT_PORT = Integer.getInteger("plantclimate.clientPort", 9100);
 
-    public static final String HOST = "127.0.0.1";
+    public static final String HOST = System.getProperty("plantclimate.host", "127.0.0.1");
+
+    /**
+     * Serwery (host:portKlientów rozdzielone przecinkami), z którymi łączy się jednocześnie aplikacja
+     * kliencka, np. serwery kilku lokalizacji. Pusty oznacza jeden serwer {@link #HOST}:{@link #CLIENT_PORT}.
+     */
+    public static final String SERVERS = System.getProperty("plantclimate.servers", "");
+
+    /**
+     * Katalog, w którym serwer przechowuje odczyty czujników, rejestr czujników, reguły alarmów
+     * i zapytania okienkowe. Osobne katalogi pozwalają uruchomić kilka serwerów na jednym komputerze.
+     */
+    public static final String DATA_DIR = System.getProperty("plantclimate.dataDir", "sensor_data");
+
+    /**
+     * Węzły klastra dla {@code ClusterRouter}, rozdzielone przecinkami, w formacie
+     * host:portCzujników:portKlientów, np. "127.0.0.1:9001:9101,127.0.0.1:9002:9102".
+     */
+    public static final String CLUSTER_NODES = System.getProperty("plantclimate.clusterNodes", "");
+
+    /**
+     * Port, na którym serwer główny udostępnia replikom dziennik przyjętych odczytów.
+     * Wartość 0 wyłącza dziennik i replikację.
+     */
+    public static final int REPLICATION_PORT = Integer.getInteger("plantclimate.replicationPort", 0);
+
+    /**
+     * Adres serwera głównego (host:portReplikacji), który serwer śledzi jako replika.
+     * Pusty oznacza zwykły serwer główny.
+     */
+    public static final String REPLICA_OF = System.getProperty("plantclimate.replicaOf", "");
+
+    /**
+     * Liczba ostatnich wpisów dziennika replikacji przechowywanych w pamięci; repliki opóźnione
+     * o więcej wpisów doczytują je z pliku dziennika.
+     */
+    public static final int REPLICATION_BUFFER = Integer.getInteger("plantclimate.replicationBuffer", 65536);
+
+    /**
+     * Czas (ms) bez kontaktu z serwerem głównym, po którym replika sama staje się serwerem głównym.
+     * Wartość 0 oznacza awans wyłącznie poleceniem PROMOTE.
+     */
+    public static final long FAILOVER_AFTER_MS = Long.getLong("plantclimate.failoverAfterMs", 0);
+
+    /**
+     * Token, którym klient uprawnia połączenie do poleceń administracyjnych (PROMOTE, SYNC)
+     * poleceniem ADMIN token. Pusty wyłącza polecenia administracyjne klientów.
+     */
+    public static final String ADMIN_TOKEN = System.getProperty("plantclimate.adminToken", "");
+
+    /**
+     * Port, na którym serwer udostępnia skróty i odczyty swojej historii do synchronizacji
+     * z innymi serwerami. Wartość 0 wyłącza port.
+     */
+    public static final int SYNC_PORT = Integer.getInteger("plantclimate.syncPort", 0);
+
+    /**
+     * Serwery (host:portSynchronizacji rozdzielone przecinkami), z którymi serwer okresowo
+     * synchronizuje historię odczytów. Polecenie SYNC przyjmuje wyłącznie serwery z tej listy.
+     */
+    public static final String SYNC_PEERS = System.getProperty("plantclimate.syncPeers", "");
+
+    /**
+     * Odstęp (ms) między okresowymi synchronizacjami historii z serwerami {@link #SYNC_PEERS}.
+     */
+    public static final long SYNC_INTERVAL_MS = Long.getLong("plantclimate.syncIntervalMs", 300_000);
+
+    /**
+     * Adres serwera centralnego (host:portCzujników), do którego serwer przekazuje odczyty w trybie
+     * przekaźnika. Pusty oznacza zwykły serwer.
+     */
+    public static final String RELAY_TO = System.getProperty("plantclimate.relayTo", "");
+
+    /**
+     * Identyfikator przekaźnika, pod którym serwer centralny zapamiętuje potwierdzone odczyty.
+     * Pusty oznacza nazwę komputera.
+     */
+    public static final String RELAY_ID = System.getProperty("plantclimate.relayId", "");
+
+    /**
+     * Maksymalna liczba odczytów w jednej paczce wysyłanej przez przekaźnik.
+     */
+    public static final int RELAY_BATCH_SIZE = Integer.getInteger("plantclimate.relayBatchSize", 1000);
+
+    /**
+     * Czas (ms), przez który przekaźnik zbiera odczyty do niepełnej paczki przed jej wysłaniem.
+     */
+    public static final long RELAY_LINGER_MS = Long.getLong("plantclimate.relayLingerMs", 1000);
+
+    /**
+     * Długość okresu (ms), z którego przekaźnik uśrednia odczyty każdego czujnika i przekazuje
+     * jeden odczyt. Wartość 0 przekazuje każdy odczyt.
+     */
+    public static final long RELAY_AGGREGATE_MS = Long.getLong("plantclimate.relayAggregateMs", 0);
+
+    /**
+     * Port interfejsu HTTP (JSON oraz Server-Sent Events). Interfejs nie wymaga uwierzytelnienia,
+     * więc jest domyślnie wyłączony (0) i włączany przez -Dplantclimate.httpPort, np. 9200.
+     */
+    public static final int HTTP_PORT = Integer.getInteger("plantclimate.httpPort", 0);
+
+    /**
+     * Liczba wątków obsługujących żądania HTTP oraz zapisujących strumienie zdarzeń.
+     */
+    public static final int HTTP_THREADS = Integer.getInteger("plantclimate.httpThreads", 8);
+
+    /**
+     * Maksymalna liczba komunikatów oczekujących w kolejce wychodzącej jednego klienta.
+     */
+    public static final int CLIENT_QUEUE_CAPACITY = Integer.getInteger("plantclimate.clientQueueCapacity", 1000);
+
+    /**
+     * Zachowanie serwera przy przepełnieniu kolejki klienta: DISCONNECT, DROP_OLDEST lub CONFLATE.
+     */
+    public static final String CLIENT_OVERFLOW_POLICY = System.getProperty("plantclimate.clientOverflowPolicy", "CONFLATE");
+
+    /**
+     * Domyślna maksymalna częstotliwość (Hz) wysyłania scalonych aktualizacji w trybie DELIVERY CONFLATE.
+     */
+    public static final double CONFLATION_MAX_HZ = 4.0;
+
+    /**
+     * Częstotliwość (Hz) scalonych aktualizacji, o którą prosi aplikacja kliencka.
+     * Wartość 0 oznacza odbieranie każdej aktualizacji.
+     */
+    public static final double CLIENT_CONFLATION_HZ = Double.parseDouble(System.getProperty("plantclimate.conflationHz", "0"));
+
+    /**
+     * Opcje protokołu, o które aplikacja kliencka prosi serwer podczas powitania (np. "BINARY DELTA", "BINARY DELTA DEFLATE" lub "TEXT").
+     */
+    public static final String CLIENT_PROTOCOL = System.getProperty("plantclimate.protocol", "BINARY DELTA");
+
+    /**
+     * Czas oczekiwania (ms) na potwierdzenie opcji protokołu. Starsze serwery go nie wysyłają.
+     */
+    public static final int HANDSHAKE_TIMEOUT_MS = 2000;
+
+    /**
+     * Najdłuższy odstęp (ms) między próbami ponownego połączenia aplikacji klienckiej z serwerem.
+     * Kolejne próby następują po 1 s, 2 s, 4 s itd. aż do tej wartości.
+     */
+    public static final long CLIENT_RECONNECT_MAX_MS = Long.getLong("plantclimate.reconnectMaxMs", 30_000);
+
+    /**
+     * Czas oczekiwania (ms) aplikacji klienckiej na odpowiedź serwera na zapytanie asynchroniczne,
+     * po którym zwrócony {@code CompletableFuture} kończy się wyjątkiem {@code TimeoutException}.
+     */
+    public static final long CLIENT_REQUEST_TIMEOUT_MS = Long.getLong("plantclimate.requestTimeoutMs", 5000);
+
+    /**
+     * Maksymalna liczba aktualizacji oczekujących na wywołanie jednego callbacku aplikacji klienckiej.
+     * Przy pełnej kolejce nowa aktualizacja czujnika zastępuje jego oczekującą aktualizację.
+     */
+    public static final int CLIENT_CALLBACK_QUEUE_CAPACITY = Integer.getInteger("plantclimate.callbackQueueCapacity", 1000);
+
+    /**
+     * Katalog lokalnej pamięci podręcznej historii odczytów aplikacji klienckiej.
+     */
+    public static final String CLIENT_HISTORY_CACHE_DIR = System.getProperty("plantclimate.historyCacheDir", "history_cache");
+
+    /**
+     * Maksymalny łączny rozmiar (w bajtach) plików pamięci podręcznej historii aplikacji klienckiej.
+     */
+    public static final long CLIENT_HISTORY_CACHE_BYTES = Long.getLong("plantclimate.historyCacheBytes", 16L << 20);
+
+    /**
+     * Co ile aktualizacji czujnika wysyłana jest pełna aktualizacja przy kodowaniu różnicowym.
+     */
+    public static final int DELTA_KEYFRAME_INTERVAL = 30;
+
+    /**
+     * Długość taktu (ms), w którym serwer gromadzi rozgłaszane aktualizacje przed zapisaniem ich
+     * do klientów jedną partią. Dłuższy takt oznacza mniej zapisów do gniazd kosztem większego
+     * opóźnienia aktualizacji; 0 wysyła każdą aktualizację od razu.
+     */
+    public static final long BROADCAST_TICK_MS = Long.getLong("plantclimate.broadcastTickMs", 20);
+
+    /**
+     * Sposób obsługi połączeń klientów: NIO (jeden wątek selektora dla wszystkich klientów)
+     * lub THREAD (osobne wątki odczytu i zapisu dla każdego klienta).
+     */
+    public static final String CLIENT_TRANSPORT = System.getProperty("plantclimate.clientTransport", "NIO");
+
+    /**
+     * Liczba wątków wykonujących polecenia klientów przy obsłudze połączeń przez selektor.
+     */
+    public static final int CLIENT_COMMAND_THREADS = Integer.getInteger("plantclimate.clientCommandThreads", 4);
+
+    /**
+     * Maksymalna liczba odpowiedzi na zapytania (HISTORY, EXPORT) przechowywanych przez serwer
+     * do ponownego wysłania; 0 wyłącza pamięć podręczną.
+     */
+    public static final int QUERY_CACHE_ENTRIES = Integer.getInteger("plantclimate.queryCacheEntries", 256);
+
+    /**
+     * Współczynnik wygładzania średniej wykładniczej w statystykach czujników (0-1);
+     * większy szybciej reaguje na zmiany.
+     */
+    public static final double STATS_EWMA_ALPHA = Double.parseDouble(System.getProperty("plantclimate.statsEwmaAlpha", "0.1"));
+
+    /**
+     * Próg |z-score|, powyżej którego odczyt jest oznaczany jako anomalia w statystykach czujników.
+     */
+    public static final double STATS_ANOMALY_Z = Double.parseDouble(System.getProperty("plantclimate.statsAnomalyZ", "3.0"));
 
     private Config() {}
 }
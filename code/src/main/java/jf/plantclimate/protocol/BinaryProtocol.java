@@ -0,0 +1,260 @@
+package jf.plantclimate.protocol;
+
+import jf.plantclimate.data.Reading;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * Binarny protokół komunikatów serwera.
+ *
+ * <p>Każdy komunikat jest ramką postaci {@code [int długość][byte typ][treść]}, gdzie długość
+ * obejmuje bajt typu i treść. Czujniki są identyfikowane numerycznymi uchwytami przypisywanymi
+ * osobno dla każdego połączenia - ramka {@link #FRAME_SENSOR} wiąże uchwyt z identyfikatorem
+ * przed pierwszym użyciem. Odczyty zawierają czas w milisekundach epoki oraz maskę obecnych pól,
+ * a wartości są upakowane jako liczby o zmiennej długości.</p>
+ *
+ * <p>Czas odczytu jest, tak jak w protokole tekstowym, czasem lokalnym serwera bez strefy czasowej.
+ * Jest zapisywany jako liczba milisekund od 1970-01-01 00:00:00 tego czasu lokalnego, czyli tak,
+ * jakby był czasem UTC, więc nie zależy od strefy czasowej ani zmiany czasu na komputerze serwera
+ * i klienta - klient binarny wyświetla ten sam czas co klient tekstowy.</p>
+ */
+public final class BinaryProtocol {
+    /**
+     * Dowolny wiersz protokołu tekstowego zakodowany w UTF-8.
+     */
+    public static final byte FRAME_TEXT = 0;
+
+    /**
+     * Powiązanie uchwytu z identyfikatorem czujnika: varint uchwyt, UTF identyfikator.
+     */
+    public static final byte FRAME_SENSOR = 1;
+
+    /**
+     * Aktualizacja odczytu (odpowiednik UPDATE): varint uchwyt, odczyt.
+     */
+    public static final byte FRAME_UPDATE = 2;
+
+    /**
+     * Odczyt historyczny (odpowiednik DATA): varint uchwyt, odczyt.
+     */
+    public static final byte FRAME_DATA = 3;
+
+    /**
+     * Aktualizacja różnicowa względem poprzedniej aktualizacji tego czujnika: varint uchwyt, różnica.
+     * Stosowana tylko po uzgodnieniu opcji {@link ProtocolOptions#DELTA}.
+     */
+    public static final byte FRAME_DELTA = 4;
+
+    /**
+     * Liczba pól pomiarowych odczytu, w kolejności z {@link Reading}.
+     */
+    static final int FIELD_COUNT = 9;
+
+    /**
+     * Przesunięcie bitów oznaczających pola, które w aktualizacji różnicowej zmieniły się na null.
+     */
+    private static final int NULL_SHIFT = 2 * FIELD_COUNT;
+
+    /**
+     * Przesunięcie bitów oznaczających wartości zmiennoprzecinkowe zapisane jako setne części.
+     */
+    private static final int SCALED_SHIFT = FIELD_COUNT;
+
+    private static final double SCALE = 100.0;
+
+    private BinaryProtocol() {}
+
+    /**
+     * Zapisuje odczyt bez identyfikatora czujnika (przekazywanego uchwytem).
+     *
+     * @param out strumień wyjściowy
+     * @param reading odczyt
+     * @throws IOException w przypadku błędu zapisu
+     */
+    public static void writeReading(DataOutput out, Reading reading) throws IOException {
+        writeFields(out, reading, values(reading), (1 << FIELD_COUNT) - 1);
+    }
+
+    /**
+     * Zapisuje tylko pola, które zmieniły się względem poprzedniego odczytu tego czujnika.
+     * Czas jest zapisywany zawsze.
+     *
+     * @param out strumień wyjściowy
+     * @param previous odczyt, względem którego liczona jest różnica
+     * @param reading bieżący odczyt
+     * @throws IOException w przypadku błędu zapisu
+     */
+    public static void writeDelta(DataOutput out, Reading previous, Reading reading) throws IOException {
+        writeFields(out, reading, values(reading), DeltaCodec.changedMask(previous, reading));
+    }
+
+    /**
+     * Zapisuje czas, nagłówek oraz wartości pól wskazanych maską.
+     */
+    private static void writeFields(DataOutput out, Reading reading, Number[] values, int fieldMask) throws IOException {
+        long header = 0;
+        for (int i = 0; i < FIELD_COUNT; i++) {
+            if ((fieldMask & (1 << i)) == 0) continue;
+            if (values[i] == null) {
+                header |= 1L << (NULL_SHIFT + i);
+                continue;
+            }
+            header |= 1L << i;
+            if (values[i] instanceof Double d && isScalable(d)) {
+                header |= 1L << (SCALED_SHIFT + i);
+            }
+        }
+        if (fieldMask == (1 << FIELD_COUNT) - 1) {
+            header &= ~(((1L << FIELD_COUNT) - 1) << NULL_SHIFT);
+        }
+
+        writeVarLong(out, toEpochMillis(reading.time()));
+        writeVarLong(out, header);
+        for (int i = 0; i < FIELD_COUNT; i++) {
+            if ((header & (1L << i)) == 0) continue;
+            Number value = values[i];
+            if (value instanceof Integer v) {
+                writeVarLong(out, zigZag(v));
+            } else if ((header & (1L << (SCALED_SHIFT + i))) != 0) {
+                writeVarLong(out, zigZag(Math.round(value.doubleValue() * SCALE)));
+            } else {
+                out.writeDouble(value.doubleValue());
+            }
+        }
+    }
+
+    /**
+     * Odczytuje odczyt zapisany przez {@link #writeReading(DataOutput, Reading)}.
+     *
+     * @param in strumień wejściowy
+     * @param deviceId identyfikator czujnika odpowiadający uchwytowi
+     * @return odczyt
+     * @throws IOException w przypadku błędu odczytu
+     */
+    public static Reading readReading(DataInput in, String deviceId) throws IOException {
+        return readFields(in, deviceId, new Number[FIELD_COUNT]);
+    }
+
+    /**
+     * Odczytuje aktualizację różnicową zapisaną przez {@link #writeDelta(DataOutput, Reading, Reading)}.
+     *
+     * @param in strumień wejściowy
+     * @param previous poprzedni odczyt czujnika
+     * @return pełny odczyt po uwzględnieniu zmian
+     * @throws IOException w przypadku błędu odczytu
+     */
+    public static Reading readDelta(DataInput in, Reading previous) throws IOException {
+        return readFields(in, previous.deviceId(), values(previous));
+    }
+
+    /**
+     * Odczytuje czas, nagłówek i wartości, nadpisując nimi przekazane wartości bazowe.
+     */
+    private static Reading readFields(DataInput in, String deviceId, Number[] values) throws IOException {
+        LocalDateTime time = fromEpochMillis(readVarLong(in));
+        long header = readVarLong(in);
+
+        for (int i = 0; i < FIELD_COUNT; i++) {
+            if ((header & (1L << (NULL_SHIFT + i))) != 0) {
+                values[i] = null;
+            }
+            if ((header & (1L << i)) == 0) continue;
+            if (isIntegerField(i)) {
+                values[i] = (int) unZigZag(readVarLong(in));
+            } else if ((header & (1L << (SCALED_SHIFT + i))) != 0) {
+                values[i] = unZigZag(readVarLong(in)) / SCALE;
+            } else {
+                values[i] = in.readDouble();
+            }
+        }
+        return fromValues(deviceId, values, time);
+    }
+
+    /**
+     * Tworzy odczyt z wartości pomiarowych w kolejności zapisu.
+     */
+    static Reading fromValues(String deviceId, Number[] values, LocalDateTime time) {
+        return new Reading(
+                deviceId,
+                (Double) values[0],
+                (Double) values[1],
+                (Integer) values[2],
+                (Double) values[3],
+                (Integer) values[4],
+                (Integer) values[5],
+                (Integer) values[6],
+                (Integer) values[7],
+                (Double) values[8],
+                time
+        );
+    }
+
+    /**
+     * Zwraca wartości pomiarowe odczytu w kolejności zapisu.
+     */
+    static Number[] values(Reading r) {
+        return new Number[] {
+                r.temperature(), r.humidity(), r.soil(), r.lux(),
+                r.red(), r.green(), r.blue(), r.white(), r.colorTemperature()
+        };
+    }
+
+    static boolean isIntegerField(int index) {
+        return index == 2 || (index >= 4 && index <= 7);
+    }
+
+    /**
+     * Sprawdza, czy wartość da się bezstratnie zapisać jako liczbę całkowitą setnych części.
+     */
+    private static boolean isScalable(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value) || Math.abs(value) > 1e12) return false;
+        long scaled = Math.round(value * SCALE);
+        return Double.doubleToRawLongBits(scaled / SCALE) == Double.doubleToRawLongBits(value);
+    }
+
+    /**
+     * Zamienia czas lokalny na milisekundy epoki, traktując go jak czas UTC.
+     */
+    public static long toEpochMillis(LocalDateTime time) {
+        if (time == null) return 0;
+        return time.toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    /**
+     * Odwrotność {@link #toEpochMillis(LocalDateTime)}.
+     */
+    public static LocalDateTime fromEpochMillis(long millis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneOffset.UTC);
+    }
+
+    public static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    public static long readVarLong(DataInput in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return result;
+        }
+        throw new IOException("Nieprawidłowa liczba o zmiennej długości");
+    }
+
+    public static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    public static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,109 @@
+package jf.plantclimate.protocol;
+
+import jf.plantclimate.data.Reading;
+import jf.plantclimate.util.DateFormatter;
+import jf.plantclimate.util.ReadingParser;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Objects;
+
+/**
+ * Kodowanie różnicowe aktualizacji odczytów.
+ *
+ * <p>Po uzgodnieniu opcji {@link ProtocolOptions#DELTA} serwer przydziela każdemu czujnikowi
+ * uchwyt w obrębie połączenia i wysyła tylko pola zmienione od ostatniej aktualizacji dostarczonej
+ * temu klientowi. Co {@code keyframeInterval} aktualizacji danego czujnika wysyłana jest pełna
+ * aktualizacja, od której klient może odtworzyć stan po utracie synchronizacji.</p>
+ *
+ * <p>Postać tekstowa:</p>
+ * <ul>
+ *   <li>{@code HANDLE <uchwyt> <sensorId>} - powiązanie uchwytu z czujnikiem</li>
+ *   <li>{@code DELTA <uchwyt>,<maska szesnastkowo>,<zmienione wartości...>,<czas>}</li>
+ * </ul>
+ */
+public final class DeltaCodec {
+    private static final DateTimeFormatter TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private DeltaCodec() {}
+
+    /**
+     * Zwraca maskę pól, których wartość różni się między odczytami.
+     *
+     * @param previous poprzedni odczyt
+     * @param reading bieżący odczyt
+     * @return maska bitowa zmienionych pól w kolejności z {@link Reading}
+     */
+    public static int changedMask(Reading previous, Reading reading) {
+        Number[] before = BinaryProtocol.values(previous);
+        Number[] after = BinaryProtocol.values(reading);
+        int mask = 0;
+        for (int i = 0; i < BinaryProtocol.FIELD_COUNT; i++) {
+            if (!Objects.equals(before[i], after[i])) {
+                mask |= 1 << i;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Formatuje tekstową aktualizację różnicową.
+     *
+     * @param handle uchwyt czujnika
+     * @param previous poprzedni odczyt dostarczony klientowi
+     * @param reading bieżący odczyt
+     * @return wiersz DELTA
+     */
+    public static String formatText(int handle, Reading previous, Reading reading) {
+        int mask = changedMask(previous, reading);
+        Number[] values = BinaryProtocol.values(reading);
+
+        StringBuilder sb = new StringBuilder("DELTA ");
+        sb.append(handle).append(',').append(Integer.toHexString(mask));
+        for (int i = 0; i < BinaryProtocol.FIELD_COUNT; i++) {
+            if ((mask & (1 << i)) != 0) {
+                sb.append(',').append(values[i] != null ? values[i].toString() : "null");
+            }
+        }
+        sb.append(',').append(DateFormatter.format(reading.time()));
+        return sb.toString();
+    }
+
+    /**
+     * Odtwarza pełny odczyt z tekstowej aktualizacji różnicowej.
+     *
+     * @param data treść wiersza po słowie DELTA, bez uchwytu
+     * @param previous poprzedni odczyt czujnika
+     * @return pełny odczyt lub null, jeśli dane są nieprawidłowe
+     */
+    public static Reading parseText(String data, Reading previous) {
+        String[] parts = data.split(",");
+        if (parts.length < 2) return null;
+
+        try {
+            int mask = Integer.parseInt(parts[0].trim(), 16);
+            Number[] values = BinaryProtocol.values(previous);
+            int index = 1;
+            for (int i = 0; i < BinaryProtocol.FIELD_COUNT; i++) {
+                if ((mask & (1 << i)) == 0) continue;
+                if (index >= parts.length - 1) return null;
+                String value = parts[index++];
+                if (BinaryProtocol.isIntegerField(i)) {
+                    values[i] = ReadingParser.parseInteger(value);
+                } else {
+                    values[i] = ReadingParser.parseDouble(value);
+                }
+            }
+
+            LocalDateTime time;
+            try {
+                time = LocalDateTime.parse(parts[parts.length - 1].trim(), TIME_FORMATTER);
+            } catch (Exception e) {
+                time = LocalDateTime.now();
+            }
+            return BinaryProtocol.fromValues(previous.deviceId(), values, time);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
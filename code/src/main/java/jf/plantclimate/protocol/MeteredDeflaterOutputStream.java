@@ -0,0 +1,84 @@
+package jf.plantclimate.protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Strumień kompresujący dane połączenia algorytmem Deflate.
+ * Każde opróżnienie bufora wykonuje SYNC_FLUSH, dzięki czemu odbiorca może od razu
+ * zdekompresować wysłane komunikaty. Zlicza bajty przed i po kompresji oraz czas procesora
+ * zużyty na kompresję.
+ */
+public class MeteredDeflaterOutputStream extends DeflaterOutputStream {
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private volatile long cpuNanos;
+    private volatile boolean released;
+    private long finalUncompressed;
+    private long finalCompressed;
+
+    public MeteredDeflaterOutputStream(OutputStream out) {
+        super(out, new Deflater(Deflater.DEFAULT_COMPRESSION), 8192, true);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        long start = cpuTime();
+        try {
+            super.write(b, off, len);
+        } finally {
+            cpuNanos += cpuTime() - start;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        long start = cpuTime();
+        try {
+            super.flush();
+        } finally {
+            cpuNanos += cpuTime() - start;
+        }
+    }
+
+    /**
+     * Zwalnia natywne zasoby kompresora. Wywoływane przez wątek zapisujący po zakończeniu pracy.
+     */
+    public synchronized void release() {
+        if (released) return;
+        finalUncompressed = def.getBytesRead();
+        finalCompressed = def.getBytesWritten();
+        released = true;
+        def.end();
+    }
+
+    public synchronized long getUncompressedBytes() {
+        return released ? finalUncompressed : def.getBytesRead();
+    }
+
+    public synchronized long getCompressedBytes() {
+        return released ? finalCompressed : def.getBytesWritten();
+    }
+
+    public long getCpuNanos() {
+        return cpuNanos;
+    }
+
+    /**
+     * Zwraca stopień kompresji (rozmiar przed kompresją / rozmiar po kompresji).
+     *
+     * @return stopień kompresji lub 0, jeśli nic jeszcze nie wysłano
+     */
+    public double getRatio() {
+        long compressed = getCompressedBytes();
+        return compressed == 0 ? 0 : (double) getUncompressedBytes() / compressed;
+    }
+
+    static long cpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+}
@@ -0,0 +1,76 @@
+package jf.plantclimate.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Strumień dekompresujący dane połączenia skompresowane przez {@link MeteredDeflaterOutputStream}.
+ * Zlicza bajty przed i po dekompresji oraz czas procesora zużyty na dekompresję.
+ */
+public class MeteredInflaterInputStream extends InflaterInputStream {
+    private volatile long cpuNanos;
+    private volatile boolean released;
+    private long finalCompressed;
+    private long finalUncompressed;
+
+    public MeteredInflaterInputStream(InputStream in) {
+        super(in, new Inflater(), 8192);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        long start = MeteredDeflaterOutputStream.cpuTime();
+        try {
+            return super.read(b, off, len);
+        } finally {
+            cpuNanos += MeteredDeflaterOutputStream.cpuTime() - start;
+        }
+    }
+
+    /**
+     * Zwraca liczbę bajtów dostępnych bez blokowania w przybliżeniu pozwalającym czytelnikom
+     * znakowym zatrzymać się po ostatnim kompletnym komunikacie. Domyślna implementacja zwraca 1
+     * aż do końca strumienia, przez co {@link java.io.InputStreamReader} blokowałby się
+     * w oczekiwaniu na kolejne dane.
+     */
+    @Override
+    public synchronized int available() throws IOException {
+        if (released || inf.finished()) return 0;
+        return inf.needsInput() ? in.available() : 1;
+    }
+
+    /**
+     * Zwalnia natywne zasoby dekompresora.
+     */
+    public synchronized void release() {
+        if (released) return;
+        finalCompressed = inf.getBytesRead();
+        finalUncompressed = inf.getBytesWritten();
+        released = true;
+        inf.end();
+    }
+
+    public synchronized long getCompressedBytes() {
+        return released ? finalCompressed : inf.getBytesRead();
+    }
+
+    public synchronized long getUncompressedBytes() {
+        return released ? finalUncompressed : inf.getBytesWritten();
+    }
+
+    public long getCpuNanos() {
+        return cpuNanos;
+    }
+
+    /**
+     * Zwraca stopień kompresji (rozmiar po dekompresji / rozmiar odebrany).
+     *
+     * @return stopień kompresji lub 0, jeśli nic jeszcze nie odebrano
+     */
+    public double getRatio() {
+        long compressed = getCompressedBytes();
+        return compressed == 0 ? 0 : (double) getUncompressedBytes() / compressed;
+    }
+}
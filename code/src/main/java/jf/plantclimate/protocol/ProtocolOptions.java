@@ -0,0 +1,78 @@
+package jf.plantclimate.protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Opcje protokołu uzgadniane podczas powitania między klientem a serwerem.
+ * Klient dopisuje żądane opcje po swoim identyfikatorze, a serwer potwierdza
+ * wybrane opcje wierszem {@code PROTOCOL}. Klienci, którzy nie podają opcji,
+ * korzystają z protokołu tekstowego.
+ *
+ * @param binary czy komunikaty serwera są wysyłane w ramkach binarnych
+ * @param delta czy aktualizacje odczytów zawierają tylko pola zmienione od poprzedniej aktualizacji
+ * @param compressed czy dane wysyłane przez serwer po potwierdzeniu opcji są kompresowane algorytmem Deflate
+ */
+public record ProtocolOptions(boolean binary, boolean delta, boolean compressed) {
+    public static final String BINARY = "BINARY";
+    public static final String DELTA = "DELTA";
+    public static final String DEFLATE = "DEFLATE";
+    public static final String TEXT_ONLY = "TEXT";
+
+    /**
+     * Opcje protokołu tekstowego, używane przez starszych klientów.
+     */
+    public static final ProtocolOptions TEXT = new ProtocolOptions(false, false, false);
+
+    /**
+     * Tworzy opcje na podstawie listy słów kluczowych (wielkość liter nie ma znaczenia).
+     * Nieznane słowa są pomijane.
+     *
+     * @param tokens słowa kluczowe opcji
+     * @return opcje protokołu
+     */
+    public static ProtocolOptions fromTokens(String... tokens) {
+        boolean binary = false;
+        boolean delta = false;
+        boolean compressed = false;
+        for (String token : tokens) {
+            if (token == null) continue;
+            switch (token.trim().toUpperCase()) {
+                case BINARY -> binary = true;
+                case DELTA -> delta = true;
+                case DEFLATE -> compressed = true;
+                default -> { }
+            }
+        }
+        return new ProtocolOptions(binary, delta, compressed);
+    }
+
+    /**
+     * Tworzy opcje na podstawie słów kluczowych rozdzielonych spacjami lub przecinkami.
+     *
+     * @param spec specyfikacja opcji, np. "BINARY DELTA DEFLATE"
+     * @return opcje protokołu
+     */
+    public static ProtocolOptions parse(String spec) {
+        if (spec == null || spec.isBlank()) return TEXT;
+        return fromTokens(spec.trim().split("[\\s,]+"));
+    }
+
+    /**
+     * Zwraca opcje w postaci przesyłanej podczas powitania.
+     *
+     * @return słowa kluczowe rozdzielone spacjami lub "TEXT" dla protokołu tekstowego
+     */
+    public String toHandshake() {
+        List<String> tokens = new ArrayList<>();
+        if (binary) tokens.add(BINARY);
+        if (delta) tokens.add(DELTA);
+        if (compressed) tokens.add(DEFLATE);
+        return tokens.isEmpty() ? TEXT_ONLY : String.join(" ", tokens);
+    }
+
+    @Override
+    public String toString() {
+        return toHandshake();
+    }
+}
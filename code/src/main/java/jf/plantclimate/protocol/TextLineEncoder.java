@@ -0,0 +1,370 @@
+package jf.plantclimate.protocol;
+
+import jf.plantclimate.data.Reading;
+import jf.plantclimate.util.DateFormatter;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+
+/**
+ * Koduje odczyty do wierszy protokołu tekstowego (UPDATE, DATA oraz wiersze eksportu CSV)
+ * bezpośrednio do wielokrotnie używanej tablicy bajtów.
+ *
+ * <p>Wynik jest identyczny bajt w bajt z formatowaniem przez {@code String.format}, {@code toString()}
+ * wartości i {@code DateFormatter}, ale bez obiektów pośrednich: liczby całkowite i czas są zapisywane
+ * cyfra po cyfrze, a czas w obrębie tej samej sekundy jest kopiowany z poprzedniego wywołania.
+ * Liczby zmiennoprzecinkowe o co najwyżej czterech cyfrach po przecinku (typowe odczyty czujników)
+ * są zapisywane bez {@link Double#toString(double)}; pozostałe wartości korzystają z tej metody.</p>
+ *
+ * <p>Kodowane są tylko znaki ASCII. Jeśli identyfikator czujnika zawiera inne znaki,
+ * {@link #isAscii()} zwraca false i wywołujący powinien użyć zwykłego formatowania.
+ * Obiekt nie jest bezpieczny wątkowo - każdy wątek powinien używać własnej instancji.</p>
+ */
+public final class TextLineEncoder {
+    private static final long[] POW10 = {1, 10, 100, 1_000, 10_000};
+    private static final int MAX_FRACTION_DIGITS = POW10.length - 1;
+    private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+    private static final int TIME_LENGTH = 19;
+    private static final ThreadLocal<TextLineEncoder> LOCAL = ThreadLocal.withInitial(TextLineEncoder::new);
+    private static final boolean DEFAULT_CHARSET_ASCII = isDefaultCharsetAscii();
+
+    private byte[] buf = new byte[128];
+    private int len;
+    private boolean ascii;
+
+    private final byte[] cachedTime = new byte[TIME_LENGTH];
+    private LocalDateTime cachedTimeKey;
+
+    /**
+     * Zwraca koder należący do bieżącego wątku.
+     *
+     * @return koder bieżącego wątku
+     */
+    public static TextLineEncoder local() {
+        return LOCAL.get();
+    }
+
+    /**
+     * Sprawdza, czy domyślne kodowanie znaków zapisuje znaki ASCII tak jak ten koder,
+     * czyli czy {@link #array()} jest równoważne {@code toString().getBytes()}.
+     *
+     * @return true dla kodowań zgodnych z ASCII (np. UTF-8, ISO-8859-2)
+     */
+    public static boolean matchesDefaultCharset() {
+        return DEFAULT_CHARSET_ASCII;
+    }
+
+    private static boolean isDefaultCharsetAscii() {
+        byte[] expected = new byte[128];
+        char[] chars = new char[128];
+        for (int i = 0; i < 128; i++) {
+            expected[i] = (byte) i;
+            chars[i] = (char) i;
+        }
+        return Arrays.equals(expected, new String(chars).getBytes());
+    }
+
+    /**
+     * Koduje wiersz aktualizacji: {@code UPDATE sensorId,wartości...,czas}.
+     *
+     * @param sensorId identyfikator czujnika
+     * @param reading odczyt
+     * @return ten obiekt
+     */
+    public TextLineEncoder update(String sensorId, Reading reading) {
+        reset();
+        appendAscii("UPDATE ");
+        appendString(sensorId);
+        appendValues(reading);
+        append(',');
+        appendTime(reading.time());
+        return this;
+    }
+
+    /**
+     * Koduje wiersz odczytu historycznego: {@code DATA deviceId,wartości...,czas}.
+     *
+     * @param reading odczyt
+     * @return ten obiekt
+     */
+    public TextLineEncoder data(Reading reading) {
+        reset();
+        appendAscii("DATA ");
+        appendString(reading.deviceId());
+        appendValues(reading);
+        append(',');
+        appendTime(reading.time());
+        return this;
+    }
+
+    /**
+     * Koduje wiersz eksportu CSV: {@code czas,wartości...}.
+     *
+     * @param reading odczyt
+     * @return ten obiekt
+     */
+    public TextLineEncoder export(Reading reading) {
+        reset();
+        appendTime(reading.time());
+        appendValues(reading);
+        return this;
+    }
+
+    /**
+     * Dopisuje separator wierszy systemu.
+     *
+     * @return ten obiekt
+     */
+    public TextLineEncoder newLine() {
+        appendString(System.lineSeparator());
+        return this;
+    }
+
+    /**
+     * Sprawdza, czy zakodowany wiersz zawiera wyłącznie znaki ASCII i może być użyty.
+     *
+     * @return false, jeśli wiersz zawierał znaki spoza ASCII
+     */
+    public boolean isAscii() {
+        return ascii;
+    }
+
+    /**
+     * Zwraca tablicę z zakodowanym wierszem; ważne są pierwsze {@link #length()} bajtów.
+     * Zawartość zmienia się przy kolejnym kodowaniu.
+     *
+     * @return bufor kodera
+     */
+    public byte[] array() {
+        return buf;
+    }
+
+    /**
+     * @return liczba bajtów zakodowanego wiersza
+     */
+    public int length() {
+        return len;
+    }
+
+    /**
+     * Zwraca kopię zakodowanego wiersza.
+     *
+     * @return bajty wiersza
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, len);
+    }
+
+    /**
+     * Zwraca zakodowany wiersz jako tekst.
+     *
+     * @return wiersz
+     */
+    @Override
+    public String toString() {
+        return new String(buf, 0, len, StandardCharsets.ISO_8859_1);
+    }
+
+    private void reset() {
+        len = 0;
+        ascii = true;
+    }
+
+    private void appendValues(Reading r) {
+        append(',');
+        appendDouble(r.temperature());
+        append(',');
+        appendDouble(r.humidity());
+        append(',');
+        appendInt(r.soil());
+        append(',');
+        appendDouble(r.lux());
+        append(',');
+        appendInt(r.red());
+        append(',');
+        appendInt(r.green());
+        append(',');
+        appendInt(r.blue());
+        append(',');
+        appendInt(r.white());
+        append(',');
+        appendDouble(r.colorTemperature());
+    }
+
+    private void append(char c) {
+        ensure(1);
+        buf[len++] = (byte) c;
+    }
+
+    private void appendAscii(String s) {
+        ensure(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buf[len++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void appendString(String s) {
+        if (s == null) {
+            appendNull();
+            return;
+        }
+        ensure(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                ascii = false;
+                c = '?';
+            }
+            buf[len++] = (byte) c;
+        }
+    }
+
+    private void appendNull() {
+        ensure(NULL.length);
+        System.arraycopy(NULL, 0, buf, len, NULL.length);
+        len += NULL.length;
+    }
+
+    private void appendInt(Integer value) {
+        if (value == null) {
+            appendNull();
+            return;
+        }
+        appendLong(value);
+    }
+
+    private void appendLong(long v) {
+        if (v == Long.MIN_VALUE) {
+            appendAscii(Long.toString(v));
+            return;
+        }
+        ensure(20);
+        if (v < 0) {
+            buf[len++] = '-';
+            v = -v;
+        }
+        int start = len;
+        do {
+            buf[len++] = (byte) ('0' + (int) (v % 10));
+            v /= 10;
+        } while (v != 0);
+        reverse(start, len - 1);
+    }
+
+    /**
+     * Zapisuje liczbę tak jak {@link Double#toString(double)}. Szybka ścieżka obejmuje wartości
+     * z zakresu zapisu dziesiętnego tej metody (od 10^-3 do 10^7), które są dokładnie najbliższą
+     * liczbą double do ułamka o co najwyżej czterech cyfrach po przecinku - wtedy najkrótszy zapis
+     * dziesiętny jest właśnie tym ułamkiem.
+     */
+    private void appendDouble(Double value) {
+        if (value == null) {
+            appendNull();
+            return;
+        }
+        double v = value;
+        if (v == 0) {
+            appendAscii(Double.doubleToRawLongBits(v) < 0 ? "-0.0" : "0.0");
+            return;
+        }
+        double abs = Math.abs(v);
+        if (abs >= 1e-3 && abs < 1e7) {
+            for (int digits = 0; digits <= MAX_FRACTION_DIGITS; digits++) {
+                long scale = POW10[digits];
+                long m = Math.round(abs * scale);
+                if ((double) m / scale == abs) {
+                    appendFixed(v < 0, m, digits);
+                    return;
+                }
+            }
+        }
+        appendAscii(Double.toString(v));
+    }
+
+    /**
+     * Zapisuje liczbę {@code m / 10^digits} z co najmniej jedną cyfrą po przecinku.
+     */
+    private void appendFixed(boolean negative, long m, int digits) {
+        ensure(24);
+        if (negative) {
+            buf[len++] = '-';
+        }
+        if (digits == 0) {
+            appendLong(m);
+            buf[len++] = '.';
+            buf[len++] = '0';
+            return;
+        }
+        long scale = POW10[digits];
+        appendLong(m / scale);
+        buf[len++] = '.';
+        long fraction = m % scale;
+        for (long div = scale / 10; div > 0; div /= 10) {
+            buf[len++] = (byte) ('0' + (int) (fraction / div));
+            fraction %= div;
+        }
+    }
+
+    /**
+     * Zapisuje czas w formacie {@code yyyy-MM-dd HH:mm:ss}. Czas w tej samej sekundzie co
+     * poprzednio zapisany jest kopiowany z pamięci podręcznej.
+     */
+    private void appendTime(LocalDateTime time) {
+        if (time == null) {
+            appendNull();
+            return;
+        }
+        LocalDateTime key = cachedTimeKey;
+        if (key == null || time.getSecond() != key.getSecond() || time.getMinute() != key.getMinute()
+                || time.getHour() != key.getHour() || !time.toLocalDate().equals(key.toLocalDate())) {
+            int year = time.getYear();
+            if (year < 1 || year > 9999) {
+                appendAscii(DateFormatter.format(time));
+                return;
+            }
+            formatTime(time, cachedTime);
+            cachedTimeKey = time;
+        }
+        ensure(TIME_LENGTH);
+        System.arraycopy(cachedTime, 0, buf, len, TIME_LENGTH);
+        len += TIME_LENGTH;
+    }
+
+    private static void formatTime(LocalDateTime t, byte[] out) {
+        int year = t.getYear();
+        out[0] = (byte) ('0' + year / 1000);
+        out[1] = (byte) ('0' + year / 100 % 10);
+        out[2] = (byte) ('0' + year / 10 % 10);
+        out[3] = (byte) ('0' + year % 10);
+        out[4] = '-';
+        twoDigits(out, 5, t.getMonthValue());
+        out[7] = '-';
+        twoDigits(out, 8, t.getDayOfMonth());
+        out[10] = ' ';
+        twoDigits(out, 11, t.getHour());
+        out[13] = ':';
+        twoDigits(out, 14, t.getMinute());
+        out[16] = ':';
+        twoDigits(out, 17, t.getSecond());
+    }
+
+    private static void twoDigits(byte[] out, int pos, int value) {
+        out[pos] = (byte) ('0' + value / 10);
+        out[pos + 1] = (byte) ('0' + value % 10);
+    }
+
+    private void reverse(int from, int to) {
+        while (from < to) {
+            byte tmp = buf[from];
+            buf[from++] = buf[to];
+            buf[to--] = tmp;
+        }
+    }
+
+    private void ensure(int extra) {
+        if (len + extra > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+        }
+    }
+}
@@ -0,0 +1,479 @@
+package jf.plantclimate.server;
+
+import jf.plantclimate.data.Config;
+import jf.plantclimate.data.Reading;
+import jf.plantclimate.util.DateFormatter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reguły alarmów sprawdzane przez serwer przy każdym odczycie czujnika.
+ *
+ * <p>Reguła określa wielkość (np. wilgotność gleby), czujniki, których dotyczy (jeden czujnik,
+ * pomieszczenie z rejestru czujników lub wszystkie), warunek (poniżej progu, powyżej progu lub poza
+ * przedziałem), histerezę oraz minimalny czas trwania. Alarm jest zgłaszany, gdy warunek jest
+ * spełniony nieprzerwanie co najmniej przez minimalny czas, a odwoływany dopiero wtedy, gdy wartość
+ * wróci za próg o co najmniej histerezę - dzięki temu wartość wahająca się przy progu nie powoduje
+ * serii alarmów. Czas trwania jest sprawdzany przy kolejnych odczytach, bez osobnych zegarów.</p>
+ *
+ * <p>Reguły są zorganizowane w niezmiennym indeksie według czujnika i pomieszczenia, więc odczyt
+ * sprawdza tylko reguły, które go dotyczą. Stan alarmów jest przechowywany osobno dla każdego
+ * czujnika. Komunikaty ALERT są wysyłane tylko przy zmianie stanu (zgłoszenie, odwołanie),
+ * wyłącznie do klientów, którzy je zasubskrybowali.</p>
+ *
+ * <p>Reguły są zapisywane na dysku przy każdej zmianie.</p>
+ */
+final class AlertRules {
+    /**
+     * Plik reguł w katalogu danych czujników.
+     */
+    private static final Path FILE = Paths.get(Config.DATA_DIR, "alerts.rules");
+
+    private static final Map<Integer, Rule> rules = new TreeMap<>();
+    private static int nextId = 1;
+    private static volatile Index index = Index.EMPTY;
+
+    private static final Map<String, SensorAlerts> states = new ConcurrentHashMap<>();
+
+    /**
+     * Chroni zbiór subskrybentów i listę aktywnych alarmów, aby nowy subskrybent otrzymał
+     * stan zgodny z kolejnymi komunikatami.
+     */
+    private static final Object subscriptionLock = new Object();
+    private static final Set<ClientConnection> subscribers = new HashSet<>();
+    private static final Map<String, String> active = new TreeMap<>();
+
+    private AlertRules() {
+    }
+
+    /**
+     * Warunek reguły alarmu.
+     */
+    enum Condition {
+        /** Wartość poniżej progu. */
+        BELOW,
+        /** Wartość powyżej progu. */
+        ABOVE,
+        /** Wartość poza przedziałem. */
+        OUTSIDE
+    }
+
+    /**
+     * Reguła alarmu.
+     *
+     * @param id identyfikator reguły
+     * @param metric sprawdzana wielkość
+     * @param sensorId czujnik, którego dotyczy reguła, lub null
+     * @param room pomieszczenie, którego dotyczy reguła, lub null
+     * @param condition warunek
+     * @param low dolny próg (BELOW, OUTSIDE)
+     * @param high górny próg (ABOVE, OUTSIDE)
+     * @param hysteresis o ile wartość musi wrócić za próg, aby odwołać alarm
+     * @param minDurationSec minimalny czas spełnienia warunku w sekundach
+     */
+    record Rule(int id, Metric metric, String sensorId, String room, Condition condition,
+                double low, double high, double hysteresis, long minDurationSec) {
+
+        boolean violated(double v) {
+            return switch (condition) {
+                case BELOW -> v < low;
+                case ABOVE -> v > high;
+                case OUTSIDE -> v < low || v > high;
+            };
+        }
+
+        boolean recovered(double v) {
+            return switch (condition) {
+                case BELOW -> v >= low + hysteresis;
+                case ABOVE -> v <= high - hysteresis;
+                case OUTSIDE -> v >= low + hysteresis && v <= high - hysteresis;
+            };
+        }
+
+        /**
+         * Zwraca definicję reguły w formacie polecenia ALERT_ADD:
+         * wielkość,selektor,warunek,histereza,minimalnyCzasSek
+         */
+        String toSpec() {
+            String selector = sensorId != null ? "SENSOR:" + sensorId : room != null ? "ROOM:" + room : "*";
+            String threshold = switch (condition) {
+                case BELOW -> "<" + formatNumber(low);
+                case ABOVE -> ">" + formatNumber(high);
+                case OUTSIDE -> formatNumber(low) + ".." + formatNumber(high);
+            };
+            return metric.key() + "," + selector + "," + threshold + "," + formatNumber(hysteresis) + "," + minDurationSec;
+        }
+
+        /**
+         * Zwraca regułę w formacie danych komunikatu ALERT_RULE: id,definicja
+         */
+        String toWire() {
+            return id + "," + toSpec();
+        }
+    }
+
+    /**
+     * Niezmienny indeks reguł; zastępowany w całości przy każdej zmianie reguł.
+     */
+    private record Index(Map<String, List<Rule>> bySensor, Map<String, List<Rule>> byRoom, List<Rule> all) {
+        static final Index EMPTY = new Index(Map.of(), Map.of(), List.of());
+    }
+
+    /**
+     * Stan alarmu dla pary (reguła, czujnik): od kiedy warunek jest spełniony i czy alarm zgłoszono.
+     */
+    private static final class AlertState {
+        final LocalDateTime since;
+        boolean firing;
+
+        AlertState(LocalDateTime since) {
+            this.since = since;
+        }
+    }
+
+    /**
+     * Stany alarmów jednego czujnika według identyfikatora reguły.
+     */
+    private static final class SensorAlerts {
+        final Map<Integer, AlertState> byRule = new HashMap<>();
+    }
+
+    /**
+     * Wczytuje reguły z pliku. Brak pliku oznacza brak reguł.
+     */
+    static synchronized void load() {
+        try (BufferedReader br = Files.newBufferedReader(FILE, StandardCharsets.UTF_8)) {
+            String line = br.readLine();
+            if (line == null || !line.startsWith("nextId,")) {
+                System.err.println("Nieprawidłowy nagłówek pliku reguł alarmów: " + line);
+                return;
+            }
+            int fileNextId = Integer.parseInt(line.substring(7).trim());
+            while ((line = br.readLine()) != null) {
+                String[] parts = line.split(",", 2);
+                if (parts.length < 2) continue;
+                Rule rule = parse(Integer.parseInt(parts[0]), parts[1]);
+                rules.put(rule.id(), rule);
+            }
+            nextId = Math.max(fileNextId, rules.isEmpty() ? 1 : Collections.max(rules.keySet()) + 1);
+            rebuildIndex();
+            System.out.println("Wczytano " + rules.size() + " reguł alarmów");
+        } catch (NoSuchFileException e) {
+            // reguły nie zostały jeszcze zapisane
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Błąd wczytywania reguł alarmów: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Dodaje regułę alarmu.
+     *
+     * @param spec definicja w formacie: wielkość,selektor,warunek[,histereza[,minimalnyCzasSek]],
+     *             gdzie selektor to SENSOR:id, ROOM:nazwa lub *, a warunek to &lt;próg, &gt;próg lub dolny..górny
+     * @return dodana reguła
+     * @throws IllegalArgumentException przy nieprawidłowej definicji
+     */
+    static synchronized Rule add(String spec) {
+        Rule rule = parse(nextId, spec);
+        nextId++;
+        rules.put(rule.id(), rule);
+        rebuildIndex();
+        save();
+        System.out.println("Dodano regułę alarmu " + rule.toWire());
+        return rule;
+    }
+
+    /**
+     * Usuwa regułę alarmu wraz z jej stanem. Subskrybenci otrzymują komunikat
+     * ALERT_RULE_REMOVED, aby mogli usunąć aktywne alarmy tej reguły.
+     *
+     * @param id identyfikator reguły
+     * @return true, jeśli reguła istniała
+     */
+    static synchronized boolean remove(int id) {
+        if (rules.remove(id) == null) return false;
+        rebuildIndex();
+        save();
+        for (SensorAlerts alerts : states.values()) {
+            synchronized (alerts) {
+                alerts.byRule.remove(id);
+            }
+        }
+        synchronized (subscriptionLock) {
+            active.keySet().removeIf(key -> key.startsWith(id + ","));
+            publish(OutboundMessage.line("ALERT_RULE_REMOVED " + id, false));
+        }
+        System.out.println("Usunięto regułę alarmu " + id);
+        return true;
+    }
+
+    /**
+     * Zwraca wszystkie reguły.
+     *
+     * @return reguły posortowane według identyfikatora
+     */
+    static synchronized List<Rule> list() {
+        return new ArrayList<>(rules.values());
+    }
+
+    /**
+     * Zwraca aktywne (zgłoszone i nieodwołane) alarmy jako wiersze komunikatów ALERT.
+     *
+     * @return wiersze aktywnych alarmów
+     */
+    static List<String> activeAlerts() {
+        synchronized (subscriptionLock) {
+            return new ArrayList<>(active.values());
+        }
+    }
+
+    /**
+     * Zapisuje połączenie jako odbiorcę alarmów i wysyła mu aktywne alarmy.
+     *
+     * @param conn połączenie klienta
+     */
+    static void subscribe(ClientConnection conn) {
+        synchronized (subscriptionLock) {
+            subscribers.add(conn);
+            List<OutboundMessage> messages = new ArrayList<>(active.size() + 1);
+            messages.add(OutboundMessage.line("ALERT_SUBSCRIBED " + active.size(), false));
+            for (String line : active.values()) {
+                messages.add(OutboundMessage.line(line, false));
+            }
+            conn.offerAll(messages);
+        }
+    }
+
+    /**
+     * Usuwa połączenie z odbiorców alarmów.
+     *
+     * @param conn połączenie klienta
+     * @return true, jeśli połączenie subskrybowało alarmy
+     */
+    static boolean unsubscribe(ClientConnection conn) {
+        synchronized (subscriptionLock) {
+            return subscribers.remove(conn);
+        }
+    }
+
+    /**
+     * Sprawdza reguły dotyczące czujnika odczytu i rozsyła zmiany stanu alarmów.
+     * Koszt jest proporcjonalny do liczby reguł dotyczących czujnika.
+     *
+     * @param reading nowy odczyt
+     */
+    static void evaluate(Reading reading) {
+        if (index == Index.EMPTY) return;
+        String sensorId = reading.deviceId();
+        LocalDateTime time = reading.time() != null ? reading.time() : LocalDateTime.now();
+        SensorAlerts alerts = states.computeIfAbsent(sensorId, k -> new SensorAlerts());
+        synchronized (alerts) {
+            // indeks odczytany pod blokadą stanu czujnika: usunięcie reguły czyści jej stan po podmianie indeksu
+            Index idx = index;
+            for (Rule rule : idx.bySensor().getOrDefault(sensorId, List.of())) {
+                evaluate(rule, reading, time, alerts);
+            }
+            if (!idx.byRoom().isEmpty()) {
+                SensorRegistry.SensorMetadata meta = SensorRegistry.get(sensorId);
+                if (meta != null && !meta.room().isEmpty()) {
+                    for (Rule rule : idx.byRoom().getOrDefault(key(meta.room()), List.of())) {
+                        evaluate(rule, reading, time, alerts);
+                    }
+                }
+            }
+            for (Rule rule : idx.all()) {
+                evaluate(rule, reading, time, alerts);
+            }
+        }
+    }
+
+    private static void evaluate(Rule rule, Reading reading, LocalDateTime time, SensorAlerts alerts) {
+        Number value = rule.metric().value(reading);
+        if (value == null) return;
+        double v = value.doubleValue();
+        AlertState state = alerts.byRule.get(rule.id());
+
+        if (state == null || !state.firing) {
+            if (!rule.violated(v)) {
+                if (state != null) alerts.byRule.remove(rule.id());
+                return;
+            }
+            if (state == null) {
+                state = new AlertState(time);
+                alerts.byRule.put(rule.id(), state);
+            }
+            if (Duration.between(state.since, time).getSeconds() >= rule.minDurationSec()) {
+                state.firing = true;
+                emit(rule, reading.deviceId(), value, true, time);
+            }
+        } else if (rule.recovered(v)) {
+            alerts.byRule.remove(rule.id());
+            emit(rule, reading.deviceId(), value, false, time);
+        }
+    }
+
+    /**
+     * Rozsyła zmianę stanu alarmu do subskrybentów i aktualizuje listę aktywnych alarmów.
+     * Format: ALERT idReguły,sensorId,wielkość,wartość,FIRING|CLEARED,czas
+     */
+    private static void emit(Rule rule, String sensorId, Number value, boolean firing, LocalDateTime time) {
+        String key = rule.id() + "," + sensorId;
+        String line = "ALERT " + key + "," + rule.metric().key() + "," + value + ","
+                + (firing ? "FIRING" : "CLEARED") + "," + DateFormatter.format(time);
+        synchronized (subscriptionLock) {
+            if (firing) {
+                active.put(key, line);
+            } else {
+                active.remove(key);
+            }
+            publish(OutboundMessage.line(line, false));
+        }
+        System.out.println((firing ? "Alarm: " : "Odwołano alarm: ") + line.substring(6));
+    }
+
+    /**
+     * Wysyła komunikat do subskrybentów. Wywoływana z zajętym {@link #subscriptionLock}.
+     * Komunikaty alarmów nie są usuwane z przepełnionej kolejki.
+     */
+    private static void publish(OutboundMessage message) {
+        for (ClientConnection conn : subscribers) {
+            conn.offer(message);
+        }
+    }
+
+    /**
+     * Tworzy regułę z definicji w formacie polecenia ALERT_ADD.
+     */
+    private static Rule parse(int id, String spec) {
+        String[] parts = spec.split(",");
+        if (parts.length < 3 || parts.length > 5) {
+            throw new IllegalArgumentException("Nieprawidłowy format reguły: " + spec);
+        }
+        Metric metric = Metric.parse(parts[0]);
+
+        String selector = parts[1].trim();
+        String sensorId = null;
+        String room = null;
+        if (selector.regionMatches(true, 0, "SENSOR:", 0, 7) && selector.length() > 7) {
+            sensorId = selector.substring(7).trim();
+        } else if (selector.regionMatches(true, 0, "ROOM:", 0, 5) && selector.length() > 5) {
+            room = selector.substring(5).trim();
+        } else if (!selector.equals("*")) {
+            throw new IllegalArgumentException("Nieprawidłowy selektor czujników: " + selector);
+        }
+
+        String threshold = parts[2].trim();
+        Condition condition;
+        double low = Double.NaN;
+        double high = Double.NaN;
+        try {
+            if (threshold.startsWith("<")) {
+                condition = Condition.BELOW;
+                low = Double.parseDouble(threshold.substring(1));
+            } else if (threshold.startsWith(">")) {
+                condition = Condition.ABOVE;
+                high = Double.parseDouble(threshold.substring(1));
+            } else if (threshold.contains("..")) {
+                condition = Condition.OUTSIDE;
+                int sep = threshold.indexOf("..");
+                low = Double.parseDouble(threshold.substring(0, sep));
+                high = Double.parseDouble(threshold.substring(sep + 2));
+                if (!(low <= high)) {
+                    throw new IllegalArgumentException("Dolny próg większy od górnego: " + threshold);
+                }
+            } else {
+                throw new IllegalArgumentException("Nieprawidłowy warunek: " + threshold);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Nieprawidłowy próg: " + threshold);
+        }
+
+        double hysteresis;
+        long minDurationSec;
+        try {
+            hysteresis = parts.length > 3 && !parts[3].isBlank() ? Double.parseDouble(parts[3].trim()) : 0;
+            minDurationSec = parts.length > 4 && !parts[4].isBlank() ? Long.parseLong(parts[4].trim()) : 0;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Nieprawidłowa histereza lub czas trwania: " + spec);
+        }
+        if (!(hysteresis >= 0) || minDurationSec < 0) {
+            throw new IllegalArgumentException("Histereza i czas trwania nie mogą być ujemne: " + spec);
+        }
+        return new Rule(id, metric, sensorId, room, condition, low, high, hysteresis, minDurationSec);
+    }
+
+    private static void rebuildIndex() {
+        Map<String, List<Rule>> bySensor = new HashMap<>();
+        Map<String, List<Rule>> byRoom = new HashMap<>();
+        List<Rule> all = new ArrayList<>();
+        for (Rule rule : rules.values()) {
+            if (rule.sensorId() != null) {
+                bySensor.computeIfAbsent(rule.sensorId(), k -> new ArrayList<>()).add(rule);
+            } else if (rule.room() != null) {
+                byRoom.computeIfAbsent(key(rule.room()), k -> new ArrayList<>()).add(rule);
+            } else {
+                all.add(rule);
+            }
+        }
+        index = rules.isEmpty() ? Index.EMPTY : new Index(copyOf(bySensor), copyOf(byRoom), List.copyOf(all));
+    }
+
+    private static Map<String, List<Rule>> copyOf(Map<String, List<Rule>> map) {
+        Map<String, List<Rule>> copy = new HashMap<>();
+        map.forEach((k, v) -> copy.put(k, List.copyOf(v)));
+        return Map.copyOf(copy);
+    }
+
+    private static String key(String room) {
+        return room.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static String formatNumber(double v) {
+        if (v == Math.rint(v) && Math.abs(v) < 1e15) {
+            return Long.toString((long) v);
+        }
+        return Double.toString(v);
+    }
+
+    /**
+     * Zapisuje reguły do pliku tymczasowego i podmienia nim poprzedni plik.
+     * Format: wiersz "nextId,N", następnie wiersze "id,definicja".
+     */
+    private static void save() {
+        Path tmp = FILE.resolveSibling(FILE.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(FILE.getParent());
+            try (BufferedWriter bw = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                bw.write("nextId," + nextId);
+                bw.newLine();
+                for (Rule rule : rules.values()) {
+                    bw.write(rule.toWire());
+                    bw.newLine();
+                }
+            }
+            Files.move(tmp, FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Błąd zapisu reguł alarmów: " + e.getMessage());
+        }
+    }
+}
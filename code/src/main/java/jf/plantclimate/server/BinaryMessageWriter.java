@@ -0,0 +1,97 @@
+package jf.plantclimate.server;
+
+import jf.plantclimate.data.Config;
+import jf.plantclimate.data.Reading;
+import jf.plantclimate.protocol.BinaryProtocol;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Zapisuje komunikaty w binarnym protokole ramkowym ({@link BinaryProtocol}).
+ * Przechowuje słownik uchwytów czujników przydzielonych temu połączeniu.
+ * Po uzgodnieniu kodowania różnicowego aktualizacje odczytów są wysyłane jako ramki różnicowe.
+ */
+class BinaryMessageWriter implements MessageWriter {
+    private final DataOutputStream out;
+    private final ByteArrayOutputStream frameBuffer = new ByteArrayOutputStream(128);
+    private final DataOutputStream frame = new DataOutputStream(frameBuffer);
+    private final Map<String, Integer> handles = new HashMap<>();
+    private final DeltaState delta;
+
+    /**
+     * @param out strumień wyjściowy gniazda
+     * @param delta czy aktualizacje odczytów mają być kodowane różnicowo
+     */
+    BinaryMessageWriter(OutputStream out, boolean delta) {
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 8192));
+        this.delta = delta ? new DeltaState(Config.DELTA_KEYFRAME_INTERVAL) : null;
+    }
+
+    @Override
+    public void write(OutboundMessage message) throws IOException {
+        switch (message.kind()) {
+            case UPDATE -> {
+                Reading base = delta != null ? delta.advance(message.key(), message.reading()) : null;
+                if (base != null) {
+                    BinaryProtocol.writeVarLong(frame, handleFor(message.key()));
+                    BinaryProtocol.writeDelta(frame, base, message.reading());
+                    emit(BinaryProtocol.FRAME_DELTA);
+                } else {
+                    writeReadingFrame(BinaryProtocol.FRAME_UPDATE, message.key(), message);
+                }
+            }
+            case DATA -> writeReadingFrame(BinaryProtocol.FRAME_DATA, message.reading().deviceId(), message);
+            case LINE -> {
+                frame.write(message.line().getBytes(StandardCharsets.UTF_8));
+                emit(BinaryProtocol.FRAME_TEXT);
+            }
+        }
+    }
+
+    /**
+     * Zapisuje ramkę z odczytem, poprzedzoną powiązaniem uchwytu, jeśli czujnik pojawia się po raz pierwszy.
+     */
+    private void writeReadingFrame(byte type, String sensorId, OutboundMessage message) throws IOException {
+        int handle = handleFor(sensorId);
+        BinaryProtocol.writeVarLong(frame, handle);
+        BinaryProtocol.writeReading(frame, message.reading());
+        emit(type);
+    }
+
+    /**
+     * Zwraca uchwyt czujnika, wysyłając ramkę powiązania przy pierwszym użyciu.
+     */
+    private int handleFor(String sensorId) throws IOException {
+        Integer handle = handles.get(sensorId);
+        if (handle == null) {
+            handle = handles.size();
+            handles.put(sensorId, handle);
+            BinaryProtocol.writeVarLong(frame, handle);
+            frame.writeUTF(sensorId);
+            emit(BinaryProtocol.FRAME_SENSOR);
+        }
+        return handle;
+    }
+
+    /**
+     * Zapisuje zgromadzoną treść jako ramkę danego typu.
+     */
+    private void emit(byte type) throws IOException {
+        out.writeInt(frameBuffer.size() + 1);
+        out.writeByte(type);
+        frameBuffer.writeTo(out);
+        frameBuffer.reset();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+}
@@ -0,0 +1,107 @@
+package jf.plantclimate.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rozsyła komunikaty do klientów w taktach o stałej długości.
+ *
+ * <p>Komunikaty zgłoszone w trakcie taktu są gromadzone i po jego upływie przekazywane każdemu
+ * klientowi jedną partią, którą wątek zapisujący połączenia zapisuje i opróżnia jednorazowo.
+ * Seria odczytów z wielu czujników trafia więc do klienta w jednym zapisie do gniazda zamiast
+ * w osobnym zapisie na każdy odczyt, kosztem opóźnienia nie większego niż długość taktu.
+ * Takt zaczyna się wraz z pierwszym komunikatem - bezczynny serwer nie wybudza wątku.</p>
+ *
+ * <p>Przy takcie równym 0 komunikaty są przekazywane klientom natychmiast.</p>
+ */
+class BroadcastScheduler {
+    private final long tickMs;
+    private final Collection<ClientConnection> targets;
+
+    private final Object lock = new Object();
+    private List<OutboundMessage> pending = new ArrayList<>();
+    private final AtomicLong ticks = new AtomicLong();
+    private final AtomicLong messages = new AtomicLong();
+
+    /**
+     * Tworzy harmonogram i, jeśli takt jest dodatni, uruchamia wątek rozsyłający.
+     *
+     * @param tickMs długość taktu w milisekundach; 0 wyłącza gromadzenie komunikatów
+     * @param targets połączenia, do których rozsyłane są komunikaty (widok aktualizowany na bieżąco)
+     */
+    BroadcastScheduler(long tickMs, Collection<ClientConnection> targets) {
+        this.tickMs = Math.max(0, tickMs);
+        this.targets = targets;
+
+        if (this.tickMs > 0) {
+            Thread thread = new Thread(this::run, "broadcast-scheduler");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Zgłasza komunikat do rozesłania wszystkim klientom w najbliższym takcie.
+     *
+     * @param message komunikat współdzielony przez wszystkie połączenia
+     */
+    void submit(OutboundMessage message) {
+        messages.incrementAndGet();
+        if (tickMs == 0) {
+            ticks.incrementAndGet();
+            targets.forEach(c -> c.offer(message));
+            return;
+        }
+        synchronized (lock) {
+            pending.add(message);
+            if (pending.size() == 1) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Pętla wątku rozsyłającego. Czeka na pierwszy komunikat, odczekuje takt,
+     * a następnie przekazuje zgromadzoną partię wszystkim połączeniom.
+     */
+    private void run() {
+        List<OutboundMessage> batch = new ArrayList<>();
+        while (true) {
+            try {
+                synchronized (lock) {
+                    while (pending.isEmpty()) {
+                        lock.wait();
+                    }
+                }
+                Thread.sleep(tickMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            synchronized (lock) {
+                List<OutboundMessage> swap = pending;
+                pending = batch;
+                batch = swap;
+            }
+            ticks.incrementAndGet();
+            for (ClientConnection c : targets) {
+                c.offerAll(batch);
+            }
+            batch.clear();
+        }
+    }
+
+    long getTickMs() {
+        return tickMs;
+    }
+
+    long getTickCount() {
+        return ticks.get();
+    }
+
+    long getMessageCount() {
+        return messages.get();
+    }
+}
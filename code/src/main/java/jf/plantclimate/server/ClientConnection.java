@@ -0,0 +1,489 @@
+package jf.plantclimate.server;
+
+import jf.plantclimate.data.Reading;
+import jf.plantclimate.protocol.MeteredDeflaterOutputStream;
+import jf.plantclimate.protocol.ProtocolOptions;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Połączenie z pojedynczym klientem wraz z ograniczoną kolejką komunikatów wychodzących.
+ * Komunikaty zapisuje do klienta mechanizm transportu niezależny od wątków odbierających
+ * odczyty z czujników, dzięki czemu klient na wolnym łączu nie blokuje ich ani pozostałych klientów.
+ *
+ * <p>Klasa odpowiada za kolejkowanie, scalanie i politykę przepełnienia. Sposób zapisu
+ * pobranych partii komunikatów określają podklasy: {@link StreamClientConnection}
+ * (osobny wątek zapisujący na połączenie) oraz {@link NioClientConnection} (pętla zdarzeń selektora).</p>
+ */
+abstract class ClientConnection {
+    private final ProtocolOptions options;
+    private final int capacity;
+    private final OverflowPolicy policy;
+
+    private final Deque<OutboundMessage> queue = new ArrayDeque<>();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private volatile boolean open = true;
+    private volatile boolean admin = false;
+    private boolean writing = false;
+
+    /**
+     * Najnowsze oczekujące aktualizacje w trybie scalania - jedna na czujnik.
+     */
+    private final Map<String, OutboundMessage> conflated = new LinkedHashMap<>();
+    private final AtomicLong superseded = new AtomicLong();
+    private boolean conflating = false;
+    private long conflationIntervalMs = 0;
+    private long nextConflatedFlush = 0;
+
+    /**
+     * @param options uzgodnione opcje protokołu
+     * @param capacity maksymalna liczba oczekujących komunikatów
+     * @param policy polityka obsługi przepełnionej kolejki
+     */
+    ClientConnection(ProtocolOptions options, int capacity, OverflowPolicy policy) {
+        this.options = options;
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * Powiadamia mechanizm transportu, że w kolejce pojawiły się komunikaty.
+     * Wywoływana z zajętym monitorem kolejki, po wybudzeniu czekających na nim wątków.
+     */
+    protected void signal() {}
+
+    /**
+     * Zamyka kanał komunikacji z klientem. Wywoływana jednokrotnie przez {@link #close()}.
+     */
+    protected abstract void closeTransport();
+
+    /**
+     * Zwraca adres klienta do zapisu w dzienniku.
+     *
+     * @return adres zdalny połączenia
+     */
+    protected abstract String remoteAddress();
+
+    /**
+     * Zwraca liczniki kompresji połączenia.
+     *
+     * @return strumień kompresujący lub null, jeśli połączenie nie jest kompresowane
+     */
+    abstract MeteredDeflaterOutputStream getCompression();
+
+    /**
+     * Określa, czy odpowiedzi na polecenia czekają na miejsce w kolejce. Połączenie z własnym
+     * wątkiem poleceń może czekać, bo spowalnia to wyłącznie tego klienta. Połączenie obsługiwane
+     * przez wspólną pulę wątków dodaje odpowiedź od razu, a kolejnych poleceń nie wykonuje,
+     * dopóki kolejka jest pełna ({@link #hasSpace()}).
+     *
+     * @return true, jeśli wysyłanie odpowiedzi czeka na miejsce w kolejce
+     */
+    protected boolean repliesWait() {
+        return true;
+    }
+
+    /**
+     * @return true, jeśli kolejka nie jest pełna lub połączenie zostało zamknięte
+     */
+    boolean hasSpace() {
+        synchronized (queue) {
+            return !open || queue.size() < capacity;
+        }
+    }
+
+    /**
+     * Wysyła odpowiedź na polecenie klienta. Odpowiedzi nie są odrzucane - przy pełnej kolejce
+     * metoda czeka (jeśli {@link #repliesWait()}), co spowalnia wyłącznie wątek obsługujący tego klienta.
+     *
+     * @param line treść odpowiedzi
+     */
+    void send(String line) {
+        send(OutboundMessage.line(line, false));
+    }
+
+    /**
+     * Wysyła wiersze jako nierozdzielny blok odpowiedzi: rozgłaszane komunikaty nie zostaną
+     * umieszczone pomiędzy nimi. Czeka, aż w kolejce zmieści się cały blok, a blok większy
+     * od pojemności kolejki - aż kolejka będzie pusta (jeśli {@link #repliesWait()}).
+     *
+     * @param lines treść komunikatów
+     */
+    void sendAll(List<String> lines) {
+        synchronized (queue) {
+            while (open && repliesWait() && !queue.isEmpty() && queue.size() + lines.size() > capacity) {
+                try {
+                    queue.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (!open) return;
+            for (String line : lines) {
+                queue.addLast(OutboundMessage.line(line, false));
+            }
+            wakeWriter();
+        }
+    }
+
+    /**
+     * Wysyła odczyt czujnika jako odpowiedź na polecenie klienta.
+     *
+     * @param sensorId identyfikator czujnika
+     * @param reading odczyt
+     */
+    void sendReading(String sensorId, Reading reading) {
+        send(OutboundMessage.update(sensorId, reading, false));
+    }
+
+    /**
+     * Wysyła odczyt historyczny jako część odpowiedzi na polecenie klienta.
+     *
+     * @param reading odczyt
+     */
+    void sendHistory(Reading reading) {
+        send(OutboundMessage.data(reading));
+    }
+
+    /**
+     * Wysyła komunikat jako odpowiedź na polecenie klienta, np. komunikat przechowywany
+     * w pamięci podręcznej zapytań.
+     *
+     * @param message komunikat
+     */
+    void send(OutboundMessage message) {
+        synchronized (queue) {
+            while (open && repliesWait() && queue.size() >= capacity) {
+                try {
+                    queue.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (!open) return;
+            queue.addLast(message.withDroppable(false));
+            wakeWriter();
+        }
+    }
+
+    /**
+     * Dodaje rozgłaszaną aktualizację do kolejki bez blokowania wywołującego.
+     * Przy pełnej kolejce stosowana jest polityka przepełnienia.
+     *
+     * @param message komunikat; klucz komunikatu służy do scalania aktualizacji
+     */
+    void offer(OutboundMessage message) {
+        boolean disconnect;
+        synchronized (queue) {
+            if (!open) return;
+            disconnect = enqueue(message);
+            wakeWriter();
+        }
+        if (disconnect) {
+            disconnectSlowClient();
+        }
+    }
+
+    /**
+     * Dodaje partię rozgłaszanych komunikatów jednym wybudzeniem wątku zapisującego,
+     * dzięki czemu cała partia zostaje zapisana i opróżniona jednorazowo.
+     *
+     * @param messages komunikaty w kolejności wysyłania
+     */
+    void offerAll(List<OutboundMessage> messages) {
+        boolean disconnect = false;
+        synchronized (queue) {
+            if (!open) return;
+            for (OutboundMessage message : messages) {
+                if (enqueue(message)) {
+                    disconnect = true;
+                    break;
+                }
+            }
+            wakeWriter();
+        }
+        if (disconnect) {
+            disconnectSlowClient();
+        }
+    }
+
+    /**
+     * Umieszcza rozgłaszany komunikat w kolejce, stosując tryb scalania i politykę przepełnienia.
+     * Komunikat bez klucza jest poprzedzany oczekującymi scalonymi aktualizacjami, aby klient
+     * otrzymał komunikaty w kolejności rozgłaszania. Wywoływana z zajętym monitorem kolejki.
+     *
+     * @param message komunikat
+     * @return true, jeśli polityka przepełnienia wymaga rozłączenia klienta
+     */
+    private boolean enqueue(OutboundMessage message) {
+        String key = message.key();
+        if (conflating && key != null) {
+            if (conflated.put(key, message) != null) {
+                superseded.incrementAndGet();
+            }
+            return false;
+        }
+        if (queue.size() >= capacity) {
+            if (policy == OverflowPolicy.DISCONNECT) {
+                return true;
+            }
+            boolean removed = switch (policy) {
+                case DISCONNECT -> false;
+                case CONFLATE -> removeQueued(key) || removeQueued(null);
+                case DROP_OLDEST -> removeQueued(null);
+            };
+            // liczone są tylko komunikaty faktycznie usunięte z kolejki lub odrzucone
+            if (removed) {
+                dropped.incrementAndGet();
+            }
+            // komunikat nieodrzucalny (np. SENSOR_REMOVED) jest dodawany ponad pojemność kolejki
+            if (queue.size() >= capacity && message.droppable()) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        }
+        if (!conflated.isEmpty()) {
+            // scalone aktualizacje są starsze od komunikatu (np. SENSOR_REMOVED) i nie mogą zostać wysłane po nim
+            queue.addAll(conflated.values());
+            conflated.clear();
+        }
+        queue.addLast(message);
+        return false;
+    }
+
+    private void wakeWriter() {
+        queue.notifyAll();
+        signal();
+    }
+
+    private void disconnectSlowClient() {
+        System.out.println("Rozłączanie klienta nienadążającego z odbiorem: " + remoteAddress());
+        close();
+    }
+
+    /**
+     * Włącza tryb scalania aktualizacji. Dla każdego czujnika przechowywana jest tylko
+     * najnowsza oczekująca aktualizacja, wysyłana nie częściej niż z podaną częstotliwością.
+     *
+     * @param maxHz maksymalna częstotliwość wysyłania aktualizacji; 0 oznacza tempo,
+     *              w jakim klient odbiera dane
+     */
+    void enableConflation(double maxHz) {
+        synchronized (queue) {
+            conflating = true;
+            conflationIntervalMs = maxHz > 0 ? Math.round(1000.0 / maxHz) : 0;
+            wakeWriter();
+        }
+    }
+
+    /**
+     * Wyłącza tryb scalania. Oczekujące aktualizacje trafiają do zwykłej kolejki.
+     */
+    void disableConflation() {
+        synchronized (queue) {
+            conflating = false;
+            queue.addAll(conflated.values());
+            conflated.clear();
+            wakeWriter();
+        }
+    }
+
+    /**
+     * Sprawdza, czy scalone aktualizacje mogą już zostać wysłane.
+     *
+     * @param now bieżący czas w milisekundach
+     * @return true, jeśli są scalone aktualizacje i minął odstęp od poprzedniego wysłania
+     */
+    private boolean conflatedDue(long now) {
+        return !conflated.isEmpty() && now >= nextConflatedFlush;
+    }
+
+    /**
+     * Usuwa z kolejki najstarszy odrzucalny komunikat o podanym kluczu.
+     * Dla klucza null usuwa najstarszy odrzucalny komunikat niezależnie od klucza.
+     *
+     * @param key klucz scalania lub null
+     * @return true, jeśli usunięto komunikat
+     */
+    private boolean removeQueued(String key) {
+        Iterator<OutboundMessage> it = queue.iterator();
+        while (it.hasNext()) {
+            OutboundMessage m = it.next();
+            if (m.droppable() && (key == null || key.equals(m.key()))) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Pobiera wszystkie oczekujące komunikaty oraz scalone aktualizacje, dla których minął
+     * odstęp wysyłania. Po pobraniu niepustej partii połączenie uznawane jest za zapisujące
+     * aż do wywołania {@link #batchDone(int, boolean)}.
+     *
+     * @param batch lista, do której dopisywane są komunikaty
+     * @param block czy czekać, aż pojawi się co najmniej jeden komunikat
+     * @return true, jeśli pobrano co najmniej jeden komunikat
+     * @throws InterruptedException gdy oczekujący wątek zostanie przerwany
+     */
+    protected final boolean takeBatch(List<OutboundMessage> batch, boolean block) throws InterruptedException {
+        synchronized (queue) {
+            long now = System.currentTimeMillis();
+            while (block && open && queue.isEmpty() && !conflatedDue(now)) {
+                if (conflated.isEmpty()) {
+                    queue.wait();
+                } else {
+                    queue.wait(Math.max(1, nextConflatedFlush - now));
+                }
+                now = System.currentTimeMillis();
+            }
+            if (!open) return false;
+
+            int before = batch.size();
+            batch.addAll(queue);
+            queue.clear();
+            if (conflatedDue(now)) {
+                batch.addAll(conflated.values());
+                conflated.clear();
+                nextConflatedFlush = now + conflationIntervalMs;
+            }
+            boolean taken = batch.size() > before;
+            if (taken) {
+                writing = true;
+            }
+            queue.notifyAll();
+            return taken;
+        }
+    }
+
+    /**
+     * Odnotowuje zapisanie partii pobranej przez {@link #takeBatch(List, boolean)}.
+     *
+     * @param count liczba komunikatów w partii
+     * @param flushed czy partia została przekazana do klienta
+     */
+    protected final void batchDone(int count, boolean flushed) {
+        sent.addAndGet(count);
+        if (flushed) {
+            flushes.incrementAndGet();
+        }
+        synchronized (queue) {
+            writing = false;
+            queue.notifyAll();
+        }
+    }
+
+    /**
+     * Zwraca czas, w którym scalone aktualizacje będą mogły zostać wysłane.
+     *
+     * @return czas w milisekundach lub 0, jeśli nie ma oczekujących scalonych aktualizacji
+     */
+    protected final long nextConflatedFlushAt() {
+        synchronized (queue) {
+            return conflated.isEmpty() ? 0 : nextConflatedFlush;
+        }
+    }
+
+    /**
+     * Czeka, aż oczekujące komunikaty zostaną wysłane, a następnie zamyka połączenie.
+     *
+     * @param timeoutMs maksymalny czas oczekiwania w milisekundach
+     */
+    void closeGracefully(long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (queue) {
+            long remaining = timeoutMs;
+            while (open && (writing || !queue.isEmpty()) && remaining > 0) {
+                try {
+                    queue.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+        close();
+    }
+
+    /**
+     * Zamyka połączenie i zatrzymuje zapisywanie komunikatów.
+     */
+    void close() {
+        synchronized (queue) {
+            if (!open) return;
+            open = false;
+            queue.clear();
+            conflated.clear();
+            queue.notifyAll();
+        }
+        closeTransport();
+    }
+
+    boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Uprawnia połączenie do poleceń administracyjnych po podaniu poprawnego tokenu.
+     */
+    void grantAdmin() {
+        admin = true;
+    }
+
+    boolean isAdmin() {
+        return admin;
+    }
+
+    int getQueueDepth() {
+        synchronized (queue) {
+            return queue.size() + conflated.size();
+        }
+    }
+
+    long getSupersededCount() {
+        return superseded.get();
+    }
+
+    boolean isConflating() {
+        synchronized (queue) {
+            return conflating;
+        }
+    }
+
+    long getDroppedCount() {
+        return dropped.get();
+    }
+
+    long getSentCount() {
+        return sent.get();
+    }
+
+    /**
+     * Zwraca liczbę opróżnień bufora, czyli zapisów partii komunikatów do klienta.
+     *
+     * @return liczba opróżnień
+     */
+    long getFlushCount() {
+        return flushes.get();
+    }
+
+    OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    ProtocolOptions getOptions() {
+        return options;
+    }
+}
@@ -2,13 +2,24 @@ package jf.plantclimate.server;
 
 import jf.plantclimate.data.Config;
 import jf.plantclimate.data.Reading;
+import jf.plantclimate.protocol.MeteredDeflaterOutputStream;
+import jf.plantclimate.protocol.ProtocolOptions;
+import jf.plantclimate.protocol.TextLineEncoder;
 import jf.plantclimate.util.DateFormatter;
 
 import java.io.BufferedReader;
-import java.io.PrintWriter;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -18,8 +29,17 @@ import java.util.concurrent.ConcurrentHashMap;
  * i rozsyła aktualizacje odczytów z czujników.
  */
 public class ClientListener extends Thread {
-    private static final Map<String, PrintWriter> clients = new ConcurrentHashMap<>();
+    private static final Map<String, ClientConnection> clients = new ConcurrentHashMap<>();
     private static final Map<String, String> clientUsernames = new ConcurrentHashMap<>();
+    private static final BroadcastScheduler broadcaster =
+            new BroadcastScheduler(Config.BROADCAST_TICK_MS, clients.values());
+    private static final QueryCache queryCache = new QueryCache(Config.QUERY_CACHE_ENTRIES);
+    private static final OverflowPolicy overflowPolicy =
+            OverflowPolicy.fromString(Config.CLIENT_OVERFLOW_POLICY, OverflowPolicy.CONFLATE);
+
+    static OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
 
     /**
      * Główna metoda uruchamiająca nasłuchiwanie połączeń od klientów.
@@ -39,188 +59,337 @@ public class ClientListener extends Thread {
     /**
      * Obsługuje pojedyncze połączenie z klilentem.
      * Ustanawia komunikację, identyfikuje klienta i przetwarza jego polecenia.
+     * Klient może po identyfikatorze podać żądane opcje protokołu (np. "BINARY"),
+     * które serwer potwierdza wierszem PROTOCOL przed przełączeniem kodowania.
      *
      * @param s gniazdo połączenia z klientem
      */
     private void handle(Socket s) {
         String clientId = null;
-        try (BufferedReader br = new BufferedReader(new java.io.InputStreamReader(s.getInputStream()));
-             PrintWriter pw = new PrintWriter(s.getOutputStream(), true)) {
+        ClientConnection conn = null;
+        try (BufferedReader br = new BufferedReader(new java.io.InputStreamReader(s.getInputStream()))) {
+            OutputStream os = s.getOutputStream();
+            writeHandshakeLine(os, "HELLO");
+            String hello = br.readLine();
 
-            pw.println("HELLO");
-            clientId = br.readLine();
-
-            if (clientId == null || clientId.trim().isEmpty()) {
-                pw.println("ERROR Nieprawidłowy identyfikator klienta");
+            if (hello == null || hello.trim().isEmpty()) {
+                writeHandshakeLine(os, "ERROR Nieprawidłowy identyfikator klienta");
                 return;
             }
 
-            clients.put(clientId, pw);
-            clientUsernames.put(clientId, "Nieznany użytkownik");
-            System.out.println("Klient połączony: " + clientId);
+            String[] tokens = hello.trim().split("\\s+");
+            clientId = tokens[0];
+            ProtocolOptions options = parseHelloOptions(tokens);
+            if (options != null) {
+                writeHandshakeLine(os, "PROTOCOL " + options.toHandshake());
+            } else {
+                options = ProtocolOptions.TEXT;
+            }
+
+            conn = new StreamClientConnection(s, options, Config.CLIENT_QUEUE_CAPACITY, overflowPolicy);
+            register(clientId, conn);
+            handleRegistryCommand(conn, "");
 
-            processClientCommands(br, pw, clientId);
+            processClientCommands(br, conn, clientId);
         } catch (java.net.SocketException e) {
             System.out.println("Klient rozłączony: " + clientId);
         } catch (Exception e) {
             System.err.println("Błąd klienta: " + e.getMessage());
         } finally {
-            if (clientId != null) {
-                clients.remove(clientId);
+            if (conn != null) {
+                unregister(clientId, conn, 1000);
             }
             try { s.close(); } catch (Exception ignored) {}
         }
     }
 
+    /**
+     * Odczytuje opcje protokołu podane przez klienta po identyfikatorze w wierszu powitania.
+     *
+     * @param tokens słowa wiersza powitania; pierwsze jest identyfikatorem klienta
+     * @return opcje protokołu lub null, jeśli klient ich nie podał i nie oczekuje potwierdzenia
+     */
+    static ProtocolOptions parseHelloOptions(String[] tokens) {
+        if (tokens.length < 2) return null;
+        return ProtocolOptions.fromTokens(Arrays.copyOfRange(tokens, 1, tokens.length));
+    }
+
+    /**
+     * Rejestruje połączenie klienta, który zakończył powitanie, jako odbiorcę rozgłaszanych komunikatów.
+     *
+     * @param clientId identyfikator klienta
+     * @param conn połączenie klienta
+     */
+    static void register(String clientId, ClientConnection conn) {
+        clients.put(clientId, conn);
+        clientUsernames.put(clientId, "Nieznany użytkownik");
+        System.out.println("Klient połączony: " + clientId + " (protokół: " + conn.getOptions() + ")");
+    }
+
+    /**
+     * Wyrejestrowuje połączenie klienta, czeka na wysłanie oczekujących komunikatów i zamyka je.
+     *
+     * @param clientId identyfikator klienta
+     * @param conn połączenie klienta
+     * @param timeoutMs maksymalny czas oczekiwania na wysłanie komunikatów
+     */
+    static void unregister(String clientId, ClientConnection conn, long timeoutMs) {
+        AlertRules.unsubscribe(conn);
+        WindowQueries.unsubscribe(conn, -1);
+        if (clientId != null) {
+            clients.remove(clientId, conn);
+            System.out.println("Klient " + clientId + ": wysłano " + conn.getSentCount()
+                    + " komunikatów, odrzucono " + conn.getDroppedCount());
+        }
+        conn.closeGracefully(timeoutMs);
+        if (clientId != null && conn.getCompression() != null) {
+            System.out.println("Klient " + clientId + ": " + formatCompression(conn.getCompression()));
+        }
+    }
+
+    /**
+     * Zapisuje wiersz powitania bezpośrednio do strumienia, przed uruchomieniem kolejki połączenia.
+     *
+     * @param os strumień wyjściowy gniazda
+     * @param line treść wiersza
+     * @throws IOException w przypadku błędu zapisu
+     */
+    private static void writeHandshakeLine(OutputStream os, String line) throws IOException {
+        os.write((line + System.lineSeparator()).getBytes());
+        os.flush();
+    }
+
     /**
      * Przetwarza polecenia przesyłane przez klienta.
      *
      * @param br strumień wejściowy do odczytu poleceń od klienta
-     * @param pw strumień wyjściowy do wysyłania odpowiedzi do klienta
+     * @param conn połączenie, przez które wysyłane są odpowiedzi do klienta
      * @param clientId identyfikator klienta
      * @throws Exception w przypadku błędu komunikacji
      */
-    private void processClientCommands(BufferedReader br, PrintWriter pw, String clientId) throws Exception {
+    private void processClientCommands(BufferedReader br, ClientConnection conn, String clientId) throws Exception {
         String cmd;
         while ((cmd = br.readLine()) != null) {
-            if (cmd.equalsIgnoreCase("QUIT")) {
+            if (!processCommand(conn, clientId, cmd)) {
                 break;
-            } else if (cmd.equals("LIST")) {
-                handleListCommand(pw);
-                continue;
-            }
-            
-            String[] parts = cmd.split(" ", 2);
-            if (parts.length < 1) {
-                pw.println("ERROR Puste polecenie");
-                continue;
             }
-            
-            String command = parts[0];
-            String params = parts.length > 1 ? parts[1].trim() : "";
-            
-            switch (command) {
-                case "GET":
-                    handleGetCommand(pw, params);
-                    break;
-                case "PAIR":
-                    handlePairCommand(pw, params, clientId);
-                    break;
-                case "UNPAIR":
-                    handleUnpairCommand(pw, params, clientId);
-                    break;
-                case "UPDATE_INFO":
-                    handleUpdateInfoCommand(pw, params, clientId);
-                    break;
-                case "HISTORY":
-                    handleHistoryCommand(pw, params);
-                    break;
-                case "EXPORT":
-                    handleExportCommand(pw, params);
-                    break;
-                case "USERNAME":
-                    handleUsernameCommand(clientId, params);
-                    break;
-                default:
-                    pw.println("ERROR Nieznane polecenie: " + cmd);
+        }
+    }
+
+    /**
+     * Wykonuje pojedyncze polecenie klienta. Używana przez oba mechanizmy obsługi połączeń.
+     *
+     * @param conn połączenie, przez które wysyłane są odpowiedzi do klienta
+     * @param clientId identyfikator klienta
+     * @param cmd treść polecenia
+     * @return false, jeśli klient zakończył sesję poleceniem QUIT
+     */
+    static boolean processCommand(ClientConnection conn, String clientId, String cmd) {
+        if (cmd.equalsIgnoreCase("QUIT")) {
+            return false;
+        } else if (cmd.equals("LIST")) {
+            handleListCommand(conn);
+            return true;
+        } else if (cmd.equals("QUEUES")) {
+            handleQueuesCommand(conn, clientId);
+            return true;
+        } else if (cmd.equals("COMPRESSION")) {
+            handleCompressionCommand(conn, clientId);
+            return true;
+        } else if (cmd.equals("CACHE")) {
+            conn.send("CACHE " + queryCache.stats());
+            return true;
+        } else if (cmd.equals("ALERTS")) {
+            handleAlertsCommand(conn);
+            return true;
+        } else if (cmd.equals("ALERT_SUBSCRIBE")) {
+            AlertRules.subscribe(conn);
+            return true;
+        } else if (cmd.equals("ALERT_UNSUBSCRIBE")) {
+            AlertRules.unsubscribe(conn);
+            conn.send("ALERT_UNSUBSCRIBED");
+            return true;
+        } else if (cmd.equals("WINDOWS")) {
+            handleWindowsCommand(conn);
+            return true;
+        } else if (cmd.equals("REPLICATION")) {
+            handleReplicationCommand(conn);
+            return true;
+        } else if (cmd.equals("PROMOTE")) {
+            if (!requireAdmin(conn, "PROMOTE", "")) return true;
+            if (ReplicaFollower.promote()) {
+                conn.send("PROMOTED " + ReplicaFollower.getAppliedSeq());
+            } else {
+                sendError(conn, "PROMOTE", "", "Serwer nie jest repliką");
             }
+            return true;
         }
+
+        String[] parts = cmd.split(" ", 2);
+        if (parts.length < 1) {
+            conn.send("ERROR Puste polecenie");
+            return true;
+        }
+
+        String command = parts[0];
+        String params = parts.length > 1 ? parts[1].trim() : "";
+
+        switch (command) {
+            case "ADMIN":
+                handleAdminCommand(conn, params);
+                break;
+            case "GET":
+                handleGetCommand(conn, params);
+                break;
+            case "PAIR":
+                if (rejectOnReplica(conn, command, params)) break;
+                handlePairCommand(conn, params, clientId);
+                break;
+            case "UNPAIR":
+                if (rejectOnReplica(conn, command, params)) break;
+                handleUnpairCommand(conn, params, clientId);
+                break;
+            case "UPDATE_INFO":
+                if (rejectOnReplica(conn, command, params)) break;
+                handleUpdateInfoCommand(conn, params, clientId);
+                break;
+            case "SYNC":
+                if (rejectOnReplica(conn, command, params)) break;
+                handleSyncCommand(conn, params);
+                break;
+            case "HISTORY":
+                handleHistoryCommand(conn, params);
+                break;
+            case "HISTORY_SINCE":
+                handleHistorySinceCommand(conn, params);
+                break;
+            case "EXPORT":
+                handleExportCommand(conn, params);
+                break;
+            case "USERNAME":
+                handleUsernameCommand(clientId, params);
+                break;
+            case "DELIVERY":
+                handleDeliveryCommand(conn, params);
+                break;
+            case "REGISTRY":
+                handleRegistryCommand(conn, params);
+                break;
+            case "STATS":
+                handleStatsCommand(conn, params);
+                break;
+            case "ALERT_ADD":
+                handleAlertAddCommand(conn, params, clientId);
+                break;
+            case "ALERT_REMOVE":
+                handleAlertRemoveCommand(conn, params, clientId);
+                break;
+            case "WINDOW_ADD":
+                handleWindowAddCommand(conn, params, clientId);
+                break;
+            case "WINDOW_REMOVE":
+            case "WINDOW_SUBSCRIBE":
+            case "WINDOW_UNSUBSCRIBE":
+            case "WINDOW_RESULTS":
+                handleWindowQueryCommand(conn, command, params, clientId);
+                break;
+            default:
+                conn.send("ERROR Nieznane polecenie: " + cmd);
+        }
+        return true;
     }
 
     /**
      * Obsługuje polecenie GET, które pobiera najnowszy odczyt z określonego czujnika.
      *
-     * @param pw strumień wyjściowy do wysyłania odpowiedzi do klienta
+     * @param conn połączenie, przez które wysyłane są odpowiedzi do klienta
      * @param sensorId identyfikator czujnika
      */
-    private void handleGetCommand(PrintWriter pw, String sensorId) {
+    private static void handleGetCommand(ClientConnection conn, String sensorId) {
         Reading r = SensorListener.getLatestReading(sensorId);
         if (r != null) {
-            String update = formatReadingUpdate(sensorId, r);
-            pw.println(update);
+            conn.sendReading(sensorId, r);
         } else {
-            pw.println("ERROR Czujnik nie znaleziony");
+            sendError(conn, "GET", sensorId, "Czujnik nie znaleziony");
         }
     }
 
     /**
      * Obsługuje polecenie LIST, które zwraca listę dostępnych czujników.
      *
-     * @param pw strumień wyjściowy do wysyłania odpowiedzi do klienta
+     * @param conn połączenie, przez które wysyłane są odpowiedzi do klienta
      */
-    private void handleListCommand(PrintWriter pw) {
+    private static void handleListCommand(ClientConnection conn) {
         StringBuilder sb = new StringBuilder("SENSORS ");
         SensorListener.getSensorIds().forEach(id -> sb.append(id).append(" "));
-        pw.println(sb.toString().trim());
+        conn.send(sb.toString().trim());
     }
 
     /**
      * Obsługuje polecenie PAIR, które rejestruje aplikację kliencką z czujnikiem.
      * Wysyła dwa komunikaty w sekwencji: NEW_SENSOR z ID czujnika, 
-     * a następnie SENSOR_INFO z pełnymi danymi czujnika.
+     * a następnie SENSOR_INFO z pełnymi danymi czujnika z rejestru.
+     * Ponowne sparowanie zmienia nazwę, zachowując zapisaną roślinę i pomieszczenie.
      * 
-     * @param pw strumień wyjściowy do wysyłania odpowiedzi do klienta
+     * @param conn połączenie, przez które wysyłane są odpowiedzi do klienta
      * @param params parametry parowania (ID czujnika, nazwa wyświetlana)
      * @param clientId identyfikator klienta
      */
-    private void handlePairCommand(PrintWriter pw, String params, String clientId) {
+    private static void handlePairCommand(ClientConnection conn, String params, String clientId) {
+        String[] parts = params.split(",");
         try {
-            String[] parts = params.split(",");
             if (parts.length >= 2) {
                 String sensorId = parts[0].trim();
                 String displayName = parts[1].trim();
                 
                 if (SensorListener.sensorExists(sensorId)) {
-                    pw.println("PAIRED " + sensorId);
+                    conn.send("PAIRED " + sensorId);
                     System.out.println("Klient " + getUsernameForClient(clientId) + ": sparowano czujnik " + sensorId);
+                    // NEW_SENSOR i SENSOR_INFO z rejestru przechodzą przez ten sam rozgłaszacz,
+                    // więc klienci otrzymają je w tej kolejności
                     broadcastNewSensor(sensorId);
-
-                    try {
-                        Thread.sleep(100);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
-                    
-                    broadcastSensorInfoUpdate(sensorId, displayName, "", "");
+                    SensorRegistry.put(sensorId, displayName, null, null);
                 } else {
-                    pw.println("ERROR Czujnik nie znaleziony");
+                    sendError(conn, "PAIR", sensorId, "Czujnik nie znaleziony");
                 }
             } else {
-                pw.println("ERROR Nieprawidłowy format parametrów");
+                sendError(conn, "PAIR", parts[0].trim(), "Nieprawidłowy format parametrów");
             }
         } catch (Exception e) {
-            pw.println("ERROR " + e.getMessage());
+            sendError(conn, "PAIR", parts[0].trim(), e.getMessage());
         }
     }
 
     /**
      * Obsługuje polecenie UNPAIR, które rozparowuje czujnik z aplikacją kliencką.
      * 
-     * @param pw strumień wyjściowy do wysyłania odpowiedzi do klienta
+     * @param conn połączenie, przez które wysyłane są odpowiedzi do klienta
      * @param sensorId identyfikator czujnika
      * @param clientId identyfikator klienta
      */
-    private void handleUnpairCommand(PrintWriter pw, String sensorId, String clientId) {
+    private static void handleUnpairCommand(ClientConnection conn, String sensorId, String clientId) {
         if (sensorId == null || sensorId.isEmpty()) {
-            pw.println("ERROR Nieprawidłowy identyfikator czujnika");
+            sendError(conn, "UNPAIR", "", "Nieprawidłowy identyfikator czujnika");
             return;
         }
 
-        pw.println("UNPAIRED " + sensorId);
+        conn.send("UNPAIRED " + sensorId);
         System.out.println("Klient " + getUsernameForClient(clientId) + ": rozparowano czujnik " + sensorId);
-        broadcastSensorRemoved(sensorId);
+        if (!SensorRegistry.remove(sensorId)) {
+            broadcastSensorRemoved(sensorId);
+        }
     }
 
     /**
      * Obsługuje polecenie UPDATE_INFO, które aktualizuje informacje o czujniku.
      *
-     * @param pw strumień wyjściowy do wysyłania odpowiedzi do klienta
+     * @param conn połączenie, przez które wysyłane są odpowiedzi do klienta
      * @param params parametry aktualizacji w formacie: sensorId,displayName,plantName,room
      * @param clientId identyfikator klienta
      */
-    private void handleUpdateInfoCommand(PrintWriter pw, String params, String clientId) {
+    private static void handleUpdateInfoCommand(ClientConnection conn, String params, String clientId) {
+        String[] parts = params.split(",", 4);
         try {
-            String[] parts = params.split(",", 4);
             if (parts.length >= 4) {
                 String sensorId = parts[0].trim();
                 String name = parts[1].trim();
@@ -228,94 +397,112 @@ public class ClientListener extends Thread {
                 String room = parts[3].trim();
                 
                 if (SensorListener.sensorExists(sensorId)) {
-                    pw.println("INFO_UPDATED " + sensorId);
+                    conn.send("INFO_UPDATED " + sensorId);
                     System.out.println("Klient " + getUsernameForClient(clientId) + ": aktualizacja informacji czujnika " + sensorId + 
                                        " (Nazwa: " + name + ", Roślina: " + plantName + ", Lokalizacja: " + room + ")");
-                    broadcastSensorInfoUpdate(sensorId, name, plantName, room);
+                    SensorRegistry.put(sensorId, name, plantName, room);
                 } else {
-                    pw.println("ERROR Czujnik nie znaleziony");
+                    sendError(conn, "UPDATE_INFO", sensorId, "Czujnik nie znaleziony");
                 }
             } else {
-                pw.println("ERROR Nieprawidłowy format parametrów");
+                sendError(conn, "UPDATE_INFO", parts[0].trim(), "Nieprawidłowy format parametrów");
             }
         } catch (Exception e) {
             System.err.println("Błąd podczas aktualizacji informacji o czujniku: " + e.getMessage());
-            pw.println("ERROR " + e.getMessage());
+            sendError(conn, "UPDATE_INFO", parts[0].trim(), e.getMessage());
         }
     }
 
     /**
      * Obsługuje polecenie HISTORY, które pobiera historyczne odczyty z określonego czujnika.
      *
-     * @param pw strumień wyjściowy do wysyłania odpowiedzi do klienta
+     * @param conn połączenie, przez które wysyłane są odpowiedzi do klienta
      * @param params parametry w formacie: sensorId,count
      */
-    private void handleHistoryCommand(PrintWriter pw, String params) {
+    private static void handleHistoryCommand(ClientConnection conn, String params) {
+        String[] parts = params.split(",");
+        String sensorId = parts[0].trim();
         try {
-            String[] parts = params.split(",");
-            if (parts.length < 1) {
-                pw.println("ERROR Nieprawidłowy format polecenia");
-                return;
-            }
-
-            String sensorId = parts[0].trim();
             int limit = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 100;
 
-            List<Reading> sensorHistory = SensorListener.getSensorHistory(sensorId);
-            if (sensorHistory == null || sensorHistory.isEmpty()) {
-                pw.println("ERROR Brak historycznych danych dla czujnika");
+            List<OutboundMessage> rows = queryCache.get("HISTORY", sensorId, limit, OutboundMessage::data);
+            if (rows == null || rows.isEmpty()) {
+                sendError(conn, "HISTORY", sensorId, "Brak historycznych danych dla czujnika");
                 return;
             }
 
-            int startIdx = Math.max(0, sensorHistory.size() - limit);
-            pw.println("HISTORY_START " + sensorId + " " + Math.min(limit, sensorHistory.size()));
-
-            for (int i = startIdx; i < sensorHistory.size(); i++) {
-                Reading reading = sensorHistory.get(i);
-                pw.println(formatReadingForHistory(reading));
+            conn.send("HISTORY_START " + sensorId + " " + rows.size());
+            for (OutboundMessage row : rows) {
+                conn.send(row);
             }
-
-            pw.println("HISTORY_END");
+            conn.send("HISTORY_END");
         } catch (Exception e) {
-            pw.println("ERROR " + e.getMessage());
+            sendError(conn, "HISTORY", sensorId, e.getMessage());
         }
     }
 
+    /**
+     * Obsługuje polecenie HISTORY_SINCE, które zwraca odczyty czujnika z historii w pamięci od podanego
+     * czasu (włącznie). Klient uzupełnia nimi przerwę po ponownym połączeniu. Odpowiedź ma postać
+     * jak dla HISTORY, także gdy nie ma takich odczytów (HISTORY_START sensorId 0).
+     *
+     * @param conn połączenie, przez które wysyłane są odpowiedzi do klienta
+     * @param params parametry w formacie: sensorId,yyyy-MM-dd HH:mm:ss
+     */
+    private static void handleHistorySinceCommand(ClientConnection conn, String params) {
+        String[] parts = params.split(",", 2);
+        String sensorId = parts[0].trim();
+        if (parts.length < 2) {
+            sendError(conn, "HISTORY_SINCE", sensorId, "Nieprawidłowy format polecenia");
+            return;
+        }
+        LocalDateTime since;
+        try {
+            since = DateFormatter.parse(parts[1].trim());
+        } catch (DateTimeParseException e) {
+            sendError(conn, "HISTORY_SINCE", sensorId, "Nieprawidłowy czas: " + parts[1].trim());
+            return;
+        }
+
+        List<OutboundMessage> rows = new ArrayList<>();
+        List<Reading> history = SensorListener.copySensorHistory(sensorId);
+        if (history != null) {
+            for (Reading reading : history) {
+                if (reading.time() != null && !reading.time().isBefore(since)) {
+                    rows.add(OutboundMessage.data(reading));
+                }
+            }
+        }
+        conn.send("HISTORY_START " + sensorId + " " + rows.size());
+        for (OutboundMessage row : rows) {
+            conn.send(row);
+        }
+        conn.send("HISTORY_END");
+    }
+
     /**
      * Obsługuje polecenie EXPORT, które eksportuje dane z określonego czujnika.
      *
-     * @param pw strumień wyjściowy do wysyłania odpowiedzi do klienta
+     * @param conn połączenie, przez które wysyłane są odpowiedzi do klienta
      * @param sensorId identyfikator czujnika
      */
-    private void handleExportCommand(PrintWriter pw, String sensorId) {
+    private static void handleExportCommand(ClientConnection conn, String sensorId) {
         try {
-            List<Reading> sensorHistory = SensorListener.getSensorHistory(sensorId);
-            if (sensorHistory == null || sensorHistory.isEmpty()) {
-                pw.println("ERROR Brak danych do eksportu");
+            List<OutboundMessage> rows = queryCache.get("EXPORT", sensorId, Integer.MAX_VALUE,
+                    reading -> OutboundMessage.line(formatReadingForExport(reading), false));
+            if (rows == null || rows.isEmpty()) {
+                sendError(conn, "EXPORT", sensorId, "Brak danych do eksportu");
                 return;
             }
 
-            pw.println("EXPORT_START " + sensorId);
-            pw.println("timestamp,temperature,humidity,soil,lux,red,green,blue,white,colorTemp");
-
-            for (Reading reading : sensorHistory) {
-                pw.println(String.format("%s,%s,%s,%s,%s,%s,%s,%s,%s,%s",
-                        DateFormatter.format(reading.time()),
-                        formatValue(reading.temperature()),
-                        formatValue(reading.humidity()),
-                        formatValue(reading.soil()),
-                        formatValue(reading.lux()),
-                        formatValue(reading.red()),
-                        formatValue(reading.green()),
-                        formatValue(reading.blue()),
-                        formatValue(reading.white()),
-                        formatValue(reading.colorTemperature())
-                ));
+            conn.send("EXPORT_START " + sensorId);
+            conn.send("timestamp,temperature,humidity,soil,lux,red,green,blue,white,colorTemp");
+            for (OutboundMessage row : rows) {
+                conn.send(row);
             }
-
-            pw.println("EXPORT_END");
+            conn.send("EXPORT_END");
         } catch (Exception e) {
-            pw.println("ERROR " + e.getMessage());
+            sendError(conn, "EXPORT", sensorId, e.getMessage());
         }
     }
 
@@ -325,20 +512,422 @@ public class ClientListener extends Thread {
      * @param clientId identyfikator klienta
      * @param username nazwa użytkownika
      */
-    private void handleUsernameCommand(String clientId, String username) {
+    private static void handleUsernameCommand(String clientId, String username) {
         if (username != null && !username.trim().isEmpty()) {
             clientUsernames.put(clientId, username);
             System.out.println("Klient zidentyfikował się jako: " + username);
         }
     }
 
+    /**
+     * Obsługuje polecenie DELIVERY, które ustawia sposób dostarczania aktualizacji odczytów.
+     * DELIVERY ALL wysyła każdą aktualizację, DELIVERY CONFLATE [hz] tylko najnowszą wartość
+     * każdego czujnika, nie częściej niż podana częstotliwość.
+     *
+     * @param conn połączenie, przez które wysyłane są odpowiedzi do klienta
+     * @param params tryb dostarczania i opcjonalna częstotliwość
+     */
+    private static void handleDeliveryCommand(ClientConnection conn, String params) {
+        String[] parts = params.split(" ");
+        String mode = parts[0].trim().toUpperCase();
+
+        try {
+            if (mode.equals("ALL")) {
+                conn.disableConflation();
+                conn.send("DELIVERY_OK ALL");
+            } else if (mode.equals("CONFLATE")) {
+                double hz = parts.length > 1 ? Double.parseDouble(parts[1].trim()) : Config.CONFLATION_MAX_HZ;
+                conn.enableConflation(hz);
+                conn.send("DELIVERY_OK CONFLATE " + hz);
+            } else {
+                conn.send("ERROR Nieznany tryb dostarczania: " + mode);
+            }
+        } catch (NumberFormatException e) {
+            conn.send("ERROR Nieprawidłowa częstotliwość: " + parts[1]);
+        }
+    }
+
+    /**
+     * Obsługuje polecenie REGISTRY, które zwraca migawkę rejestru metadanych czujników.
+     * Bez parametrów zwraca cały rejestr (wysyłany też każdemu klientowi po połączeniu),
+     * z parametrem "ROOM nazwa" lub "PLANT nazwa" - tylko czujniki z danego pomieszczenia lub z daną rośliną.
+     * Nagłówek: REGISTRY_START wersja liczbaCzujników [ROOM nazwa|PLANT nazwa]
+     * Format wiersza: SENSOR_INFO sensorId,name,plantName,room
+     * Zakończenie: REGISTRY_END wersja
+     * Migawka jest wysyłana jednym blokiem, więc zmiany rejestru nie przeplatają się z jej wierszami.
+     *
+     * @param conn połączenie, przez które wysyłane są odpowiedzi do klienta
+     * @param params opcjonalny filtr
+     */
+    static void handleRegistryCommand(ClientConnection conn, String params) {
+        String[] parts = params.split(" ", 2);
+        String filter = parts[0].trim().toUpperCase();
+        String value = parts.length > 1 ? parts[1].trim() : "";
+
+        SensorRegistry.Snapshot snapshot;
+        if (filter.isEmpty()) {
+            snapshot = SensorRegistry.snapshot(null, null);
+        } else if (filter.equals("ROOM") && !value.isEmpty()) {
+            snapshot = SensorRegistry.snapshot(value, null);
+        } else if (filter.equals("PLANT") && !value.isEmpty()) {
+            snapshot = SensorRegistry.snapshot(null, value);
+        } else {
+            sendError(conn, "REGISTRY", params, "Nieprawidłowy filtr rejestru");
+            return;
+        }
+
+        List<String> lines = new ArrayList<>(snapshot.sensors().size() + 2);
+        lines.add("REGISTRY_START " + snapshot.version() + " " + snapshot.sensors().size()
+                + (filter.isEmpty() ? "" : " " + filter + " " + value));
+        for (SensorRegistry.SensorMetadata entry : snapshot.sensors()) {
+            lines.add("SENSOR_INFO " + entry.toWire());
+        }
+        lines.add("REGISTRY_END " + snapshot.version());
+        conn.sendAll(lines);
+    }
+
+    /**
+     * Obsługuje polecenie STATS, które zwraca bieżące statystyki czujnika dla każdej mierzonej wielkości.
+     * Nagłówek: STATS_START sensorId liczbaWielkości
+     * Format wiersza: STAT wielkość,liczba,ostatnia,ewma,średnia,odchylenie,minDziś,maksDziś,zmianaNaMinutę,zScore,anomalia
+     * (brakujące wartości jako null, anomalia jako 0 lub 1)
+     * Zakończenie: STATS_END
+     *
+     * @param conn połączenie, przez które wysyłane są odpowiedzi do klienta
+     * @param sensorId identyfikator czujnika
+     */
+    private static void handleStatsCommand(ClientConnection conn, String sensorId) {
+        List<SensorStatistics.MetricStatistics> stats = SensorStatistics.get(sensorId);
+        if (stats == null) {
+            sendError(conn, "STATS", sensorId, "Czujnik nie znaleziony");
+            return;
+        }
+        List<String> lines = new ArrayList<>(stats.size() + 2);
+        lines.add("STATS_START " + sensorId + " " + stats.size());
+        for (SensorStatistics.MetricStatistics s : stats) {
+            lines.add("STAT " + s.toWire());
+        }
+        lines.add("STATS_END");
+        conn.sendAll(lines);
+    }
+
+    /**
+     * Obsługuje polecenie ALERT_ADD, które dodaje regułę alarmu sprawdzaną przy każdym odczycie.
+     * Format parametrów: wielkość,selektor,warunek[,histereza[,minimalnyCzasSek]], np.
+     * "soil,SENSOR:czujnik1,&lt;300,20,60" lub "temperature,ROOM:Salon,18..26,0.5".
+     * Odpowiedź: ALERT_ADDED id,definicja
+     *
+     * @param conn połączenie, przez które wysyłane są odpowiedzi do klienta
+     * @param params definicja reguły
+     * @param clientId identyfikator klienta
+     */
+    private static void handleAlertAddCommand(ClientConnection conn, String params, String clientId) {
+        try {
+            AlertRules.Rule rule = AlertRules.add(params);
+            conn.send("ALERT_ADDED " + rule.toWire());
+            System.out.println("Klient " + getUsernameForClient(clientId) + ": dodano regułę alarmu " + rule.id());
+        } catch (IllegalArgumentException e) {
+            conn.send("ERROR " + e.getMessage());
+        }
+    }
+
+    /**
+     * Obsługuje polecenie ALERT_REMOVE, które usuwa regułę alarmu.
+     *
+     * @param conn połączenie, przez które wysyłane są odpowiedzi do klienta
+     * @param params identyfikator reguły
+     * @param clientId identyfikator klienta
+     */
+    private static void handleAlertRemoveCommand(ClientConnection conn, String params, String clientId) {
+        try {
+            int id = Integer.parseInt(params.trim());
+            if (AlertRules.remove(id)) {
+                conn.send("ALERT_REMOVED " + id);
+                System.out.println("Klient " + getUsernameForClient(clientId) + ": usunięto regułę alarmu " + id);
+            } else {
+                conn.send("ERROR Reguła nie znaleziona: " + id);
+            }
+        } catch (NumberFormatException e) {
+            conn.send("ERROR Nieprawidłowy identyfikator reguły: " + params);
+        }
+    }
+
+    /**
+     * Obsługuje polecenie ALERTS, które zwraca reguły alarmów i aktywne alarmy.
+     * Nagłówek: ALERTS_START liczbaReguł liczbaAktywnychAlarmów
+     * Format wierszy: ALERT_RULE id,wielkość,selektor,warunek,histereza,minimalnyCzasSek
+     * oraz ALERT idReguły,sensorId,wielkość,wartość,FIRING,czas
+     * Zakończenie: ALERTS_END
+     *
+     * @param conn połączenie, przez które wysyłane są odpowiedzi do klienta
+     */
+    private static void handleAlertsCommand(ClientConnection conn) {
+        List<AlertRules.Rule> rules = AlertRules.list();
+        List<String> active = AlertRules.activeAlerts();
+        List<String> lines = new ArrayList<>(rules.size() + active.size() + 2);
+        lines.add("ALERTS_START " + rules.size() + " " + active.size());
+        for (AlertRules.Rule rule : rules) {
+            lines.add("ALERT_RULE " + rule.toWire());
+        }
+        lines.addAll(active);
+        lines.add("ALERTS_END");
+        conn.sendAll(lines);
+    }
+
+    /**
+     * Obsługuje polecenie WINDOW_ADD, które rejestruje stałe zapytanie okienkowe.
+     * Format parametrów: funkcja,wielkość,grupowanie,okno[,krok], np. "avg,humidity,ROOM,5m,1m"
+     * (średnia wilgotność w pomieszczeniach z 5 minut, co minutę) lub "max,lux,SENSOR,1h"
+     * (maksymalne natężenie światła każdego czujnika w pełnych godzinach).
+     * Odpowiedź: WINDOW_ADDED id,definicja
+     *
+     * @param conn połączenie, przez które wysyłane są odpowiedzi do klienta
+     * @param params definicja zapytania
+     * @param clientId identyfikator klienta
+     */
+    private static void handleWindowAddCommand(ClientConnection conn, String params, String clientId) {
+        try {
+            WindowQueries.Query query = WindowQueries.add(params);
+            conn.send("WINDOW_ADDED " + query.toWire());
+            System.out.println("Klient " + getUsernameForClient(clientId) + ": dodano zapytanie okienkowe " + query.id);
+        } catch (IllegalArgumentException e) {
+            conn.send("ERROR " + e.getMessage());
+        }
+    }
+
+    /**
+     * Obsługuje polecenia dotyczące istniejącego zapytania okienkowego:
+     * WINDOW_REMOVE id, WINDOW_SUBSCRIBE id, WINDOW_UNSUBSCRIBE id i WINDOW_RESULTS id.
+     * Subskrybent otrzymuje WINDOW_SUBSCRIBED id,definicja,liczbaWyników z ostatnimi wynikami,
+     * a następnie wyniki każdego zamkniętego okna.
+     * Format wyniku: WINDOW idZapytania,grupa,funkcja,wielkość,wynik,liczbaOdczytów,początekOkna,koniecOkna
+     * WINDOW_RESULTS zwraca wyniki ostatniego zamkniętego okna między WINDOW_RESULTS_START id liczba
+     * a WINDOW_RESULTS_END.
+     *
+     * @param conn połączenie, przez które wysyłane są odpowiedzi do klienta
+     * @param command polecenie
+     * @param params identyfikator zapytania
+     * @param clientId identyfikator klienta
+     */
+    private static void handleWindowQueryCommand(ClientConnection conn, String command, String params, String clientId) {
+        int id;
+        try {
+            id = Integer.parseInt(params.trim());
+        } catch (NumberFormatException e) {
+            conn.send("ERROR Nieprawidłowy identyfikator zapytania: " + params);
+            return;
+        }
+        switch (command) {
+            case "WINDOW_REMOVE":
+                if (WindowQueries.remove(id)) {
+                    conn.send("WINDOW_REMOVED " + id);
+                    System.out.println("Klient " + getUsernameForClient(clientId) + ": usunięto zapytanie okienkowe " + id);
+                    return;
+                }
+                break;
+            case "WINDOW_SUBSCRIBE":
+                if (WindowQueries.subscribe(conn, id)) return;
+                break;
+            case "WINDOW_UNSUBSCRIBE":
+                WindowQueries.unsubscribe(conn, id);
+                conn.send("WINDOW_UNSUBSCRIBED " + id);
+                return;
+            default:
+                if (WindowQueries.list().stream().anyMatch(q -> q.id == id)) {
+                    List<String> results = WindowQueries.latestResults(id);
+                    List<String> lines = new ArrayList<>(results.size() + 2);
+                    lines.add("WINDOW_RESULTS_START " + id + " " + results.size());
+                    lines.addAll(results);
+                    lines.add("WINDOW_RESULTS_END");
+                    conn.sendAll(lines);
+                    return;
+                }
+        }
+        conn.send("ERROR Zapytanie nie znalezione: " + id);
+    }
+
+    /**
+     * Obsługuje polecenie WINDOWS, które zwraca zarejestrowane zapytania okienkowe.
+     * Nagłówek: WINDOWS_START liczbaZapytań
+     * Format wiersza: WINDOW_QUERY id,funkcja,wielkość,grupowanie,okno,krok
+     * Zakończenie: WINDOWS_END
+     *
+     * @param conn połączenie, przez które wysyłane są odpowiedzi do klienta
+     */
+    private static void handleWindowsCommand(ClientConnection conn) {
+        List<WindowQueries.Query> queries = WindowQueries.list();
+        List<String> lines = new ArrayList<>(queries.size() + 2);
+        lines.add("WINDOWS_START " + queries.size());
+        for (WindowQueries.Query query : queries) {
+            lines.add("WINDOW_QUERY " + query.toWire());
+        }
+        lines.add("WINDOWS_END");
+        conn.sendAll(lines);
+    }
+
+    /**
+     * Odrzuca zmianę rejestru czujników na replice, która odtwarza rejestr z dziennika serwera głównego.
+     *
+     * @param conn połączenie, przez które wysyłane są odpowiedzi do klienta
+     * @param command nazwa polecenia
+     * @param params parametry polecenia; pierwszy parametr to identyfikator czujnika
+     * @return true, jeśli polecenie zostało odrzucone
+     */
+    private static boolean rejectOnReplica(ClientConnection conn, String command, String params) {
+        if (!ReplicaFollower.isActive()) return false;
+        sendError(conn, command, params.split(",", 2)[0].trim(),
+                "Serwer jest repliką - zmiany czujników przyjmuje serwer główny " + Config.REPLICA_OF);
+        return true;
+    }
+
+    /**
+     * Obsługuje polecenie ADMIN token, które uprawnia połączenie do poleceń administracyjnych.
+     * Odpowiedź: ADMIN_OK albo błąd, gdy token jest nieprawidłowy lub polecenia
+     * administracyjne są wyłączone ({@link Config#ADMIN_TOKEN}).
+     *
+     * @param conn połączenie, przez które wysyłane są odpowiedzi do klienta
+     * @param token token podany przez klienta
+     */
+    private static void handleAdminCommand(ClientConnection conn, String token) {
+        if (Config.ADMIN_TOKEN.isEmpty()) {
+            sendError(conn, "ADMIN", "", "Polecenia administracyjne są wyłączone");
+            return;
+        }
+        byte[] expected = Config.ADMIN_TOKEN.getBytes(StandardCharsets.UTF_8);
+        if (!MessageDigest.isEqual(expected, token.getBytes(StandardCharsets.UTF_8))) {
+            System.err.println("Nieprawidłowy token administracyjny od klienta " + conn.remoteAddress());
+            sendError(conn, "ADMIN", "", "Nieprawidłowy token");
+            return;
+        }
+        conn.grantAdmin();
+        conn.send("ADMIN_OK");
+    }
+
+    /**
+     * @param conn połączenie, przez które wysyłane są odpowiedzi do klienta
+     * @param command nazwa polecenia administracyjnego
+     * @param params parametry polecenia umieszczane w odpowiedzi błędu
+     * @return true, jeśli połączenie jest uprawnione do poleceń administracyjnych
+     */
+    private static boolean requireAdmin(ClientConnection conn, String command, String params) {
+        if (conn.isAdmin()) return true;
+        sendError(conn, command, params, "Polecenie wymaga uprawnień administracyjnych (ADMIN token)");
+        return false;
+    }
+
+    /**
+     * Wysyła błąd polecenia dotyczącego czujnika w postaci: ERROR polecenie sensorId: opis.
+     * Serwer odpowiada na polecenia połączenia w kolejności ich otrzymania, więc klient przypisuje
+     * błąd do najstarszego oczekującego zapytania tego rodzaju o ten czujnik.
+     *
+     * @param conn połączenie, przez które wysyłane są odpowiedzi do klienta
+     * @param command nazwa polecenia, np. HISTORY
+     * @param sensorId identyfikator czujnika (dla REGISTRY - filtr)
+     * @param message opis błędu
+     */
+    static void sendError(ClientConnection conn, String command, String sensorId, String message) {
+        conn.send("ERROR " + command + " " + sensorId + ": " + message);
+    }
+
+    /**
+     * Obsługuje polecenie REPLICATION, które zwraca stan replikacji serwera:
+     * REPLICATION PRIMARY ostatniWpis,liczbaReplik dla serwera prowadzącego dziennik,
+     * REPLICATION REPLICA serwerGłówny,połączona,zastosowanyWpis,ostatniWpisSerweraGłównego dla repliki
+     * lub REPLICATION OFF.
+     *
+     * @param conn połączenie, przez które wysyłane są odpowiedzi do klienta
+     */
+    private static void handleReplicationCommand(ClientConnection conn) {
+        if (ReplicaFollower.isActive()) {
+            conn.send("REPLICATION REPLICA " + ReplicaFollower.status());
+        } else if (ReplicationLog.isEnabled()) {
+            conn.send("REPLICATION PRIMARY " + ReplicationLog.getLastSeq() + "," + ReplicationListener.getReplicaCount());
+        } else {
+            conn.send("REPLICATION OFF");
+        }
+    }
+
+    /**
+     * Obsługuje polecenie SYNC host:port, które synchronizuje historię odczytów z serwerem
+     * o podanym adresie portu synchronizacji. Wymaga uprawnień administracyjnych, a adres musi być
+     * na liście {@link Config#SYNC_PEERS}. Synchronizacja odbywa się w wątku {@link HistorySync},
+     * więc odpowiedź może nadejść po odpowiedziach na późniejsze polecenia. Odpowiedź:
+     * SYNC_DONE serwer,czujniki,godziny,odebrane,wysłane,bajtyWysłane,bajtyOdebrane,czasMs
+     *
+     * @param conn połączenie, przez które wysyłane są odpowiedzi do klienta
+     * @param params adres serwera
+     */
+    private static void handleSyncCommand(ClientConnection conn, String params) {
+        if (!requireAdmin(conn, "SYNC", params)) return;
+        if (!HistorySync.isPeer(params)) {
+            sendError(conn, "SYNC", params, "Serwera nie ma na liście serwerów synchronizacji");
+            return;
+        }
+        HistorySync.submit(() -> {
+            try {
+                conn.send("SYNC_DONE " + HistorySync.sync(params).format());
+            } catch (IOException | RuntimeException e) {
+                sendError(conn, "SYNC", params, "Synchronizacja historii nie powiodła się: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Obsługuje polecenie QUEUES, które zwraca stan kolejki wychodzącej klienta wysyłającego
+     * polecenie. Identyfikatory i nazwy innych klientów nie są ujawniane.
+     * Nagłówek: QUEUES_START liczbaKlientów polityka taktMs
+     * Format wiersza: QUEUE clientId,użytkownik,długośćKolejki,odrzucone,wysłane,scalone,tryb,opróżnienia
+     *
+     * @param conn połączenie, przez które wysyłane są odpowiedzi do klienta
+     * @param clientId identyfikator klienta
+     */
+    private static void handleQueuesCommand(ClientConnection conn, String clientId) {
+        conn.send("QUEUES_START " + clients.size() + " " + overflowPolicy + " " + broadcaster.getTickMs());
+        ClientConnection c = clients.get(clientId);
+        if (c != null) {
+            conn.send(String.format("QUEUE %s,%s,%d,%d,%d,%d,%s,%d",
+                    clientId, getUsernameForClient(clientId), c.getQueueDepth(), c.getDroppedCount(), c.getSentCount(),
+                    c.getSupersededCount(), c.isConflating() ? "CONFLATE" : "ALL", c.getFlushCount()));
+        }
+        conn.send("QUEUES_END");
+    }
+
+    /**
+     * Obsługuje polecenie COMPRESSION, które zwraca statystyki kompresji połączenia klienta
+     * wysyłającego polecenie. Statystyki innych klientów nie są ujawniane.
+     * Format wiersza: COMPRESSION clientId,bajtyPrzed,bajtyPo,stopień,czasProcesoraMs
+     *
+     * @param conn połączenie, przez które wysyłane są odpowiedzi do klienta
+     * @param clientId identyfikator klienta
+     */
+    private static void handleCompressionCommand(ClientConnection conn, String clientId) {
+        conn.send("COMPRESSION_START");
+        MeteredDeflaterOutputStream z = conn.getCompression();
+        if (z != null) {
+            conn.send(String.format(Locale.ROOT, "COMPRESSION %s,%d,%d,%.2f,%.3f", clientId,
+                    z.getUncompressedBytes(), z.getCompressedBytes(), z.getRatio(), z.getCpuNanos() / 1e6));
+        }
+        conn.send("COMPRESSION_END");
+    }
+
+    /**
+     * Formatuje statystyki kompresji połączenia do zapisu w dzienniku.
+     *
+     * @param z strumień kompresujący połączenia
+     * @return opis statystyk kompresji
+     */
+    private static String formatCompression(MeteredDeflaterOutputStream z) {
+        return String.format(Locale.ROOT, "kompresja %d -> %d bajtów (%.2fx), czas procesora %.1f ms",
+                z.getUncompressedBytes(), z.getCompressedBytes(), z.getRatio(), z.getCpuNanos() / 1e6);
+    }
+
     /**
      * Zwraca nazwę użytkownika dla danego klienta.
      * 
      * @param clientId identyfikator klienta
      * @return nazwa użytkownika lub "Nieznany użytkownik" jeśli nie ustawiono
      */
-    private String getUsernameForClient(String clientId) {
+    private static String getUsernameForClient(String clientId) {
         return clientUsernames.getOrDefault(clientId, "Nieznany użytkownik");
     }
 
@@ -349,8 +938,19 @@ public class ClientListener extends Thread {
      * @param reading obiekt odczytu zawierający dane z czujnika
      */
     public static void broadcastUpdate(String sensorId, Reading reading) {
-        String update = formatReadingUpdate(sensorId, reading);
-        clients.values().forEach(pw -> pw.println(update));
+        OutboundMessage update = OutboundMessage.update(sensorId, reading, true);
+        broadcaster.submit(update);
+    }
+
+    /**
+     * Uwzględnia nowy odczyt zapisany w historii czujnika w przechowywanych odpowiedziach na zapytania.
+     *
+     * @param reading nowy odczyt
+     * @param revision numer wersji danych czujnika po zapisaniu odczytu
+     * @param historySize liczba odczytów w historii czujnika
+     */
+    static void readingStored(Reading reading, long revision, int historySize) {
+        queryCache.readingStored(reading, revision, historySize);
     }
 
     /**
@@ -361,7 +961,8 @@ public class ClientListener extends Thread {
      */
     public static void broadcastNewSensor(String sensorId) {
         String newSensorMsg = "NEW_SENSOR " + sensorId;
-        clients.values().forEach(pw -> pw.println(newSensorMsg));
+        OutboundMessage message = OutboundMessage.line(newSensorMsg, false);
+        broadcaster.submit(message);
     }
 
     /**
@@ -379,7 +980,22 @@ public class ClientListener extends Thread {
         
         String infoUpdate = String.format("SENSOR_INFO %s,%s,%s,%s", 
                 sensorId, safeName, safePlantName, safeRoom);
-        clients.values().forEach(pw -> pw.println(infoUpdate));
+        OutboundMessage message = OutboundMessage.line(infoUpdate, false);
+        broadcaster.submit(message);
+    }
+
+    /**
+     * Rozsyła zmianę rejestru metadanych czujników: wiersz REGISTRY_CHANGE z nową wersją rejestru,
+     * a po nim komunikat SENSOR_INFO lub SENSOR_REMOVED. Klient pomija zmiany nie nowsze niż
+     * otrzymana migawka. Przy przepełnionej kolejce komunikaty te nie są usuwane, aby zrobić
+     * miejsce na nowsze, ponieważ utrata zmiany rozsynchronizowałaby klienta z rejestrem.
+     *
+     * @param version wersja rejestru po zmianie
+     * @param change komunikat opisujący zmianę
+     */
+    static void broadcastRegistryChange(long version, String change) {
+        broadcaster.submit(OutboundMessage.line("REGISTRY_CHANGE " + version, false));
+        broadcaster.submit(OutboundMessage.line(change, false));
     }
 
     /**
@@ -389,7 +1005,8 @@ public class ClientListener extends Thread {
      */
     public static void broadcastSensorRemoved(String sensorId) {
         String removedMsg = "SENSOR_REMOVED " + sensorId;
-        clients.values().forEach(pw -> pw.println(removedMsg));
+        OutboundMessage message = OutboundMessage.line(removedMsg, false);
+        broadcaster.submit(message);
     }
 
     /**
@@ -399,7 +1016,16 @@ public class ClientListener extends Thread {
      * @param reading obiekt odczytu zawierający dane z czujnika
      * @return sformatowany ciąg znaków reprezentujący odczyt
      */
-    private static String formatReadingUpdate(String sensorId, Reading reading) {
+    static String formatReadingUpdate(String sensorId, Reading reading) {
+        TextLineEncoder encoder = TextLineEncoder.local().update(sensorId, reading);
+        return encoder.isAscii() ? encoder.toString() : formatReadingUpdateSlow(sensorId, reading);
+    }
+
+    /**
+     * Formatuje wiersz aktualizacji przez {@code String.format}; używana dla identyfikatorów
+     * ze znakami spoza ASCII, których nie obsługuje {@link TextLineEncoder}.
+     */
+    private static String formatReadingUpdateSlow(String sensorId, Reading reading) {
         return String.format("UPDATE %s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s",
                 sensorId,
                 formatValue(reading.temperature()),
@@ -421,7 +1047,16 @@ public class ClientListener extends Thread {
      * @param reading obiekt odczytu zawierający dane z czujnika
      * @return sformatowany ciąg znaków reprezentujący odczyt historyczny
      */
-    private static String formatReadingForHistory(Reading reading) {
+    static String formatReadingForHistory(Reading reading) {
+        TextLineEncoder encoder = TextLineEncoder.local().data(reading);
+        return encoder.isAscii() ? encoder.toString() : formatReadingForHistorySlow(reading);
+    }
+
+    /**
+     * Formatuje wiersz DATA przez {@code String.format}; używana dla identyfikatorów
+     * ze znakami spoza ASCII, których nie obsługuje {@link TextLineEncoder}.
+     */
+    private static String formatReadingForHistorySlow(Reading reading) {
         return String.format("DATA %s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s",
                 reading.deviceId(),
                 formatValue(reading.temperature()),
@@ -437,6 +1072,16 @@ public class ClientListener extends Thread {
         );
     }
 
+    /**
+     * Formatuje odczyt czujnika do wiersza eksportu CSV.
+     *
+     * @param reading obiekt odczytu zawierający dane z czujnika
+     * @return wiersz w formacie timestamp,temperature,humidity,soil,lux,red,green,blue,white,colorTemp
+     */
+    static String formatReadingForExport(Reading reading) {
+        return TextLineEncoder.local().export(reading).toString();
+    }
+
     /**
      * Formatuje pojedynczą wartość do ciągu znaków, obsługując wartości null.
      *
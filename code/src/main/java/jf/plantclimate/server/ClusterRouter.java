@@ -0,0 +1,205 @@
+package jf.plantclimate.server;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import jf.plantclimate.data.Config;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Router klastra serwerów. Czujniki są rozdzielone między kilka procesów {@link PlantClimateServer}
+ * (węzłów) według spójnego haszowania identyfikatora czujnika, a router przyjmuje połączenia
+ * czujników i klientów na zwykłych portach i kieruje je do właściwych węzłów.
+ *
+ * <p>Odczyt czujnika jest przekazywany bez zmian do węzła, do którego należy czujnik.
+ * Klient łączy się z routerem jak z pojedynczym serwerem; router utrzymuje dla niego połączenie
+ * z każdym węzłem, przekazuje polecenia dotyczące czujnika (GET, PAIR, UNPAIR, UPDATE_INFO,
+ * HISTORY, EXPORT, STATS) do węzła-właściciela, a wyniki poleceń obejmujących wiele czujników
+ * (LIST, REGISTRY) scala z odpowiedzi wszystkich węzłów. Komunikaty rozgłaszane przez węzły
+ * trafiają do klienta bez zmian.</p>
+ *
+ * <p>Węzły uruchamia się jako zwykłe serwery z własnymi portami i katalogiem danych
+ * (plantclimate.sensorPort, plantclimate.clientPort, plantclimate.dataDir), a router z listą
+ * węzłów w plantclimate.clusterNodes. Router obsługuje wyłącznie protokół tekstowy.</p>
+ */
+public class ClusterRouter {
+    /**
+     * Liczba punktów pierścienia przypadających na węzeł.
+     */
+    static final int VIRTUAL_NODES = 128;
+
+    /**
+     * Węzeł klastra.
+     *
+     * @param host adres węzła
+     * @param sensorPort port czujników węzła
+     * @param clientPort port klientów węzła
+     */
+    record Node(String host, int sensorPort, int clientPort) {
+        /**
+         * @return nazwa węzła wyznaczająca jego miejsce na pierścieniu
+         */
+        String name() {
+            return host + ":" + sensorPort;
+        }
+    }
+
+    private final List<Node> nodes;
+    private final ConsistentHashRing<Node> ring;
+    private final Map<Node, AtomicLong> forwarded = new ConcurrentHashMap<>();
+    private final Map<Node, AtomicLong> failed = new ConcurrentHashMap<>();
+
+    /**
+     * @param nodes węzły klastra
+     */
+    ClusterRouter(List<Node> nodes) {
+        this.nodes = List.copyOf(nodes);
+        this.ring = new ConsistentHashRing<>(this.nodes, VIRTUAL_NODES, Node::name);
+        for (Node node : this.nodes) {
+            forwarded.put(node, new AtomicLong());
+            failed.put(node, new AtomicLong());
+        }
+    }
+
+    /**
+     * Uruchamia router z węzłami podanymi w plantclimate.clusterNodes.
+     */
+    public static void main(String[] args) {
+        List<Node> nodes;
+        try {
+            nodes = parseNodes(Config.CLUSTER_NODES);
+        } catch (RuntimeException e) {
+            System.err.println("Nieprawidłowa lista węzłów klastra: " + e.getMessage());
+            return;
+        }
+        if (nodes.isEmpty()) {
+            System.err.println("Brak węzłów klastra - ustaw plantclimate.clusterNodes");
+            return;
+        }
+
+        System.out.println("Uruchamianie routera klastra...");
+        System.out.println("Port czujników: " + Config.SENSOR_PORT);
+        System.out.println("Port klientów: " + Config.CLIENT_PORT);
+        nodes.forEach(n -> System.out.println("Węzeł: " + n.name() + " (klienci: " + n.clientPort() + ")"));
+        new ClusterRouter(nodes).start();
+        System.out.println("Router uruchomiony pomyślnie");
+    }
+
+    /**
+     * Odczytuje listę węzłów w formacie host:portCzujników:portKlientów rozdzielonych przecinkami.
+     */
+    static List<Node> parseNodes(String spec) {
+        List<Node> result = new ArrayList<>();
+        for (String part : spec.split(",")) {
+            if (part.isBlank()) continue;
+            String[] f = part.trim().split(":");
+            if (f.length != 3) {
+                throw new IllegalArgumentException(part.trim());
+            }
+            result.add(new Node(f[0], Integer.parseInt(f[1]), Integer.parseInt(f[2])));
+        }
+        return result;
+    }
+
+    /**
+     * Uruchamia wątki przyjmujące połączenia czujników i klientów.
+     */
+    void start() {
+        new Thread(this::acceptSensors, "router-sensors").start();
+        new Thread(this::acceptClients, "router-clients").start();
+    }
+
+    private void acceptSensors() {
+        try (ServerSocket ss = new ServerSocket(Config.SENSOR_PORT)) {
+            while (true) {
+                Socket s = ss.accept();
+                new Thread(() -> forwardReading(s)).start();
+            }
+        } catch (IOException e) {
+            System.err.println("Błąd podczas uruchamiania nasłuchiwania czujników: " + e.getMessage());
+        }
+    }
+
+    private void acceptClients() {
+        try (ServerSocket ss = new ServerSocket(Config.CLIENT_PORT)) {
+            while (true) {
+                Socket s = ss.accept();
+                new Thread(new RouterSession(this, s), "router-client").start();
+            }
+        } catch (IOException e) {
+            System.err.println("Błąd podczas uruchamiania nasłuchiwania klientów: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Przekazuje odczyt czujnika do węzła, do którego należy czujnik.
+     * Kodowanie znaków jest takie samo jak przy odczycie w {@link SensorListener}.
+     */
+    private void forwardReading(Socket s) {
+        Node owner = null;
+        try (s; BufferedReader br = new BufferedReader(new InputStreamReader(s.getInputStream()))) {
+            String json = br.readLine();
+            if (json == null || json.isBlank()) return;
+            String sensorId = sensorIdOf(json);
+            if (sensorId == null) {
+                System.err.println("Odczyt bez identyfikatora czujnika: " + json);
+                return;
+            }
+            owner = ring.owner(sensorId);
+            try (Socket target = new Socket(owner.host(), owner.sensorPort())) {
+                OutputStream os = target.getOutputStream();
+                os.write((json + "\n").getBytes());
+                os.flush();
+            }
+            forwarded.get(owner).incrementAndGet();
+        } catch (IOException | RuntimeException e) {
+            if (owner != null) {
+                failed.get(owner).incrementAndGet();
+            }
+            System.err.println("Błąd przekazywania odczytu" + (owner != null ? " do węzła " + owner.name() : "")
+                    + ": " + e.getMessage());
+        }
+    }
+
+    private static String sensorIdOf(String json) {
+        JsonObject o = JsonParser.parseString(json).getAsJsonObject();
+        JsonElement id = o.get("id");
+        if (id == null || id.isJsonNull() || id.getAsString().isEmpty()) {
+            id = o.get("deviceId");
+        }
+        return id == null || id.isJsonNull() ? null : id.getAsString();
+    }
+
+    /**
+     * Zwraca węzeł, do którego należy czujnik.
+     *
+     * @param sensorId identyfikator czujnika
+     * @return węzeł właściciel
+     */
+    Node owner(String sensorId) {
+        return ring.owner(sensorId);
+    }
+
+    List<Node> getNodes() {
+        return nodes;
+    }
+
+    long getForwardedCount(Node node) {
+        return forwarded.get(node).get();
+    }
+
+    long getFailedCount(Node node) {
+        return failed.get(node).get();
+    }
+}
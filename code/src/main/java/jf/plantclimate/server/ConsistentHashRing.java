@@ -0,0 +1,67 @@
+package jf.plantclimate.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+/**
+ * Pierścień spójnego haszowania przypisujący klucze (identyfikatory czujników) węzłom.
+ *
+ * <p>Każdy węzeł zajmuje na pierścieniu wiele punktów (węzłów wirtualnych), a klucz należy
+ * do pierwszego punktu za swoim skrótem. Dzięki temu klucze rozkładają się między węzły
+ * równomiernie, a dodanie lub usunięcie węzła przenosi tylko część kluczy należącą do tego węzła.
+ * Przypisanie zależy wyłącznie od nazw węzłów, więc jest takie samo w każdym procesie.</p>
+ *
+ * @param <T> typ węzła
+ */
+final class ConsistentHashRing<T> {
+    private final TreeMap<Long, T> ring = new TreeMap<>();
+
+    /**
+     * @param nodes węzły
+     * @param virtualNodes liczba punktów pierścienia na węzeł
+     * @param name nazwa węzła wyznaczająca jego punkty; musi być unikalna
+     */
+    ConsistentHashRing(Collection<T> nodes, int virtualNodes, Function<T, String> name) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("Pierścień wymaga co najmniej jednego węzła");
+        }
+        for (T node : nodes) {
+            String nodeName = name.apply(node);
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(nodeName + "#" + i), node);
+            }
+        }
+    }
+
+    /**
+     * Zwraca węzeł, do którego należy klucz.
+     *
+     * @param key klucz, np. identyfikator czujnika
+     * @return węzeł właściciel
+     */
+    T owner(String key) {
+        Map.Entry<Long, T> e = ring.ceilingEntry(hash(key));
+        return e != null ? e.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * 64-bitowy skrót FNV-1a bajtów UTF-8 z końcowym mieszaniem bitów (jak w MurmurHash3),
+     * aby podobne klucze (np. czujnik1, czujnik2) trafiały w odległe miejsca pierścienia.
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,46 @@
+package jf.plantclimate.server;
+
+import jf.plantclimate.data.Reading;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stan kodowania różnicowego jednego połączenia: ostatnia aktualizacja dostarczona klientowi
+ * dla każdego czujnika oraz liczba aktualizacji od ostatniej pełnej aktualizacji.
+ * Używany wyłącznie przez wątek zapisujący połączenia.
+ */
+class DeltaState {
+    private final int keyframeInterval;
+    private final Map<String, Entry> sensors = new HashMap<>();
+
+    private static final class Entry {
+        private Reading last;
+        private int sinceKeyframe;
+    }
+
+    /**
+     * @param keyframeInterval co ile aktualizacji czujnika wysyłana jest pełna aktualizacja
+     */
+    DeltaState(int keyframeInterval) {
+        this.keyframeInterval = Math.max(1, keyframeInterval);
+    }
+
+    /**
+     * Rejestruje aktualizację wysyłaną klientowi i zwraca odczyt, względem którego należy liczyć różnicę.
+     *
+     * @param sensorId identyfikator czujnika
+     * @param reading wysyłany odczyt
+     * @return poprzednio dostarczony odczyt lub null, gdy należy wysłać pełną aktualizację
+     */
+    Reading advance(String sensorId, Reading reading) {
+        Entry entry = sensors.computeIfAbsent(sensorId, k -> new Entry());
+        Reading base = entry.last;
+        entry.last = reading;
+        if (base == null || ++entry.sinceKeyframe >= keyframeInterval) {
+            entry.sinceKeyframe = 0;
+            return null;
+        }
+        return base;
+    }
+}
@@ -0,0 +1,307 @@
+package jf.plantclimate.server;
+
+import jf.plantclimate.data.Config;
+import jf.plantclimate.data.Reading;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * Tryb przekaźnika: serwer w zdalnej szklarni przyjmuje odczyty lokalnych czujników na zwykłym
+ * porcie czujników i przekazuje je do serwera centralnego paczkami przez jedno stałe połączenie.
+ *
+ * <p>Odczyty są najpierw zapisywane w {@link RelaySpool} na dysku, więc przerwa w łączności
+ * ani ponowne uruchomienie przekaźnika ich nie gubi - po odzyskaniu połączenia przekaźnik
+ * wysyła zaległe odczyty w kolejności przyjęcia. Paczka zawiera do {@link Config#RELAY_BATCH_SIZE}
+ * odczytów w formacie plików CSV, skompresowanych algorytmem Deflate. Opcjonalnie przekaźnik
+ * uśrednia odczyty każdego czujnika z okresu {@link Config#RELAY_AGGREGATE_MS}; odczyty z bieżącego
+ * okresu są wtedy przechowywane tylko w pamięci.</p>
+ *
+ * <p>Protokół na porcie czujników serwera centralnego: przekaźnik wysyła "RELAY identyfikator",
+ * serwer odpowiada "RELAY_ACK numer" z numerem ostatniego zapisanego odczytu przekaźnika.
+ * Każda paczka to wiersz "BATCH pierwszyNumer liczba długość" i długość bajtów skompresowanych
+ * wpisów "numer,odczytCSV", na którą serwer odpowiada "ACK numer" po zapisaniu odczytów.
+ * Serwer pomija odczyty o numerach już zapisanych, więc ponowne wysłanie paczki ich nie powiela.</p>
+ */
+final class EdgeRelay {
+    /**
+     * Czas (ms) oczekiwania na potwierdzenie paczki.
+     */
+    private static final int ACK_TIMEOUT_MS = 30_000;
+
+    /**
+     * Maksymalny odstęp (ms) między próbami połączenia z serwerem centralnym.
+     */
+    private static final long MAX_RECONNECT_DELAY_MS = 30_000;
+
+    private final RelaySpool spool;
+    private final String relayId;
+    private final String host;
+    private final int port;
+    private final Map<String, Aggregate> aggregates = new HashMap<>();
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong rawBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+
+    private EdgeRelay(RelaySpool spool, String relayId, String host, int port) {
+        this.spool = spool;
+        this.relayId = relayId;
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Uruchamia przekaźnik: przyjmowanie odczytów czujników, uśrednianie (jeśli włączone)
+     * i wysyłanie paczek do serwera centralnego.
+     */
+    static void start() {
+        String[] address = Config.RELAY_TO.split(":");
+        String relayId = Config.RELAY_ID;
+        if (relayId.isEmpty()) {
+            try {
+                relayId = InetAddress.getLocalHost().getHostName();
+            } catch (IOException e) {
+                relayId = "relay";
+            }
+        }
+
+        RelaySpool spool;
+        try {
+            spool = new RelaySpool(Paths.get(Config.DATA_DIR, "relay"));
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Nie można otworzyć bufora przekaźnika: " + e.getMessage());
+            return;
+        }
+        System.out.println("Przekaźnik " + relayId + " -> " + Config.RELAY_TO + ", odczyty w buforze: "
+                + (spool.getLastSeq() - spool.getAcked()));
+
+        EdgeRelay relay = new EdgeRelay(spool, relayId, address[0], Integer.parseInt(address[1]));
+        new Thread(relay::acceptSensors, "relay-sensors").start();
+        Thread forwarder = new Thread(relay::forward, "relay-forwarder");
+        forwarder.setDaemon(true);
+        forwarder.start();
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "relay-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        if (Config.RELAY_AGGREGATE_MS > 0) {
+            scheduler.scheduleAtFixedRate(relay::flushAggregates, Config.RELAY_AGGREGATE_MS,
+                    Config.RELAY_AGGREGATE_MS, TimeUnit.MILLISECONDS);
+        }
+        scheduler.scheduleAtFixedRate(relay::printStats, 60, 60, TimeUnit.SECONDS);
+    }
+
+    private void acceptSensors() {
+        try (ServerSocket ss = new ServerSocket(Config.SENSOR_PORT)) {
+            while (true) {
+                Socket s = ss.accept();
+                new Thread(() -> handle(s)).start();
+            }
+        } catch (IOException e) {
+            System.err.println("Błąd podczas uruchamiania nasłuchiwania czujników: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Przyjmuje odczyt czujnika i zapisuje go w buforze lub dolicza do średniej.
+     */
+    private void handle(Socket s) {
+        try (s; BufferedReader br = new BufferedReader(new InputStreamReader(s.getInputStream()))) {
+            String json = br.readLine();
+            if (!SensorListener.isValidJson(json)) return;
+            Reading reading = SensorListener.createReadingFromJson(json);
+            received.incrementAndGet();
+            if (Config.RELAY_AGGREGATE_MS > 0) {
+                synchronized (aggregates) {
+                    aggregates.computeIfAbsent(reading.deviceId(), k -> new Aggregate()).add(reading);
+                }
+            } else {
+                spool.append(SensorListener.toCsv(reading));
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Błąd podczas obsługi połączenia czujnika: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Zapisuje w buforze średnie odczytów z zakończonego okresu.
+     */
+    private void flushAggregates() {
+        List<Reading> readings = new ArrayList<>();
+        synchronized (aggregates) {
+            for (Map.Entry<String, Aggregate> e : aggregates.entrySet()) {
+                readings.add(e.getValue().toReading(e.getKey()));
+            }
+            aggregates.clear();
+        }
+        try {
+            for (Reading reading : readings) {
+                spool.append(SensorListener.toCsv(reading));
+            }
+        } catch (IOException e) {
+            System.err.println("Błąd zapisu bufora przekaźnika: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Wysyła paczki odczytów do serwera centralnego, łącząc się ponownie po utracie połączenia.
+     */
+    private void forward() {
+        long reconnectDelay = 1000;
+        boolean reported = false;
+        Deflater deflater = new Deflater();
+        while (true) {
+            try (Socket s = new Socket(host, port)) {
+                s.setSoTimeout(ACK_TIMEOUT_MS);
+                OutputStream os = new BufferedOutputStream(s.getOutputStream());
+                BufferedReader br = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                os.write(("RELAY " + relayId + "\n").getBytes(StandardCharsets.UTF_8));
+                os.flush();
+                long position = parseReply(br.readLine(), "RELAY_ACK");
+                spool.ack(position);
+                position = Math.max(position, spool.getAcked());
+                System.out.println("Połączono z serwerem centralnym " + Config.RELAY_TO + " (potwierdzone odczyty: "
+                        + position + ", do wysłania: " + (spool.getLastSeq() - position) + ")");
+                reconnectDelay = 1000;
+                reported = false;
+
+                while (true) {
+                    if (spool.await(position, 1000) <= 0) continue;
+                    if (spool.getLastSeq() - position < Config.RELAY_BATCH_SIZE) {
+                        Thread.sleep(Config.RELAY_LINGER_MS);
+                    }
+                    List<String> entries = spool.read(position, Config.RELAY_BATCH_SIZE);
+                    if (entries.isEmpty()) continue;
+
+                    StringBuilder sb = new StringBuilder(entries.size() * 96);
+                    for (String entry : entries) {
+                        sb.append(entry).append('\n');
+                    }
+                    byte[] raw = sb.toString().getBytes(StandardCharsets.UTF_8);
+                    byte[] compressed = deflate(deflater, raw);
+                    String first = entries.get(0);
+                    os.write(("BATCH " + first.substring(0, first.indexOf(',')) + " " + entries.size() + " "
+                            + compressed.length + "\n").getBytes(StandardCharsets.UTF_8));
+                    os.write(compressed);
+                    os.flush();
+
+                    position = parseReply(br.readLine(), "ACK");
+                    spool.ack(position);
+                    sent.addAndGet(entries.size());
+                    batches.incrementAndGet();
+                    rawBytes.addAndGet(raw.length);
+                    compressedBytes.addAndGet(compressed.length);
+                }
+            } catch (IOException | RuntimeException e) {
+                if (!reported) {
+                    System.err.println("Brak połączenia z serwerem centralnym " + Config.RELAY_TO + ": " + e.getMessage());
+                    reported = true;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                Thread.sleep(reconnectDelay);
+            } catch (InterruptedException e) {
+                return;
+            }
+            reconnectDelay = Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY_MS);
+        }
+    }
+
+    private static long parseReply(String line, String expected) throws IOException {
+        if (line == null || !line.startsWith(expected + " ")) {
+            throw new IOException("Nieoczekiwana odpowiedź serwera centralnego: " + line);
+        }
+        return Long.parseLong(line.substring(expected.length() + 1).trim());
+    }
+
+    private static byte[] deflate(Deflater deflater, byte[] raw) {
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4 + 64);
+        byte[] buf = new byte[8192];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buf);
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private void printStats() {
+        long raw = rawBytes.get();
+        long compressed = compressedBytes.get();
+        System.out.println("Przekaźnik: przyjęto " + received.get() + " odczytów, wysłano " + sent.get()
+                + " w " + batches.get() + " paczkach (" + raw + " B -> " + compressed + " B), w buforze "
+                + (spool.getLastSeq() - spool.getAcked()));
+    }
+
+    /**
+     * Sumy wartości odczytów jednego czujnika z bieżącego okresu uśredniania.
+     */
+    private static final class Aggregate {
+        private static final Metric[] METRICS = Metric.values();
+
+        final double[] sums = new double[METRICS.length];
+        final int[] counts = new int[METRICS.length];
+        LocalDateTime time;
+
+        void add(Reading reading) {
+            for (int i = 0; i < METRICS.length; i++) {
+                Number value = METRICS[i].value(reading);
+                if (value != null) {
+                    sums[i] += value.doubleValue();
+                    counts[i]++;
+                }
+            }
+            if (time == null || reading.time().isAfter(time)) {
+                time = reading.time();
+            }
+        }
+
+        /**
+         * Zwraca odczyt ze średnimi wartościami i czasem ostatniego odczytu okresu.
+         */
+        Reading toReading(String sensorId) {
+            return new Reading(sensorId,
+                    average(Metric.TEMPERATURE), average(Metric.HUMIDITY), rounded(Metric.SOIL),
+                    average(Metric.LUX), rounded(Metric.RED), rounded(Metric.GREEN), rounded(Metric.BLUE),
+                    rounded(Metric.WHITE), average(Metric.COLOR_TEMPERATURE), time);
+        }
+
+        private Double average(Metric metric) {
+            int i = metric.ordinal();
+            return counts[i] > 0 ? sums[i] / counts[i] : null;
+        }
+
+        private Integer rounded(Metric metric) {
+            Double avg = average(metric);
+            return avg != null ? (int) Math.round(avg) : null;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package jf.plantclimate.server;
+
+import jf.plantclimate.data.Config;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Skróty historii odczytów czujnika zapisanej w pliku CSV, używane przez {@link HistorySync}
+ * do wyszukania fragmentów historii, które różnią się między dwoma serwerami.
+ *
+ * <p>Historia czujnika jest podzielona na godziny według znacznika czasu odczytu. Skrót godziny
+ * to suma 64-bitowych skrótów jej wierszy CSV oraz ich liczba. Suma nie zależy od kolejności
+ * wierszy w pliku, a skróty dni i całego czujnika są sumami skrótów godzin, więc drzewo
+ * czujnik - dzień - godzina nie wymaga przeliczania przy dopisaniu odczytu.</p>
+ *
+ * <p>Skróty czujnika są wyliczane z pliku przy pierwszym użyciu, a później aktualizowane przy
+ * każdym zapisie. Zapis do pliku i aktualizacja skrótu odbywają się pod blokadą obiektu skrótu
+ * czujnika, więc odczyt pliku pod tą samą blokadą widzi dokładnie wiersze ujęte w skrócie.</p>
+ */
+final class HistoryDigest {
+    private static final Map<String, HistoryDigest> digests = new ConcurrentHashMap<>();
+
+    private final File file;
+    /** Godzina "yyyy-MM-dd HH" -> {suma skrótów, liczba wierszy}. */
+    private final TreeMap<String, long[]> hours = new TreeMap<>();
+    private final long[] total = new long[2];
+    private boolean built;
+    private String lastHour;
+    private long[] lastBucket;
+
+    private HistoryDigest(String sensorId) {
+        this.file = new File(Config.DATA_DIR, sensorId + ".csv");
+    }
+
+    /**
+     * Zwraca skrót historii czujnika. Obiekt skrótu jest też blokadą zapisu pliku CSV czujnika.
+     *
+     * @param sensorId identyfikator czujnika
+     * @return skrót historii czujnika
+     */
+    static HistoryDigest of(String sensorId) {
+        return digests.computeIfAbsent(sensorId, HistoryDigest::new);
+    }
+
+    /**
+     * Uwzględnia wiersz dopisany do pliku CSV. Wywoływana pod blokadą skrótu, razem z zapisem wiersza.
+     *
+     * @param csv wiersz pliku CSV
+     */
+    synchronized void add(String csv) {
+        if (built) {
+            addLine(csv);
+        }
+    }
+
+    /**
+     * @return {suma skrótów, liczba wierszy} całej historii czujnika
+     */
+    synchronized long[] total() {
+        build();
+        return total.clone();
+    }
+
+    /**
+     * @return dzień "yyyy-MM-dd" -> {suma skrótów, liczba wierszy}
+     */
+    synchronized Map<String, long[]> days() {
+        build();
+        Map<String, long[]> result = new TreeMap<>();
+        for (Map.Entry<String, long[]> e : hours.entrySet()) {
+            long[] day = result.computeIfAbsent(dayOf(e.getKey()), k -> new long[2]);
+            day[0] += e.getValue()[0];
+            day[1] += e.getValue()[1];
+        }
+        return result;
+    }
+
+    /**
+     * @param day dzień "yyyy-MM-dd"
+     * @return godzina "yyyy-MM-dd HH" -> {suma skrótów, liczba wierszy} dla godzin podanego dnia
+     */
+    synchronized Map<String, long[]> hours(String day) {
+        build();
+        Map<String, long[]> result = new TreeMap<>();
+        for (Map.Entry<String, long[]> e : hours.subMap(day, day + Character.MAX_VALUE).entrySet()) {
+            if (dayOf(e.getKey()).equals(day)) {
+                result.put(e.getKey(), e.getValue().clone());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Zwraca wiersze pliku CSV czujnika z podanych godzin. Plik jest czytany pod blokadą skrótu,
+     * więc zapis odczytów czujnika czeka do końca odczytu.
+     *
+     * @param wanted godziny "yyyy-MM-dd HH"
+     * @return wiersze w kolejności pliku
+     */
+    synchronized List<String> lines(Set<String> wanted) throws IOException {
+        List<String> result = new ArrayList<>();
+        if (!file.exists()) return result;
+        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (isData(line) && wanted.contains(hourOf(line))) {
+                    result.add(line);
+                }
+            }
+        }
+        return result;
+    }
+
+    private void build() {
+        if (built) return;
+        if (file.exists()) {
+            try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    if (isData(line)) addLine(line);
+                }
+            } catch (IOException e) {
+                System.err.println("Błąd wczytywania historii do skrótu: " + e.getMessage());
+            }
+        }
+        built = true;
+    }
+
+    private void addLine(String csv) {
+        long h = hash(csv);
+        // odczyty są zwykle dopisywane w kolejności czasu, więc kolejny wiersz trafia najczęściej do tej samej godziny
+        int time = csv.lastIndexOf(',') + 1;
+        long[] bucket = lastBucket;
+        if (bucket == null || csv.length() - time < 13 || !csv.regionMatches(time, lastHour, 0, 13)) {
+            lastHour = hourOf(csv);
+            bucket = lastBucket = hours.computeIfAbsent(lastHour, k -> new long[2]);
+        }
+        bucket[0] += h;
+        bucket[1]++;
+        total[0] += h;
+        total[1]++;
+    }
+
+    /**
+     * 64-bitowy skrót wiersza: FNV-1a znaków z końcowym mieszaniem bitów jak w {@link ConsistentHashRing#hash}.
+     * Sumy skrótów wierszy są porównywane między serwerami, więc funkcja nie może się zmieniać.
+     */
+    static long hash(String csv) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < csv.length(); i++) {
+            h ^= csv.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Sprawdza, czy wiersz pliku CSV jest odczytem, a nie nagłówkiem lub pustym wierszem.
+     */
+    static boolean isData(String line) {
+        return !line.isEmpty() && !line.startsWith("deviceId,");
+    }
+
+    /**
+     * Zwraca godzinę odczytu "yyyy-MM-dd HH" - początek znacznika czasu z ostatniego pola wiersza CSV.
+     */
+    static String hourOf(String csv) {
+        String time = csv.substring(csv.lastIndexOf(',') + 1);
+        return time.length() >= 13 ? time.substring(0, 13) : time;
+    }
+
+    /**
+     * Zwraca dzień "yyyy-MM-dd" godziny "yyyy-MM-dd HH".
+     */
+    static String dayOf(String hour) {
+        return hour.length() >= 10 ? hour.substring(0, 10) : hour;
+    }
+}
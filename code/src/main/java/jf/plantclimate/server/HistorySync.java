@@ -0,0 +1,340 @@
+package jf.plantclimate.server;
+
+import jf.plantclimate.data.Config;
+import jf.plantclimate.protocol.MeteredDeflaterOutputStream;
+import jf.plantclimate.protocol.MeteredInflaterInputStream;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Synchronizacja historii odczytów z innym serwerem (anti-entropy): po awarii, przerwie w replikacji
+ * lub przyjmowaniu odczytów przez różne serwery oba serwery kończą z sumą swoich historii.
+ *
+ * <p>Serwer porównuje skróty historii ({@link HistoryDigest}) z serwerem na porcie synchronizacji
+ * ({@link HistorySyncListener}) od góry drzewa: najpierw skróty czujników, następnie dni czujników,
+ * które się różnią, a na końcu godziny tych dni. Przesyłane są tylko odczyty z godzin o różnych
+ * skrótach - każda strona dostaje te, których nie ma. Oba kierunki połączenia są kompresowane.</p>
+ *
+ * <p>Synchronizację z serwerami {@link Config#SYNC_PEERS} powtarza co {@link Config#SYNC_INTERVAL_MS}
+ * osobny wątek; klient z uprawnieniami administracyjnymi może ją też zlecić poleceniem SYNC host:port.</p>
+ */
+final class HistorySync {
+    /**
+     * Czas oczekiwania (ms) na odpowiedź drugiego serwera.
+     */
+    private static final int TIMEOUT_MS = 120_000;
+
+    /**
+     * Maksymalna liczba godzin pobieranych jednym poleceniem FETCH, ograniczająca liczbę
+     * odczytów przechowywanych naraz w pamięci.
+     */
+    private static final int FETCH_HOURS = 168;
+
+    /**
+     * Wynik synchronizacji.
+     *
+     * @param peer adres drugiego serwera
+     * @param sensors liczba czujników o różnej historii
+     * @param hours liczba godzin o różnych skrótach
+     * @param received liczba odczytów dopisanych na tym serwerze
+     * @param sent liczba odczytów wysłanych drugiemu serwerowi
+     * @param bytesOut liczba bajtów wysłanych (po kompresji)
+     * @param bytesIn liczba bajtów odebranych (po kompresji)
+     * @param millis czas synchronizacji w milisekundach
+     */
+    record Result(String peer, int sensors, int hours, int received, int sent, long bytesOut, long bytesIn, long millis) {
+        /**
+         * @return dane komunikatu SYNC_DONE:
+         *         serwer,czujniki,godziny,odebrane,wysłane,bajtyWysłane,bajtyOdebrane,czasMs
+         */
+        String format() {
+            return peer + "," + sensors + "," + hours + "," + received + "," + sent + ","
+                    + bytesOut + "," + bytesIn + "," + millis;
+        }
+    }
+
+    /**
+     * Wątek wykonujący synchronizacje zlecone poleceniem SYNC, aby nie zajmowały wątków poleceń klientów.
+     */
+    private static final ExecutorService requests = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "history-sync-request");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private HistorySync() {
+    }
+
+    /**
+     * @param address adres portu synchronizacji (host:port)
+     * @return true, jeśli adres jest na liście {@link Config#SYNC_PEERS}
+     */
+    static boolean isPeer(String address) {
+        for (String peer : Config.SYNC_PEERS.split(",")) {
+            if (!peer.isBlank() && peer.trim().equals(address)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Zleca synchronizację wątkowi synchronizacji na żądanie; zlecenia są wykonywane po kolei.
+     *
+     * @param task zadanie synchronizacji wraz z wysłaniem odpowiedzi
+     */
+    static void submit(Runnable task) {
+        requests.execute(task);
+    }
+
+    /**
+     * Uruchamia wątek okresowej synchronizacji z serwerami {@link Config#SYNC_PEERS}.
+     * Replika, która nie została awansowana, nie synchronizuje historii.
+     */
+    static void startPeriodic() {
+        Thread t = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(Config.SYNC_INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (ReplicaFollower.isActive()) continue;
+                for (String peer : Config.SYNC_PEERS.split(",")) {
+                    if (peer.isBlank()) continue;
+                    try {
+                        sync(peer.trim());
+                    } catch (IOException | RuntimeException e) {
+                        System.err.println("Błąd synchronizacji historii z " + peer.trim() + ": " + e.getMessage());
+                    }
+                }
+            }
+        }, "history-sync");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Synchronizuje historię odczytów z serwerem.
+     *
+     * @param address adres portu synchronizacji drugiego serwera (host:port)
+     * @return wynik synchronizacji
+     */
+    static Result sync(String address) throws IOException {
+        String[] a = address.split(":");
+        if (a.length != 2) {
+            throw new IOException("Oczekiwano adresu host:port");
+        }
+        long start = System.nanoTime();
+        int sensors = 0;
+        int hours = 0;
+        int received = 0;
+        int sent = 0;
+        try (Socket s = new Socket(a[0], Integer.parseInt(a[1]))) {
+            s.setSoTimeout(TIMEOUT_MS);
+            MeteredDeflaterOutputStream zout = new MeteredDeflaterOutputStream(s.getOutputStream());
+            MeteredInflaterInputStream zin = new MeteredInflaterInputStream(s.getInputStream());
+            try {
+                Writer out = new BufferedWriter(new OutputStreamWriter(zout, StandardCharsets.UTF_8));
+                BufferedReader br = new BufferedReader(new InputStreamReader(zin, StandardCharsets.UTF_8));
+
+                // poziom 1: czujniki
+                Map<String, long[]> localSensors = new TreeMap<>();
+                for (String id : SensorListener.getSensorIds()) {
+                    if (isSyncable(id)) localSensors.put(id, HistoryDigest.of(id).total());
+                }
+                Map<String, long[]> remoteSensors = new TreeMap<>();
+                for (String[] f : request(out, br, "SENSORS")) {
+                    if (isSyncable(f[1])) remoteSensors.put(f[1], digest(f, 2));
+                }
+                List<String> differing = differing(localSensors, remoteSensors);
+                sensors = differing.size();
+
+                // poziom 2: dni różniących się czujników
+                Map<String, Map<String, long[]>> remoteDays = new HashMap<>();
+                if (!differing.isEmpty()) {
+                    for (String[] f : request(out, br, "DAYS " + String.join(" ", differing))) {
+                        remoteDays.computeIfAbsent(f[1], k -> new TreeMap<>()).put(f[2], digest(f, 3));
+                    }
+                }
+                List<String> hourRequest = new ArrayList<>();
+                for (String id : differing) {
+                    for (String day : differing(HistoryDigest.of(id).days(), remoteDays.getOrDefault(id, Map.of()))) {
+                        hourRequest.add(id + " " + day);
+                    }
+                }
+
+                // poziom 3: godziny różniących się dni
+                Map<String, Map<String, long[]>> remoteHours = new HashMap<>();
+                if (!hourRequest.isEmpty()) {
+                    for (String[] f : request(out, br, "HOURS " + String.join(" ", hourRequest))) {
+                        remoteHours.computeIfAbsent(f[1], k -> new TreeMap<>()).put(fromWire(f[2]), digest(f, 3));
+                    }
+                }
+                Map<String, List<String>> fetch = new LinkedHashMap<>();
+                for (String entry : hourRequest) {
+                    String id = entry.substring(0, entry.indexOf(' '));
+                    String day = entry.substring(entry.indexOf(' ') + 1);
+                    Map<String, long[]> remote = new TreeMap<>(remoteHours.getOrDefault(id, Map.of()));
+                    remote.keySet().removeIf(hour -> !HistoryDigest.dayOf(hour).equals(day));
+                    fetch.computeIfAbsent(id, k -> new ArrayList<>())
+                            .addAll(differing(HistoryDigest.of(id).hours(day), remote));
+                }
+
+                // odczyty z różniących się godzin
+                for (Map.Entry<String, List<String>> e : fetch.entrySet()) {
+                    String id = e.getKey();
+                    List<String> all = e.getValue();
+                    hours += all.size();
+                    for (int i = 0; i < all.size(); i += FETCH_HOURS) {
+                        List<String> part = all.subList(i, Math.min(all.size(), i + FETCH_HOURS));
+                        StringBuilder cmd = new StringBuilder("FETCH ").append(id);
+                        for (String hour : part) cmd.append(' ').append(toWire(hour));
+                        List<String> remote = new ArrayList<>();
+                        for (String[] f : request(out, br, cmd.toString())) {
+                            remote.add(f[1]);
+                        }
+                        List<String> local = HistoryDigest.of(id).lines(new TreeSet<>(part));
+
+                        received += SensorListener.storeRepaired(id, subtract(remote, local));
+                        List<String> missing = subtract(local, remote);
+                        if (!missing.isEmpty()) {
+                            sent += put(out, br, id, missing);
+                        }
+                    }
+                }
+                out.write("QUIT\n");
+                out.flush();
+
+                Result result = new Result(address, sensors, hours, received, sent,
+                        zout.getCompressedBytes(), zin.getCompressedBytes(), (System.nanoTime() - start) / 1_000_000);
+                System.out.println("Synchronizacja historii z " + address + ": czujniki " + sensors + ", godziny " + hours
+                        + ", odebrane odczyty " + received + ", wysłane " + sent + ", bajty " + result.bytesOut()
+                        + "/" + result.bytesIn() + ", " + result.millis() + " ms");
+                return result;
+            } finally {
+                zout.release();
+                zin.release();
+            }
+        }
+    }
+
+    /**
+     * Wysyła polecenie i odczytuje wiersze odpowiedzi do wiersza END.
+     *
+     * @return wiersze odpowiedzi podzielone na pola; wiersz "L odczyt" dzielony jest na dwa pola
+     */
+    private static List<String[]> request(Writer out, BufferedReader br, String cmd) throws IOException {
+        out.write(cmd);
+        out.write('\n');
+        out.flush();
+        List<String[]> lines = new ArrayList<>();
+        String line;
+        while ((line = br.readLine()) != null && !line.equals("END")) {
+            if (line.startsWith("ERROR")) {
+                throw new IOException(line);
+            }
+            lines.add(line.startsWith("L ") ? new String[]{"L", line.substring(2)} : line.split(" "));
+        }
+        if (line == null) {
+            throw new IOException("Serwer zakończył połączenie");
+        }
+        return lines;
+    }
+
+    /**
+     * Wysyła drugiemu serwerowi odczyty, których nie ma.
+     *
+     * @return liczba odczytów przyjętych przez drugi serwer
+     */
+    private static int put(Writer out, BufferedReader br, String id, List<String> lines) throws IOException {
+        out.write("PUT " + id + " " + lines.size() + "\n");
+        for (String line : lines) {
+            out.write(line);
+            out.write('\n');
+        }
+        out.flush();
+        String reply = String.valueOf(br.readLine());
+        if (!reply.startsWith("OK ")) {
+            System.err.println("Serwer nie przyjął odczytów czujnika " + id + ": " + reply);
+            return 0;
+        }
+        return Integer.parseInt(reply.substring(3).trim());
+    }
+
+    /**
+     * Zwraca klucze, których skróty różnią się między stronami, w tym klucze obecne tylko po jednej stronie.
+     */
+    private static List<String> differing(Map<String, long[]> local, Map<String, long[]> remote) {
+        Set<String> keys = new TreeSet<>(local.keySet());
+        keys.addAll(remote.keySet());
+        List<String> result = new ArrayList<>();
+        for (String key : keys) {
+            if (!Arrays.equals(local.get(key), remote.get(key))) {
+                result.add(key);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Zwraca wiersze z {@code lines}, których brakuje w {@code other}, z uwzględnieniem powtórzeń.
+     */
+    private static List<String> subtract(List<String> lines, List<String> other) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (String line : other) {
+            counts.merge(line, 1, Integer::sum);
+        }
+        List<String> result = new ArrayList<>();
+        for (String line : lines) {
+            Integer c = counts.get(line);
+            if (c == null) {
+                result.add(line);
+            } else if (c == 1) {
+                counts.remove(line);
+            } else {
+                counts.put(line, c - 1);
+            }
+        }
+        return result;
+    }
+
+    private static long[] digest(String[] f, int from) {
+        return new long[]{Long.parseLong(f[from]), Long.parseLong(f[from + 1])};
+    }
+
+    /**
+     * Sprawdza, czy identyfikator czujnika może być przesłany w poleceniu synchronizacji
+     * i bezpiecznie użyty jako nazwa pliku.
+     */
+    static boolean isSyncable(String sensorId) {
+        return sensorId.matches("[A-Za-z0-9_-][A-Za-z0-9_.-]*");
+    }
+
+    /**
+     * Zamienia godzinę "yyyy-MM-dd HH" na postać bez spacji używaną w poleceniach: "yyyy-MM-ddTHH".
+     */
+    static String toWire(String hour) {
+        return hour.replace(' ', 'T');
+    }
+
+    static String fromWire(String hour) {
+        return hour.replace('T', ' ');
+    }
+}
@@ -0,0 +1,150 @@
+package jf.plantclimate.server;
+
+import jf.plantclimate.data.Config;
+import jf.plantclimate.protocol.MeteredDeflaterOutputStream;
+import jf.plantclimate.protocol.MeteredInflaterInputStream;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Nasłuchuje połączeń serwerów synchronizujących historię odczytów ({@link HistorySync})
+ * i odpowiada na ich polecenia. Oba kierunki połączenia są kompresowane (Deflate, opróżniany po
+ * każdej odpowiedzi).
+ *
+ * <p>Polecenia i odpowiedzi (każda lista kończy się wierszem END):</p>
+ * <ul>
+ *   <li>SENSORS - wiersze "S czujnik suma liczba" dla wszystkich czujników,</li>
+ *   <li>DAYS czujnik... - wiersze "D czujnik dzień suma liczba",</li>
+ *   <li>HOURS czujnik dzień... - wiersze "H czujnik yyyy-MM-ddTHH suma liczba",</li>
+ *   <li>FETCH czujnik yyyy-MM-ddTHH... - wiersze "L odczytCSV" z podanych godzin,</li>
+ *   <li>PUT czujnik n, a po nim n odczytów CSV - odpowiedź "OK liczbaPrzyjętych",</li>
+ *   <li>QUIT - kończy połączenie.</li>
+ * </ul>
+ * <p>Replika, która nie została awansowana, udostępnia swoją historię, ale nie przyjmuje odczytów.</p>
+ */
+public class HistorySyncListener extends Thread {
+    public HistorySyncListener() {
+        super("history-sync-listener");
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        try (ServerSocket ss = new ServerSocket(Config.SYNC_PORT)) {
+            while (true) {
+                Socket s = ss.accept();
+                new Thread(() -> handle(s), "history-sync-responder").start();
+            }
+        } catch (IOException e) {
+            System.err.println("Błąd podczas uruchamiania nasłuchiwania synchronizacji historii: " + e.getMessage());
+        }
+    }
+
+    private void handle(Socket s) {
+        String peer = s.getInetAddress().getHostAddress() + ":" + s.getPort();
+        MeteredDeflaterOutputStream zout = null;
+        MeteredInflaterInputStream zin = null;
+        int received = 0;
+        try (s) {
+            zout = new MeteredDeflaterOutputStream(s.getOutputStream());
+            zin = new MeteredInflaterInputStream(s.getInputStream());
+            Writer out = new BufferedWriter(new OutputStreamWriter(zout, StandardCharsets.UTF_8));
+            BufferedReader br = new BufferedReader(new InputStreamReader(zin, StandardCharsets.UTF_8));
+            String line;
+            while ((line = br.readLine()) != null && !line.equals("QUIT")) {
+                String[] f = line.split(" ");
+                switch (f[0]) {
+                    case "SENSORS" -> {
+                        for (String id : SensorListener.getSensorIds()) {
+                            if (HistorySync.isSyncable(id)) {
+                                write(out, "S " + id, HistoryDigest.of(id).total());
+                            }
+                        }
+                    }
+                    case "DAYS" -> {
+                        for (int i = 1; i < f.length; i++) {
+                            if (!isKnown(f[i])) continue;
+                            for (Map.Entry<String, long[]> e : HistoryDigest.of(f[i]).days().entrySet()) {
+                                write(out, "D " + f[i] + " " + e.getKey(), e.getValue());
+                            }
+                        }
+                    }
+                    case "HOURS" -> {
+                        for (int i = 1; i + 1 < f.length; i += 2) {
+                            if (!isKnown(f[i])) continue;
+                            for (Map.Entry<String, long[]> e : HistoryDigest.of(f[i]).hours(f[i + 1]).entrySet()) {
+                                write(out, "H " + f[i] + " " + HistorySync.toWire(e.getKey()), e.getValue());
+                            }
+                        }
+                    }
+                    case "FETCH" -> {
+                        if (f.length > 1 && isKnown(f[1])) {
+                            Set<String> hours = new TreeSet<>();
+                            for (int i = 2; i < f.length; i++) {
+                                hours.add(HistorySync.fromWire(f[i]));
+                            }
+                            for (String csv : HistoryDigest.of(f[1]).lines(hours)) {
+                                out.write("L ");
+                                out.write(csv);
+                                out.write('\n');
+                            }
+                        }
+                    }
+                    case "PUT" -> {
+                        int n = Integer.parseInt(f[2]);
+                        List<String> lines = new ArrayList<>(n);
+                        for (int i = 0; i < n; i++) {
+                            lines.add(br.readLine());
+                        }
+                        if (ReplicaFollower.isActive()) {
+                            out.write("ERROR Serwer jest repliką\n");
+                        } else if (!HistorySync.isSyncable(f[1])) {
+                            out.write("ERROR Nieprawidłowy identyfikator czujnika\n");
+                        } else {
+                            int stored = SensorListener.storeRepaired(f[1], lines);
+                            received += stored;
+                            out.write("OK " + stored + "\n");
+                        }
+                        out.flush();
+                        continue;
+                    }
+                    default -> {
+                        out.write("ERROR Nieznane polecenie: " + f[0] + "\n");
+                        out.flush();
+                        continue;
+                    }
+                }
+                out.write("END\n");
+                out.flush();
+            }
+            System.out.println("Synchronizacja historii z " + peer + ": odebrane odczyty " + received
+                    + ", bajty " + zout.getCompressedBytes() + "/" + zin.getCompressedBytes());
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Błąd synchronizacji historii z " + peer + ": " + e.getMessage());
+        } finally {
+            if (zout != null) zout.release();
+            if (zin != null) zin.release();
+        }
+    }
+
+    private static boolean isKnown(String sensorId) {
+        return HistorySync.isSyncable(sensorId) && SensorListener.sensorExists(sensorId);
+    }
+
+    private static void write(Writer out, String prefix, long[] digest) throws IOException {
+        out.write(prefix + " " + digest[0] + " " + digest[1] + "\n");
+    }
+}
@@ -0,0 +1,434 @@
+package jf.plantclimate.server;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSerializer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import jf.plantclimate.data.Config;
+import jf.plantclimate.data.Reading;
+import jf.plantclimate.util.DateFormatter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Interfejs HTTP udostępniający dane czujników w formacie JSON.
+ *
+ * <p>Dostępne zasoby (tylko GET):</p>
+ * <ul>
+ *   <li>{@code /api/sensors} - lista czujników z najnowszymi odczytami</li>
+ *   <li>{@code /api/latest} oraz {@code /api/latest/{id}} - najnowsze odczyty</li>
+ *   <li>{@code /api/history/{id}?from=&to=&limit=} - odczyty z podanego zakresu czasu</li>
+ *   <li>{@code /api/aggregate/{id}?from=&to=} - minimum, maksimum i średnia każdego pomiaru</li>
+ *   <li>{@code /api/stats/{id}} - bieżące statystyki każdego pomiaru (EWMA, odchylenie, minimum i maksimum od północy, z-score)</li>
+ *   <li>{@code /api/registry?room=&plant=} - metadane czujników z rejestru, opcjonalnie tylko z danego pomieszczenia lub z daną rośliną</li>
+ *   <li>{@code /api/stream?sensor=} - strumień Server-Sent Events z rozgłaszanymi komunikatami</li>
+ * </ul>
+ *
+ * <p>Odpowiedzi JSON zawierają nagłówek ETag wyznaczany z numeru wersji danych (odczytanego
+ * przed danymi, więc znacznik nigdy nie jest nowszy od treści), dzięki czemu zapytanie
+ * z nagłówkiem If-None-Match jest obsługiwane bez odczytywania i serializacji danych, gdy nic
+ * się nie zmieniło. Żądania obsługuje ograniczona pula wątków; strumień zdarzeń korzysta z tego
+ * samego rozgłaszania co klienci protokołu TCP.</p>
+ */
+public class HttpApiServer {
+    /**
+     * Serializacja JSON; czas odczytu zapisywany jest w tym samym formacie co w protokole tekstowym.
+     */
+    static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapter(LocalDateTime.class,
+                    (JsonSerializer<LocalDateTime>) (time, type, ctx) -> new JsonPrimitive(DateFormatter.format(time)))
+            .serializeSpecialFloatingPointValues()
+            .create();
+
+    private static final DateTimeFormatter TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    /**
+     * Wyróżnik uruchomienia serwera w znacznikach ETag - numery wersji liczone są od zera po każdym uruchomieniu.
+     */
+    private static final String ETAG_PREFIX = Long.toString(System.currentTimeMillis(), 36);
+
+    private static final long HEARTBEAT_INTERVAL_S = 15;
+
+    private static final String[] FIELDS = {
+            "temperature", "humidity", "soil", "lux", "red", "green", "blue", "white", "colorTemperature"
+    };
+    private static final List<Function<Reading, Number>> FIELD_VALUES = List.of(
+            Reading::temperature, Reading::humidity, Reading::soil, Reading::lux,
+            Reading::red, Reading::green, Reading::blue, Reading::white, Reading::colorTemperature
+    );
+
+    private final int port;
+    private final ExecutorService requestPool;
+    private final ExecutorService streamWriters;
+    private final AtomicInteger streamCounter = new AtomicInteger();
+    private final Set<SseClientConnection> streams = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param port port serwera HTTP
+     * @param threads liczba wątków obsługujących żądania oraz liczba wątków zapisujących strumienie zdarzeń
+     */
+    public HttpApiServer(int port, int threads) {
+        this.port = port;
+        this.requestPool = Executors.newFixedThreadPool(threads, daemonThreads("http-api-"));
+        this.streamWriters = Executors.newFixedThreadPool(threads, daemonThreads("http-sse-"));
+    }
+
+    /**
+     * Uruchamia serwer HTTP.
+     */
+    public void start() {
+        // Nagłówki i treść odpowiedzi są zapisywane osobno; bez TCP_NODELAY każde zapytanie
+        // na połączeniu keep-alive czeka na opóźnione potwierdzenie TCP (~40 ms).
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(port), 1024);
+            server.createContext("/api/", this::handle);
+            server.setExecutor(requestPool);
+            server.start();
+
+            ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(daemonThreads("http-heartbeat-"));
+            heartbeat.scheduleAtFixedRate(() -> streams.forEach(c -> c.offer(SseClientConnection.HEARTBEAT)),
+                    HEARTBEAT_INTERVAL_S, HEARTBEAT_INTERVAL_S, TimeUnit.SECONDS);
+        } catch (IOException e) {
+            System.err.println("Błąd podczas uruchamiania serwera HTTP: " + e.getMessage());
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * Kieruje żądanie do obsługi odpowiedniego zasobu.
+     *
+     * @param ex wymiana HTTP
+     * @throws IOException w przypadku błędu zapisu odpowiedzi
+     */
+    private void handle(HttpExchange ex) throws IOException {
+        try {
+            if (!ex.getRequestMethod().equals("GET")) {
+                ex.getResponseHeaders().set("Allow", "GET");
+                sendError(ex, 405, "Dozwolona jest tylko metoda GET");
+                return;
+            }
+
+            String[] path = ex.getRequestURI().getPath().substring("/api/".length()).split("/");
+            Map<String, String> query = parseQuery(ex.getRequestURI().getRawQuery());
+            String resource = path[0];
+            String sensorId = path.length > 1 ? path[1] : null;
+
+            switch (resource) {
+                case "sensors" -> handleSensors(ex);
+                case "latest" -> handleLatest(ex, sensorId);
+                case "history" -> handleHistory(ex, sensorId, query);
+                case "aggregate" -> handleAggregate(ex, sensorId, query);
+                case "registry" -> handleRegistry(ex, query);
+                case "stats" -> handleStats(ex, sensorId);
+                case "stream" -> handleStream(ex, query.get("sensor"));
+                default -> sendError(ex, 404, "Nieznany zasób: " + resource);
+            }
+        } catch (IllegalArgumentException e) {
+            sendError(ex, 400, e.getMessage());
+        } catch (IOException e) {
+            ex.close();
+        } catch (Exception e) {
+            System.err.println("Błąd obsługi żądania HTTP: " + e.getMessage());
+            sendError(ex, 500, "Błąd serwera");
+        }
+    }
+
+    private void handleSensors(HttpExchange ex) throws IOException {
+        if (notModified(ex, SensorListener.getRevision())) return;
+
+        List<Map<String, Object>> sensors = new ArrayList<>();
+        for (String id : new TreeSet<>(SensorListener.getSensorIds())) {
+            Map<String, Object> sensor = new LinkedHashMap<>();
+            sensor.put("id", id);
+            sensor.put("latest", SensorListener.getLatestReading(id));
+            sensors.add(sensor);
+        }
+        sendJson(ex, sensors);
+    }
+
+    private void handleLatest(HttpExchange ex, String sensorId) throws IOException {
+        if (sensorId == null) {
+            if (notModified(ex, SensorListener.getRevision())) return;
+            Map<String, Reading> latest = new LinkedHashMap<>();
+            for (String id : new TreeSet<>(SensorListener.getSensorIds())) {
+                latest.put(id, SensorListener.getLatestReading(id));
+            }
+            sendJson(ex, latest);
+            return;
+        }
+
+        if (!SensorListener.sensorExists(sensorId)) {
+            sendError(ex, 404, "Czujnik nie znaleziony");
+            return;
+        }
+        if (notModified(ex, SensorListener.getRevision(sensorId))) return;
+        sendJson(ex, SensorListener.getLatestReading(sensorId));
+    }
+
+    private void handleRegistry(HttpExchange ex, Map<String, String> query) throws IOException {
+        if (notModified(ex, SensorRegistry.getVersion())) return;
+        sendJson(ex, SensorRegistry.snapshot(query.get("room"), query.get("plant")));
+    }
+
+    private void handleStats(HttpExchange ex, String sensorId) throws IOException {
+        if (sensorId == null) {
+            sendError(ex, 400, "Brak identyfikatora czujnika");
+            return;
+        }
+        if (notModified(ex, SensorListener.getRevision(sensorId))) return;
+        List<SensorStatistics.MetricStatistics> stats = SensorStatistics.get(sensorId);
+        if (stats == null) {
+            sendError(ex, 404, "Czujnik nie znaleziony");
+            return;
+        }
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("sensorId", sensorId);
+        body.put("metrics", stats);
+        sendJson(ex, body);
+    }
+
+    private void handleHistory(HttpExchange ex, String sensorId, Map<String, String> query) throws IOException {
+        if (sensorId == null) {
+            sendError(ex, 400, "Brak identyfikatora czujnika");
+            return;
+        }
+        LocalDateTime from = parseTime(query.get("from"));
+        LocalDateTime to = parseTime(query.get("to"));
+        int limit = query.containsKey("limit") ? parseLimit(query.get("limit")) : Integer.MAX_VALUE;
+
+        if (!SensorListener.sensorExists(sensorId)) {
+            sendError(ex, 404, "Czujnik nie znaleziony");
+            return;
+        }
+        if (notModified(ex, SensorListener.getRevision(sensorId))) return;
+        List<Reading> sensorHistory = SensorListener.copySensorHistory(sensorId);
+        if (sensorHistory == null) {
+            sensorHistory = List.of();
+        }
+
+        List<Reading> readings = inRange(sensorHistory, from, to);
+        if (readings.size() > limit) {
+            readings = readings.subList(readings.size() - limit, readings.size());
+        }
+
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("sensorId", sensorId);
+        body.put("count", readings.size());
+        body.put("readings", readings);
+        sendJson(ex, body);
+    }
+
+    private void handleAggregate(HttpExchange ex, String sensorId, Map<String, String> query) throws IOException {
+        if (sensorId == null) {
+            sendError(ex, 400, "Brak identyfikatora czujnika");
+            return;
+        }
+        LocalDateTime from = parseTime(query.get("from"));
+        LocalDateTime to = parseTime(query.get("to"));
+
+        if (!SensorListener.sensorExists(sensorId)) {
+            sendError(ex, 404, "Czujnik nie znaleziony");
+            return;
+        }
+        if (notModified(ex, SensorListener.getRevision(sensorId))) return;
+        List<Reading> sensorHistory = SensorListener.copySensorHistory(sensorId);
+        if (sensorHistory == null) {
+            sensorHistory = List.of();
+        }
+
+        List<Reading> readings = inRange(sensorHistory, from, to);
+        Map<String, Object> fields = new LinkedHashMap<>();
+        for (int i = 0; i < FIELDS.length; i++) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            double sum = 0;
+            int count = 0;
+            for (Reading r : readings) {
+                Number value = FIELD_VALUES.get(i).apply(r);
+                if (value == null) continue;
+                double v = value.doubleValue();
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+                sum += v;
+                count++;
+            }
+            if (count == 0) continue;
+
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("count", count);
+            stats.put("min", min);
+            stats.put("max", max);
+            stats.put("avg", sum / count);
+            fields.put(FIELDS[i], stats);
+        }
+
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("sensorId", sensorId);
+        body.put("from", readings.isEmpty() ? null : readings.get(0).time());
+        body.put("to", readings.isEmpty() ? null : readings.get(readings.size() - 1).time());
+        body.put("count", readings.size());
+        body.put("fields", fields);
+        sendJson(ex, body);
+    }
+
+    /**
+     * Otwiera strumień zdarzeń i rejestruje go jako odbiorcę rozgłaszanych komunikatów.
+     * Na początku strumienia wysyłane są najnowsze odczyty czujników.
+     *
+     * @param ex wymiana HTTP; pozostaje otwarta do rozłączenia klienta
+     * @param sensorFilter identyfikator czujnika lub null dla wszystkich czujników
+     * @throws IOException w przypadku błędu zapisu nagłówków
+     */
+    private void handleStream(HttpExchange ex, String sensorFilter) throws IOException {
+        ex.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+        ex.getResponseHeaders().set("Cache-Control", "no-cache");
+        ex.sendResponseHeaders(200, 0);
+
+        String clientId = "sse-" + streamCounter.incrementAndGet();
+        SseClientConnection conn = new SseClientConnection(ex, streamWriters, sensorFilter,
+                Config.CLIENT_QUEUE_CAPACITY, ClientListener.getOverflowPolicy());
+        conn.setOnClosed(() -> {
+            streams.remove(conn);
+            ClientListener.unregister(clientId, conn, 0);
+        });
+        streams.add(conn);
+        ClientListener.register(clientId, conn);
+
+        for (String id : new TreeSet<>(SensorListener.getSensorIds())) {
+            if (sensorFilter == null || sensorFilter.equals(id)) {
+                conn.sendReading(id, SensorListener.getLatestReading(id));
+            }
+        }
+    }
+
+    /**
+     * Ustawia nagłówek ETag i odpowiada kodem 304, jeśli klient posiada aktualną wersję danych.
+     *
+     * @param ex wymiana HTTP
+     * @param revision numer wersji danych, z których powstaje odpowiedź
+     * @return true, jeśli wysłano odpowiedź 304
+     * @throws IOException w przypadku błędu zapisu odpowiedzi
+     */
+    private static boolean notModified(HttpExchange ex, long revision) throws IOException {
+        String etag = "\"" + ETAG_PREFIX + "-" + revision + "\"";
+        ex.getResponseHeaders().set("ETag", etag);
+        ex.getResponseHeaders().set("Cache-Control", "no-cache");
+
+        String ifNoneMatch = ex.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch == null) return false;
+        for (String tag : ifNoneMatch.split(",")) {
+            String t = tag.trim();
+            if (t.equals("*") || t.equals(etag) || t.equals("W/" + etag)) {
+                ex.sendResponseHeaders(304, -1);
+                ex.close();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void sendJson(HttpExchange ex, Object body) throws IOException {
+        send(ex, 200, GSON.toJson(body));
+    }
+
+    private static void sendError(HttpExchange ex, int status, String message) throws IOException {
+        JsonObject error = new JsonObject();
+        error.addProperty("error", message);
+        send(ex, status, GSON.toJson(error));
+    }
+
+    private static void send(HttpExchange ex, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        ex.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = ex.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private static List<Reading> inRange(List<Reading> readings, LocalDateTime from, LocalDateTime to) {
+        if (from == null && to == null) return readings;
+        List<Reading> result = new ArrayList<>();
+        for (Reading r : readings) {
+            if (r.time() == null) continue;
+            if (from != null && r.time().isBefore(from)) continue;
+            if (to != null && r.time().isAfter(to)) continue;
+            result.add(r);
+        }
+        return result;
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) return params;
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = URLDecoder.decode(eq >= 0 ? pair.substring(0, eq) : pair, StandardCharsets.UTF_8);
+            String value = eq >= 0 ? URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8) : "";
+            params.put(key, value);
+        }
+        return params;
+    }
+
+    /**
+     * Odczytuje czas w formacie ISO (2024-05-01T12:00:00) lub protokołu tekstowego (2024-05-01 12:00:00).
+     */
+    private static LocalDateTime parseTime(String value) {
+        if (value == null || value.isBlank()) return null;
+        try {
+            return LocalDateTime.parse(value.trim());
+        } catch (DateTimeParseException e) {
+            try {
+                return LocalDateTime.parse(value.trim(), TIME_FORMATTER);
+            } catch (DateTimeParseException e2) {
+                throw new IllegalArgumentException("Nieprawidłowy czas: " + value);
+            }
+        }
+    }
+
+    private static int parseLimit(String value) {
+        try {
+            int limit = Integer.parseInt(value.trim());
+            if (limit < 0) throw new NumberFormatException();
+            return limit;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Nieprawidłowy limit: " + value);
+        }
+    }
+}
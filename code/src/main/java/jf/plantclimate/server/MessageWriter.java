@@ -0,0 +1,40 @@
+package jf.plantclimate.server;
+
+import jf.plantclimate.protocol.ProtocolOptions;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Koduje komunikaty wychodzące w protokole uzgodnionym z klientem.
+ * Instancja należy do jednego połączenia i jest używana wyłącznie przez wątek zapisujący jego dane.
+ */
+interface MessageWriter {
+    /**
+     * Zapisuje komunikat do bufora połączenia.
+     *
+     * @param message komunikat
+     * @throws IOException w przypadku błędu zapisu
+     */
+    void write(OutboundMessage message) throws IOException;
+
+    /**
+     * Wysyła zbuforowane dane do klienta.
+     *
+     * @throws IOException w przypadku błędu zapisu
+     */
+    void flush() throws IOException;
+
+    /**
+     * Tworzy obiekt zapisujący odpowiedni dla uzgodnionych opcji protokołu.
+     *
+     * @param out strumień wyjściowy połączenia
+     * @param options uzgodnione opcje protokołu
+     * @return obiekt zapisujący
+     */
+    static MessageWriter create(OutputStream out, ProtocolOptions options) {
+        return options.binary()
+                ? new BinaryMessageWriter(out, options.delta())
+                : new TextMessageWriter(out, options.delta());
+    }
+}
@@ -0,0 +1,62 @@
+package jf.plantclimate.server;
+
+import jf.plantclimate.data.Reading;
+
+import java.util.Locale;
+import java.util.function.Function;
+
+/**
+ * Wielkości mierzone przez czujnik, których mogą dotyczyć reguły i obliczenia serwera.
+ * Nazwy odpowiadają nazwom pól odczytu w formacie JSON.
+ */
+enum Metric {
+    TEMPERATURE("temperature", Reading::temperature),
+    HUMIDITY("humidity", Reading::humidity),
+    SOIL("soil", Reading::soil),
+    LUX("lux", Reading::lux),
+    RED("red", Reading::red),
+    GREEN("green", Reading::green),
+    BLUE("blue", Reading::blue),
+    WHITE("white", Reading::white),
+    COLOR_TEMPERATURE("colorTemperature", Reading::colorTemperature);
+
+    private final String key;
+    private final Function<Reading, Number> accessor;
+
+    Metric(String key, Function<Reading, Number> accessor) {
+        this.key = key;
+        this.accessor = accessor;
+    }
+
+    /**
+     * @return nazwa wielkości używana w protokole
+     */
+    String key() {
+        return key;
+    }
+
+    /**
+     * Zwraca wartość wielkości z odczytu.
+     *
+     * @param reading odczyt
+     * @return wartość lub null, jeśli czujnik jej nie zmierzył
+     */
+    Number value(Reading reading) {
+        return accessor.apply(reading);
+    }
+
+    /**
+     * Zwraca wielkość o podanej nazwie (wielkość liter nie ma znaczenia).
+     *
+     * @param name nazwa wielkości, np. "soil" lub "colorTemperature"
+     * @return wielkość
+     * @throws IllegalArgumentException dla nieznanej nazwy
+     */
+    static Metric parse(String name) {
+        String n = name.trim().toLowerCase(Locale.ROOT);
+        for (Metric m : values()) {
+            if (m.key.toLowerCase(Locale.ROOT).equals(n)) return m;
+        }
+        throw new IllegalArgumentException("Nieznana wielkość: " + name);
+    }
+}
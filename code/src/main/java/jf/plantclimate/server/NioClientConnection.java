@@ -0,0 +1,283 @@
+package jf.plantclimate.server;
+
+import jf.plantclimate.protocol.MeteredDeflaterOutputStream;
+import jf.plantclimate.protocol.ProtocolOptions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Połączenie z klientem obsługiwane przez pętlę zdarzeń {@link NioClientListener}.
+ *
+ * <p>Nie posiada własnego wątku - komunikaty są pobierane z kolejki i zapisywane do kanału
+ * przez wątek selektora, gdy kanał jest gotowy do zapisu. Niezapisana część danych czeka
+ * w kolejce buforów do kolejnego zdarzenia gotowości.</p>
+ *
+ * <p>Dla protokołu tekstowego bez kodowania różnicowego i kompresji dane wysyłane do każdego
+ * klienta są identyczne, więc połączenie przekazuje do kanału współdzielone bufory
+ * {@link OutboundMessage#encodedLine()} - rozgłaszany komunikat jest kodowany raz dla
+ * wszystkich klientów. Pozostałe protokoły mają stan zależny od połączenia (uchwyty czujników,
+ * słownik kompresji), dlatego każda partia jest kodowana osobno do jednego bufora.</p>
+ */
+class NioClientConnection extends ClientConnection {
+    private final NioClientListener listener;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final Runnable onClosed;
+    private final Runnable onSpace;
+
+    /**
+     * Bufory oczekujące na zapis do kanału, w kolejności wysyłania. Używane tylko przez wątek selektora.
+     */
+    private final Deque<ByteBuffer> out;
+    private final boolean shared;
+    private final BufferSink sink;
+    private final MessageWriter writer;
+    private final MeteredDeflaterOutputStream compression;
+
+    private final List<OutboundMessage> batch = new ArrayList<>();
+    private final AtomicBoolean signalled = new AtomicBoolean();
+    private final AtomicBoolean awaitingSpace = new AtomicBoolean();
+    private int inFlight = 0;
+    private long scheduledWakeup = 0;
+    private boolean shutdown = false;
+
+    /**
+     * @param listener pętla zdarzeń obsługująca połączenie
+     * @param key klucz rejestracji kanału w selektorze
+     * @param options uzgodnione opcje protokołu
+     * @param capacity maksymalna liczba oczekujących komunikatów
+     * @param policy polityka obsługi przepełnionej kolejki
+     * @param out bufory już oczekujące na zapis (np. niewysłana część powitania)
+     * @param onClosed akcja wykonywana przez wątek selektora po zamknięciu kanału
+     * @param onSpace akcja wykonywana przez wątek selektora, gdy w kolejce zwolniło się miejsce
+     *                po wywołaniu {@link #awaitSpace()}
+     */
+    NioClientConnection(NioClientListener listener, SelectionKey key, ProtocolOptions options, int capacity,
+                        OverflowPolicy policy, Deque<ByteBuffer> out, Runnable onClosed, Runnable onSpace) {
+        super(options, capacity, policy);
+        this.listener = listener;
+        this.key = key;
+        this.channel = (SocketChannel) key.channel();
+        this.out = out;
+        this.onClosed = onClosed;
+        this.onSpace = onSpace;
+
+        this.shared = !options.binary() && !options.delta() && !options.compressed();
+        if (shared) {
+            this.sink = null;
+            this.compression = null;
+            this.writer = null;
+        } else {
+            this.sink = new BufferSink();
+            this.compression = options.compressed() ? new MeteredDeflaterOutputStream(sink) : null;
+            this.writer = MessageWriter.create(compression != null ? compression : sink, options);
+        }
+    }
+
+    @Override
+    protected boolean repliesWait() {
+        return false;
+    }
+
+    /**
+     * Sprawdza, czy w kolejce jest miejsce na odpowiedź kolejnego polecenia. Jeśli nie, po zwolnieniu
+     * miejsca wątek selektora wykona akcję onSpace. Wywoływana przez wątek wykonujący polecenia.
+     *
+     * @return true, jeśli kolejka jest pełna i należy poczekać na akcję onSpace
+     */
+    boolean awaitSpace() {
+        awaitingSpace.set(true);
+        if (hasSpace() && awaitingSpace.compareAndSet(true, false)) {
+            return false;
+        }
+        // akcja onSpace została już wykonana albo zostanie wykonana po opróżnieniu kolejki
+        return true;
+    }
+
+    @Override
+    protected void signal() {
+        if (signalled.compareAndSet(false, true)) {
+            listener.wake(this);
+        }
+    }
+
+    /**
+     * Zapisuje do kanału oczekujące dane i kolejne partie komunikatów, dopóki kanał je przyjmuje.
+     * Wywoływana wyłącznie przez wątek selektora.
+     *
+     * @param gather tablica robocza do zapisu zbierającego
+     */
+    void service(ByteBuffer[] gather) {
+        signalled.set(false);
+        if (!isOpen()) {
+            shutdown();
+            return;
+        }
+
+        try {
+            while (true) {
+                if (out.isEmpty()) {
+                    if (inFlight > 0) {
+                        batchDone(inFlight, true);
+                        inFlight = 0;
+                    }
+                    boolean taken = takeBatch(batch, false);
+                    if (awaitingSpace.compareAndSet(true, false)) {
+                        onSpace.run();
+                    }
+                    if (!taken) break;
+                    encode(batch);
+                    inFlight = batch.size();
+                    batch.clear();
+                }
+                if (!writeOut(gather)) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } catch (IOException | InterruptedException e) {
+            close();
+            shutdown();
+            return;
+        }
+
+        long due = nextConflatedFlushAt();
+        if (due > 0 && due != scheduledWakeup) {
+            listener.wakeAt(this, due);
+        }
+    }
+
+    /**
+     * Zamienia partię komunikatów na bufory do wysłania.
+     */
+    private void encode(List<OutboundMessage> messages) throws IOException {
+        if (shared) {
+            for (OutboundMessage m : messages) {
+                out.addLast(m.encodedLine());
+            }
+            return;
+        }
+        for (OutboundMessage m : messages) {
+            writer.write(m);
+        }
+        writer.flush();
+        out.addLast(sink.take());
+    }
+
+    /**
+     * Zapisuje oczekujące bufory jednym wywołaniem zapisu zbierającego na każdą porcję.
+     *
+     * @return true, jeśli zapisano wszystkie bufory; false, jeśli bufor gniazda jest pełny
+     */
+    private boolean writeOut(ByteBuffer[] gather) throws IOException {
+        while (!out.isEmpty()) {
+            int n = 0;
+            for (ByteBuffer b : out) {
+                gather[n++] = b;
+                if (n == gather.length) break;
+            }
+            channel.write(gather, 0, n);
+            Arrays.fill(gather, 0, n, null);
+
+            int written = 0;
+            while (!out.isEmpty() && !out.peekFirst().hasRemaining()) {
+                out.pollFirst();
+                written++;
+            }
+            if (written < n) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Zamyka kanał i zwalnia zasoby. Wywoływana wyłącznie przez wątek selektora.
+     */
+    void shutdown() {
+        if (shutdown) return;
+        shutdown = true;
+        key.cancel();
+        try { channel.close(); } catch (IOException ignored) {}
+        out.clear();
+        if (compression != null) {
+            compression.release();
+        }
+        onClosed.run();
+        // polecenia czekające na miejsce w kolejce są wykonywane bez wysyłania odpowiedzi
+        if (awaitingSpace.compareAndSet(true, false)) {
+            onSpace.run();
+        }
+    }
+
+    /**
+     * Zwraca zaplanowany czas wybudzenia dla scalonych aktualizacji.
+     *
+     * @return czas w milisekundach lub 0
+     */
+    long getScheduledWakeup() {
+        return scheduledWakeup;
+    }
+
+    void setScheduledWakeup(long time) {
+        scheduledWakeup = time;
+    }
+
+    /**
+     * Odnotowuje obsłużenie zaplanowanego wybudzenia.
+     */
+    void clearScheduledWakeup() {
+        scheduledWakeup = 0;
+    }
+
+    @Override
+    protected void closeTransport() {
+        listener.wake(this);
+    }
+
+    @Override
+    protected String remoteAddress() {
+        try {
+            return String.valueOf(channel.getRemoteAddress());
+        } catch (IOException e) {
+            return "?";
+        }
+    }
+
+    @Override
+    MeteredDeflaterOutputStream getCompression() {
+        return compression;
+    }
+
+    /**
+     * Bufor, którego zawartość jest przekazywana do wysłania bez kopiowania.
+     */
+    private static final class BufferSink extends ByteArrayOutputStream {
+        BufferSink() {
+            super(256);
+        }
+
+        /**
+         * Zwraca zgromadzone dane jako bufor i rozpoczyna nową tablicę.
+         *
+         * @return bufor z danymi
+         */
+        ByteBuffer take() {
+            ByteBuffer b = ByteBuffer.wrap(buf, 0, count);
+            buf = new byte[Math.max(256, Math.min(count, 8192))];
+            count = 0;
+            return b;
+        }
+    }
+}
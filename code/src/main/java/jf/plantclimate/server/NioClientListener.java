@@ -0,0 +1,446 @@
+package jf.plantclimate.server;
+
+import jf.plantclimate.data.Config;
+import jf.plantclimate.protocol.ProtocolOptions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Nasłuchiwanie i obsługa połączeń od klientów oparte na selektorze NIO.
+ *
+ * <p>Jeden wątek selektora akceptuje połączenia, odczytuje polecenia i zapisuje komunikaty
+ * wszystkich klientów, więc liczba wątków serwera nie rośnie wraz z liczbą podłączonych klientów.
+ * Polecenia wykonuje niewielka pula wątków, aby długie zapytania nie wstrzymywały wątku selektora.
+ * Polecenia jednego klienta są wykonywane kolejno, w kolejności odebrania. Wątki puli nigdy
+ * nie czekają na klienta: odpowiedzi trafiają do kolejki połączenia od razu, a przy pełnej kolejce
+ * kolejne polecenia klienta czekają, aż wątek selektora ją opróżni. Gdy klient ma
+ * {@link #MAX_PENDING_COMMANDS} oczekujących poleceń, selektor przestaje czytać jego dane.</p>
+ *
+ * <p>Protokół, polecenia i rozgłaszanie komunikatów są wspólne z {@link ClientListener}.</p>
+ */
+public class NioClientListener extends Thread {
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final int MAX_GATHER = 64;
+
+    /**
+     * Liczba oczekujących poleceń klienta, po której selektor wstrzymuje odczyt jego danych.
+     * Odczyt jest wznawiany, gdy liczba spadnie do połowy.
+     */
+    private static final int MAX_PENDING_COMMANDS = 64;
+
+    private final ExecutorService commandPool;
+    private final Queue<NioClientConnection> ready = new ConcurrentLinkedQueue<>();
+    private final Queue<Session> resumedReads = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<NioClientConnection> wakeups =
+            new PriorityQueue<>((a, b) -> Long.compare(a.getScheduledWakeup(), b.getScheduledWakeup()));
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private volatile Selector selector;
+
+    public NioClientListener() {
+        super("client-selector");
+        AtomicInteger counter = new AtomicInteger();
+        this.commandPool = Executors.newFixedThreadPool(Config.CLIENT_COMMAND_THREADS, r -> {
+            Thread t = new Thread(r, "client-commands-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Główna pętla zdarzeń selektora.
+     */
+    public void run() {
+        try (Selector sel = Selector.open(); ServerSocketChannel server = ServerSocketChannel.open()) {
+            selector = sel;
+            server.bind(new InetSocketAddress(Config.CLIENT_PORT), 1024);
+            server.configureBlocking(false);
+            server.register(sel, SelectionKey.OP_ACCEPT);
+
+            while (true) {
+                sel.select(selectTimeout());
+
+                Iterator<SelectionKey> it = sel.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    try {
+                        if (!key.isValid()) continue;
+                        if (key.isAcceptable()) {
+                            accept(server);
+                            continue;
+                        }
+                        Session session = (Session) key.attachment();
+                        if (key.isWritable()) {
+                            writable(session);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            read(session);
+                        }
+                    } catch (CancelledKeyException ignored) {
+                        // kanał zamknięty w trakcie obsługi zdarzenia
+                    }
+                }
+
+                NioClientConnection conn;
+                while ((conn = ready.poll()) != null) {
+                    conn.service(gather);
+                }
+                Session resumed;
+                while ((resumed = resumedReads.poll()) != null) {
+                    restoreRead(resumed);
+                }
+                serviceDueWakeups();
+            }
+        } catch (Exception e) {
+            System.err.println("Błąd w nasłuchiwaniu klientów: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Zgłasza połączenie do obsługi przez wątek selektora. Może być wywoływana z dowolnego wątku.
+     *
+     * @param conn połączenie z nowymi komunikatami lub zamknięte
+     */
+    void wake(NioClientConnection conn) {
+        ready.add(conn);
+        Selector sel = selector;
+        if (sel != null) {
+            sel.wakeup();
+        }
+    }
+
+    /**
+     * Planuje obsługę połączenia w podanym czasie (wysłanie scalonych aktualizacji).
+     * Wywoływana wyłącznie przez wątek selektora.
+     *
+     * @param conn połączenie
+     * @param time czas w milisekundach
+     */
+    void wakeAt(NioClientConnection conn, long time) {
+        wakeups.remove(conn);
+        conn.setScheduledWakeup(time);
+        wakeups.add(conn);
+    }
+
+    private long selectTimeout() {
+        NioClientConnection next = wakeups.peek();
+        if (next == null) return 0;
+        return Math.max(1, next.getScheduledWakeup() - System.currentTimeMillis());
+    }
+
+    private void serviceDueWakeups() {
+        long now = System.currentTimeMillis();
+        while (!wakeups.isEmpty() && wakeups.peek().getScheduledWakeup() <= now) {
+            NioClientConnection conn = wakeups.poll();
+            conn.clearScheduledWakeup();
+            conn.service(gather);
+        }
+    }
+
+    private void accept(ServerSocketChannel server) {
+        SocketChannel channel = null;
+        try {
+            channel = server.accept();
+            if (channel == null) return;
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            Session session = new Session(key);
+            key.attach(session);
+            writeHandshakeLine(session, "HELLO");
+        } catch (IOException e) {
+            System.err.println("Błąd podczas przyjmowania klienta: " + e.getMessage());
+            if (channel != null) {
+                try { channel.close(); } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    /**
+     * Kolejkuje wiersz powitania do wysłania przed utworzeniem połączenia i próbuje go zapisać.
+     */
+    private void writeHandshakeLine(Session session, String line) {
+        session.out.addLast(ByteBuffer.wrap((line + System.lineSeparator()).getBytes()));
+        writable(session);
+    }
+
+    private void writable(Session session) {
+        if (session.conn != null) {
+            session.conn.service(gather);
+            return;
+        }
+        try {
+            while (!session.out.isEmpty()) {
+                ByteBuffer b = session.out.peekFirst();
+                session.channel.write(b);
+                if (b.hasRemaining()) {
+                    session.key.interestOps(session.key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                session.out.pollFirst();
+            }
+            session.key.interestOps(session.key.interestOps() & ~SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            closeSession(session);
+        }
+    }
+
+    /**
+     * Odczytuje dostępne dane i dzieli je na wiersze.
+     */
+    private void read(Session session) {
+        int n;
+        readBuffer.clear();
+        try {
+            n = session.channel.read(readBuffer);
+        } catch (IOException e) {
+            n = -1;
+        }
+        if (n < 0) {
+            endOfStream(session);
+            return;
+        }
+
+        readBuffer.flip();
+        while (readBuffer.hasRemaining()) {
+            byte b = readBuffer.get();
+            if (b != '\n') {
+                session.line.write(b);
+                if (session.line.size() > MAX_LINE_LENGTH) {
+                    System.err.println("Błąd klienta: zbyt długi wiersz");
+                    closeSession(session);
+                    return;
+                }
+                continue;
+            }
+            String line = session.line.toString();
+            session.line.reset();
+            if (line.endsWith("\r")) {
+                line = line.substring(0, line.length() - 1);
+            }
+            if (session.conn == null) {
+                if (!hello(session, line)) return;
+            } else {
+                submit(session, line);
+            }
+        }
+    }
+
+    /**
+     * Obsługuje wiersz powitania: identyfikuje klienta, potwierdza opcje protokołu i tworzy połączenie.
+     *
+     * @return false, jeśli sesja została zamknięta
+     */
+    private boolean hello(Session session, String hello) {
+        if (hello.trim().isEmpty()) {
+            writeHandshakeLine(session, "ERROR Nieprawidłowy identyfikator klienta");
+            closeSession(session);
+            return false;
+        }
+
+        String[] tokens = hello.trim().split("\\s+");
+        session.clientId = tokens[0];
+        ProtocolOptions options = ClientListener.parseHelloOptions(tokens);
+        if (options != null) {
+            session.out.addLast(ByteBuffer.wrap(("PROTOCOL " + options.toHandshake() + System.lineSeparator()).getBytes()));
+        } else {
+            options = ProtocolOptions.TEXT;
+        }
+
+        session.conn = new NioClientConnection(this, session.key, options, Config.CLIENT_QUEUE_CAPACITY,
+                ClientListener.getOverflowPolicy(), session.out, () -> submit(session, null), () -> resume(session));
+        ClientListener.register(session.clientId, session.conn);
+        session.conn.service(gather);
+        submit(session, "REGISTRY");
+        return true;
+    }
+
+    private void endOfStream(Session session) {
+        if (session.conn == null) {
+            closeSession(session);
+            return;
+        }
+        session.ended = true;
+        session.key.interestOps(session.key.interestOps() & ~SelectionKey.OP_READ);
+        submit(session, null);
+    }
+
+    private void closeSession(Session session) {
+        if (session.conn != null) {
+            session.conn.close();
+            session.conn.shutdown();
+            return;
+        }
+        session.key.cancel();
+        try { session.channel.close(); } catch (IOException ignored) {}
+    }
+
+    /**
+     * Przekazuje polecenie klienta do wykonania przez pulę wątków, zachowując kolejność poleceń klienta.
+     *
+     * @param session sesja klienta
+     * @param command treść polecenia lub null po rozłączeniu klienta
+     */
+    private void submit(Session session, String command) {
+        synchronized (session.commands) {
+            if (session.finished) return;
+            session.commands.addLast(command != null ? command : Session.END);
+            if (command != null && session.commands.size() >= MAX_PENDING_COMMANDS && !session.readPaused) {
+                // klient wysyła polecenia szybciej, niż są wykonywane - dalsze dane czekają w buforze gniazda
+                session.readPaused = true;
+                session.key.interestOps(session.key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            if (session.running || session.awaitingSpace) return;
+            session.running = true;
+        }
+        commandPool.execute(() -> runCommands(session));
+    }
+
+    /**
+     * Wznawia wykonywanie poleceń klienta wstrzymane przy pełnej kolejce połączenia.
+     * Wywoływana przez wątek selektora po opróżnieniu kolejki.
+     *
+     * @param session sesja klienta
+     */
+    private void resume(Session session) {
+        synchronized (session.commands) {
+            session.awaitingSpace = false;
+            if (session.finished || session.running || session.commands.isEmpty()) return;
+            session.running = true;
+        }
+        commandPool.execute(() -> runCommands(session));
+    }
+
+    private void runCommands(Session session) {
+        while (true) {
+            String command;
+            synchronized (session.commands) {
+                command = session.commands.peekFirst();
+                if (command != Session.END && command != null) {
+                    session.awaitingSpace = true;
+                }
+            }
+            // przy pełnej kolejce połączenia wątek puli nie czeka - polecenia wznowi wątek selektora
+            if (command != Session.END && command != null && session.conn.awaitSpace()) {
+                synchronized (session.commands) {
+                    // resume() mogło już zostać wywołane i zastać wątek jeszcze uruchomiony
+                    if (session.awaitingSpace) {
+                        session.running = false;
+                        return;
+                    }
+                }
+                continue;
+            }
+            synchronized (session.commands) {
+                session.awaitingSpace = false;
+                command = session.commands.pollFirst();
+                if (command == null) {
+                    session.running = false;
+                    return;
+                }
+                if (session.readPaused && session.commands.size() <= MAX_PENDING_COMMANDS / 2) {
+                    session.readPaused = false;
+                    resumeReading(session);
+                }
+            }
+
+            boolean keepOpen;
+            try {
+                keepOpen = command != Session.END && ClientListener.processCommand(session.conn, session.clientId, command);
+            } catch (Exception e) {
+                System.err.println("Błąd klienta: " + e.getMessage());
+                keepOpen = false;
+            }
+            if (!keepOpen) {
+                synchronized (session.commands) {
+                    session.finished = true;
+                    session.commands.clear();
+                    session.running = false;
+                }
+                ClientListener.unregister(session.clientId, session.conn, 1000);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Zleca wątkowi selektora przywrócenie odczytu danych klienta wstrzymanego po osiągnięciu
+     * {@link #MAX_PENDING_COMMANDS}. Zbiór zdarzeń klucza zmienia wyłącznie wątek selektora,
+     * aby nie utracić równoległej zmiany (np. oczekiwania na gotowość do zapisu).
+     *
+     * @param session sesja klienta
+     */
+    private void resumeReading(Session session) {
+        resumedReads.add(session);
+        Selector sel = selector;
+        if (sel != null) {
+            sel.wakeup();
+        }
+    }
+
+    /**
+     * Przywraca odczyt danych klienta, chyba że został w międzyczasie ponownie wstrzymany
+     * lub klient zakończył strumień. Wywoływana wyłącznie przez wątek selektora.
+     *
+     * @param session sesja klienta
+     */
+    private void restoreRead(Session session) {
+        synchronized (session.commands) {
+            if (session.readPaused || session.ended || !session.key.isValid()) return;
+        }
+        try {
+            session.key.interestOps(session.key.interestOps() | SelectionKey.OP_READ);
+        } catch (CancelledKeyException ignored) {
+            // kanał został już zamknięty
+        }
+    }
+
+    /**
+     * Stan połączenia obsługiwanego przez selektor.
+     */
+    private static final class Session {
+        /** Znacznik rozłączenia klienta w kolejce poleceń. */
+        static final String END = new String("");
+
+        final SelectionKey key;
+        final SocketChannel channel;
+        final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        final Deque<ByteBuffer> out = new ArrayDeque<>();
+        final Deque<String> commands = new ArrayDeque<>();
+        String clientId;
+        NioClientConnection conn;
+        boolean running;
+        boolean finished;
+        /** Wykonywanie poleceń czeka na miejsce w kolejce połączenia. */
+        boolean awaitingSpace;
+        /** Odczyt danych klienta jest wstrzymany z powodu liczby oczekujących poleceń. */
+        boolean readPaused;
+        /** Klient zakończył strumień - odczyt nie jest już wznawiany. Używane przez wątek selektora. */
+        boolean ended;
+
+        Session(SelectionKey key) {
+            this.key = key;
+            this.channel = (SocketChannel) key.channel();
+        }
+    }
+}
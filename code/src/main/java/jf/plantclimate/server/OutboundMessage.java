@@ -0,0 +1,172 @@
+package jf.plantclimate.server;
+
+import jf.plantclimate.data.Reading;
+import jf.plantclimate.protocol.TextLineEncoder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Komunikat oczekujący na wysłanie do klienta.
+ * Odczyty są przechowywane jako obiekty, dzięki czemu każde połączenie koduje je
+ * w uzgodnionym protokole, a postać tekstowa powstaje co najwyżej raz na komunikat.
+ * Bajty wiersza tekstowego są również kodowane raz i współdzielone przez połączenia
+ * obsługiwane przez {@link NioClientListener}.
+ */
+final class OutboundMessage {
+    /**
+     * Rodzaj komunikatu.
+     */
+    enum Kind {
+        /** Dowolny wiersz protokołu tekstowego. */
+        LINE,
+        /** Aktualizacja odczytu czujnika (UPDATE). */
+        UPDATE,
+        /** Odczyt historyczny (DATA). */
+        DATA
+    }
+
+    private final Kind kind;
+    private final String key;
+    private final Reading reading;
+    private final boolean droppable;
+    private volatile String line;
+    private volatile ByteBuffer encoded;
+    private volatile String json;
+
+    private OutboundMessage(Kind kind, String key, Reading reading, String line, boolean droppable) {
+        this.kind = kind;
+        this.key = key;
+        this.reading = reading;
+        this.line = line;
+        this.droppable = droppable;
+    }
+
+    /**
+     * Tworzy komunikat tekstowy.
+     *
+     * @param line treść komunikatu
+     * @param droppable czy komunikat może zostać odrzucony przy przepełnieniu kolejki
+     * @return komunikat
+     */
+    static OutboundMessage line(String line, boolean droppable) {
+        return new OutboundMessage(Kind.LINE, null, null, line, droppable);
+    }
+
+    /**
+     * Tworzy aktualizację odczytu czujnika.
+     *
+     * @param sensorId identyfikator czujnika, używany także jako klucz scalania
+     * @param reading odczyt
+     * @param droppable czy komunikat może zostać odrzucony przy przepełnieniu kolejki
+     * @return komunikat
+     */
+    static OutboundMessage update(String sensorId, Reading reading, boolean droppable) {
+        return new OutboundMessage(Kind.UPDATE, sensorId, reading, null, droppable);
+    }
+
+    /**
+     * Tworzy komunikat z odczytem historycznym. Odpowiedzi na zapytania nie są odrzucane.
+     *
+     * @param reading odczyt
+     * @return komunikat
+     */
+    static OutboundMessage data(Reading reading) {
+        return new OutboundMessage(Kind.DATA, null, reading, null, false);
+    }
+
+    /**
+     * Zwraca kopię komunikatu z inną informacją o możliwości odrzucenia.
+     *
+     * @param droppable czy komunikat może zostać odrzucony
+     * @return komunikat
+     */
+    OutboundMessage withDroppable(boolean droppable) {
+        return droppable == this.droppable ? this : new OutboundMessage(kind, key, reading, line, droppable);
+    }
+
+    Kind kind() {
+        return kind;
+    }
+
+    String key() {
+        return key;
+    }
+
+    Reading reading() {
+        return reading;
+    }
+
+    boolean droppable() {
+        return droppable;
+    }
+
+    /**
+     * Zwraca komunikat w postaci wiersza protokołu tekstowego.
+     *
+     * @return wiersz protokołu tekstowego
+     */
+    String line() {
+        String l = line;
+        if (l == null) {
+            l = switch (kind) {
+                case UPDATE -> ClientListener.formatReadingUpdate(key, reading);
+                case DATA -> ClientListener.formatReadingForHistory(reading);
+                case LINE -> "";
+            };
+            line = l;
+        }
+        return l;
+    }
+
+    /**
+     * Zwraca wiersz protokołu tekstowego zakodowany tak jak w {@link TextMessageWriter}
+     * (domyślne kodowanie znaków, separator wierszy systemu). Bajty są współdzielone -
+     * każde wywołanie zwraca osobny widok tylko do odczytu z własną pozycją.
+     * Odczyty, których wiersz nie był jeszcze potrzebny jako tekst, są kodowane
+     * bezpośrednio do bajtów przez {@link TextLineEncoder}.
+     *
+     * @return bufor z zakodowanym wierszem
+     */
+    ByteBuffer encodedLine() {
+        ByteBuffer b = encoded;
+        if (b == null) {
+            byte[] bytes = line == null ? encodeReading() : null;
+            if (bytes == null) {
+                bytes = (line() + System.lineSeparator()).getBytes();
+            }
+            b = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+            encoded = b;
+        }
+        return b.duplicate();
+    }
+
+    /**
+     * Koduje odczyt bezpośrednio do bajtów wiersza tekstowego.
+     *
+     * @return bajty wiersza z separatorem lub null, jeśli należy użyć postaci tekstowej
+     */
+    private byte[] encodeReading() {
+        if (kind == Kind.LINE || !TextLineEncoder.matchesDefaultCharset()) return null;
+        TextLineEncoder encoder = TextLineEncoder.local();
+        if (kind == Kind.UPDATE) {
+            encoder.update(key, reading);
+        } else {
+            encoder.data(reading);
+        }
+        return encoder.isAscii() ? encoder.newLine().toByteArray() : null;
+    }
+
+    /**
+     * Zwraca odczyt w formacie JSON, serializowany raz dla wszystkich strumieni zdarzeń HTTP.
+     *
+     * @return odczyt w formacie JSON
+     */
+    String json() {
+        String j = json;
+        if (j == null) {
+            j = HttpApiServer.GSON.toJson(reading);
+            json = j;
+        }
+        return j;
+    }
+}
@@ -0,0 +1,38 @@
+package jf.plantclimate.server;
+
+/**
+ * Sposób postępowania z klientem, którego kolejka komunikatów wychodzących jest pełna.
+ */
+public enum OverflowPolicy {
+    /**
+     * Rozłącza klienta, który nie nadąża z odbiorem danych.
+     */
+    DISCONNECT,
+
+    /**
+     * Usuwa najstarszą oczekującą aktualizację, aby zrobić miejsce na nową.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Zastępuje oczekującą aktualizację tego samego czujnika nowszą wartością.
+     * Jeśli takiej aktualizacji nie ma, usuwa najstarszą.
+     */
+    CONFLATE;
+
+    /**
+     * Zwraca politykę o podanej nazwie.
+     *
+     * @param name nazwa polityki (wielkość liter nie ma znaczenia)
+     * @param fallback polityka zwracana dla nieznanej nazwy
+     * @return polityka przepełnienia
+     */
+    public static OverflowPolicy fromString(String name, OverflowPolicy fallback) {
+        if (name == null) return fallback;
+        try {
+            return valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return fallback;
+        }
+    }
+}
@@ -10,15 +10,57 @@ import jf.plantclimate.data.Config;
 public class PlantClimateServer {
     /**
      * Główna metoda uruchomieniowa serwera.
-     * Inicjalizuje dwa wątki: jeden dla czujników, drugi dla klientów.
+     * Wczytuje rejestr metadanych czujników, reguły alarmów i zapytania okienkowe, a następnie inicjalizuje dwa wątki: jeden dla czujników, drugi dla klientów.
+     * Połączenia klientów obsługuje selektor NIO lub, przy ustawieniu THREAD, osobne wątki.
+     * Jeśli ustawiono port HTTP, uruchamia również interfejs HTTP, a jeśli port replikacji - dziennik
+     * przyjętych odczytów udostępniany replikom. Serwer uruchomiony jako replika ({@link Config#REPLICA_OF})
+     * śledzi dziennik serwera głównego i otwiera port czujników dopiero po awansie. Port synchronizacji
+     * udostępnia historię odczytów innym serwerom ({@link HistorySync}).
+     * W trybie przekaźnika ({@link Config#RELAY_TO}) uruchamia wyłącznie {@link EdgeRelay}.
      */
     public static void main(String[] args) {
+        if (!Config.RELAY_TO.isEmpty()) {
+            System.out.println("Uruchamianie przekaźnika odczytów...");
+            System.out.println("Port czujników: " + Config.SENSOR_PORT);
+            EdgeRelay.start();
+            return;
+        }
+
         System.out.println("Uruchamianie serwera monitorowania roślin...");
         System.out.println("Port czujników: " + Config.SENSOR_PORT);
         System.out.println("Port klientów: " + Config.CLIENT_PORT);
+        if (Config.HTTP_PORT > 0) {
+            System.out.println("Port HTTP: " + Config.HTTP_PORT);
+        }
+        if (Config.REPLICATION_PORT > 0) {
+            System.out.println("Port replikacji: " + Config.REPLICATION_PORT);
+        }
+        if (Config.SYNC_PORT > 0) {
+            System.out.println("Port synchronizacji historii: " + Config.SYNC_PORT);
+        }
         
+        SensorRegistry.load();
+        AlertRules.load();
+        WindowQueries.load();
+        if (Config.REPLICATION_PORT > 0) {
+            ReplicationLog.open();
+            new ReplicationListener().start();
+        }
         new SensorListener().start();
-        new ClientListener().start();
+        if (Config.SYNC_PORT > 0) {
+            new HistorySyncListener().start();
+        }
+        if (!Config.SYNC_PEERS.isEmpty()) {
+            HistorySync.startPeriodic();
+        }
+        if ("THREAD".equalsIgnoreCase(Config.CLIENT_TRANSPORT)) {
+            new ClientListener().start();
+        } else {
+            new NioClientListener().start();
+        }
+        if (Config.HTTP_PORT > 0) {
+            new HttpApiServer(Config.HTTP_PORT, Config.HTTP_THREADS).start();
+        }
         
         System.out.println("Serwer uruchomiony pomyślnie");
     }
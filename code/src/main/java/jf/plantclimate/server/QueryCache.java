@@ -0,0 +1,178 @@
+package jf.plantclimate.server;
+
+import jf.plantclimate.data.Reading;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Pamięć podręczna odpowiedzi na zapytania o odczyty czujnika (HISTORY, EXPORT).
+ *
+ * <p>Przechowywane są gotowe komunikaty odpowiedzi - każdy z nich koduje swój wiersz tekstowy
+ * co najwyżej raz - więc powtarzane zapytanie, np. odświeżanie wykresu przez wiele aplikacji
+ * klienckich, nie formatuje odczytów ponownie. Wpis jest oznaczony numerem wersji danych
+ * czujnika, z której powstał, i jest zwracany tylko wtedy, gdy wersja jest aktualna.</p>
+ *
+ * <p>Po zapisaniu nowego odczytu wpisy czujnika odpowiadające poprzedniej wersji są rozszerzane
+ * o jeden komunikat (najstarszy wypada z okna), a starsze wpisy usuwane. Liczba wpisów jest
+ * ograniczona; przy przepełnieniu usuwany jest najdawniej używany.</p>
+ */
+final class QueryCache {
+    private final int capacity;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, List<Entry>> entriesBySensor = new HashMap<>();
+
+    private long hits;
+    private long misses;
+    private long extended;
+    private long invalidated;
+    private long evicted;
+
+    /**
+     * Wpis pamięci podręcznej: ostatnie {@code limit} odczytów czujnika w postaci komunikatów.
+     */
+    private static final class Entry {
+        final String key;
+        final String sensorId;
+        final int limit;
+        final Function<Reading, OutboundMessage> rowFactory;
+        List<OutboundMessage> rows;
+        long revision;
+
+        Entry(String key, String sensorId, int limit, Function<Reading, OutboundMessage> rowFactory,
+              List<OutboundMessage> rows, long revision) {
+            this.key = key;
+            this.sensorId = sensorId;
+            this.limit = limit;
+            this.rowFactory = rowFactory;
+            this.rows = rows;
+            this.revision = revision;
+        }
+    }
+
+    /**
+     * @param capacity maksymalna liczba wpisów; 0 wyłącza przechowywanie odpowiedzi
+     */
+    QueryCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Zwraca komunikaty odpowiedzi dla ostatnich {@code limit} odczytów czujnika,
+     * z pamięci podręcznej lub utworzone z bieżącej historii.
+     *
+     * @param command polecenie, którego odpowiedź jest przechowywana (część klucza)
+     * @param sensorId identyfikator czujnika
+     * @param limit maksymalna liczba odczytów
+     * @param rowFactory tworzy komunikat dla pojedynczego odczytu; musi być taki sam dla danego polecenia
+     * @return niemodyfikowalna lista komunikatów lub null, jeśli czujnik nie ma historii
+     */
+    List<OutboundMessage> get(String command, String sensorId, int limit, Function<Reading, OutboundMessage> rowFactory) {
+        limit = Math.max(0, limit);
+        String key = command + " " + sensorId + "," + limit;
+        long current = SensorListener.getRevision(sensorId);
+        if (capacity > 0) {
+            synchronized (this) {
+                Entry e = entries.get(key);
+                if (e != null && e.revision == current) {
+                    hits++;
+                    return e.rows;
+                }
+                misses++;
+            }
+        }
+
+        SensorListener.HistorySnapshot snapshot = SensorListener.snapshotSensorHistory(sensorId);
+        if (snapshot == null) return null;
+        List<Reading> readings = snapshot.readings();
+        int from = Math.min(readings.size(), Math.max(0, readings.size() - limit));
+        List<OutboundMessage> rows = new ArrayList<>(readings.size() - from);
+        for (int i = from; i < readings.size(); i++) {
+            rows.add(rowFactory.apply(readings.get(i)));
+        }
+        rows = Collections.unmodifiableList(rows);
+
+        if (capacity > 0) {
+            synchronized (this) {
+                Entry e = entries.get(key);
+                if (e == null) {
+                    e = new Entry(key, sensorId, limit, rowFactory, rows, snapshot.revision());
+                    entries.put(key, e);
+                    entriesBySensor.computeIfAbsent(sensorId, k -> new ArrayList<>()).add(e);
+                    evictOverflow();
+                } else if (e.revision < snapshot.revision()) {
+                    e.rows = rows;
+                    e.revision = snapshot.revision();
+                }
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Uwzględnia nowy odczyt zapisany w historii czujnika: rozszerza wpisy odpowiadające
+     * poprzedniej wersji danych i usuwa wpisy nieaktualne.
+     *
+     * @param reading nowy odczyt
+     * @param revision numer wersji danych czujnika po zapisaniu odczytu
+     * @param historySize liczba odczytów w historii czujnika po zapisaniu odczytu
+     */
+    synchronized void readingStored(Reading reading, long revision, int historySize) {
+        List<Entry> sensorEntries = entriesBySensor.get(reading.deviceId());
+        if (sensorEntries == null) return;
+
+        Iterator<Entry> it = sensorEntries.iterator();
+        while (it.hasNext()) {
+            Entry e = it.next();
+            if (e.revision == revision - 1) {
+                int size = Math.min(e.limit, historySize);
+                List<OutboundMessage> rows = new ArrayList<>(size);
+                int skip = Math.max(0, e.rows.size() + 1 - size);
+                rows.addAll(e.rows.subList(Math.min(skip, e.rows.size()), e.rows.size()));
+                if (rows.size() < size) {
+                    rows.add(e.rowFactory.apply(reading));
+                }
+                e.rows = Collections.unmodifiableList(rows);
+                e.revision = revision;
+                extended++;
+            } else if (e.revision < revision - 1) {
+                entries.remove(e.key);
+                it.remove();
+                invalidated++;
+            }
+        }
+        if (sensorEntries.isEmpty()) {
+            entriesBySensor.remove(reading.deviceId());
+        }
+    }
+
+    private void evictOverflow() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (entries.size() > capacity && it.hasNext()) {
+            Entry e = it.next();
+            it.remove();
+            List<Entry> sensorEntries = entriesBySensor.get(e.sensorId);
+            sensorEntries.remove(e);
+            if (sensorEntries.isEmpty()) {
+                entriesBySensor.remove(e.sensorId);
+            }
+            evicted++;
+        }
+    }
+
+    /**
+     * Zwraca statystyki w formacie: wpisy,pojemność,trafienia,chybienia,rozszerzone,unieważnione,usunięte
+     *
+     * @return statystyki pamięci podręcznej
+     */
+    synchronized String stats() {
+        return entries.size() + "," + capacity + "," + hits + "," + misses + ","
+                + extended + "," + invalidated + "," + evicted;
+    }
+}
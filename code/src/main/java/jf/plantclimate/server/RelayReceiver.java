@@ -0,0 +1,180 @@
+package jf.plantclimate.server;
+
+import jf.plantclimate.data.Config;
+import jf.plantclimate.data.Reading;
+import jf.plantclimate.util.ReadingParser;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Przyjmuje paczki odczytów od przekaźników ({@link EdgeRelay}) na porcie czujników.
+ *
+ * <p>Dla każdego przekaźnika zapamiętywany jest numer ostatniego zapisanego odczytu (plik
+ * relays.state w katalogu danych). Odczyty o numerach nie większych są pomijane, więc paczka
+ * wysłana ponownie po utracie potwierdzenia nie jest zapisywana drugi raz. Odczyty z paczki są
+ * przyjmowane tak samo jak odczyty od czujników.</p>
+ */
+final class RelayReceiver {
+    /**
+     * Plik stanu przekaźników w katalogu danych czujników. Format: wiersze "relayId,numer".
+     */
+    private static final Path FILE = Paths.get(Config.DATA_DIR, "relays.state");
+
+    /**
+     * Maksymalny rozmiar rozpakowanej paczki.
+     */
+    private static final int MAX_BATCH_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Czas (ms) bez danych od przekaźnika, po którym połączenie jest zamykane.
+     */
+    private static final int IDLE_TIMEOUT_MS = 5 * 60_000;
+
+    private static final Map<String, Long> positions = load();
+
+    private RelayReceiver() {
+    }
+
+    /**
+     * Obsługuje połączenie przekaźnika po odczytaniu wiersza "RELAY identyfikator".
+     *
+     * @param s gniazdo połączenia
+     * @param in strumień wejściowy połączenia, ustawiony za wierszem powitania
+     * @param relayId identyfikator przekaźnika
+     */
+    static void handle(Socket s, InputStream in, String relayId) throws IOException {
+        s.setSoTimeout(IDLE_TIMEOUT_MS);
+        OutputStream os = s.getOutputStream();
+        long position = getPosition(relayId);
+        os.write(("RELAY_ACK " + position + "\n").getBytes(StandardCharsets.UTF_8));
+        os.flush();
+        System.out.println("Połączono z przekaźnikiem: " + relayId + " (" + s.getInetAddress().getHostAddress()
+                + ", zapisane odczyty: " + position + ")");
+
+        Inflater inflater = new Inflater();
+        try {
+            String header;
+            while ((header = SensorListener.readLine(in)) != null) {
+                String[] f = header.split(" ");
+                if (f.length != 4 || !f[0].equals("BATCH")) {
+                    throw new IOException("Nieprawidłowy nagłówek paczki: " + header);
+                }
+                byte[] compressed = in.readNBytes(Integer.parseInt(f[3]));
+                String batch = inflate(inflater, compressed);
+                position = store(relayId, batch);
+                os.write(("ACK " + position + "\n").getBytes(StandardCharsets.UTF_8));
+                os.flush();
+            }
+        } finally {
+            inflater.end();
+            System.out.println("Przekaźnik rozłączony: " + relayId);
+        }
+    }
+
+    /**
+     * Zapisuje odczyty z paczki, pomijając już zapisane.
+     *
+     * @return numer ostatniego zapisanego odczytu przekaźnika
+     */
+    private static long store(String relayId, String batch) {
+        synchronized (positions) {
+            long position = positions.getOrDefault(relayId, 0L);
+            for (String entry : batch.split("\n")) {
+                int comma = entry.indexOf(',');
+                if (comma <= 0) continue;
+                long seq = Long.parseLong(entry.substring(0, comma));
+                if (seq <= position) continue;
+                Reading reading = ReadingParser.parseFromParts(entry.substring(comma + 1).split(","));
+                if (reading != null) {
+                    SensorListener.store(reading);
+                } else {
+                    System.err.println("Błąd parsowania odczytu przekaźnika " + relayId + ": " + entry);
+                }
+                position = seq;
+            }
+            positions.put(relayId, position);
+            save();
+            return position;
+        }
+    }
+
+    private static long getPosition(String relayId) {
+        synchronized (positions) {
+            return positions.getOrDefault(relayId, 0L);
+        }
+    }
+
+    private static String inflate(Inflater inflater, byte[] compressed) throws IOException {
+        inflater.reset();
+        inflater.setInput(compressed);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 4);
+        byte[] buf = new byte[8192];
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buf);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Niekompletna paczka");
+                }
+                out.write(buf, 0, n);
+                if (out.size() > MAX_BATCH_BYTES) {
+                    throw new IOException("Paczka przekracza " + MAX_BATCH_BYTES + " B");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Uszkodzona paczka: " + e.getMessage());
+        }
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, Long> load() {
+        Map<String, Long> result = new TreeMap<>();
+        try (BufferedReader br = Files.newBufferedReader(FILE, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                int comma = line.lastIndexOf(',');
+                if (comma > 0) {
+                    result.put(line.substring(0, comma), Long.parseLong(line.substring(comma + 1)));
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // żaden przekaźnik nie przesłał jeszcze odczytów
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Błąd wczytywania stanu przekaźników: " + e.getMessage());
+        }
+        return result;
+    }
+
+    /**
+     * Zapisuje stan przekaźników do pliku tymczasowego i podmienia nim poprzedni plik.
+     */
+    private static void save() {
+        Path tmp = FILE.resolveSibling(FILE.getFileName() + ".tmp");
+        try {
+            try (BufferedWriter bw = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Long> e : positions.entrySet()) {
+                    bw.write(e.getKey() + "," + e.getValue());
+                    bw.newLine();
+                }
+            }
+            Files.move(tmp, FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Błąd zapisu stanu przekaźników: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package jf.plantclimate.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Bufor odczytów przekaźnika na dysku. Odczyty są dopisywane z kolejnymi numerami i pozostają
+ * w buforze, dopóki serwer centralny nie potwierdzi ich zapisania, także po ponownym
+ * uruchomieniu przekaźnika.
+ *
+ * <p>Wpisy w formacie "numer,odczytCSV" są zapisywane w plikach segmentów nazwanych numerem
+ * pierwszego wpisu. Segment, którego wszystkie wpisy zostały potwierdzone, jest usuwany.
+ * Numer ostatniego potwierdzonego wpisu jest przechowywany w pliku acked. Niepotwierdzone wpisy
+ * dopisane przez bieżący proces są też przechowywane w pamięci, więc w zwykłej pracy segmenty
+ * są tylko zapisywane; z plików czytane są wpisy zaległe z poprzedniego uruchomienia.</p>
+ */
+final class RelaySpool {
+    /**
+     * Liczba wpisów w jednym segmencie.
+     */
+    private static final int SEGMENT_ENTRIES = 10_000;
+
+    /**
+     * Maksymalna liczba niepotwierdzonych wpisów przechowywanych w pamięci.
+     */
+    private static final int MEMORY_ENTRIES = 100_000;
+
+    private final Path dir;
+    private final Path ackedFile;
+    /** Numer pierwszego wpisu segmentu -> plik segmentu. */
+    private final TreeMap<Long, Path> segments = new TreeMap<>();
+    private final ArrayDeque<String> memory = new ArrayDeque<>();
+    private long firstInMemory;
+    private long lastSeq;
+    private long acked;
+    private Writer writer;
+    private int writerEntries;
+
+    /**
+     * Otwiera bufor w podanym katalogu, wczytując numery ostatniego i ostatniego potwierdzonego wpisu.
+     *
+     * @param dir katalog bufora
+     */
+    RelaySpool(Path dir) throws IOException {
+        this.dir = dir;
+        this.ackedFile = dir.resolve("acked");
+        Files.createDirectories(dir);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.seg")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                segments.put(Long.parseLong(name.substring(0, name.length() - 4)), file);
+            }
+        }
+        try {
+            acked = Long.parseLong(Files.readString(ackedFile, StandardCharsets.UTF_8).trim());
+        } catch (NoSuchFileException e) {
+            acked = 0;
+        }
+        lastSeq = acked;
+        if (!segments.isEmpty()) {
+            lastSeq = Math.max(lastSeq, segments.lastKey() - 1);
+            try (BufferedReader br = Files.newBufferedReader(segments.lastEntry().getValue(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    long seq = seqOf(line);
+                    if (seq > 0 && isComplete(line)) lastSeq = Math.max(lastSeq, seq);
+                }
+            }
+        }
+        firstInMemory = lastSeq + 1;
+    }
+
+    /**
+     * Dopisuje odczyt do bufora.
+     *
+     * @param csv odczyt w formacie wiersza pliku CSV czujnika
+     */
+    synchronized void append(String csv) throws IOException {
+        long seq = lastSeq + 1;
+        if (writer == null || writerEntries >= SEGMENT_ENTRIES) {
+            if (writer != null) writer.close();
+            Path file = dir.resolve(String.format("%020d.seg", seq));
+            writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+            segments.put(seq, file);
+            writerEntries = 0;
+        }
+        String entry = seq + "," + csv;
+        writer.write(entry);
+        writer.write('\n');
+        writer.flush();
+        writerEntries++;
+        lastSeq = seq;
+
+        memory.addLast(entry);
+        if (memory.size() > MEMORY_ENTRIES) {
+            memory.removeFirst();
+            firstInMemory++;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Czeka, aż w buforze pojawi się wpis o numerze większym niż podany.
+     *
+     * @param afterSeq numer ostatniego wpisu, który odbiorca już ma
+     * @param timeoutMs maksymalny czas oczekiwania
+     * @return liczba dostępnych wpisów po podanym numerze
+     */
+    synchronized long await(long afterSeq, long timeoutMs) throws InterruptedException {
+        if (lastSeq <= afterSeq) {
+            wait(timeoutMs);
+        }
+        return lastSeq - afterSeq;
+    }
+
+    /**
+     * Zwraca kolejne wpisy następujące po podanym numerze.
+     *
+     * @param afterSeq numer ostatniego wpisu, który odbiorca już ma
+     * @param max maksymalna liczba wpisów
+     * @return wpisy w kolejności numerów
+     */
+    List<String> read(long afterSeq, int max) throws IOException {
+        List<String> entries = new ArrayList<>();
+        synchronized (this) {
+            if (afterSeq + 1 >= firstInMemory) {
+                long seq = firstInMemory;
+                for (String entry : memory) {
+                    if (seq > afterSeq) {
+                        entries.add(entry);
+                        if (entries.size() >= max) break;
+                    }
+                    seq++;
+                }
+                return entries;
+            }
+        }
+        return readFromSegments(afterSeq, max);
+    }
+
+    private List<String> readFromSegments(long afterSeq, int max) throws IOException {
+        List<Path> files;
+        synchronized (this) {
+            Long first = segments.floorKey(afterSeq + 1);
+            files = new ArrayList<>((first != null ? segments.tailMap(first) : segments).values());
+        }
+        List<String> entries = new ArrayList<>();
+        for (Path file : files) {
+            try (BufferedReader br = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    long seq = seqOf(line);
+                    // niepełny ostatni wiersz po awarii przekaźnika jest pomijany
+                    if (seq <= afterSeq || !isComplete(line)) continue;
+                    entries.add(line);
+                    if (entries.size() >= max) return entries;
+                }
+            } catch (NoSuchFileException e) {
+                // segment usunięty po potwierdzeniu
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Oznacza wpisy do podanego numeru jako zapisane przez serwer centralny i usuwa segmenty,
+     * których wszystkie wpisy zostały potwierdzone. Numer większy niż ostatni wpis (np. po utracie
+     * bufora przekaźnika) przesuwa numerację, aby serwer nie pominął nowych odczytów jako powtórzeń.
+     *
+     * @param seq numer ostatniego potwierdzonego wpisu
+     */
+    void ack(long seq) throws IOException {
+        List<Path> removable = new ArrayList<>();
+        long ackedNow;
+        synchronized (this) {
+            if (seq <= acked) return;
+            if (seq > lastSeq) {
+                lastSeq = seq;
+                writerEntries = SEGMENT_ENTRIES;
+            }
+            acked = seq;
+            while (!memory.isEmpty() && firstInMemory <= acked) {
+                memory.removeFirst();
+                firstInMemory++;
+            }
+            if (firstInMemory <= acked) {
+                firstInMemory = acked + 1;
+            }
+            // segment jest w pełni potwierdzony, gdy następny zaczyna się nie dalej niż za potwierdzonym wpisem
+            while (segments.size() > 1) {
+                Long second = segments.higherKey(segments.firstKey());
+                if (second > acked + 1) break;
+                removable.add(segments.pollFirstEntry().getValue());
+            }
+            ackedNow = acked;
+        }
+        Path tmp = ackedFile.resolveSibling("acked.tmp");
+        Files.writeString(tmp, Long.toString(ackedNow), StandardCharsets.UTF_8);
+        Files.move(tmp, ackedFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        for (Path file : removable) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * @return numer ostatniego potwierdzonego wpisu
+     */
+    synchronized long getAcked() {
+        return acked;
+    }
+
+    /**
+     * @return numer ostatniego wpisu
+     */
+    synchronized long getLastSeq() {
+        return lastSeq;
+    }
+
+    /**
+     * Sprawdza, czy wpis ma wszystkie pola: numer i 11 pól wiersza CSV odczytu.
+     */
+    private static boolean isComplete(String line) {
+        int commas = 0;
+        for (int i = 0; i < line.length(); i++) {
+            if (line.charAt(i) == ',') commas++;
+        }
+        return commas == 11;
+    }
+
+    private static long seqOf(String line) {
+        int comma = line.indexOf(',');
+        if (comma <= 0) return -1;
+        try {
+            return Long.parseLong(line.substring(0, comma));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package jf.plantclimate.server;
+
+import jf.plantclimate.data.Config;
+import jf.plantclimate.data.Reading;
+import jf.plantclimate.util.ReadingParser;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tryb repliki: śledzi {@link ReplicationLog} serwera głównego i stosuje jego wpisy
+ * we własnym magazynie tak, jakby odczyty przyszły od czujników.
+ *
+ * <p>Replika obsługuje klientów (rozgłasza im aktualizacje, odpowiada na zapytania), ale nie
+ * przyjmuje odczytów czujników ani zmian rejestru czujników, dopóki nie zostanie awansowana
+ * na serwer główny - poleceniem PROMOTE albo po {@link Config#FAILOVER_AFTER_MS} bez kontaktu
+ * z serwerem głównym. Po awansie otwiera port czujników, a klienci i czujniki mogą się przełączyć
+ * na jej adres.</p>
+ *
+ * <p>Pozycja w dzienniku serwera głównego jest zapisywana w pliku replica.position, więc po
+ * ponownym uruchomieniu replika doczytuje tylko brakujące wpisy. Pozycja jest zapisywana po
+ * zastosowaniu wpisów, dlatego po awarii repliki część wpisów może zostać zastosowana ponownie.</p>
+ */
+final class ReplicaFollower {
+    /**
+     * Plik pozycji repliki w katalogu danych czujników. Format: "epoka,numer".
+     */
+    private static final Path POSITION_FILE = Paths.get(Config.DATA_DIR, "replica.position");
+
+    /**
+     * Minimalny odstęp (ms) między zapisami pozycji repliki.
+     */
+    private static final long POSITION_SAVE_INTERVAL_MS = 200;
+
+    private static final CountDownLatch promotion = new CountDownLatch(1);
+    private static volatile boolean active = !Config.REPLICA_OF.isEmpty();
+    private static volatile boolean connected;
+    private static volatile long appliedSeq;
+    private static volatile long primarySeq;
+    private static volatile Socket socket;
+    private static String epoch = "-";
+    private static long lastPositionSave;
+
+    private ReplicaFollower() {
+    }
+
+    /**
+     * @return true, jeśli serwer jest repliką, która nie została awansowana
+     */
+    static boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Uruchamia wątek śledzący serwer główny. Wywoływana po wczytaniu danych historycznych,
+     * aby wpisy z dziennika trafiły za nimi.
+     */
+    static void start() {
+        loadPosition();
+        Thread t = new Thread(ReplicaFollower::follow, "replica-follower");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Czeka na awans repliki na serwer główny.
+     */
+    static void awaitPromotion() throws InterruptedException {
+        promotion.await();
+    }
+
+    /**
+     * Awansuje replikę na serwer główny: kończy śledzenie serwera głównego i otwiera port czujników.
+     *
+     * @return false, jeśli serwer nie jest repliką lub już został awansowany
+     */
+    static synchronized boolean promote() {
+        if (!active) return false;
+        active = false;
+        Socket s = socket;
+        if (s != null) {
+            try { s.close(); } catch (IOException ignored) {}
+        }
+        System.out.println("Replika awansowana na serwer główny (ostatni wpis serwera głównego: " + appliedSeq + ")");
+        promotion.countDown();
+        return true;
+    }
+
+    /**
+     * Zwraca stan repliki w formacie danych komunikatu REPLICATION REPLICA:
+     * adresSerweraGłównego,połączona,zastosowanyWpis,ostatniWpisSerweraGłównego
+     */
+    static String status() {
+        return Config.REPLICA_OF + "," + (connected ? 1 : 0) + "," + appliedSeq + "," + Math.max(primarySeq, appliedSeq);
+    }
+
+    /**
+     * @return numer ostatniego zastosowanego wpisu dziennika serwera głównego
+     */
+    static long getAppliedSeq() {
+        return appliedSeq;
+    }
+
+    private static void follow() {
+        String[] address = Config.REPLICA_OF.split(":");
+        String host = address[0];
+        int port = Integer.parseInt(address[1]);
+        long lastContact = System.currentTimeMillis();
+        boolean reported = false;
+
+        while (active) {
+            try (Socket s = new Socket(host, port)) {
+                socket = s;
+                if (!active) break;
+                s.setSoTimeout((int) (3 * ReplicationListener.HEARTBEAT_MS));
+                BufferedReader br = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                OutputStream os = s.getOutputStream();
+                os.write(("REPLICATE " + epoch + " " + appliedSeq + "\n").getBytes(StandardCharsets.UTF_8));
+                os.flush();
+
+                String[] reply = String.valueOf(br.readLine()).split(" ");
+                if (reply.length != 3 || !reply[0].equals("REPLICATION")) {
+                    throw new IOException("Nieoczekiwana odpowiedź serwera głównego: " + String.join(" ", reply));
+                }
+                if (!reply[1].equals(epoch)) {
+                    System.out.println("Replika śledzi dziennik " + reply[1] + " od wpisu " + reply[2]);
+                }
+                epoch = reply[1];
+                appliedSeq = Long.parseLong(reply[2]);
+                connected = true;
+                reported = false;
+                System.out.println("Połączono z serwerem głównym " + Config.REPLICA_OF + " (od wpisu " + appliedSeq + ")");
+
+                String line;
+                while (active && (line = br.readLine()) != null) {
+                    lastContact = System.currentTimeMillis();
+                    if (line.startsWith("HEARTBEAT ")) {
+                        primarySeq = Long.parseLong(line.substring(10).trim());
+                    } else {
+                        apply(line);
+                    }
+                    if (!br.ready()) {
+                        savePosition(false);
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                System.err.println("Brak odpowiedzi serwera głównego " + Config.REPLICA_OF);
+            } catch (IOException | RuntimeException e) {
+                if (active && !reported) {
+                    System.err.println("Brak połączenia z serwerem głównym " + Config.REPLICA_OF + ": " + e.getMessage());
+                    reported = true;
+                }
+            } finally {
+                socket = null;
+                connected = false;
+                savePosition(true);
+            }
+
+            if (!active) break;
+            if (Config.FAILOVER_AFTER_MS > 0 && System.currentTimeMillis() - lastContact >= Config.FAILOVER_AFTER_MS) {
+                promote();
+                break;
+            }
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stosuje wpis dziennika serwera głównego.
+     */
+    private static void apply(String entry) {
+        String[] parts = entry.split(",", 3);
+        long seq = Long.parseLong(parts[0]);
+        if (seq <= appliedSeq) return;
+        String data = parts.length > 2 ? parts[2] : "";
+        switch (parts[1].charAt(0)) {
+            case ReplicationLog.READING -> {
+                Reading reading = ReadingParser.parseFromParts(data.split(","));
+                if (reading != null) {
+                    SensorListener.store(reading);
+                }
+            }
+            case ReplicationLog.REGISTRY_PUT -> {
+                String[] f = data.split(",", 4);
+                SensorRegistry.put(f[0], f[1], f[2], f[3]);
+            }
+            case ReplicationLog.REGISTRY_REMOVE -> SensorRegistry.remove(data);
+            case ReplicationLog.REPAIRED -> SensorListener.storeRepaired(data.substring(0, Math.max(0, data.indexOf(','))), List.of(data));
+            default -> System.err.println("Nieznany wpis dziennika replikacji: " + entry);
+        }
+        appliedSeq = seq;
+    }
+
+    private static void loadPosition() {
+        try {
+            String[] f = Files.readString(POSITION_FILE, StandardCharsets.UTF_8).trim().split(",");
+            epoch = f[0];
+            appliedSeq = Long.parseLong(f[1]);
+        } catch (NoSuchFileException e) {
+            // replika nie śledziła jeszcze serwera głównego
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Błąd wczytywania pozycji repliki: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Zapisuje pozycję repliki do pliku tymczasowego i podmienia nim poprzedni plik.
+     *
+     * @param force zapis niezależnie od czasu od poprzedniego zapisu
+     */
+    private static void savePosition(boolean force) {
+        long now = System.currentTimeMillis();
+        if (!force && now - lastPositionSave < POSITION_SAVE_INTERVAL_MS) return;
+        lastPositionSave = now;
+        Path tmp = POSITION_FILE.resolveSibling(POSITION_FILE.getFileName() + ".tmp");
+        try {
+            Files.writeString(tmp, epoch + "," + appliedSeq, StandardCharsets.UTF_8);
+            Files.move(tmp, POSITION_FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Błąd zapisu pozycji repliki: " + e.getMessage());
+        }
+    }
+}
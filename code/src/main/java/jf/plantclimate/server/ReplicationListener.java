@@ -0,0 +1,107 @@
+package jf.plantclimate.server;
+
+import jf.plantclimate.data.Config;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Nasłuchuje połączeń replik i przesyła każdej z nich {@link ReplicationLog} od pozycji,
+ * na której replika skończyła, a następnie kolejne wpisy na bieżąco.
+ *
+ * <p>Replika zaczyna od wiersza "REPLICATE epoka numer". Serwer odpowiada
+ * "REPLICATION epoka numerPoczątkowy" - numer początkowy to numer repliki albo 0, jeśli replika
+ * śledziła inny dziennik - i wysyła wpisy w formacie pliku dziennika. Gdy nie ma nowych wpisów,
+ * co sekundę wysyła "HEARTBEAT numerOstatniegoWpisu", po którym replika rozpoznaje, że połączenie
+ * działa, i wyznacza swoje opóźnienie.</p>
+ */
+public class ReplicationListener extends Thread {
+    /**
+     * Odstęp (ms) między wierszami HEARTBEAT przy braku nowych wpisów.
+     */
+    static final long HEARTBEAT_MS = 1000;
+
+    /**
+     * Maksymalna liczba wpisów wysyłanych jednym zapisem.
+     */
+    private static final int BATCH_SIZE = 4096;
+
+    private static final AtomicInteger replicas = new AtomicInteger();
+
+    public ReplicationListener() {
+        super("replication-listener");
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        try (ServerSocket ss = new ServerSocket(Config.REPLICATION_PORT)) {
+            while (true) {
+                Socket s = ss.accept();
+                new Thread(() -> handle(s), "replication-sender").start();
+            }
+        } catch (IOException e) {
+            System.err.println("Błąd podczas uruchamiania nasłuchiwania replik: " + e.getMessage());
+        }
+    }
+
+    private void handle(Socket s) {
+        String replica = s.getInetAddress().getHostAddress() + ":" + s.getPort();
+        replicas.incrementAndGet();
+        try (s; BufferedReader br = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8))) {
+            Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8));
+            String[] request = String.valueOf(br.readLine()).trim().split("\\s+");
+            if (request.length != 3 || !request[0].equals("REPLICATE")) {
+                out.write("ERROR Oczekiwano REPLICATE epoka numer\n");
+                out.flush();
+                return;
+            }
+            String epoch = ReplicationLog.getEpoch();
+            long seq = Long.parseLong(request[2]);
+            if (!request[1].equals(epoch) || seq < 0 || seq > ReplicationLog.getLastSeq()) {
+                seq = 0;
+            }
+            out.write("REPLICATION " + epoch + " " + seq + "\n");
+            out.flush();
+            System.out.println("Replika połączona: " + replica + " (od wpisu " + seq + ")");
+
+            while (true) {
+                List<String> entries = ReplicationLog.await(seq, BATCH_SIZE, HEARTBEAT_MS);
+                if (entries == null) {
+                    seq = ReplicationLog.copyFromFile(seq, out);
+                } else if (entries.isEmpty()) {
+                    out.write("HEARTBEAT " + ReplicationLog.getLastSeq() + "\n");
+                } else {
+                    for (String entry : entries) {
+                        out.write(entry);
+                        out.write('\n');
+                    }
+                    seq += entries.size();
+                }
+                out.flush();
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Replika rozłączona: " + replica);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            replicas.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return liczba połączonych replik
+     */
+    static int getReplicaCount() {
+        return replicas.get();
+    }
+}
@@ -0,0 +1,206 @@
+package jf.plantclimate.server;
+
+import jf.plantclimate.data.Config;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Dziennik zmian przyjętych przez serwer: odczytów i zmian rejestru czujników, w kolejności przyjęcia.
+ * Repliki odtwarzają z niego stan serwera głównego.
+ *
+ * <p>Każdy wpis ma kolejny numer i jest dopisywany do pliku ingest.log w katalogu danych.
+ * Ostatnie wpisy są też przechowywane w pamięci, więc replika nadążająca za serwerem otrzymuje je
+ * bez czytania pliku. Plik zaczyna się wierszem "log,epoka", gdzie epoka jest losowym
+ * identyfikatorem nadawanym przy utworzeniu dziennika - replika rozpoznaje po niej, że jej pozycja
+ * dotyczy innego dziennika.</p>
+ *
+ * <p>Format wpisu: numer,typ,dane, gdzie typ to D (odczyt w formacie pliku CSV czujnika),
+ * M (wpis rejestru: sensorId,name,plantName,room), X (usunięcie czujnika z rejestru: sensorId)
+ * lub R (odczyt uzupełniony przez synchronizację historii, w formacie pliku CSV czujnika).</p>
+ *
+ * <p>Dziennik jest prowadzony tylko, gdy ustawiono port replikacji.</p>
+ */
+final class ReplicationLog {
+    /**
+     * Plik dziennika w katalogu danych czujników.
+     */
+    private static final Path FILE = Paths.get(Config.DATA_DIR, "ingest.log");
+
+    static final char READING = 'D';
+    static final char REGISTRY_PUT = 'M';
+    static final char REGISTRY_REMOVE = 'X';
+    static final char REPAIRED = 'R';
+
+    private static final Object lock = new Object();
+    private static final String[] recent = new String[Math.max(1, Config.REPLICATION_BUFFER)];
+    private static volatile boolean enabled;
+    private static String epoch;
+    private static long lastSeq;
+    /**
+     * Numer najstarszego wpisu zapisanego w pamięci przez ten proces.
+     */
+    private static long firstInMemory = 1;
+    private static Writer writer;
+
+    private ReplicationLog() {
+    }
+
+    /**
+     * Otwiera dziennik: wczytuje epokę i numer ostatniego wpisu z pliku albo tworzy nowy plik.
+     */
+    static void open() {
+        synchronized (lock) {
+            try {
+                Files.createDirectories(FILE.getParent());
+                try (BufferedReader br = Files.newBufferedReader(FILE, StandardCharsets.UTF_8)) {
+                    String header = br.readLine();
+                    if (header == null || !header.startsWith("log,")) {
+                        throw new IOException("Nieprawidłowy nagłówek dziennika: " + header);
+                    }
+                    epoch = header.substring(4).trim();
+                    String line;
+                    while ((line = br.readLine()) != null) {
+                        int comma = line.indexOf(',');
+                        if (comma > 0) {
+                            lastSeq = Long.parseLong(line.substring(0, comma));
+                        }
+                    }
+                } catch (NoSuchFileException e) {
+                    epoch = Long.toHexString(ThreadLocalRandom.current().nextLong());
+                    Files.writeString(FILE, "log," + epoch + System.lineSeparator(), StandardCharsets.UTF_8);
+                }
+                writer = Files.newBufferedWriter(FILE, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+                firstInMemory = lastSeq + 1;
+                enabled = true;
+                System.out.println("Dziennik replikacji: epoka " + epoch + ", ostatni wpis " + lastSeq);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Błąd otwierania dziennika replikacji: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Dopisuje wpis do dziennika, jeśli jest prowadzony, i budzi wątki wysyłające wpisy replikom.
+     *
+     * @param type typ wpisu
+     * @param data dane wpisu
+     */
+    static void append(char type, String data) {
+        if (!enabled) return;
+        synchronized (lock) {
+            long seq = lastSeq + 1;
+            String entry = seq + "," + type + "," + data;
+            try {
+                writer.write(entry);
+                writer.write(System.lineSeparator());
+                writer.flush();
+            } catch (IOException e) {
+                System.err.println("Błąd zapisu dziennika replikacji: " + e.getMessage());
+                return;
+            }
+            recent[(int) (seq % recent.length)] = entry;
+            lastSeq = seq;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * @return true, jeśli dziennik jest prowadzony
+     */
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return epoka dziennika
+     */
+    static String getEpoch() {
+        synchronized (lock) {
+            return epoch;
+        }
+    }
+
+    /**
+     * @return numer ostatniego wpisu
+     */
+    static long getLastSeq() {
+        synchronized (lock) {
+            return lastSeq;
+        }
+    }
+
+    /**
+     * Zwraca wpisy następujące po podanym numerze, czekając na nie co najwyżej podany czas.
+     *
+     * @param afterSeq numer ostatniego wpisu, który odbiorca już ma
+     * @param max maksymalna liczba zwracanych wpisów
+     * @param timeoutMs maksymalny czas oczekiwania na nowy wpis
+     * @return wpisy (pusta lista, jeśli nie pojawił się żaden) lub null, jeśli wpisów
+     *         nie ma już w pamięci i trzeba je doczytać z pliku
+     */
+    static List<String> await(long afterSeq, int max, long timeoutMs) throws InterruptedException {
+        synchronized (lock) {
+            if (afterSeq >= lastSeq) {
+                lock.wait(timeoutMs);
+            }
+            if (afterSeq + 1 < oldestInMemory()) {
+                return null;
+            }
+            long end = Math.min(lastSeq, afterSeq + max);
+            List<String> entries = new ArrayList<>((int) Math.max(0, end - afterSeq));
+            for (long seq = afterSeq + 1; seq <= end; seq++) {
+                entries.add(recent[(int) (seq % recent.length)]);
+            }
+            return entries;
+        }
+    }
+
+    private static long oldestInMemory() {
+        return Math.max(firstInMemory, lastSeq - recent.length + 1);
+    }
+
+    /**
+     * Przepisuje z pliku wpisy następujące po podanym numerze, aż do pierwszego wpisu dostępnego
+     * w pamięci lub końca pliku.
+     *
+     * @param afterSeq numer ostatniego wpisu, który odbiorca już ma
+     * @param out cel zapisu wpisów
+     * @return numer ostatniego przepisanego wpisu
+     */
+    static long copyFromFile(long afterSeq, Writer out) throws IOException {
+        long seq = afterSeq;
+        try (BufferedReader br = Files.newBufferedReader(FILE, StandardCharsets.UTF_8)) {
+            br.readLine();
+            String line;
+            long limit = 0;
+            while ((line = br.readLine()) != null) {
+                int comma = line.indexOf(',');
+                if (comma <= 0) continue;
+                long lineSeq = Long.parseLong(line.substring(0, comma));
+                if (lineSeq <= seq) continue;
+                if (lineSeq >= limit) {
+                    synchronized (lock) {
+                        limit = oldestInMemory();
+                    }
+                    if (lineSeq >= limit) break;
+                }
+                out.write(line);
+                out.write('\n');
+                seq = lineSeq;
+            }
+        }
+        return seq;
+    }
+}
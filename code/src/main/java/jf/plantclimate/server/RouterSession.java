@@ -0,0 +1,551 @@
+package jf.plantclimate.server;
+
+import jf.plantclimate.protocol.ProtocolOptions;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Sesja klienta połączonego z {@link ClusterRouter}. Utrzymuje tekstowe połączenie z każdym węzłem
+ * klastra pod identyfikatorem klienta i przekazuje klientowi wszystko, co węzły wysyłają,
+ * z wyjątkiem odpowiedzi na polecenia rozsyłane do wszystkich węzłów - te są zbierane i scalane.
+ *
+ * <p>Scalone odpowiedzi są wysyłane w kolejności poleceń. Komunikaty, które węzeł wysłał po swojej
+ * części scalanej odpowiedzi, są wstrzymywane do jej wysłania, dzięki czemu np. zmiana rejestru
+ * nie wyprzedza migawki, która jej nie zawiera. Wersja rejestru widziana przez klienta jest sumą
+ * wersji rejestrów węzłów, więc rośnie przy każdej zmianie na dowolnym węźle.</p>
+ */
+final class RouterSession implements Runnable {
+    private final ClusterRouter router;
+    private final Socket client;
+    private final List<ClusterRouter.Node> nodes;
+    private final Upstream[] upstreams;
+    private final long[] registryVersions;
+    private final ArrayDeque<Merge> merges = new ArrayDeque<>();
+    private Writer out;
+    private String clientId;
+
+    /**
+     * @param router router klastra
+     * @param client gniazdo połączenia z klientem
+     */
+    RouterSession(ClusterRouter router, Socket client) {
+        this.router = router;
+        this.client = client;
+        this.nodes = router.getNodes();
+        this.upstreams = new Upstream[nodes.size()];
+        this.registryVersions = new long[nodes.size()];
+    }
+
+    @Override
+    public void run() {
+        try (client; BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()))) {
+            out = new BufferedWriter(new OutputStreamWriter(client.getOutputStream()));
+            send("HELLO", true);
+            String hello = in.readLine();
+            if (hello == null || hello.trim().isEmpty()) {
+                send("ERROR Nieprawidłowy identyfikator klienta", true);
+                return;
+            }
+            String[] tokens = hello.trim().split("\\s+");
+            clientId = tokens[0];
+            if (tokens.length > 1) {
+                // router przekazuje komunikaty węzłów bez zmian, więc obsługuje tylko protokół tekstowy
+                send("PROTOCOL " + ProtocolOptions.TEXT.toHandshake(), true);
+            }
+            System.out.println("Klient połączony przez router: " + clientId);
+
+            connectUpstreams();
+
+            String line;
+            while ((line = in.readLine()) != null) {
+                String cmd = line.trim();
+                if (cmd.isEmpty()) continue;
+                if (!processCommand(cmd)) break;
+            }
+        } catch (IOException e) {
+            System.out.println("Klient rozłączony: " + clientId);
+        } finally {
+            for (Upstream u : upstreams) {
+                if (u != null) u.close();
+            }
+        }
+    }
+
+    /**
+     * Łączy się z każdym węzłem i zbiera migawki rejestru, które węzły wysyłają po powitaniu.
+     */
+    private void connectUpstreams() {
+        for (int k = 0; k < upstreams.length; k++) {
+            ClusterRouter.Node node = nodes.get(k);
+            try {
+                upstreams[k] = new Upstream(k, node);
+            } catch (IOException e) {
+                send("ERROR Węzeł " + node.name() + " niedostępny", true);
+            }
+        }
+        fanOut(null, new Merge(MergeKind.REGISTRY, ""));
+        for (Upstream u : upstreams) {
+            if (u != null) u.start();
+        }
+    }
+
+    /**
+     * Wykonuje polecenie klienta.
+     *
+     * @return false, jeśli klient zakończył sesję poleceniem QUIT
+     */
+    private boolean processCommand(String cmd) {
+        if (cmd.equalsIgnoreCase("QUIT")) {
+            return false;
+        } else if (cmd.equals("LIST")) {
+            fanOut(cmd, new Merge(MergeKind.LIST, ""));
+            return true;
+        } else if (cmd.equals("CLUSTER")) {
+            handleClusterCommand();
+            return true;
+        }
+
+        String[] parts = cmd.split(" ", 2);
+        String command = parts[0];
+        String params = parts.length > 1 ? parts[1].trim() : "";
+
+        switch (command) {
+            case "GET":
+            case "PAIR":
+            case "UNPAIR":
+            case "UPDATE_INFO":
+            case "HISTORY":
+            case "HISTORY_SINCE":
+            case "EXPORT":
+            case "STATS":
+                sendToOwner(cmd, params.split(",", 2)[0].trim());
+                break;
+            case "REGISTRY":
+                handleRegistryCommand(cmd, params);
+                break;
+            case "DELIVERY":
+                fanOut(cmd, new Merge(MergeKind.FIRST, "DELIVERY_OK"));
+                break;
+            case "USERNAME":
+                fanOut(cmd, null);
+                break;
+            case "OWNER":
+                reply(List.of("OWNER " + params + " " + router.owner(params).name()));
+                break;
+            case "QUEUES":
+            case "COMPRESSION":
+            case "CACHE":
+            case "ALERTS":
+            case "ALERT_SUBSCRIBE":
+            case "ALERT_UNSUBSCRIBE":
+            case "ALERT_ADD":
+            case "ALERT_REMOVE":
+            case "WINDOWS":
+            case "WINDOW_ADD":
+            case "WINDOW_REMOVE":
+            case "WINDOW_SUBSCRIBE":
+            case "WINDOW_UNSUBSCRIBE":
+            case "WINDOW_RESULTS":
+            case "REPLICATION":
+            case "PROMOTE":
+            case "SYNC":
+                reply(List.of("ERROR Polecenie niedostępne w trybie klastra: " + command));
+                break;
+            default:
+                reply(List.of("ERROR Nieznane polecenie: " + cmd));
+        }
+        return true;
+    }
+
+    /**
+     * Przekazuje polecenie dotyczące jednego czujnika do węzła, do którego czujnik należy.
+     * Odpowiedź węzła trafia do klienta bez zmian, a błąd niedostępności węzła nazywa polecenie
+     * i czujnik tak samo jak błędy węzła.
+     */
+    private void sendToOwner(String cmd, String sensorId) {
+        ClusterRouter.Node owner = router.owner(sensorId);
+        Upstream u = upstreams[nodes.indexOf(owner)];
+        if (u == null || !u.send(cmd, null)) {
+            String command = cmd.split(" ", 2)[0].toUpperCase();
+            reply(List.of("ERROR " + command + " " + sensorId + ": Węzeł " + owner.name() + " niedostępny"));
+        }
+    }
+
+    /**
+     * Rozsyła polecenie REGISTRY do wszystkich węzłów. Nieprawidłowy filtr jest odrzucany przez router,
+     * aby każdy węzeł odpowiedział migawką.
+     */
+    private void handleRegistryCommand(String cmd, String params) {
+        String[] parts = params.split(" ", 2);
+        String filter = parts[0].trim().toUpperCase();
+        String value = parts.length > 1 ? parts[1].trim() : "";
+        if (!filter.isEmpty() && !((filter.equals("ROOM") || filter.equals("PLANT")) && !value.isEmpty())) {
+            reply(List.of("ERROR REGISTRY " + params + ": Nieprawidłowy filtr rejestru"));
+            return;
+        }
+        fanOut(cmd, new Merge(MergeKind.REGISTRY, filter.isEmpty() ? "" : " " + filter + " " + value));
+    }
+
+    /**
+     * Obsługuje polecenie CLUSTER: lista węzłów z liczbą przekazanych i nieudanych odczytów.
+     * Nagłówek: CLUSTER_START liczbaWęzłów
+     * Format wiersza: CLUSTER_NODE nazwa,portKlientów,połączony,przekazaneOdczyty,nieudaneOdczyty
+     * Zakończenie: CLUSTER_END
+     */
+    private void handleClusterCommand() {
+        List<String> lines = new ArrayList<>();
+        lines.add("CLUSTER_START " + nodes.size());
+        for (int k = 0; k < nodes.size(); k++) {
+            ClusterRouter.Node node = nodes.get(k);
+            lines.add("CLUSTER_NODE " + node.name() + "," + node.clientPort() + ","
+                    + (upstreams[k] != null && upstreams[k].connected ? 1 : 0) + ","
+                    + router.getForwardedCount(node) + "," + router.getFailedCount(node));
+        }
+        lines.add("CLUSTER_END");
+        reply(lines);
+    }
+
+    /**
+     * Wysyła odpowiedź przygotowaną przez router. Jeśli klient czeka na scalane odpowiedzi,
+     * zostanie wysłana po nich, aby zachować kolejność odpowiedzi na polecenia.
+     */
+    private synchronized void reply(List<String> lines) {
+        if (!merges.isEmpty()) {
+            merges.peekLast().after.addAll(lines);
+            return;
+        }
+        for (String line : lines) {
+            send(line, false);
+        }
+        flush();
+    }
+
+    /**
+     * Wysyła polecenie do wszystkich węzłów. Jeśli podano scalanie, odpowiedzi węzłów są zbierane,
+     * a niedostępne węzły nie wnoszą do wyniku nic.
+     *
+     * @param cmd polecenie lub null, jeśli węzły wysyłają odpowiedź same (migawka po powitaniu)
+     * @param merge scalanie odpowiedzi lub null, jeśli odpowiedzi są przekazywane bez zmian
+     */
+    private void fanOut(String cmd, Merge merge) {
+        if (merge != null) {
+            synchronized (this) {
+                merges.add(merge);
+            }
+        }
+        for (int k = 0; k < upstreams.length; k++) {
+            Upstream u = upstreams[k];
+            boolean sent = u != null && (cmd == null ? u.expect(merge) : u.send(cmd, merge));
+            if (!sent && merge != null) {
+                contribute(merge, k, List.of());
+            }
+        }
+    }
+
+    /**
+     * Dodaje do scalanej odpowiedzi część od węzła i wysyła klientowi wszystkie ukończone odpowiedzi
+     * z początku kolejki wraz z komunikatami wstrzymanymi do ich wysłania.
+     */
+    private synchronized void contribute(Merge merge, int node, List<String> lines) {
+        if (merge.parts.get(node) != null) return;
+        merge.parts.set(node, lines);
+        merge.remaining--;
+        boolean sent = false;
+        while (!merges.isEmpty() && merges.peek().remaining == 0) {
+            Merge done = merges.poll();
+            for (String line : done.result()) {
+                send(line, false);
+            }
+            for (int k = 0; k < done.held.size(); k++) {
+                if (done.held.get(k) == null) continue;
+                for (String line : done.held.get(k)) {
+                    forward(line, k);
+                }
+            }
+            for (String line : done.after) {
+                send(line, false);
+            }
+            sent = true;
+        }
+        if (sent) flush();
+    }
+
+    /**
+     * Przekazuje klientowi komunikat węzła lub wstrzymuje go, jeśli węzeł wysłał już swoją część
+     * nieukończonej scalanej odpowiedzi.
+     */
+    private synchronized void relay(int node, String line, boolean more) {
+        Merge holder = null;
+        for (Merge m : merges) {
+            if (m.parts.get(node) != null) holder = m;
+        }
+        if (holder != null) {
+            if (holder.held.get(node) == null) holder.held.set(node, new ArrayList<>());
+            holder.held.get(node).add(line);
+            return;
+        }
+        forward(line, node);
+        if (!more) flush();
+    }
+
+    /**
+     * Wysyła komunikat węzła, zamieniając wersję w REGISTRY_CHANGE na wersję rejestru klastra.
+     */
+    private void forward(String line, int node) {
+        if (line.startsWith("REGISTRY_CHANGE ")) {
+            try {
+                long version = Long.parseLong(line.substring("REGISTRY_CHANGE ".length()).trim());
+                registryVersions[node] = Math.max(registryVersions[node], version);
+                line = "REGISTRY_CHANGE " + clusterRegistryVersion();
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        send(line, false);
+    }
+
+    private long clusterRegistryVersion() {
+        long sum = 0;
+        for (long v : registryVersions) sum += v;
+        return sum;
+    }
+
+    /**
+     * Obsługuje utratę połączenia z węzłem: oczekiwane od niego odpowiedzi są traktowane jako puste.
+     */
+    private void upstreamLost(Upstream u, List<Merge> pending) {
+        send("ERROR Utracono połączenie z węzłem " + u.node.name(), true);
+        for (Merge m : pending) {
+            contribute(m, u.index, List.of());
+        }
+    }
+
+    private synchronized void send(String line, boolean flush) {
+        try {
+            out.write(line);
+            out.write('\n');
+            if (flush) out.flush();
+        } catch (IOException e) {
+            // zamknięte połączenie klienta zostanie wykryte przy odczycie polecenia
+        }
+    }
+
+    private synchronized void flush() {
+        try {
+            out.flush();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Rodzaj scalanej odpowiedzi.
+     */
+    private enum MergeKind {
+        /** Wiersz SENSORS z identyfikatorami czujników wszystkich węzłów. */
+        LIST,
+        /** Blok REGISTRY_START ... REGISTRY_END z czujnikami wszystkich węzłów. */
+        REGISTRY,
+        /** Pierwsza otrzymana odpowiedź (pozostałe są takie same). */
+        FIRST
+    }
+
+    /**
+     * Odpowiedź scalana z odpowiedzi wszystkich węzłów.
+     */
+    private final class Merge {
+        final MergeKind kind;
+        /** Dla REGISTRY: filtr dopisywany do nagłówka; dla FIRST: początek oczekiwanej odpowiedzi. */
+        final String detail;
+        final List<List<String>> parts;
+        final List<List<String>> held;
+        /** Odpowiedzi routera na późniejsze polecenia, wysyłane po tej odpowiedzi. */
+        final List<String> after = new ArrayList<>();
+        int remaining;
+
+        Merge(MergeKind kind, String detail) {
+            this.kind = kind;
+            this.detail = detail;
+            this.parts = new ArrayList<>(Collections.nCopies(nodes.size(), null));
+            this.held = new ArrayList<>(Collections.nCopies(nodes.size(), null));
+            this.remaining = nodes.size();
+        }
+
+        /**
+         * Sprawdza, czy wiersz rozpoczyna odpowiedź węzła na to polecenie.
+         */
+        boolean starts(String line) {
+            return switch (kind) {
+                case LIST -> line.startsWith("SENSORS");
+                case REGISTRY -> line.startsWith("REGISTRY_START ");
+                case FIRST -> line.startsWith(detail) || line.startsWith("ERROR");
+            };
+        }
+
+        /**
+         * Sprawdza, czy wiersz kończy odpowiedź węzła.
+         */
+        boolean ends(String line) {
+            return kind != MergeKind.REGISTRY || line.startsWith("REGISTRY_END");
+        }
+
+        /**
+         * Wyznacza scaloną odpowiedź. Dla REGISTRY uaktualnia też wersje rejestrów węzłów.
+         */
+        List<String> result() {
+            switch (kind) {
+                case LIST: {
+                    StringBuilder sb = new StringBuilder("SENSORS ");
+                    for (List<String> part : parts) {
+                        for (String line : part) {
+                            String ids = line.substring("SENSORS".length()).trim();
+                            if (!ids.isEmpty()) sb.append(ids).append(" ");
+                        }
+                    }
+                    return List.of(sb.toString().trim());
+                }
+                case REGISTRY: {
+                    List<String> rows = new ArrayList<>();
+                    for (int k = 0; k < parts.size(); k++) {
+                        for (String line : parts.get(k)) {
+                            if (line.startsWith("SENSOR_INFO ")) {
+                                rows.add(line);
+                            } else if (line.startsWith("REGISTRY_END ")) {
+                                long version = Long.parseLong(line.substring("REGISTRY_END ".length()).trim());
+                                registryVersions[k] = Math.max(registryVersions[k], version);
+                            }
+                        }
+                    }
+                    rows.sort(Comparator.naturalOrder());
+                    long version = clusterRegistryVersion();
+                    List<String> lines = new ArrayList<>(rows.size() + 2);
+                    lines.add("REGISTRY_START " + version + " " + rows.size() + detail);
+                    lines.addAll(rows);
+                    lines.add("REGISTRY_END " + version);
+                    return lines;
+                }
+                default:
+                    for (List<String> part : parts) {
+                        if (!part.isEmpty()) return part;
+                    }
+                    return List.of("ERROR Brak dostępnych węzłów");
+            }
+        }
+    }
+
+    /**
+     * Połączenie sesji z jednym węzłem.
+     */
+    private final class Upstream {
+        final int index;
+        final ClusterRouter.Node node;
+        final Socket socket;
+        final BufferedReader in;
+        final Writer writer;
+        /** Scalane odpowiedzi, których część od tego węzła jeszcze nie nadeszła, w kolejności poleceń. */
+        final ArrayDeque<Merge> expected = new ArrayDeque<>();
+        volatile boolean connected = true;
+
+        Upstream(int index, ClusterRouter.Node node) throws IOException {
+            this.index = index;
+            this.node = node;
+            this.socket = new Socket(node.host(), node.clientPort());
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            this.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            String hello = in.readLine();
+            if (!"HELLO".equals(hello)) {
+                socket.close();
+                throw new IOException("Nieoczekiwane powitanie węzła: " + hello);
+            }
+            writer.write(clientId + "\n");
+            writer.flush();
+        }
+
+        void start() {
+            Thread t = new Thread(this::read, "router-node-" + node.name());
+            t.setDaemon(true);
+            t.start();
+        }
+
+        /**
+         * Oczekuje odpowiedzi węzła bez wysyłania polecenia.
+         */
+        synchronized boolean expect(Merge merge) {
+            if (!connected) return false;
+            if (merge != null) expected.add(merge);
+            return true;
+        }
+
+        /**
+         * Wysyła polecenie do węzła.
+         *
+         * @return false, jeśli węzeł jest niedostępny
+         */
+        synchronized boolean send(String cmd, Merge merge) {
+            if (!connected) return false;
+            try {
+                if (merge != null) expected.add(merge);
+                writer.write(cmd + "\n");
+                writer.flush();
+                return true;
+            } catch (IOException e) {
+                if (merge != null) expected.remove(merge);
+                return false;
+            }
+        }
+
+        private void read() {
+            List<String> block = null;
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    Merge merge;
+                    synchronized (this) {
+                        merge = expected.peek();
+                    }
+                    if (merge != null && (block != null || merge.starts(line))) {
+                        if (block == null) block = new ArrayList<>();
+                        block.add(line);
+                        if (merge.ends(line)) {
+                            synchronized (this) {
+                                expected.poll();
+                            }
+                            contribute(merge, index, block);
+                            block = null;
+                        }
+                    } else {
+                        relay(index, line, in.ready());
+                    }
+                }
+            } catch (IOException e) {
+                // połączenie zamknięte
+            }
+            List<Merge> pending;
+            synchronized (this) {
+                connected = false;
+                pending = new ArrayList<>(expected);
+                expected.clear();
+            }
+            if (!socket.isClosed()) {
+                upstreamLost(this, pending);
+            }
+            close();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -6,11 +6,15 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.file.*;
 import java.time.LocalDateTime;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import jf.plantclimate.util.MutableReading;
 import jf.plantclimate.util.ReadingParser;
 import jf.plantclimate.util.DateFormatter;
 
@@ -37,10 +41,17 @@ public class SensorListener extends Thread {
      */
     private static final Set<String> connectedSensors = ConcurrentHashMap.newKeySet();
     
+    /**
+     * Numery wersji danych czujników, zwiększane przy każdym odczycie. Pozwalają sprawdzić,
+     * czy dane zmieniły się od poprzedniego zapytania, bez ich ponownego odczytywania.
+     */
+    private static final Map<String, AtomicLong> revisions = new ConcurrentHashMap<>();
+    private static final AtomicLong revision = new AtomicLong();
+
     /**
      * Katalog do przechowywania danych z czujników.
      */
-    private static final String DATA_DIR = "sensor_data";
+    private static final String DATA_DIR = Config.DATA_DIR;
     
     /**
      * Maksymalna liczba odczytów historycznych przechowywanych w pamięci dla jednego czujnika.
@@ -57,6 +68,16 @@ public class SensorListener extends Thread {
         createDataDirectory();
         loadHistoricalData();
 
+        if (ReplicaFollower.isActive()) {
+            System.out.println("Tryb repliki serwera " + Config.REPLICA_OF + " - port czujników zostanie otwarty po awansie");
+            ReplicaFollower.start();
+            try {
+                ReplicaFollower.awaitPromotion();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+
         try (ServerSocket ss = new ServerSocket(Config.SENSOR_PORT)) {
             while (true) {
                 Socket s = ss.accept();
@@ -79,7 +100,8 @@ public class SensorListener extends Thread {
     }
 
     /**
-     * Wczytuje dane historyczne z plików CSV do pamięci.
+     * Wczytuje dane historyczne z plików CSV do pamięci. Pliki są dopisywane chronologicznie,
+     * więc do historii i statystyk trafia {@link #MAX_HISTORY_SIZE} ostatnich wierszy pliku.
      */
     private void loadHistoricalData() {
         try {
@@ -90,26 +112,32 @@ public class SensorListener extends Thread {
                     for (File file : sensorFiles) {
                         String sensorId = file.getName().replace(".csv", "");
                         List<Reading> readings = new ArrayList<>();
+                        MutableReading parsed = new MutableReading();
                         
+                        Deque<String> newest = new ArrayDeque<>();
                         try (BufferedReader br = new BufferedReader(new FileReader(file))) {
                             String line;
                             br.readLine();
                             
-                            while ((line = br.readLine()) != null && readings.size() < MAX_HISTORY_SIZE) {
-                                try {
-                                    String[] parts = line.split(",");
-                                    Reading reading = ReadingParser.parseFromParts(parts);
-                                    
-                                    if (reading != null) {
-                                        readings.add(reading);
-                                    }
-                                } catch (Exception e) {
-                                    System.err.println("Błąd parsowania linii: " + line);
+                            while ((line = br.readLine()) != null) {
+                                if (newest.size() == MAX_HISTORY_SIZE) {
+                                    newest.pollFirst();
+                                }
+                                newest.addLast(line);
+                            }
+                        }
+                        for (String line : newest) {
+                            try {
+                                if (ReadingParser.parse(line, parsed)) {
+                                    readings.add(parsed.toReading());
                                 }
+                            } catch (Exception e) {
+                                System.err.println("Błąd parsowania linii: " + line);
                             }
                         }
                         
                         if (!readings.isEmpty()) {
+                            readings.forEach(SensorStatistics::update);
                             history.put(sensorId, readings);
                             latest.put(sensorId, readings.get(readings.size() - 1));
                             System.out.println("Wczytano " + readings.size() + " odczytów dla czujnika " + sensorId);
@@ -124,11 +152,16 @@ public class SensorListener extends Thread {
 
     /**
      * Obsługuje połączenie z czujnikiem, odbiera dane i zapisuje je do pliku.
+     * Połączenie rozpoczęte wierszem "RELAY identyfikator" przekazuje do {@link RelayReceiver}.
      * @param s gniazdo sieciowe
      */
     private void handle(Socket s) {
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(s.getInputStream()))) {
-            String json = br.readLine();
+        try (InputStream in = new BufferedInputStream(s.getInputStream())) {
+            String json = readLine(in);
+            if (json != null && json.startsWith("RELAY ")) {
+                RelayReceiver.handle(s, in, json.substring(6).trim());
+                return;
+            }
             if (!isValidJson(json)) {
                 return;
             }
@@ -139,32 +172,138 @@ public class SensorListener extends Thread {
                 System.out.println("Połączono z czujnikiem: " + reading.deviceId() + " (" + s.getInetAddress().getHostAddress() + ")");
                 connectedSensors.add(reading.deviceId());
             }
-            
-            latest.put(reading.deviceId(), reading);
 
-            List<Reading> sensorHistory = history.computeIfAbsent(reading.deviceId(), k -> new ArrayList<>());
-            sensorHistory.add(reading);
-            
-            if (sensorHistory.size() > MAX_HISTORY_SIZE) {
-                sensorHistory.remove(0);
-            }
-            
-            saveReadingToFile(reading.deviceId(), reading);
-            
-            ClientListener.broadcastUpdate(reading.deviceId(), reading);
+            store(reading);
         } catch (Exception e) {
             System.err.println("Błąd podczas obsługi połączenia czujnika: " + e.getMessage());
         } finally {
             try { if (!s.isClosed()) s.close(); } catch (Exception ignored) {}
         }
     }
+
+    /**
+     * Odczytuje wiersz bez czytania danych za nim, aby po wierszu powitania przekaźnika
+     * dalsze dane połączenia można było odczytać z tego samego strumienia.
+     * Znaki są dekodowane domyślnym kodowaniem, tak jak odczyty czujników.
+     * @param in strumień wejściowy
+     * @return wiersz bez znaku końca wiersza lub null na końcu strumienia
+     */
+    static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) return null;
+        String result = line.toString();
+        return result.endsWith("\r") ? result.substring(0, result.length() - 1) : result;
+    }
+
+    /**
+     * Przyjmuje odczyt: zapisuje go w pamięci, w dzienniku replikacji i w pliku (razem ze skrótem
+     * historii czujnika), a następnie powiadamia klientów, reguły alarmów, zapytania okienkowe i statystyki.
+     * Używana dla odczytów od czujników oraz odczytów odtwarzanych przez replikę.
+     *
+     * @param reading odczyt
+     */
+    static void store(Reading reading) {
+        latest.put(reading.deviceId(), reading);
+
+        String csv = toCsv(reading);
+        List<Reading> sensorHistory = history.computeIfAbsent(reading.deviceId(), k -> new ArrayList<>());
+        AtomicLong sensorRevision = revisions.computeIfAbsent(reading.deviceId(), k -> new AtomicLong());
+        long newRevision;
+        int historySize;
+        synchronized (sensorHistory) {
+            sensorHistory.add(reading);
+
+            if (sensorHistory.size() > MAX_HISTORY_SIZE) {
+                sensorHistory.remove(0);
+            }
+            newRevision = sensorRevision.incrementAndGet();
+            historySize = sensorHistory.size();
+        }
+        revision.incrementAndGet();
+
+        // zapis do pliku i dziennika poza blokadą historii, aby nie wstrzymywał zapytań klientów;
+        // w dzienniku odczyty czujnika są w tej samej kolejności co w pliku
+        HistoryDigest digest = HistoryDigest.of(reading.deviceId());
+        synchronized (digest) {
+            saveReadingsToFile(reading.deviceId(), List.of(csv));
+            digest.add(csv);
+            ReplicationLog.append(ReplicationLog.READING, csv);
+        }
+
+        ClientListener.readingStored(reading, newRevision, historySize);
+        AlertRules.evaluate(reading);
+        WindowQueries.add(reading);
+        SensorStatistics.update(reading);
+
+        ClientListener.broadcastUpdate(reading.deviceId(), reading);
+    }
     
     /**
-     * Zapisuje odczyt do pliku CSV.
+     * Przyjmuje odczyty brakujące w historii czujnika, uzupełnione przez synchronizację historii
+     * z innym serwerem ({@link HistorySync}). Odczyty są dopisywane do pliku i dziennika replikacji
+     * oraz wstawiane do historii w pamięci według czasu, jeśli mieszczą się w jej zakresie.
+     * Nie są rozgłaszane klientom ani sprawdzane przez reguły alarmów, bo nie są nowymi odczytami.
+     *
      * @param sensorId identyfikator czujnika
-     * @param reading odczyt
+     * @param lines odczyty w formacie wiersza pliku CSV
+     * @return liczba przyjętych odczytów; wiersze innego czujnika i niepoprawne są pomijane
+     */
+    static int storeRepaired(String sensorId, List<String> lines) {
+        List<String> valid = new ArrayList<>();
+        List<Reading> readings = new ArrayList<>();
+        for (String line : lines) {
+            String[] parts = line.split(",");
+            if (parts.length != 11 || !parts[0].equals(sensorId)) continue;
+            Reading reading = ReadingParser.parseFromParts(parts);
+            if (reading != null && reading.time() != null) {
+                valid.add(line);
+                readings.add(reading);
+            }
+        }
+        if (valid.isEmpty()) return 0;
+
+        HistoryDigest digest = HistoryDigest.of(sensorId);
+        synchronized (digest) {
+            saveReadingsToFile(sensorId, valid);
+            for (String csv : valid) {
+                digest.add(csv);
+                ReplicationLog.append(ReplicationLog.REPAIRED, csv);
+            }
+        }
+
+        List<Reading> sensorHistory = history.computeIfAbsent(sensorId, k -> new ArrayList<>());
+        synchronized (sensorHistory) {
+            for (Reading reading : readings) {
+                int i = sensorHistory.size();
+                while (i > 0 && reading.time().isBefore(sensorHistory.get(i - 1).time())) {
+                    i--;
+                }
+                if (i == 0 && sensorHistory.size() >= MAX_HISTORY_SIZE) continue;
+                sensorHistory.add(i, reading);
+                if (sensorHistory.size() > MAX_HISTORY_SIZE) {
+                    sensorHistory.remove(0);
+                }
+            }
+            revisions.computeIfAbsent(sensorId, k -> new AtomicLong()).incrementAndGet();
+        }
+        revision.incrementAndGet();
+
+        for (Reading reading : readings) {
+            latest.merge(sensorId, reading, (a, b) -> a.time() != null && !b.time().isAfter(a.time()) ? a : b);
+        }
+        return valid.size();
+    }
+
+    /**
+     * Dopisuje odczyty do pliku CSV. Wywoływana pod blokadą skrótu historii czujnika ({@link HistoryDigest}).
+     * @param sensorId identyfikator czujnika
+     * @param lines odczyty w formacie wiersza pliku CSV
      */
-    private void saveReadingToFile(String sensorId, Reading reading) {
+    private static void saveReadingsToFile(String sensorId, List<String> lines) {
         String fileName = DATA_DIR + File.separator + sensorId + ".csv";
         File file = new File(fileName);
         boolean isNewFile = !file.exists();
@@ -177,32 +316,43 @@ public class SensorListener extends Thread {
                 bw.newLine();
             }
             
-            bw.write(String.format("%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s",
-                reading.deviceId(),
-                reading.temperature(),
-                reading.humidity(),
-                reading.soil(),
-                reading.lux(),
-                reading.red(),
-                reading.green(),
-                reading.blue(),
-                reading.white(),
-                reading.colorTemperature(),
-                DateFormatter.format(reading.time())
-            ));
-            bw.newLine();
+            for (String csv : lines) {
+                bw.write(csv);
+                bw.newLine();
+            }
             
         } catch (IOException e) {
             System.err.println("Błąd zapisu danych do pliku: " + e.getMessage());
         }
     }
+
+    /**
+     * Zwraca odczyt w formacie wiersza pliku CSV czujnika.
+     * @param reading odczyt
+     * @return wiersz CSV
+     */
+    static String toCsv(Reading reading) {
+        return String.format("%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s",
+            reading.deviceId(),
+            reading.temperature(),
+            reading.humidity(),
+            reading.soil(),
+            reading.lux(),
+            reading.red(),
+            reading.green(),
+            reading.blue(),
+            reading.white(),
+            reading.colorTemperature(),
+            DateFormatter.format(reading.time())
+        );
+    }
     
     /**
      * Sprawdza, czy podany łańcuch jest poprawnym JSON-em.
      * @param json łańcuch
      * @return true, jeśli łańcuch jest json
      */
-    private boolean isValidJson(String json) {
+    static boolean isValidJson(String json) {
         return json != null && !json.trim().isEmpty() && json.startsWith("{") && json.endsWith("}");
     }
     
@@ -211,7 +361,7 @@ public class SensorListener extends Thread {
      * @param json łańcuch JSON
      * @return obiekt odczytu
      */
-    private Reading createReadingFromJson(String json) {
+    static Reading createReadingFromJson(String json) {
         String id = getValueFromJson(json, "id", String.class);
         if (id == null || id.isEmpty()) {
             id = getValueFromJson(json, "deviceId", String.class);
@@ -259,7 +409,7 @@ public class SensorListener extends Thread {
      * @param type typ wartości
      * @return wartość
      */
-    private <T> T getValueFromJson(String json, String key, Class<T> type) {
+    private static <T> T getValueFromJson(String json, String key, Class<T> type) {
         try {
             int keyIndex = json.indexOf('"' + key + '"');
             if (keyIndex == -1) return null;
@@ -296,7 +446,7 @@ public class SensorListener extends Thread {
      * @param valueStart indeks początku wartości
      * @return indeks końca wartości
      */
-    private int findValueEnd(String json, int valueStart) {
+    private static int findValueEnd(String json, int valueStart) {
         boolean inQuotes = false;
         for (int i = valueStart + 1; i < json.length(); i++) {
             char c = json.charAt(i);
@@ -342,4 +492,56 @@ public class SensorListener extends Thread {
     static List<Reading> getSensorHistory(String sensorId) {
         return history.get(sensorId);
     }
+
+    /**
+     * Zwraca kopię historii odczytów czujnika, bezpieczną przy równoczesnym zapisie nowych odczytów.
+     * @param sensorId identyfikator czujnika
+     * @return kopia listy odczytów lub null, jeśli czujnik nie istnieje
+     */
+    static List<Reading> copySensorHistory(String sensorId) {
+        List<Reading> sensorHistory = history.get(sensorId);
+        if (sensorHistory == null) return null;
+        synchronized (sensorHistory) {
+            return new ArrayList<>(sensorHistory);
+        }
+    }
+
+    /**
+     * Kopia historii odczytów czujnika wraz z numerem wersji danych, którą odzwierciedla.
+     * @param readings kopia listy odczytów
+     * @param revision numer wersji danych czujnika
+     */
+    record HistorySnapshot(List<Reading> readings, long revision) {
+    }
+
+    /**
+     * Zwraca kopię historii odczytów czujnika wraz z numerem wersji odczytanym atomowo z kopią.
+     * @param sensorId identyfikator czujnika
+     * @return kopia historii lub null, jeśli czujnik nie istnieje
+     */
+    static HistorySnapshot snapshotSensorHistory(String sensorId) {
+        List<Reading> sensorHistory = history.get(sensorId);
+        if (sensorHistory == null) return null;
+        synchronized (sensorHistory) {
+            return new HistorySnapshot(new ArrayList<>(sensorHistory), getRevision(sensorId));
+        }
+    }
+
+    /**
+     * Zwraca numer wersji danych czujnika, zmieniany przy każdym nowym odczycie.
+     * @param sensorId identyfikator czujnika
+     * @return numer wersji lub 0, jeśli czujnik nie przesłał jeszcze odczytu
+     */
+    static long getRevision(String sensorId) {
+        AtomicLong r = revisions.get(sensorId);
+        return r != null ? r.get() : 0;
+    }
+
+    /**
+     * Zwraca numer wersji danych wszystkich czujników.
+     * @return liczba odczytów odebranych od uruchomienia serwera
+     */
+    static long getRevision() {
+        return revision.get();
+    }
 }
@@ -0,0 +1,243 @@
+package jf.plantclimate.server;
+
+import jf.plantclimate.data.Config;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Rejestr metadanych czujników (nazwa, roślina, pomieszczenie) przechowywany przez serwer.
+ *
+ * <p>Rejestr jest zapisywany na dysku przy każdej zmianie, więc nowo podłączony klient
+ * otrzymuje pełny stan zamiast odtwarzać go z własnego pliku. Każda zmiana zwiększa numer
+ * wersji rejestru; klient otrzymuje migawkę z numerem wersji, a następnie kolejne zmiany,
+ * które może porównać z wersją migawki.</p>
+ *
+ * <p>Indeksy pomieszczeń i roślin pozwalają wyszukiwać czujniki bez przeglądania całego
+ * rejestru. Wielkość liter w kluczach indeksów nie ma znaczenia.</p>
+ */
+final class SensorRegistry {
+    /**
+     * Plik rejestru w katalogu danych czujników.
+     */
+    private static final Path FILE = Paths.get(Config.DATA_DIR, "sensors.meta");
+
+    private static final Map<String, SensorMetadata> sensors = new TreeMap<>();
+    private static final Map<String, Set<String>> byRoom = new HashMap<>();
+    private static final Map<String, Set<String>> byPlant = new HashMap<>();
+    private static long version = 0;
+
+    private SensorRegistry() {
+    }
+
+    /**
+     * Metadane pojedynczego czujnika.
+     *
+     * @param sensorId identyfikator czujnika
+     * @param name nazwa wyświetlana
+     * @param plantName nazwa rośliny (może być pusta)
+     * @param room pomieszczenie (może być puste)
+     * @param version wersja rejestru, w której wpis ostatnio zmieniono
+     */
+    record SensorMetadata(String sensorId, String name, String plantName, String room, long version) {
+        /**
+         * Zwraca wpis w formacie danych komunikatu SENSOR_INFO: sensorId,name,plantName,room
+         */
+        String toWire() {
+            return sensorId + "," + name + "," + plantName + "," + room;
+        }
+    }
+
+    /**
+     * Migawka rejestru.
+     *
+     * @param version wersja rejestru
+     * @param sensors wpisy posortowane według identyfikatora czujnika
+     */
+    record Snapshot(long version, List<SensorMetadata> sensors) {
+    }
+
+    /**
+     * Wczytuje rejestr z pliku. Brak pliku oznacza pusty rejestr.
+     */
+    static synchronized void load() {
+        try (BufferedReader br = Files.newBufferedReader(FILE, StandardCharsets.UTF_8)) {
+            String line = br.readLine();
+            if (line == null || !line.startsWith("version,")) {
+                System.err.println("Nieprawidłowy nagłówek rejestru czujników: " + line);
+                return;
+            }
+            long fileVersion = Long.parseLong(line.substring(8).trim());
+            while ((line = br.readLine()) != null) {
+                String[] parts = line.split(",", 5);
+                if (parts.length < 5) continue;
+                index(new SensorMetadata(parts[1], parts[2], parts[3], parts[4], Long.parseLong(parts[0])));
+            }
+            version = fileVersion;
+            System.out.println("Wczytano metadane " + sensors.size() + " czujników (wersja " + version + ")");
+        } catch (NoSuchFileException e) {
+            // rejestr nie został jeszcze zapisany
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Błąd wczytywania rejestru czujników: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Dodaje lub aktualizuje wpis czujnika i rozsyła zmianę do klientów.
+     * Wartości null pozostawiają dotychczasową wartość pola (lub pustą dla nowego wpisu).
+     *
+     * @param sensorId identyfikator czujnika
+     * @param name nazwa wyświetlana lub null
+     * @param plantName nazwa rośliny lub null
+     * @param room pomieszczenie lub null
+     * @return zapisany wpis
+     */
+    static synchronized SensorMetadata put(String sensorId, String name, String plantName, String room) {
+        SensorMetadata old = sensors.get(sensorId);
+        String newName = name != null ? name : old != null ? old.name() : sensorId;
+        String newPlant = plantName != null ? plantName : old != null ? old.plantName() : "";
+        String newRoom = room != null ? room : old != null ? old.room() : "";
+
+        if (old != null) unindex(old);
+        SensorMetadata entry = new SensorMetadata(sensorId, newName, newPlant, newRoom, ++version);
+        index(entry);
+        save();
+        ReplicationLog.append(ReplicationLog.REGISTRY_PUT, entry.toWire());
+        ClientListener.broadcastRegistryChange(entry.version(), "SENSOR_INFO " + entry.toWire());
+        return entry;
+    }
+
+    /**
+     * Usuwa wpis czujnika i rozsyła zmianę do klientów.
+     *
+     * @param sensorId identyfikator czujnika
+     * @return true, jeśli wpis istniał
+     */
+    static synchronized boolean remove(String sensorId) {
+        SensorMetadata old = sensors.get(sensorId);
+        if (old == null) return false;
+        unindex(old);
+        version++;
+        save();
+        ReplicationLog.append(ReplicationLog.REGISTRY_REMOVE, sensorId);
+        ClientListener.broadcastRegistryChange(version, "SENSOR_REMOVED " + sensorId);
+        return true;
+    }
+
+    /**
+     * Zwraca wpis czujnika.
+     *
+     * @param sensorId identyfikator czujnika
+     * @return wpis lub null
+     */
+    static synchronized SensorMetadata get(String sensorId) {
+        return sensors.get(sensorId);
+    }
+
+    /**
+     * Zwraca migawkę całego rejestru lub jego części.
+     * Podanie obu filtrów zwraca czujniki spełniające oba warunki.
+     *
+     * @param room pomieszczenie lub null dla dowolnego
+     * @param plantName nazwa rośliny lub null dla dowolnej
+     * @return migawka rejestru
+     */
+    static synchronized Snapshot snapshot(String room, String plantName) {
+        Set<String> ids = sensors.keySet();
+        if (room != null) {
+            ids = byRoom.getOrDefault(key(room), Collections.emptySet());
+        }
+        if (plantName != null) {
+            Set<String> plantIds = byPlant.getOrDefault(key(plantName), Collections.emptySet());
+            if (room != null) {
+                ids = new TreeSet<>(ids);
+                ids.retainAll(plantIds);
+            } else {
+                ids = plantIds;
+            }
+        }
+
+        List<SensorMetadata> result = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            result.add(sensors.get(id));
+        }
+        return new Snapshot(version, result);
+    }
+
+    /**
+     * Zwraca bieżącą wersję rejestru.
+     *
+     * @return numer wersji
+     */
+    static synchronized long getVersion() {
+        return version;
+    }
+
+    private static void index(SensorMetadata entry) {
+        sensors.put(entry.sensorId(), entry);
+        if (!entry.room().isEmpty()) {
+            byRoom.computeIfAbsent(key(entry.room()), k -> new TreeSet<>()).add(entry.sensorId());
+        }
+        if (!entry.plantName().isEmpty()) {
+            byPlant.computeIfAbsent(key(entry.plantName()), k -> new TreeSet<>()).add(entry.sensorId());
+        }
+    }
+
+    private static void unindex(SensorMetadata entry) {
+        sensors.remove(entry.sensorId());
+        removeFromIndex(byRoom, entry.room(), entry.sensorId());
+        removeFromIndex(byPlant, entry.plantName(), entry.sensorId());
+    }
+
+    private static void removeFromIndex(Map<String, Set<String>> index, String value, String sensorId) {
+        if (value.isEmpty()) return;
+        String k = key(value);
+        Set<String> ids = index.get(k);
+        if (ids != null && ids.remove(sensorId) && ids.isEmpty()) {
+            index.remove(k);
+        }
+    }
+
+    private static String key(String value) {
+        return value.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Zapisuje rejestr do pliku tymczasowego i podmienia nim poprzedni plik,
+     * aby przerwany zapis nie uszkodził rejestru.
+     * Format: wiersz "version,N", następnie wiersze "wersjaWpisu,sensorId,name,plantName,room".
+     */
+    private static void save() {
+        Path tmp = FILE.resolveSibling(FILE.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(FILE.getParent());
+            try (BufferedWriter bw = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                bw.write("version," + version);
+                bw.newLine();
+                for (SensorMetadata entry : sensors.values()) {
+                    bw.write(entry.version() + "," + entry.toWire());
+                    bw.newLine();
+                }
+            }
+            Files.move(tmp, FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Błąd zapisu rejestru czujników: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package jf.plantclimate.server;
+
+import jf.plantclimate.data.Config;
+import jf.plantclimate.data.Reading;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Statystyki bieżące każdego czujnika, aktualizowane przy każdym odczycie w stałym czasie
+ * i stałej pamięci - bez przeglądania historii odczytów.
+ *
+ * <p>Dla każdej mierzonej wielkości przechowywane są: średnia wykładnicza (EWMA), średnia
+ * i wariancja liczone algorytmem Welforda, minimum i maksimum od północy, tempo zmian
+ * między kolejnymi odczytami oraz z-score ostatniego odczytu, czyli odległość od dotychczasowej
+ * średniej wyrażona w odchyleniach standardowych. Odczyt, którego |z-score| przekracza próg,
+ * jest oznaczany jako anomalia. Z-score jest wyznaczany ze statystyk sprzed uwzględnienia
+ * odczytu i dopiero po zebraniu minimalnej liczby odczytów.</p>
+ */
+final class SensorStatistics {
+    /**
+     * Minimalna liczba odczytów, po której z-score jest wyznaczany.
+     */
+    private static final long MIN_SAMPLES_FOR_ANOMALY = 30;
+
+    private static final Metric[] METRICS = Metric.values();
+
+    private static final Map<String, MetricState[]> sensors = new ConcurrentHashMap<>();
+
+    private SensorStatistics() {
+    }
+
+    /**
+     * Statystyki jednej wielkości czujnika.
+     *
+     * @param metric nazwa wielkości
+     * @param count liczba uwzględnionych odczytów
+     * @param last ostatnia wartość
+     * @param lastTime czas ostatniej wartości
+     * @param ewma średnia wykładnicza
+     * @param mean średnia
+     * @param stddev odchylenie standardowe (NaN przy mniej niż dwóch odczytach)
+     * @param minToday minimum od północy (NaN, jeśli dziś nie było odczytów)
+     * @param maxToday maksimum od północy (NaN, jeśli dziś nie było odczytów)
+     * @param ratePerMinute zmiana wartości na minutę między dwoma ostatnimi odczytami (NaN przed drugim odczytem)
+     * @param zScore z-score ostatniej wartości (NaN przed zebraniem wystarczającej liczby odczytów)
+     * @param anomaly true, jeśli |zScore| przekracza próg
+     */
+    record MetricStatistics(String metric, long count, double last, LocalDateTime lastTime, double ewma,
+                            double mean, double stddev, double minToday, double maxToday,
+                            double ratePerMinute, double zScore, boolean anomaly) {
+        /**
+         * Zwraca statystyki w formacie danych komunikatu STAT:
+         * wielkość,liczba,ostatnia,ewma,średnia,odchylenie,minDziś,maksDziś,zmianaNaMinutę,zScore,anomalia
+         */
+        String toWire() {
+            return metric + "," + count + "," + format(last) + "," + format(ewma) + "," + format(mean) + ","
+                    + format(stddev) + "," + format(minToday) + "," + format(maxToday) + ","
+                    + format(ratePerMinute) + "," + format(zScore) + "," + (anomaly ? 1 : 0);
+        }
+
+        private static String format(double v) {
+            return Double.isFinite(v) ? Double.toString(v) : "null";
+        }
+    }
+
+    /**
+     * Stan statystyk jednej wielkości czujnika.
+     */
+    private static final class MetricState {
+        long count;
+        double mean;
+        double m2;
+        double ewma;
+        LocalDate day;
+        double minToday;
+        double maxToday;
+        double last;
+        LocalDateTime lastTime;
+        double ratePerMinute = Double.NaN;
+        double zScore = Double.NaN;
+        boolean anomaly;
+
+        void add(double v, LocalDateTime time) {
+            if (count >= MIN_SAMPLES_FOR_ANOMALY && m2 > 0) {
+                zScore = (v - mean) / Math.sqrt(m2 / (count - 1));
+                anomaly = Math.abs(zScore) > Config.STATS_ANOMALY_Z;
+            } else {
+                zScore = Double.NaN;
+                anomaly = false;
+            }
+
+            count++;
+            double delta = v - mean;
+            mean += delta / count;
+            m2 += delta * (v - mean);
+            ewma = count == 1 ? v : ewma + Config.STATS_EWMA_ALPHA * (v - ewma);
+
+            LocalDate readingDay = time.toLocalDate();
+            if (day == null || readingDay.isAfter(day)) {
+                day = readingDay;
+                minToday = v;
+                maxToday = v;
+            } else if (readingDay.equals(day)) {
+                minToday = Math.min(minToday, v);
+                maxToday = Math.max(maxToday, v);
+            }
+
+            // odczyty czujników mogą nadejść w innej kolejności niż zostały wykonane
+            if (lastTime == null || !time.isBefore(lastTime)) {
+                if (lastTime != null) {
+                    long ms = Duration.between(lastTime, time).toMillis();
+                    if (ms > 0) {
+                        ratePerMinute = (v - last) * 60_000 / ms;
+                    }
+                }
+                last = v;
+                lastTime = time;
+            }
+        }
+
+        MetricStatistics snapshot(Metric metric, LocalDate today) {
+            boolean hasToday = today.equals(day);
+            return new MetricStatistics(metric.key(), count, last, lastTime, ewma, mean,
+                    count > 1 ? Math.sqrt(m2 / (count - 1)) : Double.NaN,
+                    hasToday ? minToday : Double.NaN, hasToday ? maxToday : Double.NaN,
+                    ratePerMinute, zScore, anomaly);
+        }
+    }
+
+    /**
+     * Uwzględnia odczyt w statystykach czujnika.
+     *
+     * @param reading odczyt
+     */
+    static void update(Reading reading) {
+        LocalDateTime time = reading.time() != null ? reading.time() : LocalDateTime.now();
+        MetricState[] states = sensors.computeIfAbsent(reading.deviceId(), k -> new MetricState[METRICS.length]);
+        synchronized (states) {
+            for (int i = 0; i < METRICS.length; i++) {
+                Number value = METRICS[i].value(reading);
+                if (value == null) continue;
+                MetricState state = states[i];
+                if (state == null) {
+                    state = new MetricState();
+                    states[i] = state;
+                }
+                state.add(value.doubleValue(), time);
+            }
+        }
+    }
+
+    /**
+     * Zwraca statystyki wszystkich wielkości mierzonych przez czujnik.
+     *
+     * @param sensorId identyfikator czujnika
+     * @return statystyki lub null, jeśli czujnik nie przesłał odczytów
+     */
+    static List<MetricStatistics> get(String sensorId) {
+        MetricState[] states = sensors.get(sensorId);
+        if (states == null) return null;
+        LocalDate today = LocalDate.now();
+        List<MetricStatistics> result = new ArrayList<>(METRICS.length);
+        synchronized (states) {
+            for (int i = 0; i < METRICS.length; i++) {
+                if (states[i] != null) {
+                    result.add(states[i].snapshot(METRICS[i], today));
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,140 @@
+package jf.plantclimate.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import jf.plantclimate.protocol.MeteredDeflaterOutputStream;
+import jf.plantclimate.protocol.ProtocolOptions;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Połączenie klienta HTTP odbierającego rozgłaszane komunikaty jako zdarzenia Server-Sent Events.
+ *
+ * <p>Korzysta z tej samej kolejki, scalania i polityki przepełnienia co klienci protokołu TCP.
+ * Nie posiada własnego wątku - zdarzenia zapisuje wspólna, ograniczona pula wątków, zajmując
+ * wątek tylko na czas zapisu oczekującej partii.</p>
+ *
+ * <p>Aktualizacje odczytów są wysyłane jako zdarzenie {@code UPDATE} z odczytem w formacie JSON,
+ * a pozostałe komunikaty jako zdarzenie nazwane pierwszym słowem wiersza (np. {@code NEW_SENSOR}),
+ * z resztą wiersza jako danymi.</p>
+ */
+class SseClientConnection extends ClientConnection {
+    /**
+     * Komentarz SSE wysyłany okresowo, aby wykryć rozłączonych klientów przy braku aktualizacji.
+     */
+    static final OutboundMessage HEARTBEAT = OutboundMessage.line(": ping", true);
+
+    private final HttpExchange exchange;
+    private final OutputStream out;
+    private final Executor writers;
+    private final String sensorFilter;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final List<OutboundMessage> batch = new ArrayList<>();
+    private volatile Runnable onClosed = () -> {};
+
+    /**
+     * @param exchange wymiana HTTP, dla której wysłano już nagłówki odpowiedzi
+     * @param writers pula wątków zapisujących zdarzenia
+     * @param sensorFilter identyfikator czujnika, którego aktualizacje są wysyłane, lub null dla wszystkich
+     * @param capacity maksymalna liczba oczekujących komunikatów
+     * @param policy polityka obsługi przepełnionej kolejki
+     */
+    SseClientConnection(HttpExchange exchange, Executor writers, String sensorFilter, int capacity, OverflowPolicy policy) {
+        super(ProtocolOptions.TEXT, capacity, policy);
+        this.exchange = exchange;
+        this.out = new BufferedOutputStream(exchange.getResponseBody(), 8192);
+        this.writers = writers;
+        this.sensorFilter = sensorFilter;
+    }
+
+    /**
+     * Ustawia akcję wykonywaną po zamknięciu połączenia.
+     *
+     * @param onClosed akcja, np. wyrejestrowanie klienta
+     */
+    void setOnClosed(Runnable onClosed) {
+        this.onClosed = onClosed;
+    }
+
+    @Override
+    protected void signal() {
+        if (pending.getAndIncrement() == 0) {
+            writers.execute(this::drain);
+        }
+    }
+
+    /**
+     * Zapisuje oczekujące partie, dopóki pojawiają się nowe komunikaty.
+     * W danej chwili działa co najwyżej jedno wywołanie dla połączenia.
+     */
+    private void drain() {
+        int missed = pending.get();
+        while (true) {
+            try {
+                while (takeBatch(batch, false)) {
+                    boolean failed = false;
+                    try {
+                        for (OutboundMessage m : batch) {
+                            writeEvent(m);
+                        }
+                        out.flush();
+                    } catch (IOException e) {
+                        failed = true;
+                    }
+                    batchDone(batch.size(), !failed);
+                    batch.clear();
+                    if (failed) {
+                        close();
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            missed = pending.addAndGet(-missed);
+            if (missed == 0) return;
+        }
+    }
+
+    private void writeEvent(OutboundMessage m) throws IOException {
+        String event;
+        String data;
+        if (m == HEARTBEAT) {
+            out.write(": ping\n\n".getBytes(StandardCharsets.US_ASCII));
+            return;
+        }
+        if (m.kind() == OutboundMessage.Kind.LINE) {
+            String line = m.line();
+            int space = line.indexOf(' ');
+            event = space > 0 ? line.substring(0, space) : line;
+            data = space > 0 ? line.substring(space + 1) : "";
+        } else {
+            if (sensorFilter != null && !sensorFilter.equals(m.reading().deviceId())) return;
+            event = m.kind() == OutboundMessage.Kind.UPDATE ? "UPDATE" : "DATA";
+            data = m.json();
+        }
+        out.write(("event: " + event + "\ndata: " + data + "\n\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    protected void closeTransport() {
+        exchange.close();
+        onClosed.run();
+    }
+
+    @Override
+    protected String remoteAddress() {
+        return String.valueOf(exchange.getRemoteAddress());
+    }
+
+    @Override
+    MeteredDeflaterOutputStream getCompression() {
+        return null;
+    }
+}
@@ -0,0 +1,102 @@
+package jf.plantclimate.server;
+
+import jf.plantclimate.protocol.MeteredDeflaterOutputStream;
+import jf.plantclimate.protocol.ProtocolOptions;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Połączenie z klientem obsługiwane przez blokujące gniazdo.
+ * Komunikaty zapisuje do gniazda osobny wątek, który pobiera wszystkie oczekujące komunikaty
+ * naraz i wykonuje jedno opróżnienie bufora na całą partię.
+ */
+class StreamClientConnection extends ClientConnection {
+    private final Socket socket;
+    private final MessageWriter writer;
+    private final MeteredDeflaterOutputStream compression;
+
+    /**
+     * Tworzy połączenie i uruchamia wątek zapisujący.
+     *
+     * @param socket gniazdo połączenia z klientem
+     * @param options uzgodnione opcje protokołu
+     * @param capacity maksymalna liczba oczekujących komunikatów
+     * @param policy polityka obsługi przepełnionej kolejki
+     * @throws IOException gdy nie można otworzyć strumienia wyjściowego
+     */
+    StreamClientConnection(Socket socket, ProtocolOptions options, int capacity, OverflowPolicy policy) throws IOException {
+        super(options, capacity, policy);
+        this.socket = socket;
+
+        OutputStream os = socket.getOutputStream();
+        this.compression = options.compressed() ? new MeteredDeflaterOutputStream(os) : null;
+        if (compression != null) {
+            os = compression;
+        }
+        this.writer = MessageWriter.create(os, options);
+
+        Thread writerThread = new Thread(this::drain, "client-writer-" + socket.getRemoteSocketAddress());
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Pętla wątku zapisującego.
+     */
+    private void drain() {
+        try {
+            drainLoop();
+        } finally {
+            if (compression != null) {
+                compression.release();
+            }
+        }
+    }
+
+    private void drainLoop() {
+        List<OutboundMessage> batch = new ArrayList<>();
+        while (isOpen()) {
+            try {
+                if (!takeBatch(batch, true)) continue;
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            boolean failed = false;
+            try {
+                for (OutboundMessage m : batch) {
+                    writer.write(m);
+                }
+                writer.flush();
+            } catch (IOException e) {
+                failed = true;
+            }
+            batchDone(batch.size(), !failed);
+            batch.clear();
+
+            if (failed) {
+                close();
+                return;
+            }
+        }
+    }
+
+    @Override
+    protected void closeTransport() {
+        try { socket.close(); } catch (IOException ignored) {}
+    }
+
+    @Override
+    protected String remoteAddress() {
+        return String.valueOf(socket.getRemoteSocketAddress());
+    }
+
+    @Override
+    MeteredDeflaterOutputStream getCompression() {
+        return compression;
+    }
+}
@@ -0,0 +1,66 @@
+package jf.plantclimate.server;
+
+import jf.plantclimate.data.Config;
+import jf.plantclimate.data.Reading;
+import jf.plantclimate.protocol.DeltaCodec;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Zapisuje komunikaty w tekstowym protokole wierszowym.
+ * Po uzgodnieniu kodowania różnicowego aktualizacje odczytów są wysyłane jako wiersze DELTA.
+ */
+class TextMessageWriter implements MessageWriter {
+    private final BufferedWriter writer;
+    private final DeltaState delta;
+    private final Map<String, Integer> handles = new HashMap<>();
+
+    /**
+     * @param out strumień wyjściowy gniazda
+     * @param delta czy aktualizacje odczytów mają być kodowane różnicowo
+     */
+    TextMessageWriter(OutputStream out, boolean delta) {
+        this.writer = new BufferedWriter(new OutputStreamWriter(out));
+        this.delta = delta ? new DeltaState(Config.DELTA_KEYFRAME_INTERVAL) : null;
+    }
+
+    @Override
+    public void write(OutboundMessage message) throws IOException {
+        if (delta != null && message.kind() == OutboundMessage.Kind.UPDATE) {
+            writeDelta(message);
+            return;
+        }
+        writeLine(message.line());
+    }
+
+    /**
+     * Zapisuje aktualizację odczytu jako różnicę lub, gdy wymaga tego stan, jako pełny wiersz UPDATE.
+     */
+    private void writeDelta(OutboundMessage message) throws IOException {
+        String sensorId = message.key();
+        Integer handle = handles.get(sensorId);
+        if (handle == null) {
+            handle = handles.size();
+            handles.put(sensorId, handle);
+            writeLine("HANDLE " + handle + " " + sensorId);
+        }
+
+        Reading base = delta.advance(sensorId, message.reading());
+        writeLine(base == null ? message.line() : DeltaCodec.formatText(handle, base, message.reading()));
+    }
+
+    private void writeLine(String line) throws IOException {
+        writer.write(line);
+        writer.newLine();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writer.flush();
+    }
+}
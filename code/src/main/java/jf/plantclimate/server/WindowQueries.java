@@ -0,0 +1,619 @@
+package jf.plantclimate.server;
+
+import jf.plantclimate.data.Config;
+import jf.plantclimate.data.Reading;
+import jf.plantclimate.util.DateFormatter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.zone.ZoneRules;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stałe zapytania okienkowe obliczane na bieżąco z napływających odczytów,
+ * np. średnia wilgotność w każdym pomieszczeniu z ostatnich 5 minut albo maksymalne
+ * natężenie światła każdego czujnika w pełnych godzinach.
+ *
+ * <p>Okno ma długość będącą wielokrotnością kroku. Odczyty trafiają do bieżącego panelu
+ * (fragmentu okna o długości kroku), który przechowuje tylko liczbę, sumę, minimum i maksimum -
+ * koszt odczytu jest stały. Po zamknięciu panelu okno przesuwa się o krok, a wynik jest
+ * wyznaczany z paneli okna metodą dwóch stosów, w zamortyzowanym czasie stałym również
+ * dla minimum i maksimum. Okno przesuwne (krok krótszy od okna) zamyka się co krok,
+ * okno rozłączne (krok równy oknu) - raz na swoją długość.</p>
+ *
+ * <p>Granice paneli są wyrównane do czasu lokalnego (np. pełne godziny), a panele są zamykane
+ * przez wątek sprawdzający granice co sekundę lub przez pierwszy odczyt po granicy.
+ * Wyniki zamkniętych okien są wysyłane klientom, którzy zasubskrybowali zapytanie;
+ * ostatnie wyniki każdego zapytania są przechowywane dla nowych subskrybentów.</p>
+ *
+ * <p>Definicje zapytań są zapisywane na dysku; stan okien po ponownym uruchomieniu zaczyna się od nowa.</p>
+ */
+final class WindowQueries {
+    /**
+     * Plik definicji zapytań w katalogu danych czujników.
+     */
+    private static final Path FILE = Paths.get(Config.DATA_DIR, "window.queries");
+
+    /**
+     * Okres sprawdzania, czy minęła granica panelu.
+     */
+    private static final long CLOSE_CHECK_MS = 1000;
+
+    private static final ZoneRules ZONE = ZoneId.systemDefault().getRules();
+
+    private static final Map<Integer, Query> queries = new TreeMap<>();
+    private static int nextId = 1;
+    private static volatile List<Query> active = List.of();
+    private static ScheduledExecutorService closer;
+
+    /**
+     * Chroni subskrybentów i ostatnie wyniki, aby nowy subskrybent otrzymał wyniki
+     * zgodne z kolejnymi komunikatami.
+     */
+    private static final Object subscriptionLock = new Object();
+    private static final Map<Integer, Set<ClientConnection>> subscribers = new HashMap<>();
+    private static final Map<Integer, List<String>> latest = new HashMap<>();
+
+    private WindowQueries() {
+    }
+
+    /**
+     * Funkcja agregująca.
+     */
+    enum Aggregate {
+        AVG, MIN, MAX, SUM, COUNT
+    }
+
+    /**
+     * Sposób grupowania odczytów: osobno dla każdego czujnika, dla każdego pomieszczenia
+     * z rejestru czujników (wielkość liter nie ma znaczenia) lub łącznie dla wszystkich czujników.
+     */
+    enum GroupBy {
+        SENSOR, ROOM, ALL
+    }
+
+    /**
+     * Częściowy wynik agregacji: liczba, suma, minimum i maksimum wartości.
+     */
+    private static final class Partial {
+        long count;
+        double sum;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+
+        void add(double v) {
+            count++;
+            sum += v;
+            if (v < min) min = v;
+            if (v > max) max = v;
+        }
+
+        void addAll(Partial p) {
+            count += p.count;
+            sum += p.sum;
+            if (p.min < min) min = p.min;
+            if (p.max > max) max = p.max;
+        }
+
+        void clear() {
+            count = 0;
+            sum = 0;
+            min = Double.POSITIVE_INFINITY;
+            max = Double.NEGATIVE_INFINITY;
+        }
+
+        double result(Aggregate aggregate) {
+            return switch (aggregate) {
+                case AVG -> sum / count;
+                case MIN -> min;
+                case MAX -> max;
+                case SUM -> sum;
+                case COUNT -> count;
+            };
+        }
+    }
+
+    /**
+     * Stan okna jednej grupy: bieżący panel i zamknięte panele okna.
+     *
+     * <p>Zamknięte panele są przechowywane w dwóch stosach: nowe trafiają na tylny stos,
+     * którego łączny wynik jest utrzymywany na bieżąco, a usuwane są z przedniego stosu,
+     * w którym każdy element przechowuje wynik od siebie do końca stosu. Gdy przedni stos
+     * jest pusty, tylny jest do niego przenoszony - każdy panel jest przenoszony raz.</p>
+     */
+    private static final class Group {
+        final String name;
+        final Partial pane = new Partial();
+        final ArrayDeque<Partial> front = new ArrayDeque<>();
+        final ArrayDeque<Partial> back = new ArrayDeque<>();
+        final Partial backTotal = new Partial();
+
+        Group(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Zamyka bieżący panel, dodając go do okna, i usuwa najstarszy panel, jeśli okno jest pełne.
+         */
+        void closePane(int windowPanes) {
+            Partial closed = new Partial();
+            closed.addAll(pane);
+            pane.clear();
+            back.addLast(closed);
+            backTotal.addAll(closed);
+            if (front.size() + back.size() > windowPanes) {
+                if (front.isEmpty()) {
+                    Partial suffix = new Partial();
+                    for (Iterator<Partial> it = back.descendingIterator(); it.hasNext(); ) {
+                        Partial p = new Partial();
+                        p.addAll(it.next());
+                        p.addAll(suffix);
+                        front.addFirst(p);
+                        suffix = p;
+                    }
+                    back.clear();
+                    backTotal.clear();
+                }
+                front.pollFirst();
+            }
+        }
+
+        /**
+         * Zwraca łączny wynik zamkniętych paneli okna.
+         */
+        Partial window() {
+            Partial total = new Partial();
+            if (!front.isEmpty()) total.addAll(front.peekFirst());
+            total.addAll(backTotal);
+            return total;
+        }
+    }
+
+    /**
+     * Zapytanie okienkowe.
+     */
+    static final class Query {
+        final int id;
+        final Aggregate aggregate;
+        final Metric metric;
+        final GroupBy groupBy;
+        final long windowMs;
+        final long slideMs;
+        final int windowPanes;
+
+        private final Map<String, Group> groups = new HashMap<>();
+        private long openPane;
+        private long openPaneEndsAt;
+
+        Query(int id, Aggregate aggregate, Metric metric, GroupBy groupBy, long windowMs, long slideMs) {
+            this.id = id;
+            this.aggregate = aggregate;
+            this.metric = metric;
+            this.groupBy = groupBy;
+            this.windowMs = windowMs;
+            this.slideMs = slideMs;
+            this.windowPanes = (int) (windowMs / slideMs);
+            long now = System.currentTimeMillis();
+            this.openPane = paneIndex(now);
+            this.openPaneEndsAt = paneEnd(now);
+        }
+
+        /**
+         * Zwraca definicję zapytania w formacie polecenia QUERY_ADD: funkcja,wielkość,grupowanie,okno,krok
+         */
+        String toSpec() {
+            return aggregate.name().toLowerCase(Locale.ROOT) + "," + metric.key() + "," + groupBy
+                    + "," + formatDuration(windowMs) + "," + formatDuration(slideMs);
+        }
+
+        /**
+         * Zwraca zapytanie w formacie danych komunikatu WINDOW_QUERY: id,definicja
+         */
+        String toWire() {
+            return id + "," + toSpec();
+        }
+
+        /**
+         * Zwraca numer panelu zawierającego podaną chwilę; panele są liczone w czasie lokalnym.
+         */
+        private long paneIndex(long epochMillis) {
+            return Math.floorDiv(epochMillis + zoneOffset(epochMillis), slideMs);
+        }
+
+        /**
+         * Zwraca chwilę końca panelu zawierającego podaną chwilę.
+         */
+        private long paneEnd(long epochMillis) {
+            long local = epochMillis + zoneOffset(epochMillis);
+            return epochMillis + slideMs - Math.floorMod(local, slideMs);
+        }
+
+        /**
+         * Dodaje wartość do bieżącego panelu grupy, wcześniej zamykając panele, których czas minął.
+         *
+         * @param key klucz grupy
+         * @param name nazwa grupy w wynikach, używana przy tworzeniu grupy
+         * @param value wartość
+         * @param now czas odczytu
+         */
+        synchronized void add(String key, String name, double value, long now) {
+            if (now >= openPaneEndsAt) {
+                advance(now);
+            }
+            Group group = groups.get(key);
+            if (group == null) {
+                group = new Group(name);
+                groups.put(key, group);
+            }
+            group.pane.add(value);
+        }
+
+        /**
+         * Zamyka panele zakończone przed podaną chwilą i rozsyła wyniki zamkniętych okien.
+         * Po przerwie dłuższej niż okno wszystkie okna są puste, więc zamykanych jest
+         * co najwyżej tyle paneli, ile mieści okno.
+         */
+        synchronized void advance(long now) {
+            if (now < openPaneEndsAt) return;
+            long pane = paneIndex(now);
+            openPaneEndsAt = paneEnd(now);
+            long steps = Math.min(pane - openPane, windowPanes);
+            for (long i = 0; i < steps; i++) {
+                long end = openPane + i + 1;
+                List<String> results = new ArrayList<>(groups.size());
+                for (Iterator<Group> it = groups.values().iterator(); it.hasNext(); ) {
+                    Group g = it.next();
+                    g.closePane(windowPanes);
+                    Partial w = g.window();
+                    if (w.count == 0) {
+                        it.remove();
+                    } else {
+                        results.add(formatResult(g.name, w, end));
+                    }
+                }
+                if (!results.isEmpty()) {
+                    Collections.sort(results);
+                    publish(id, results);
+                }
+            }
+            if (pane > openPane) {
+                openPane = pane;
+            }
+        }
+
+        /**
+         * Format: WINDOW idZapytania,grupa,funkcja,wielkość,wynik,liczbaOdczytów,początekOkna,koniecOkna
+         */
+        private String formatResult(String group, Partial w, long endPane) {
+            return "WINDOW " + id + "," + group + "," + aggregate.name().toLowerCase(Locale.ROOT) + ","
+                    + metric.key() + "," + w.result(aggregate) + "," + w.count + ","
+                    + formatPaneTime(endPane * slideMs - windowMs) + "," + formatPaneTime(endPane * slideMs);
+        }
+    }
+
+    /**
+     * Wczytuje definicje zapytań z pliku i uruchamia wątek zamykający okna.
+     */
+    static synchronized void load() {
+        try (BufferedReader br = Files.newBufferedReader(FILE, StandardCharsets.UTF_8)) {
+            String line = br.readLine();
+            if (line == null || !line.startsWith("nextId,")) {
+                System.err.println("Nieprawidłowy nagłówek pliku zapytań okienkowych: " + line);
+            } else {
+                int fileNextId = Integer.parseInt(line.substring(7).trim());
+                while ((line = br.readLine()) != null) {
+                    String[] parts = line.split(",", 2);
+                    if (parts.length < 2) continue;
+                    Query query = parse(Integer.parseInt(parts[0]), parts[1]);
+                    queries.put(query.id, query);
+                }
+                nextId = Math.max(fileNextId, queries.isEmpty() ? 1 : Collections.max(queries.keySet()) + 1);
+                active = List.copyOf(queries.values());
+                System.out.println("Wczytano " + queries.size() + " zapytań okienkowych");
+            }
+        } catch (NoSuchFileException e) {
+            // zapytania nie zostały jeszcze zapisane
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Błąd wczytywania zapytań okienkowych: " + e.getMessage());
+        }
+        startCloser();
+    }
+
+    private static void startCloser() {
+        if (closer != null) return;
+        closer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "window-queries");
+            t.setDaemon(true);
+            return t;
+        });
+        closer.scheduleAtFixedRate(() -> {
+            try {
+                long now = System.currentTimeMillis();
+                for (Query query : active) {
+                    query.advance(now);
+                }
+            } catch (RuntimeException e) {
+                System.err.println("Błąd zamykania okien zapytań: " + e.getMessage());
+            }
+        }, CLOSE_CHECK_MS, CLOSE_CHECK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Dodaje zapytanie okienkowe.
+     *
+     * @param spec definicja w formacie: funkcja,wielkość,grupowanie,okno[,krok], np. "avg,humidity,ROOM,5m,1m";
+     *             funkcja to avg, min, max, sum lub count, grupowanie to SENSOR, ROOM lub ALL,
+     *             a czasy podaje się w sekundach lub z jednostką s, m, h, d; bez kroku okno jest rozłączne
+     * @return dodane zapytanie
+     * @throws IllegalArgumentException przy nieprawidłowej definicji
+     */
+    static synchronized Query add(String spec) {
+        Query query = parse(nextId, spec);
+        nextId++;
+        queries.put(query.id, query);
+        active = List.copyOf(queries.values());
+        save();
+        startCloser();
+        System.out.println("Dodano zapytanie okienkowe " + query.toWire());
+        return query;
+    }
+
+    /**
+     * Usuwa zapytanie okienkowe. Subskrybenci otrzymują komunikat WINDOW_QUERY_REMOVED.
+     *
+     * @param id identyfikator zapytania
+     * @return true, jeśli zapytanie istniało
+     */
+    static synchronized boolean remove(int id) {
+        if (queries.remove(id) == null) return false;
+        active = List.copyOf(queries.values());
+        save();
+        synchronized (subscriptionLock) {
+            latest.remove(id);
+            Set<ClientConnection> conns = subscribers.remove(id);
+            if (conns != null) {
+                OutboundMessage message = OutboundMessage.line("WINDOW_QUERY_REMOVED " + id, false);
+                conns.forEach(c -> c.offer(message));
+            }
+        }
+        System.out.println("Usunięto zapytanie okienkowe " + id);
+        return true;
+    }
+
+    /**
+     * Zwraca wszystkie zapytania.
+     *
+     * @return zapytania posortowane według identyfikatora
+     */
+    static List<Query> list() {
+        return active;
+    }
+
+    /**
+     * Dodaje odczyt do okien wszystkich zapytań. Koszt jest stały dla każdego zapytania.
+     *
+     * @param reading nowy odczyt
+     */
+    static void add(Reading reading) {
+        List<Query> current = active;
+        if (current.isEmpty()) return;
+        long now = System.currentTimeMillis();
+        String room = null;
+        String roomKey = null;
+        for (Query query : current) {
+            Number value = query.metric.value(reading);
+            if (value == null) continue;
+            if (query.groupBy == GroupBy.SENSOR) {
+                query.add(reading.deviceId(), reading.deviceId(), value.doubleValue(), now);
+            } else if (query.groupBy == GroupBy.ALL) {
+                query.add("*", "*", value.doubleValue(), now);
+            } else {
+                if (room == null) {
+                    SensorRegistry.SensorMetadata meta = SensorRegistry.get(reading.deviceId());
+                    room = meta != null ? meta.room().trim() : "";
+                    roomKey = room.toLowerCase(Locale.ROOT);
+                }
+                if (room.isEmpty()) continue;
+                query.add(roomKey, room, value.doubleValue(), now);
+            }
+        }
+    }
+
+    /**
+     * Zapisuje połączenie jako odbiorcę wyników zapytania i wysyła mu ostatnie wyniki.
+     *
+     * @param conn połączenie klienta
+     * @param id identyfikator zapytania
+     * @return false, jeśli zapytanie nie istnieje
+     */
+    static boolean subscribe(ClientConnection conn, int id) {
+        Query query;
+        synchronized (WindowQueries.class) {
+            query = queries.get(id);
+        }
+        if (query == null) return false;
+        synchronized (subscriptionLock) {
+            subscribers.computeIfAbsent(id, k -> new HashSet<>()).add(conn);
+            List<String> last = latest.getOrDefault(id, List.of());
+            List<OutboundMessage> messages = new ArrayList<>(last.size() + 1);
+            messages.add(OutboundMessage.line("WINDOW_SUBSCRIBED " + query.toWire() + "," + last.size(), false));
+            for (String line : last) {
+                messages.add(OutboundMessage.line(line, false));
+            }
+            conn.offerAll(messages);
+        }
+        return true;
+    }
+
+    /**
+     * Usuwa połączenie z odbiorców wyników zapytania lub, dla id równego -1, wszystkich zapytań.
+     *
+     * @param conn połączenie klienta
+     * @param id identyfikator zapytania lub -1
+     */
+    static void unsubscribe(ClientConnection conn, int id) {
+        synchronized (subscriptionLock) {
+            if (id >= 0) {
+                Set<ClientConnection> conns = subscribers.get(id);
+                if (conns != null && conns.remove(conn) && conns.isEmpty()) {
+                    subscribers.remove(id);
+                }
+                return;
+            }
+            subscribers.values().removeIf(conns -> conns.remove(conn) && conns.isEmpty());
+        }
+    }
+
+    /**
+     * Zwraca ostatnie wyniki zapytania.
+     *
+     * @param id identyfikator zapytania
+     * @return wiersze WINDOW z ostatniego zamkniętego okna
+     */
+    static List<String> latestResults(int id) {
+        synchronized (subscriptionLock) {
+            return latest.getOrDefault(id, List.of());
+        }
+    }
+
+    /**
+     * Zapamiętuje wyniki zamkniętego okna i wysyła je subskrybentom zapytania.
+     * Wyniki nie są usuwane z przepełnionej kolejki.
+     */
+    private static void publish(int id, List<String> results) {
+        synchronized (subscriptionLock) {
+            latest.put(id, List.copyOf(results));
+            Set<ClientConnection> conns = subscribers.get(id);
+            if (conns == null) return;
+            List<OutboundMessage> messages = new ArrayList<>(results.size());
+            for (String line : results) {
+                messages.add(OutboundMessage.line(line, false));
+            }
+            for (ClientConnection conn : conns) {
+                conn.offerAll(messages);
+            }
+        }
+    }
+
+    private static Query parse(int id, String spec) {
+        String[] parts = spec.split(",");
+        if (parts.length < 4 || parts.length > 5) {
+            throw new IllegalArgumentException("Nieprawidłowy format zapytania: " + spec);
+        }
+        Aggregate aggregate;
+        GroupBy groupBy;
+        try {
+            aggregate = Aggregate.valueOf(parts[0].trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Nieznana funkcja agregująca: " + parts[0].trim());
+        }
+        Metric metric = Metric.parse(parts[1]);
+        try {
+            groupBy = GroupBy.valueOf(parts[2].trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Nieznany sposób grupowania: " + parts[2].trim());
+        }
+        long windowMs = parseDuration(parts[3]);
+        long slideMs = parts.length > 4 ? parseDuration(parts[4]) : windowMs;
+        if (slideMs > windowMs || windowMs % slideMs != 0) {
+            throw new IllegalArgumentException("Długość okna musi być wielokrotnością kroku: " + spec);
+        }
+        if (windowMs / slideMs > 10_000) {
+            throw new IllegalArgumentException("Zbyt wiele kroków w oknie: " + spec);
+        }
+        return new Query(id, aggregate, metric, groupBy, windowMs, slideMs);
+    }
+
+    /**
+     * Zamienia czas w sekundach lub z jednostką (s, m, h, d) na milisekundy.
+     */
+    private static long parseDuration(String text) {
+        String t = text.trim().toLowerCase(Locale.ROOT);
+        long unit = 1000;
+        if (t.endsWith("s")) {
+            t = t.substring(0, t.length() - 1);
+        } else if (t.endsWith("m")) {
+            unit = 60_000;
+            t = t.substring(0, t.length() - 1);
+        } else if (t.endsWith("h")) {
+            unit = 3_600_000;
+            t = t.substring(0, t.length() - 1);
+        } else if (t.endsWith("d")) {
+            unit = 86_400_000;
+            t = t.substring(0, t.length() - 1);
+        }
+        try {
+            long value = Long.parseLong(t.trim());
+            if (value <= 0 || value > 366L * 86_400_000 / unit) {
+                throw new IllegalArgumentException("Nieprawidłowy czas: " + text.trim());
+            }
+            return value * unit;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Nieprawidłowy czas: " + text.trim());
+        }
+    }
+
+    private static long zoneOffset(long epochMillis) {
+        return ZONE.getOffset(Instant.ofEpochMilli(epochMillis)).getTotalSeconds() * 1000L;
+    }
+
+    private static String formatDuration(long ms) {
+        if (ms % 86_400_000 == 0) return ms / 86_400_000 + "d";
+        if (ms % 3_600_000 == 0) return ms / 3_600_000 + "h";
+        if (ms % 60_000 == 0) return ms / 60_000 + "m";
+        return ms / 1000 + "s";
+    }
+
+    /**
+     * Formatuje granicę panelu (milisekundy czasu lokalnego od początku epoki).
+     */
+    private static String formatPaneTime(long localMillis) {
+        return DateFormatter.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(localMillis), ZoneOffset.UTC));
+    }
+
+    /**
+     * Zapisuje definicje zapytań do pliku tymczasowego i podmienia nim poprzedni plik.
+     * Format: wiersz "nextId,N", następnie wiersze "id,definicja".
+     */
+    private static void save() {
+        Path tmp = FILE.resolveSibling(FILE.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(FILE.getParent());
+            try (BufferedWriter bw = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                bw.write("nextId," + nextId);
+                bw.newLine();
+                for (Query query : queries.values()) {
+                    bw.write(query.toWire());
+                    bw.newLine();
+                }
+            }
+            Files.move(tmp, FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Błąd zapisu zapytań okienkowych: " + e.getMessage());
+        }
+    }
+}
@@ -15,4 +15,13 @@ public class DateFormatter {
         if (time == null) return "null";
         return time.format(FORMATTER);
     }
+
+    /**
+     * Odczytuje czas zapisany przez {@link #format(LocalDateTime)}.
+     *
+     * @throws java.time.format.DateTimeParseException jeśli tekst nie jest czasem w tym formacie
+     */
+    public static LocalDateTime parse(String text) {
+        return LocalDateTime.parse(text, FORMATTER);
+    }
 }
@@ -0,0 +1,77 @@
+package jf.plantclimate.util;
+
+import jf.plantclimate.data.Reading;
+
+import java.time.LocalDateTime;
+
+/**
+ * Wielokrotnie używany odczyt wypełniany przez {@link ReadingParser#parse(CharSequence, int, int, MutableReading)}.
+ * Wartości są przechowywane jako typy proste z maską obecności, a {@link Reading} jest tworzony
+ * dopiero metodą {@link #toReading()}.
+ *
+ * <p>Obiekt nie jest bezpieczny wątkowo - każdy wątek parsujący używa własnego.</p>
+ */
+public final class MutableReading {
+    static final int TEMPERATURE = 1;
+    static final int HUMIDITY = 1 << 1;
+    static final int SOIL = 1 << 2;
+    static final int LUX = 1 << 3;
+    static final int RED = 1 << 4;
+    static final int GREEN = 1 << 5;
+    static final int BLUE = 1 << 6;
+    static final int WHITE = 1 << 7;
+    static final int COLOR_TEMPERATURE = 1 << 8;
+
+    String deviceId;
+    double temperature;
+    double humidity;
+    int soil;
+    double lux;
+    int red;
+    int green;
+    int blue;
+    int white;
+    double colorTemperature;
+    LocalDateTime time;
+    int present;
+
+    /**
+     * Początki pól ostatnio parsowanego wiersza oraz pozycja końca ostatniego pola.
+     */
+    final int[] fieldStarts = new int[ReadingParser.FIELDS + 1];
+
+    /**
+     * @return identyfikator czujnika
+     */
+    public String deviceId() {
+        return deviceId;
+    }
+
+    /**
+     * @return czas pomiaru
+     */
+    public LocalDateTime time() {
+        return time;
+    }
+
+    /**
+     * Tworzy niezmienny odczyt z bieżących wartości.
+     *
+     * @return odczyt
+     */
+    public Reading toReading() {
+        return new Reading(
+            deviceId,
+            (present & TEMPERATURE) != 0 ? temperature : null,
+            (present & HUMIDITY) != 0 ? humidity : null,
+            (present & SOIL) != 0 ? soil : null,
+            (present & LUX) != 0 ? lux : null,
+            (present & RED) != 0 ? red : null,
+            (present & GREEN) != 0 ? green : null,
+            (present & BLUE) != 0 ? blue : null,
+            (present & WHITE) != 0 ? white : null,
+            (present & COLOR_TEMPERATURE) != 0 ? colorTemperature : null,
+            time
+        );
+    }
+}
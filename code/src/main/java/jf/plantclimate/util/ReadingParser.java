@@ -3,15 +3,36 @@ package jf.plantclimate.util;
 import jf.plantclimate.data.Reading;
 
 import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.time.Month;
+import java.time.Year;
+import java.time.format.DateTimeParseException;
 
 /**
  * Klasa pomocnicza do parsowania danych odczytów z różnych źródeł.
+ *
+ * <p>Liczby w zwykłym zapisie dziesiętnym i czas w układzie {@code yyyy-MM-dd HH:mm:ss} są
+ * odczytywane bezpośrednio ze znaków, bez tworzenia pośrednich napisów. Pozostałe zapisy
+ * (np. wykładniczy) są przekazywane do {@link Double#parseDouble}, {@link Integer#parseInt}
+ * i {@link DateFormatter#parse}, więc wynik jest taki sam jak przy parsowaniu standardowym.</p>
  */
 public class ReadingParser {
 
-    private static final DateTimeFormatter DATE_FORMATTER = 
-            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    /**
+     * Liczba pól odczytu: identyfikator, dziewięć wartości i czas.
+     */
+    static final int FIELDS = 11;
+
+    private static final int TIME_LENGTH = "yyyy-MM-dd HH:mm:ss".length();
+
+    /**
+     * Potęgi dziesięciu dokładnie reprezentowalne jako double.
+     */
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+        1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private static final long NOT_PLAIN = Long.MIN_VALUE;
 
     /**
      * Parsuje tablicę na obiekt Reading.
@@ -22,76 +43,267 @@ public class ReadingParser {
      */
     public static Reading parseFromParts(String[] parts) {
         if (parts == null) return null;
-        
-        if (parts.length < 11) return null;
-        
+
+        if (parts.length < FIELDS) return null;
+
         try {
-            String deviceId = parts[0];
-            
-            Double temperature = parseDouble(parts[1]);
-            Double humidity = parseDouble(parts[2]);
-            Integer soil = parseInteger(parts[3]);
-            Double lux = parseDouble(parts[4]);
-            Integer red = parseInteger(parts[5]);
-            Integer green = parseInteger(parts[6]);
-            Integer blue = parseInteger(parts[7]);
-            Integer white = parseInteger(parts[8]);
-            Double colorTemperature = parseDouble(parts[9]);
-            
-            LocalDateTime time = null;
-            try {
-                time = LocalDateTime.parse(parts[10].trim(), DATE_FORMATTER);
-            } catch (Exception e) {
-            }
-            if (time == null) {
-                time = LocalDateTime.now();
-            }
-            
             return new Reading(
-                deviceId,
-                temperature,
-                humidity,
-                soil,
-                lux,
-                red,
-                green,
-                blue,
-                white,
-                colorTemperature,
-                time
+                parts[0],
+                parseDouble(parts[1]),
+                parseDouble(parts[2]),
+                parseInteger(parts[3]),
+                parseDouble(parts[4]),
+                parseInteger(parts[5]),
+                parseInteger(parts[6]),
+                parseInteger(parts[7]),
+                parseInteger(parts[8]),
+                parseDouble(parts[9]),
+                parseTime(parts[10], 0, parts[10].length())
             );
         } catch (Exception e) {
             System.err.println("Błąd podczas parsowania danych czujnika: " + e.getMessage());
-            e.printStackTrace();
             return null;
         }
     }
-    
+
+    /**
+     * Parsuje odczyt w formacie CSV z podanego zakresu znaków do wielokrotnie używanego obiektu.
+     * Format: deviceId,temperature,humidity,soil,lux,red,green,blue,white,colorTemperature,timestamp.
+     * Puste i niepoprawne wartości są pomijane, a niepoprawny czas zastępowany bieżącym - tak jak
+     * w {@link #parseFromParts(String[])}.
+     *
+     * @param text tekst zawierający odczyt
+     * @param start początek odczytu w tekście
+     * @param end koniec odczytu w tekście (wyłącznie)
+     * @param target obiekt wypełniany odczytanymi wartościami
+     * @return false, jeśli odczyt ma mniej niż 11 pól; target ma wtedy nieokreśloną zawartość
+     */
+    public static boolean parse(CharSequence text, int start, int end, MutableReading target) {
+        int[] starts = target.fieldStarts;
+        starts[0] = start;
+        int field = 1;
+        for (int i = start; i < end && field < FIELDS; i++) {
+            if (text.charAt(i) == ',') starts[field++] = i + 1;
+        }
+        if (field < FIELDS) return false;
+
+        // jak String.split: puste pola na końcu wiersza nie są liczone
+        int timeEnd = end;
+        boolean content = false;
+        for (int i = starts[FIELDS - 1]; i < end; i++) {
+            if (text.charAt(i) == ',') {
+                if (timeEnd == end) timeEnd = i;
+            } else {
+                content = true;
+            }
+        }
+        if (!content) return false;
+        starts[FIELDS] = timeEnd + 1;
+
+        target.deviceId = deviceId(text, start, starts[1] - 1, target.deviceId);
+        target.present = 0;
+        target.temperature = parseDouble(text, starts[1], starts[2] - 1, target, MutableReading.TEMPERATURE);
+        target.humidity = parseDouble(text, starts[2], starts[3] - 1, target, MutableReading.HUMIDITY);
+        target.soil = parseInt(text, starts[3], starts[4] - 1, target, MutableReading.SOIL);
+        target.lux = parseDouble(text, starts[4], starts[5] - 1, target, MutableReading.LUX);
+        target.red = parseInt(text, starts[5], starts[6] - 1, target, MutableReading.RED);
+        target.green = parseInt(text, starts[6], starts[7] - 1, target, MutableReading.GREEN);
+        target.blue = parseInt(text, starts[7], starts[8] - 1, target, MutableReading.BLUE);
+        target.white = parseInt(text, starts[8], starts[9] - 1, target, MutableReading.WHITE);
+        target.colorTemperature = parseDouble(text, starts[9], starts[10] - 1, target, MutableReading.COLOR_TEMPERATURE);
+        target.time = parseTime(text, starts[10], timeEnd);
+        return true;
+    }
+
+    /**
+     * Parsuje cały tekst jako odczyt w formacie CSV.
+     *
+     * @see #parse(CharSequence, int, int, MutableReading)
+     */
+    public static boolean parse(CharSequence text, MutableReading target) {
+        return parse(text, 0, text.length(), target);
+    }
+
     /**
      * Parsuje String na Integer.
-     * 
+     *
      * @param value ciąg znaków do przekształcenia na liczbę całkowitą
      */
     public static Integer parseInteger(String value) {
-        if (value == null || value.trim().isEmpty() || value.equals("null")) return null;
-        try {
-            return Integer.parseInt(value.trim());
-        } catch (NumberFormatException e) {
-            return null;
-        }
+        if (value == null) return null;
+        return parseInteger(value, 0, value.length());
     }
-    
+
     /**
      * Parsuje String na Double
-     * 
+     *
      * @param value ciąg znaków do przekształcenia na liczbę zmiennoprzecinkową
      */
     public static Double parseDouble(String value) {
-        if (value == null || value.trim().isEmpty() || value.equals("null")) return null;
+        if (value == null) return null;
+        return parseDouble(value, 0, value.length());
+    }
+
+    /**
+     * Zwraca identyfikator z zakresu tekstu, używając poprzedniego napisu, jeśli jest taki sam -
+     * kolejne wiersze historii dotyczą zwykle tego samego czujnika.
+     */
+    private static String deviceId(CharSequence text, int from, int to, String previous) {
+        if (previous != null && previous.length() == to - from) {
+            int i = 0;
+            while (i < previous.length() && previous.charAt(i) == text.charAt(from + i)) i++;
+            if (i == previous.length()) return previous;
+        }
+        return text.subSequence(from, to).toString();
+    }
+
+    /**
+     * Parsuje liczbę całkowitą z zakresu tekstu i ustawia bit obecności, jeśli się powiodło.
+     */
+    private static int parseInt(CharSequence text, int from, int to, MutableReading target, int bit) {
+        while (from < to && text.charAt(from) <= ' ') from++;
+        while (to > from && text.charAt(to - 1) <= ' ') to--;
+        long value = plainInt(text, from, to);
+        if (value == NOT_PLAIN) {
+            Integer parsed = parseInteger(text, from, to);
+            if (parsed == null) return 0;
+            value = parsed;
+        }
+        target.present |= bit;
+        return (int) value;
+    }
+
+    /**
+     * Parsuje liczbę zmiennoprzecinkową z zakresu tekstu i ustawia bit obecności, jeśli się powiodło.
+     */
+    private static double parseDouble(CharSequence text, int from, int to, MutableReading target, int bit) {
+        while (from < to && text.charAt(from) <= ' ') from++;
+        while (to > from && text.charAt(to - 1) <= ' ') to--;
+        double value = plainDouble(text, from, to);
+        if (Double.isNaN(value)) {
+            Double parsed = parseDouble(text, from, to);
+            if (parsed == null) return 0;
+            value = parsed;
+        }
+        target.present |= bit;
+        return value;
+    }
+
+    private static Integer parseInteger(CharSequence text, int from, int to) {
+        while (from < to && text.charAt(from) <= ' ') from++;
+        while (to > from && text.charAt(to - 1) <= ' ') to--;
+        if (from == to) return null;
+        long value = plainInt(text, from, to);
+        if (value != NOT_PLAIN) return (int) value;
         try {
-            return Double.parseDouble(value.trim());
+            return Integer.parseInt(text, from, to, 10);
         } catch (NumberFormatException e) {
             return null;
         }
     }
+
+    private static Double parseDouble(CharSequence text, int from, int to) {
+        while (from < to && text.charAt(from) <= ' ') from++;
+        while (to > from && text.charAt(to - 1) <= ' ') to--;
+        if (from == to) return null;
+        double value = plainDouble(text, from, to);
+        if (!Double.isNaN(value)) return value;
+        try {
+            return Double.parseDouble(text.subSequence(from, to).toString());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Odczytuje liczbę całkowitą w zapisie [+-]cyfry o co najwyżej 9 cyfrach, która zawsze mieści się w int.
+     *
+     * @return wartość lub {@link #NOT_PLAIN}, jeśli tekst ma inną postać
+     */
+    private static long plainInt(CharSequence text, int from, int to) {
+        int i = from;
+        if (i < to && (text.charAt(i) == '-' || text.charAt(i) == '+')) i++;
+        if (i == to || to - i > 9) return NOT_PLAIN;
+        int value = 0;
+        for (; i < to; i++) {
+            int digit = text.charAt(i) - '0';
+            if (digit < 0 || digit > 9) return NOT_PLAIN;
+            value = value * 10 + digit;
+        }
+        return text.charAt(from) == '-' ? -value : value;
+    }
+
+    /**
+     * Odczytuje liczbę w zapisie [+-]cyfry[.cyfry] o co najwyżej 15 cyfrach. Mantysa i potęga
+     * dziesięciu są wtedy dokładne, więc ich iloraz jest poprawnie zaokrąglony - tak samo jak
+     * w {@link Double#parseDouble}.
+     *
+     * @return wartość lub NaN, jeśli tekst ma inną postać
+     */
+    private static double plainDouble(CharSequence text, int from, int to) {
+        int i = from;
+        if (i < to && (text.charAt(i) == '-' || text.charAt(i) == '+')) i++;
+        long mantissa = 0;
+        int digits = 0;
+        int fraction = -1;
+        for (; i < to; i++) {
+            char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (++digits > 15) return Double.NaN;
+                mantissa = mantissa * 10 + (c - '0');
+                if (fraction >= 0) fraction++;
+            } else if (c == '.' && fraction < 0) {
+                fraction = 0;
+            } else {
+                return Double.NaN;
+            }
+        }
+        if (digits == 0) return Double.NaN;
+        double value = fraction > 0 ? mantissa / POWERS_OF_TEN[fraction] : mantissa;
+        return text.charAt(from) == '-' ? -value : value;
+    }
+
+    /**
+     * Parsuje czas w formacie {@code yyyy-MM-dd HH:mm:ss} z zakresu tekstu.
+     *
+     * @return czas lub bieżący czas, jeśli tekst nie jest poprawnym czasem
+     */
+    private static LocalDateTime parseTime(CharSequence text, int from, int to) {
+        while (from < to && text.charAt(from) <= ' ') from++;
+        while (to > from && text.charAt(to - 1) <= ' ') to--;
+        if (to - from == TIME_LENGTH
+                && text.charAt(from + 4) == '-' && text.charAt(from + 7) == '-' && text.charAt(from + 10) == ' '
+                && text.charAt(from + 13) == ':' && text.charAt(from + 16) == ':') {
+            int year = digits(text, from, 4);
+            int month = digits(text, from + 5, 2);
+            int day = digits(text, from + 8, 2);
+            int hour = digits(text, from + 11, 2);
+            int minute = digits(text, from + 14, 2);
+            int second = digits(text, from + 17, 2);
+            if (year >= 1 && month >= 1 && month <= 12 && day >= 1
+                    && (day <= 28 || day <= Month.of(month).length(Year.isLeap(year)))
+                    && hour >= 0 && hour < 24 && minute >= 0 && minute < 60 && second >= 0 && second < 60) {
+                return LocalDateTime.of(year, month, day, hour, minute, second);
+            }
+        }
+        // nietypowe wartości (np. 24:00:00) rozstrzyga formatter
+        try {
+            return DateFormatter.parse(text.subSequence(from, to).toString());
+        } catch (DateTimeParseException e) {
+            return LocalDateTime.now();
+        }
+    }
+
+    /**
+     * @return wartość {@code count} cyfr od pozycji {@code from} lub -1, jeśli któryś znak nie jest cyfrą
+     */
+    private static int digits(CharSequence text, int from, int count) {
+        int value = 0;
+        for (int i = from; i < from + count; i++) {
+            int digit = text.charAt(i) - '0';
+            if (digit < 0 || digit > 9) return -1;
+            value = value * 10 + digit;
+        }
+        return value;
+    }
 }
@@ -0,0 +1,236 @@
+package jf.plantclimate.client;
+
+import jf.plantclimate.data.Config;
+import jf.plantclimate.data.Reading;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Przypisywanie odpowiedzi serwera do zapytań {@link MonitorClient} po błędach i zapytaniach
+ * bez odpowiedzi. Serwer testowy odpowiada na polecenia w kolejności ich otrzymania,
+ * jak {@code ClientListener}.
+ */
+class MonitorClientTest {
+    private static final String S1_READING = "s1,21.5,40.0,300,120.5,null,null,null,null,null,2026-01-01 12:00:00";
+
+    private FakeServer server;
+    private MonitorClient client;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        // historia i sparowane czujniki z poprzednich testów zmieniłyby wysyłane polecenia
+        for (String name : List.of(Config.CLIENT_HISTORY_CACHE_DIR, "paired_sensors.db", "paired_sensors.journal")) {
+            Path path = Path.of(name);
+            if (!Files.exists(path)) continue;
+            try (Stream<Path> files = Files.walk(path)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(file);
+                }
+            }
+        }
+        server = new FakeServer();
+        client = new MonitorClient(List.of("127.0.0.1:" + server.getPort()));
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        client.close();
+        server.close();
+    }
+
+    @Test
+    void unknownSensorFailsAndNextRequestGetsItsOwnReply() throws Exception {
+        CompletableFuture<List<Reading>> unknown = client.requestHistoryAsync("nosuch", 10);
+        CompletableFuture<List<Reading>> valid = client.requestHistoryAsync("s1", 10);
+
+        ExecutionException error = assertThrows(ExecutionException.class, () -> unknown.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(IOException.class, error.getCause());
+        assertEquals("Brak historycznych danych dla czujnika", error.getCause().getMessage());
+
+        List<Reading> readings = valid.get(5, TimeUnit.SECONDS);
+        assertEquals(1, readings.size());
+        assertEquals("s1", readings.get(0).deviceId());
+    }
+
+    @Test
+    void statsErrorDoesNotShiftLaterRepliesForTheSameSensor() throws Exception {
+        server.reply("STATS s1", "ERROR STATS s1: Czujnik nie znaleziony");
+        ExecutionException error = assertThrows(ExecutionException.class,
+                () -> client.requestStatsAsync("s1").get(5, TimeUnit.SECONDS));
+        assertInstanceOf(IOException.class, error.getCause());
+
+        server.reply("STATS s1", "STATS_START s1 1",
+                "STAT temperature,3,21.5,21.4,21.3,0.1,21.0,21.5,0.0,0.5,0", "STATS_END");
+        List<MonitorClient.MetricStats> stats = client.requestStatsAsync("s1").get(5, TimeUnit.SECONDS);
+        assertEquals("temperature", stats.get(0).metric());
+    }
+
+    @Test
+    void cancelledRequestDoesNotTakeTheNextReply() throws Exception {
+        server.ignoreNext("HISTORY slow,10");
+        CompletableFuture<List<Reading>> unanswered = client.requestHistoryAsync("slow", 10);
+        server.awaitCommands(1);
+        unanswered.cancel(false);
+
+        server.reply("HISTORY slow,10", "HISTORY_START slow 1", "DATA " + S1_READING.replace("s1", "slow"), "HISTORY_END");
+        List<Reading> readings = client.requestHistoryAsync("slow", 10).get(5, TimeUnit.SECONDS);
+        assertEquals("slow", readings.get(0).deviceId());
+    }
+
+    @Test
+    void historyOlderThanTheServerWindowReplacesTheCache() throws Exception {
+        server.reply("HISTORY s1,3", "HISTORY_START s1 3", data(1), data(2), data(3), "HISTORY_END");
+        assertEquals(3, client.requestHistoryAsync("s1", 3).get(5, TimeUnit.SECONDS).size());
+
+        // serwer nie ma już odczytu z 12:00:03, a odczyt z 12:00:04 został pominięty
+        server.reply("HISTORY_SINCE s1,2026-01-01 12:00:03", "HISTORY_START s1 2", data(5), data(6), "HISTORY_END");
+        List<Reading> readings = client.requestHistoryAsync("s1", 3).get(5, TimeUnit.SECONDS);
+        assertEquals(List.of(5, 6), readings.stream().map(r -> r.time().getSecond()).toList());
+    }
+
+    private static String data(int second) {
+        return "DATA " + S1_READING.replace("12:00:00", "12:00:0" + second);
+    }
+
+    @Test
+    void getFailsWhenTheServerDoesNotKnowTheSensor() {
+        ExecutionException error = assertThrows(ExecutionException.class,
+                () -> client.getReadingAsync("nosuch").get(5, TimeUnit.SECONDS));
+        assertInstanceOf(IOException.class, error.getCause());
+    }
+
+    @Test
+    void pairErrorFailsTheFuture() {
+        ExecutionException error = assertThrows(ExecutionException.class,
+                () -> client.pairSensorAsync("nosuch", "Czujnik").get(5, TimeUnit.SECONDS));
+        assertInstanceOf(IOException.class, error.getCause());
+        assertFalse(client.isSensorPaired("nosuch"));
+    }
+
+    @Test
+    void acknowledgementsAndReadingsCompleteOffTheListenerThread() throws Exception {
+        String paired = client.pairSensorAsync("s1", "Czujnik")
+                .thenApply(result -> Thread.currentThread().getName()).get(5, TimeUnit.SECONDS);
+        String reading = client.getReadingAsync("s1")
+                .thenApply(result -> Thread.currentThread().getName()).get(5, TimeUnit.SECONDS);
+
+        String listener = "monitor-client-127.0.0.1:" + server.getPort();
+        assertNotEquals(listener, paired);
+        assertNotEquals(listener, reading);
+        assertTrue(client.isSensorPaired("s1"));
+    }
+
+    /**
+     * Serwer obsługujący jedno połączenie klienta protokołem tekstowym. Zna tylko czujnik s1;
+     * odpowiedzi na wybrane polecenia można zastąpić przez {@link #reply} i {@link #ignoreNext}.
+     */
+    private static final class FakeServer implements AutoCloseable {
+        private final ServerSocket socket = new ServerSocket(0);
+        private final Map<String, List<String>> replies = new ConcurrentHashMap<>();
+        private final AtomicInteger commands = new AtomicInteger();
+        private volatile Socket connection;
+
+        FakeServer() throws IOException {
+            Thread thread = new Thread(this::serve, "fake-server");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return socket.getLocalPort();
+        }
+
+        void reply(String command, String... lines) {
+            replies.put(command, List.of(lines));
+        }
+
+        void ignoreNext(String command) {
+            replies.put(command, List.of());
+        }
+
+        /**
+         * Czeka, aż serwer otrzyma podaną liczbę zapytań o dane czujników.
+         */
+        void awaitCommands(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (commands.get() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        }
+
+        private void serve() {
+            try (Socket client = socket.accept()) {
+                connection = client;
+                BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+                PrintWriter out = new PrintWriter(client.getOutputStream(), true, StandardCharsets.UTF_8);
+                out.println("HELLO");
+                String hello = in.readLine();
+                if (hello != null && hello.contains(" ")) {
+                    out.println("PROTOCOL TEXT");
+                }
+                out.println("REGISTRY_START 0 0");
+                out.println("REGISTRY_END 0");
+
+                String line;
+                while ((line = in.readLine()) != null && !line.equals("QUIT")) {
+                    for (String reply : respond(line)) {
+                        out.println(reply);
+                    }
+                }
+            } catch (IOException e) {
+                // klient zamknął połączenie
+            }
+        }
+
+        private List<String> respond(String command) {
+            List<String> reply = replies.remove(command);
+            if (reply != null) {
+                commands.incrementAndGet();
+                return reply;
+            }
+            String[] parts = command.split(" ", 2);
+            String sensorId = parts.length > 1 ? parts[1].split(",", 2)[0] : "";
+            if (!List.of("GET", "PAIR", "HISTORY", "STATS", "EXPORT").contains(parts[0])) return List.of();
+            commands.incrementAndGet();
+            if (!sensorId.equals("s1")) {
+                String message = parts[0].equals("HISTORY") ? "Brak historycznych danych dla czujnika" : "Czujnik nie znaleziony";
+                return List.of("ERROR " + parts[0] + " " + sensorId + ": " + message);
+            }
+            return switch (parts[0]) {
+                case "GET" -> List.of("UPDATE " + S1_READING);
+                case "PAIR" -> List.of("PAIRED s1");
+                case "HISTORY" -> List.of("HISTORY_START s1 1", "DATA " + S1_READING, "HISTORY_END");
+                default -> List.of();
+            };
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+            Socket c = connection;
+            if (c != null) c.close();
+        }
+    }
+}
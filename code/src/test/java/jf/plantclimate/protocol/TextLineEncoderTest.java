@@ -0,0 +1,168 @@
+package jf.plantclimate.protocol;
+
+import jf.plantclimate.data.Reading;
+import jf.plantclimate.util.DateFormatter;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Zgodność {@link TextLineEncoder} bajt w bajt z dawnym formatowaniem wierszy UPDATE, DATA i eksportu
+ * przez {@code String.format}, {@code toString()} wartości i {@link DateFormatter}.
+ */
+class TextLineEncoderTest {
+    private static final LocalDateTime TIME = LocalDateTime.of(2026, 1, 1, 12, 0, 5);
+
+    @Test
+    void typicalReadingMatchesGoldenLines() {
+        Reading r = new Reading("s1", 21.5, 40.25, 300, 120.0, 10, 20, 30, 40, 5600.0, TIME);
+        TextLineEncoder encoder = new TextLineEncoder();
+
+        assertEquals("UPDATE s1,21.5,40.25,300,120.0,10,20,30,40,5600.0,2026-01-01 12:00:05",
+                encoder.update("s1", r).toString());
+        assertEquals("DATA s1,21.5,40.25,300,120.0,10,20,30,40,5600.0,2026-01-01 12:00:05",
+                encoder.data(r).toString());
+        assertEquals("2026-01-01 12:00:05,21.5,40.25,300,120.0,10,20,30,40,5600.0",
+                encoder.export(r).toString());
+    }
+
+    @Test
+    void nullFieldsAreWrittenAsNull() {
+        Reading r = new Reading("s1", null, null, null, null, null, null, null, null, null, null);
+        TextLineEncoder encoder = new TextLineEncoder();
+
+        assertEquals("UPDATE s1,null,null,null,null,null,null,null,null,null,null", encoder.update("s1", r).toString());
+        assertEquals("DATA s1,null,null,null,null,null,null,null,null,null,null", encoder.data(r).toString());
+        assertEquals("null,null,null,null,null,null,null,null,null,null", encoder.export(r).toString());
+        assertEquals("UPDATE null,null,null,null,null,null,null,null,null,null,null",
+                encoder.update(null, r).toString());
+        assertMatchesLegacy(encoder, r);
+    }
+
+    @Test
+    void edgeValuesMatchLegacyFormatting() {
+        double[] doubles = {0.0, -0.0, 0.001, 0.0009999, 9_999_999.9999, 1e7, 1e-4, -21.5, 0.1 + 0.2, 1.0 / 3,
+                Double.MIN_VALUE, Double.MAX_VALUE, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                123456.7891, 5e-3, 100.0};
+        int[] ints = {0, -1, 7, Integer.MIN_VALUE, Integer.MAX_VALUE, 1_000_000};
+        TextLineEncoder encoder = new TextLineEncoder();
+        for (double d : doubles) {
+            for (int i : ints) {
+                assertMatchesLegacy(encoder, new Reading("s1", d, -d, i, d, i, -i, 0, i, d, TIME));
+            }
+        }
+    }
+
+    @Test
+    void randomReadingsMatchLegacyFormatting() {
+        Random random = new Random(36);
+        TextLineEncoder encoder = new TextLineEncoder();
+        LocalDateTime time = TIME;
+        for (int n = 0; n < 50_000; n++) {
+            // czas co kilka odczytów zostaje ten sam, aby sprawdzić kopiowanie z pamięci podręcznej
+            if (random.nextInt(4) == 0) {
+                time = time.plusSeconds(random.nextInt(100_000_000));
+            }
+            int digits = random.nextInt(6);
+            double temperature = Math.round(random.nextGaussian() * 20 * Math.pow(10, digits)) / Math.pow(10, digits);
+            Reading r = new Reading("sensor-" + random.nextInt(100), temperature,
+                    random.nextBoolean() ? random.nextDouble() * 100 : null,
+                    random.nextBoolean() ? random.nextInt(1024) : null,
+                    random.nextDouble() * Math.pow(10, random.nextInt(12) - 4),
+                    random.nextInt(), null, random.nextInt(256), random.nextInt(256),
+                    random.nextBoolean() ? Double.longBitsToDouble(random.nextLong()) : 2700.0 + random.nextInt(4000),
+                    random.nextInt(10) == 0 ? null : time);
+            assertMatchesLegacy(encoder, r);
+        }
+    }
+
+    @Test
+    void timeCacheDistinguishesDatesWithTheSameClockTime() {
+        TextLineEncoder encoder = new TextLineEncoder();
+        for (LocalDateTime time : List.of(TIME, TIME.plusDays(1), TIME.plusYears(1), TIME.plusNanos(999_000_000),
+                LocalDateTime.of(9999, 12, 31, 23, 59, 59), LocalDateTime.of(10_000, 1, 1, 0, 0),
+                LocalDateTime.of(0, 1, 1, 0, 0), LocalDateTime.of(-1, 6, 15, 8, 30, 1), TIME)) {
+            assertMatchesLegacy(encoder, new Reading("s1", 1.0, 2.0, 3, 4.0, 5, 6, 7, 8, 9.0, time));
+        }
+    }
+
+    @Test
+    void outputDoesNotDependOnTheDefaultLocale() {
+        Reading r = new Reading("s1", 21.5, 0.1 + 0.2, 300, 1234567.5, 10, null, 30, 40, 5600.0, TIME);
+        List<String> expected = lines(new TextLineEncoder(), r);
+        Locale previous = Locale.getDefault();
+        try {
+            for (Locale locale : List.of(new Locale("pl", "PL"), Locale.GERMANY,
+                    Locale.forLanguageTag("ar-SA-u-nu-arab"), Locale.forLanguageTag("th-TH-u-nu-thai"))) {
+                Locale.setDefault(locale);
+                // formater utworzony w tej lokalizacji, jak przy starcie serwera z taką lokalizacją domyślną
+                DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+                String time = r.time().format(formatter);
+                assertEquals(expected, lines(new TextLineEncoder(), r), locale.toString());
+                assertEquals("UPDATE s1,21.5,0.30000000000000004,300,1234567.5,10,null,30,40,5600.0," + time,
+                        expected.get(0), locale.toString());
+                assertEquals(legacy("UPDATE %s", r.deviceId(), r, time), expected.get(0), locale.toString());
+            }
+        } finally {
+            Locale.setDefault(previous);
+        }
+    }
+
+    @Test
+    void nonAsciiIdentifierIsReported() {
+        TextLineEncoder encoder = new TextLineEncoder();
+        Reading r = new Reading("czujnik-ż", 1.0, null, null, null, null, null, null, null, null, TIME);
+        assertFalse(encoder.update(r.deviceId(), r).isAscii());
+        assertFalse(encoder.data(r).isAscii());
+        assertTrue(encoder.export(r).isAscii());
+        assertTrue(encoder.update("s1", r).isAscii());
+    }
+
+    @Test
+    void newLineAppendsTheSystemSeparator() {
+        Reading r = new Reading("s1", 21.5, 40.0, 300, 120.5, null, null, null, null, null, TIME);
+        byte[] expected = (legacy("UPDATE %s", "s1", r, DateFormatter.format(TIME)) + System.lineSeparator()).getBytes();
+        assertArrayEquals(expected, new TextLineEncoder().update("s1", r).newLine().toByteArray());
+    }
+
+    private static List<String> lines(TextLineEncoder encoder, Reading r) {
+        List<String> lines = new ArrayList<>();
+        lines.add(encoder.update(r.deviceId(), r).toString());
+        lines.add(encoder.data(r).toString());
+        lines.add(encoder.export(r).toString());
+        return lines;
+    }
+
+    /**
+     * Porównuje wiersze kodera z dawnym formatowaniem, także jako bajty w kodowaniu domyślnym.
+     */
+    private static void assertMatchesLegacy(TextLineEncoder encoder, Reading r) {
+        String time = DateFormatter.format(r.time());
+        String update = legacy("UPDATE %s", r.deviceId(), r, time);
+        String data = legacy("DATA %s", r.deviceId(), r, time);
+        String export = String.format("%s,%s,%s,%s,%s,%s,%s,%s,%s,%s", time,
+                value(r.temperature()), value(r.humidity()), value(r.soil()), value(r.lux()), value(r.red()),
+                value(r.green()), value(r.blue()), value(r.white()), value(r.colorTemperature()));
+
+        assertArrayEquals(update.getBytes(), encoder.update(r.deviceId(), r).toByteArray(), update);
+        assertArrayEquals(data.getBytes(), encoder.data(r).toByteArray(), data);
+        assertArrayEquals(export.getBytes(), encoder.export(r).toByteArray(), export);
+    }
+
+    private static String legacy(String prefix, String id, Reading r, String time) {
+        return String.format(prefix + ",%s,%s,%s,%s,%s,%s,%s,%s,%s,%s", id,
+                value(r.temperature()), value(r.humidity()), value(r.soil()), value(r.lux()), value(r.red()),
+                value(r.green()), value(r.blue()), value(r.white()), value(r.colorTemperature()), time);
+    }
+
+    private static String value(Object value) {
+        return value != null ? value.toString() : "null";
+    }
+}
@@ -0,0 +1,311 @@
+package jf.plantclimate.server;
+
+import jf.plantclimate.client.MonitorClient;
+import jf.plantclimate.data.Config;
+import jf.plantclimate.data.Reading;
+import jf.plantclimate.protocol.ProtocolOptions;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Aktualizacje odczytów zakodowane przez {@link MessageWriter} serwera i odczytane przez
+ * {@link MonitorClient}, w protokole binarnym i tekstowym z kodowaniem różnicowym. Odczyty muszą
+ * dotrzeć bez zmian niezależnie od strefy czasowej, także po ponownym połączeniu, gdy klient
+ * nie ma już podstawy różnic sprzed przerwy.
+ */
+class ClientProtocolRoundTripTest {
+    private static final ProtocolOptions BINARY_DELTA = new ProtocolOptions(true, true, false);
+    private static final ProtocolOptions TEXT_DELTA = new ProtocolOptions(false, true, false);
+
+    private TimeZone previousZone;
+    private FakeServer server;
+    private MonitorClient client;
+    private final BlockingQueue<Reading> received = new LinkedBlockingQueue<>();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        // historia i sparowane czujniki z poprzednich testów zmieniłyby wysyłane polecenia
+        for (String name : List.of(Config.CLIENT_HISTORY_CACHE_DIR, "paired_sensors.db", "paired_sensors.journal")) {
+            Path path = Path.of(name);
+            if (!Files.exists(path)) continue;
+            try (Stream<Path> files = Files.walk(path)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(file);
+                }
+            }
+        }
+        // strefa ze zmianą czasu: 29 marca brakuje godziny 2:00-3:00, a 25 października występuje dwa razy
+        previousZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("Europe/Warsaw"));
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        try {
+            if (client != null) client.close();
+            if (server != null) server.close();
+        } finally {
+            TimeZone.setDefault(previousZone);
+        }
+    }
+
+    @Test
+    void binaryDeltaUpdatesSurviveNullFieldsTimeZoneAndReconnect() throws Exception {
+        roundTrip(BINARY_DELTA);
+    }
+
+    @Test
+    void textDeltaUpdatesSurviveNullFieldsTimeZoneAndReconnect() throws Exception {
+        roundTrip(TEXT_DELTA);
+    }
+
+    private void roundTrip(ProtocolOptions options) throws Exception {
+        server = new FakeServer(options);
+        client = new MonitorClient(List.of("127.0.0.1:" + server.getPort()));
+        client.registerUpdateCallback("s1", received::add);
+        Session first = server.nextSession();
+        assertTrue(first.hello.contains("BINARY") && first.hello.contains("DELTA"), first.hello);
+
+        // pełna aktualizacja, potem różnice zmieniające pola na null i z powrotem
+        List<Reading> before = List.of(
+                reading(21.5, 40.25, 300, 120.0, 10, 20, 30, 40, 5600.0, LocalDateTime.of(2026, 3, 29, 1, 59, 59)),
+                reading(null, 40.25, 301, 120.0, 10, null, 30, 40, 5600.0, LocalDateTime.of(2026, 3, 29, 2, 30)),
+                reading(-3.75, null, 301, null, 10, 0, 30, 40, null, LocalDateTime.of(2026, 3, 29, 3, 0)),
+                reading(null, null, null, null, null, null, null, null, null, LocalDateTime.of(2026, 10, 25, 2, 30)),
+                reading(0.1 + 0.2, 1.0 / 3, Integer.MAX_VALUE, 1e9 + 0.5, Integer.MIN_VALUE, -1, 0, 255, 2700.0,
+                        LocalDateTime.of(2026, 10, 25, 2, 30, 1)),
+                reading(-0.0, 100.0, 0, 0.001, 7, 7, 7, 7, 6500.0, LocalDateTime.of(2026, 10, 25, 2, 59, 59)));
+        for (Reading r : before) {
+            first.send(OutboundMessage.update("s1", r, true));
+        }
+        assertEquals(before, take(before.size()));
+
+        // po przerwie serwer może wysłać różnicę liczoną względem odczytu, którego klient nie otrzymał
+        first.close();
+        Session second = server.nextSession();
+        String since = second.nextCommand();
+        assertEquals("HISTORY_SINCE s1,2026-10-25 02:59:59", since);
+
+        // różnica jest nowsza niż odczyty z przerwy, więc błędnie odtworzona zostałaby przekazana
+        Reading unknownBase = reading(50.0, 60.0, 700, 800.0, 1, 2, 3, 4, 5000.0, LocalDateTime.of(2026, 10, 25, 3, 0));
+        Reading stale = reading(50.0, 60.0, 700, 800.0, 1, 2, 3, 4, 5001.0, LocalDateTime.of(2026, 10, 25, 3, 0, 2));
+        second.discard(OutboundMessage.update("s1", unknownBase, true));
+        second.send(OutboundMessage.update("s1", stale, true));
+
+        // nowe połączenie serwera zaczyna od pełnej aktualizacji, kolejne różnice liczy względem niej
+        second.resetWriter();
+        Reading gap = reading(22.0, null, 310, 130.0, null, null, null, null, null, LocalDateTime.of(2026, 10, 25, 3, 0, 1));
+        Reading full = reading(22.5, 41.0, 320, null, 11, 21, 31, 41, 5700.0, LocalDateTime.of(2026, 10, 25, 3, 0, 3));
+        Reading delta = reading(22.5, null, 320, 140.0, 11, 21, 31, 41, 5700.0, LocalDateTime.of(2026, 10, 25, 3, 0, 4));
+        second.send(OutboundMessage.update("s1", full, true), OutboundMessage.update("s1", delta, true));
+        second.send(OutboundMessage.line("HISTORY_START s1 1", false), OutboundMessage.data(gap),
+                OutboundMessage.line("HISTORY_END", false));
+
+        assertEquals(List.of(gap, full, delta), take(3));
+        assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    private static Reading reading(Double temperature, Double humidity, Integer soil, Double lux, Integer red,
+                                   Integer green, Integer blue, Integer white, Double colorTemperature,
+                                   LocalDateTime time) {
+        return new Reading("s1", temperature, humidity, soil, lux, red, green, blue, white, colorTemperature, time);
+    }
+
+    private List<Reading> take(int count) throws InterruptedException {
+        List<Reading> readings = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Reading r = received.poll(15, TimeUnit.SECONDS);
+            assertNotNull(r, "Otrzymano tylko " + readings);
+            readings.add(r);
+        }
+        return readings;
+    }
+
+    /**
+     * Serwer przyjmujący kolejne połączenia klienta. Wybiera podane opcje protokołu spośród
+     * zgłoszonych przez klienta i koduje komunikaty obiektem {@link MessageWriter}, jak {@link ClientListener}.
+     */
+    private static final class FakeServer implements AutoCloseable {
+        private final ServerSocket socket = new ServerSocket(0);
+        private final ProtocolOptions options;
+        private final BlockingQueue<Session> sessions = new LinkedBlockingQueue<>();
+        private final List<Session> opened = new ArrayList<>();
+
+        FakeServer(ProtocolOptions options) throws IOException {
+            this.options = options;
+            Thread thread = new Thread(this::serve, "fake-server");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return socket.getLocalPort();
+        }
+
+        Session nextSession() throws InterruptedException {
+            Session session = sessions.poll(15, TimeUnit.SECONDS);
+            assertNotNull(session, "Klient nie połączył się z serwerem");
+            return session;
+        }
+
+        private void serve() {
+            try {
+                while (true) {
+                    Socket client = socket.accept();
+                    Session session = new Session(client, options);
+                    synchronized (opened) {
+                        opened.add(session);
+                    }
+                    sessions.add(session);
+                }
+            } catch (IOException e) {
+                // serwer został zamknięty
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+            synchronized (opened) {
+                for (Session session : opened) {
+                    session.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Pojedyncze połączenie serwera testowego. Komunikaty są zapisywane przez wątek testu,
+     * a polecenia klienta odczytywane w tle.
+     */
+    private static final class Session {
+        private final Socket socket;
+        private final ProtocolOptions options;
+        private final SwitchableOutputStream out;
+        private final BlockingQueue<String> commands = new LinkedBlockingQueue<>();
+        private final String hello;
+        private MessageWriter writer;
+
+        Session(Socket socket, ProtocolOptions options) throws IOException {
+            this.socket = socket;
+            this.options = options;
+            this.out = new SwitchableOutputStream(socket.getOutputStream());
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+            out.write(("HELLO" + System.lineSeparator()).getBytes());
+            out.flush();
+            hello = String.valueOf(in.readLine());
+            assertNotNull(ClientListener.parseHelloOptions(hello.trim().split("\\s+")), hello);
+            out.write(("PROTOCOL " + options.toHandshake() + System.lineSeparator()).getBytes());
+            out.flush();
+
+            writer = MessageWriter.create(out, options);
+            send(OutboundMessage.line("REGISTRY_START 0 0", false), OutboundMessage.line("REGISTRY_END 0", false));
+
+            Thread reader = new Thread(() -> {
+                try {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        commands.add(line);
+                    }
+                } catch (IOException e) {
+                    // połączenie zostało zamknięte
+                }
+            }, "fake-server-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        void send(OutboundMessage... messages) throws IOException {
+            for (OutboundMessage m : messages) {
+                writer.write(m);
+            }
+            writer.flush();
+        }
+
+        /**
+         * Koduje komunikaty bez wysyłania ich klientowi, zmieniając tylko stan kodowania połączenia.
+         */
+        void discard(OutboundMessage... messages) throws IOException {
+            out.discarding = true;
+            try {
+                send(messages);
+            } finally {
+                out.discarding = false;
+            }
+        }
+
+        /**
+         * Rozpoczyna kodowanie od nowa, jak nowe połączenie serwera.
+         */
+        void resetWriter() {
+            writer = MessageWriter.create(out, options);
+        }
+
+        /**
+         * Zwraca kolejne polecenie klienta inne niż ustawienia połączenia.
+         */
+        String nextCommand() throws InterruptedException {
+            while (true) {
+                String command = commands.poll(15, TimeUnit.SECONDS);
+                assertNotNull(command, "Klient nie wysłał polecenia");
+                if (!command.startsWith("DELIVERY ") && !command.equals("ALERT_SUBSCRIBE")
+                        && !command.startsWith("USERNAME ")) {
+                    return command;
+                }
+            }
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /**
+     * Strumień, który przekazuje dane do gniazda albo je pomija.
+     */
+    private static final class SwitchableOutputStream extends OutputStream {
+        private final OutputStream target;
+        private volatile boolean discarding;
+
+        SwitchableOutputStream(OutputStream target) {
+            this.target = target;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!discarding) target.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (!discarding) target.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (!discarding) target.flush();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package jf.plantclimate.util;
+
+import jf.plantclimate.data.Reading;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Zgodność {@link ReadingParser#parse(CharSequence, int, int, MutableReading)} z dawnym parsowaniem
+ * wierszy przez {@code String.split} i {@link ReadingParser#parseFromParts(String[])}, którego używał
+ * klient (wiersze UPDATE i DATA) i serwer przy wczytywaniu historii.
+ */
+class ReadingParserTest {
+    private static final DateTimeFormatter LEGACY_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final String TIME = "2026-01-01 12:00:05";
+
+    @Test
+    void typicalLineFromAnUpdate() {
+        String line = "UPDATE s1,21.5,40.25,300,120.0,10,20,30,40,5600.0," + TIME;
+        MutableReading parsed = new MutableReading();
+
+        assertTrue(ReadingParser.parse(line, 7, line.length(), parsed));
+        assertEquals(new Reading("s1", 21.5, 40.25, 300, 120.0, 10, 20, 30, 40, 5600.0,
+                LocalDateTime.of(2026, 1, 1, 12, 0, 5)), parsed.toReading());
+        assertMatchesLegacy(line.substring(7));
+    }
+
+    @Test
+    void nullAndEmptyFieldsBecomeNull() {
+        MutableReading parsed = new MutableReading();
+        assertTrue(ReadingParser.parse("s1,null,null,null,null,null,null,null,null,null," + TIME, parsed));
+        Reading reading = parsed.toReading();
+        assertNull(reading.temperature());
+        assertNull(reading.soil());
+        assertNull(reading.colorTemperature());
+
+        for (String line : List.of("s1,null,null,null,null,null,null,null,null,null," + TIME,
+                "s1,,,,,,,,,," + TIME, "s1, , ,null, null ,,,,,null ," + TIME, ",1,2,3,4,5,6,7,8,9," + TIME)) {
+            assertMatchesLegacy(line);
+        }
+    }
+
+    @Test
+    void reusedTargetDoesNotKeepPreviousValues() {
+        MutableReading parsed = new MutableReading();
+        assertTrue(ReadingParser.parse("s1,21.5,40.0,300,120.5,1,2,3,4,5600.0," + TIME, parsed));
+        assertTrue(ReadingParser.parse("s2,null,40.0,null,120.5,null,null,null,null,null," + TIME, parsed));
+        assertEquals(legacy("s2,null,40.0,null,120.5,null,null,null,null,null," + TIME), parsed.toReading());
+        // identyfikator tej samej długości nie może zostać wzięty z poprzedniego wiersza
+        assertTrue(ReadingParser.parse("s3,1,2,3,4,5,6,7,8,9," + TIME, parsed));
+        assertEquals("s3", parsed.deviceId());
+    }
+
+    @Test
+    void missingTrailingFieldsAreRejected() {
+        for (String line : List.of("", "s1", "s1,21.5,40.0,300,120.5,null,null,null,null,null",
+                "s1,21.5,40.0,300,120.5,null,null,null,null,null,", "s1,21.5,40.0,300,120.5,null,null,null,null,null,,,",
+                "s1,1,2,3,4,5,6,7,8,,,")) {
+            assertFalse(ReadingParser.parse(line, new MutableReading()), line);
+            assertNull(legacy(line), line);
+        }
+    }
+
+    @Test
+    void extraAndTrailingFieldsAfterTheTimeAreIgnored() {
+        for (String line : List.of("s1,1,2,3,4,5,6,7,8,9," + TIME + ",extra", "s1,1,2,3,4,5,6,7,8,9," + TIME + ",,",
+                "s1,1,2,3,4,5,6,7,8,9," + TIME + ",,x,", "s1,1,2,3,4,5,6,7,8,9,,x")) {
+            assertMatchesLegacy(line);
+        }
+    }
+
+    @Test
+    void badAndUnusualNumbersMatchTheStandardParsers() {
+        String[] values = {"abc", "1.2.3", "1e3", "-1.5E-2", "+5", " 7 ", "\t8", "2147483647", "2147483648",
+                "-2147483648", "-2147483649", "0x10", "NaN", "-Infinity", "1d", "2.5f", "12345678901234567",
+                "123456789012345.6", ".5", "5.", "-", "+", ".", "-0", "-0.0", "007", "1_000", "١٢"};
+        for (String v : values) {
+            assertMatchesLegacy(String.join(",", "s1", v, v, v, v, v, v, v, v, v, v, TIME));
+        }
+    }
+
+    @Test
+    void timestampsMatchTheLegacyFormatter() {
+        for (String time : List.of(TIME, " " + TIME + " ", "2024-02-29 00:00:00", "2000-12-31 23:59:59",
+                "0001-01-01 00:00:00", "9999-12-31 23:59:59", "2026-01-01 24:00:00")) {
+            assertMatchesLegacy("s1,1,2,3,4,5,6,7,8,9," + time);
+        }
+    }
+
+    @Test
+    void invalidTimestampIsReplacedWithTheCurrentTime() {
+        for (String time : List.of("2026-02-29 12:00:00", "2026-13-01 12:00:00", "2026-01-01 12:60:00",
+                "2026-01-01 12:00:60", "2026-1-01 12:00:00", "2026-01-01T12:00:00", "0000-01-01 00:00:00",
+                "null", "x")) {
+            assertMatchesLegacy("s1,1,2,3,4,5,6,7,8,9," + time);
+        }
+    }
+
+    @Test
+    void randomLinesMatchLegacyParsing() {
+        String[] tokens = {"", " ", "null", "0", "-0.0", "21.5", "40.25", "-3", "1e2", "9999999999", "x", "+1.",
+                "0.30000000000000004", "1234567.8901234", " 12 ", "NaN", "2026-01-01 12:00:00"};
+        Random random = new Random(50);
+        StringBuilder line = new StringBuilder();
+        for (int n = 0; n < 50_000; n++) {
+            line.setLength(0);
+            line.append("s").append(random.nextInt(3));
+            int fields = 9 + random.nextInt(4);
+            for (int f = 0; f < fields; f++) {
+                line.append(',');
+                line.append(random.nextInt(3) == 0
+                        ? String.valueOf(random.nextInt(3) == 0 ? random.nextInt() : random.nextDouble() * 1000)
+                        : tokens[random.nextInt(tokens.length)]);
+            }
+            if (random.nextBoolean()) {
+                line.append(',').append(LocalDateTime.of(2000, 1, 1, 0, 0)
+                        .plusSeconds(random.nextInt(Integer.MAX_VALUE)).format(LEGACY_FORMATTER));
+            }
+            assertMatchesLegacy(line.toString());
+        }
+    }
+
+    /**
+     * Porównuje wynik parsowania z dawnym parsowaniem. Niepoprawny czas obie wersje zastępują
+     * bieżącym czasem, więc jest on sprawdzany zakresem.
+     */
+    private static void assertMatchesLegacy(String line) {
+        MutableReading parsed = new MutableReading();
+        LocalDateTime before = LocalDateTime.now();
+        boolean ok = ReadingParser.parse(line, parsed);
+        Reading expected = legacy(line);
+        LocalDateTime after = LocalDateTime.now();
+
+        assertEquals(expected != null, ok, line);
+        if (expected == null) return;
+        Reading actual = parsed.toReading();
+        if (expected.time() == null) {
+            assertFalse(actual.time().isBefore(before) || actual.time().isAfter(after), line);
+            actual = withoutTime(actual);
+        }
+        assertEquals(expected, actual, line);
+    }
+
+    private static Reading withoutTime(Reading r) {
+        return new Reading(r.deviceId(), r.temperature(), r.humidity(), r.soil(), r.lux(), r.red(), r.green(),
+                r.blue(), r.white(), r.colorTemperature(), null);
+    }
+
+    /**
+     * Dawne parsowanie wiersza: {@code split(",")}, co najmniej 11 pól, {@code trim()} i standardowe parsery.
+     *
+     * @return odczyt z czasem null zamiast bieżącego czasu albo null, gdy wiersz ma za mało pól
+     */
+    private static Reading legacy(String line) {
+        String[] parts = line.split(",");
+        if (parts.length < 11) return null;
+        LocalDateTime time = null;
+        try {
+            time = LocalDateTime.parse(parts[10].trim(), LEGACY_FORMATTER);
+        } catch (Exception e) {
+            // dawny parser podstawiał bieżący czas
+        }
+        return new Reading(parts[0], legacyDouble(parts[1]), legacyDouble(parts[2]), legacyInteger(parts[3]),
+                legacyDouble(parts[4]), legacyInteger(parts[5]), legacyInteger(parts[6]), legacyInteger(parts[7]),
+                legacyInteger(parts[8]), legacyDouble(parts[9]), time);
+    }
+
+    private static Integer legacyInteger(String value) {
+        if (value == null || value.trim().isEmpty() || value.equals("null")) return null;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static Double legacyDouble(String value) {
+        if (value == null || value.trim().isEmpty() || value.equals("null")) return null;
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}